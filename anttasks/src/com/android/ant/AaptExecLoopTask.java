@@ -20,10 +20,20 @@ import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.taskdefs.ExecTask;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.PumpStreamHandler;
 import org.apache.tools.ant.types.Path;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Task to execute aapt.
@@ -31,7 +41,8 @@ import java.util.ArrayList;
  * <p>It does not follow the exec task format, instead it has its own parameters, which maps
  * directly to aapt.</p>
  * <p>It is able to run aapt several times if library setup requires generating several
- * R.java files.
+ * R.java files. The runs generating the R.java files of the libraries are done in parallel,
+ * see the <var>threadcount</var> attribute, and their output is displayed in order.
  * <p>The following map shows how to use the task for each supported aapt command line
  * parameter.</p>
  *
@@ -48,6 +59,7 @@ import java.util.ArrayList;
  * <tr><td>-0 extension</td><td>&lt;nocompress extension=""&gt;<br>&lt;nocompress&gt;</td><td>nested element(s)<br>with attribute (String)</td></tr>
  * <tr><td>-F apk-file</td><td>apkfolder<br>outfolder<br>apkbasename<br>basename</td><td>attribute (Path)<br>attribute (Path) deprecated<br>attribute (String)<br>attribute (String) deprecated</td></tr>
  * <tr><td>-J R-file-dir</td><td>rfolder</td><td>attribute (Path)<br>-m always enabled</td></tr>
+ * <tr><td>number of parallel runs</td><td>threadcount</td><td>attribute (int)</td></tr>
  * <tr><td></td><td></td><td></td></tr>
  * </table>
  */
@@ -86,6 +98,7 @@ public final class AaptExecLoopTask extends Task {
     private String mApkName;
     private String mResourceFilter;
     private String mRFolder;
+    private int mThreadCount = Runtime.getRuntime().availableProcessors();
     private final ArrayList<NoCompress> mNoCompressList = new ArrayList<NoCompress>();
 
     /**
@@ -212,6 +225,15 @@ public final class AaptExecLoopTask extends Task {
         mRFolder = TaskHelper.checkSinglePath("rfolder", rFolder);
     }
 
+    /**
+     * Sets the value of the "threadcount" attribute: the maximum number of aapt runs generating
+     * the R.java files of the libraries at the same time. Default is the number of processors.
+     * @param threadCount the value.
+     */
+    public void setThreadcount(int threadCount) {
+        mThreadCount = threadCount;
+    }
+
     public void setresourcefilter(String filter) {
         if (filter != null && filter.length() > 0) {
             mResourceFilter = filter;
@@ -264,28 +286,91 @@ public final class AaptExecLoopTask extends Task {
                 // get the main package to compare in case the libraries use the same
                 String mainPackage = taskProject.getProperty(AntConstants.PROP_MANIFEST_PACKAGE);
 
+                List<String> customPackages = new ArrayList<String>();
                 String[] libPkgs = libPkgProp.split(";");
                 for (String libPkg : libPkgs) {
                     if (libPkg.length() > 0 && mainPackage.equals(libPkg) == false) {
                         // FIXME: instead of recreating R.java from scratch, maybe copy
                         // the files (R.java and manifest.java)? This would force to replace
                         // the package line on the fly.
-                        callAapt(libPkg);
+                        customPackages.add(libPkg);
                     }
                 }
+
+                if (customPackages.size() > 0) {
+                    long startTime = System.currentTimeMillis();
+                    generateLibraryRClasses(customPackages);
+                    System.out.println(String.format(
+                            "Generated the R classes of %1$d libraries in %2$d ms.",
+                            customPackages.size(), System.currentTimeMillis() - startTime));
+                }
             }
         }
     }
 
+    /**
+     * Calls aapt for each of the given custom packages, to generate their R class only. The
+     * runs are done in parallel, and their output is displayed in the order of the packages.
+     * @param customPackages the custom packages.
+     */
+    private void generateLibraryRClasses(List<String> customPackages) {
+        final Project taskProject = getProject();
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(mThreadCount, customPackages.size())));
+        try {
+            List<Future<ByteArrayOutputStream>> runs =
+                new ArrayList<Future<ByteArrayOutputStream>>();
+            for (String customPackage : customPackages) {
+                // the R class is all that's needed, the resource package is already created.
+                final List<String> args = getAaptArgs(customPackage, false /*createPackage*/);
+                args.add(0, mExecutable);
+
+                runs.add(executor.submit(new Callable<ByteArrayOutputStream>() {
+                    public ByteArrayOutputStream call() throws IOException {
+                        ByteArrayOutputStream output = new ByteArrayOutputStream();
+                        Execute execute = new Execute(new PumpStreamHandler(output));
+                        execute.setAntRun(taskProject);
+                        execute.setWorkingDirectory(taskProject.getBaseDir());
+                        execute.setCommandline(args.toArray(new String[args.size()]));
+
+                        int result = execute.execute();
+                        if (Execute.isFailure(result)) {
+                            throw new BuildException(String.format(
+                                    "%1$s returned: %2$d\n%3$s", args.get(0), result,
+                                    output.toString()));
+                        }
+                        return output;
+                    }
+                }));
+            }
+
+            // display the output of each run in order, as it completes.
+            for (Future<ByteArrayOutputStream> run : runs) {
+                String output = run.get().toString();
+                for (String line : output.split("\r?\n")) {
+                    if (line.length() > 0) {
+                        log(line);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new BuildException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BuildException) {
+                throw (BuildException) e.getCause();
+            }
+            throw new BuildException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Calls aapt with the given parameters.
-     * @param resourceFilter the resource configuration filter to pass to aapt (if configName is
-     * non null)
      * @param customPackage an optional custom package.
      */
     private void callAapt(String customPackage) {
-        Project taskProject = getProject();
-
         final boolean generateRClass = mRFolder != null && new File(mRFolder).isDirectory();
 
         if (generateRClass) {
@@ -305,31 +390,55 @@ public final class AaptExecLoopTask extends Task {
         File exe = new File(mExecutable);
         task.setTaskName(exe.getName());
 
+        for (String arg : getAaptArgs(customPackage, true /*createPackage*/)) {
+            task.createArg().setValue(arg);
+        }
+
+        // final setup of the task
+        task.setProject(getProject());
+        task.setOwningTarget(getOwningTarget());
+
+        // execute it.
+        task.execute();
+    }
+
+    /**
+     * Returns the arguments of aapt, without the executable.
+     * @param customPackage an optional custom package.
+     * @param createPackage whether to create the resource package, or only the R class.
+     */
+    private List<String> getAaptArgs(String customPackage, boolean createPackage) {
+        Project taskProject = getProject();
+
+        final boolean generateRClass = mRFolder != null && new File(mRFolder).isDirectory();
+
+        List<String> args = new ArrayList<String>();
+
         // aapt command. Only "package" is supported at this time really.
-        task.createArg().setValue(mCommand);
+        args.add(mCommand);
 
         // force flag
         if (mForce) {
-            task.createArg().setValue("-f");
+            args.add("-f");
         }
 
         // verbose flag
         if (mVerbose) {
-            task.createArg().setValue("-v");
+            args.add("-v");
         }
 
         if (mDebug) {
-            task.createArg().setValue("--debug-mode");
+            args.add("--debug-mode");
         }
 
         if (generateRClass) {
-            task.createArg().setValue("-m");
+            args.add("-m");
         }
 
         // filters if needed
         if (mResourceFilter != null) {
-            task.createArg().setValue("-c");
-            task.createArg().setValue(mResourceFilter);
+            args.add("-c");
+            args.add(mResourceFilter);
         }
 
         // no compress flag
@@ -337,8 +446,8 @@ public final class AaptExecLoopTask extends Task {
         boolean compressNothing = false;
         for (NoCompress nc : mNoCompressList) {
             if (nc.mExtension == null) {
-                task.createArg().setValue("-0");
-                task.createArg().setValue("");
+                args.add("-0");
+                args.add("");
                 compressNothing = true;
                 break;
             }
@@ -346,31 +455,31 @@ public final class AaptExecLoopTask extends Task {
 
         if (compressNothing == false) {
             for (NoCompress nc : mNoCompressList) {
-                task.createArg().setValue("-0");
-                task.createArg().setValue(nc.mExtension);
+                args.add("-0");
+                args.add(nc.mExtension);
             }
         }
 
         if (customPackage != null) {
-            task.createArg().setValue("--custom-package");
-            task.createArg().setValue(customPackage);
+            args.add("--custom-package");
+            args.add(customPackage);
         }
 
         // if the project contains libraries, force auto-add-overlay
         Object libResRef = taskProject.getReference(AntConstants.PROP_PROJECT_LIBS_RES_REF);
         if (libResRef != null) {
-            task.createArg().setValue("--auto-add-overlay");
+            args.add("--auto-add-overlay");
         }
 
         if (mVersionCode != 0) {
-            task.createArg().setValue("--version-code");
-            task.createArg().setValue(Integer.toString(mVersionCode));
+            args.add("--version-code");
+            args.add(Integer.toString(mVersionCode));
         }
 
         // manifest location
         if (mManifest != null) {
-            task.createArg().setValue("-M");
-            task.createArg().setValue(mManifest);
+            args.add("-M");
+            args.add(mManifest);
         }
 
         // resources locations.
@@ -380,8 +489,8 @@ public final class AaptExecLoopTask extends Task {
                     // This may not exists, and aapt doesn't like it, so we check first.
                     File res = new File(path);
                     if (res.isDirectory()) {
-                        task.createArg().setValue("-S");
-                        task.createArg().setValue(path);
+                        args.add("-S");
+                        args.add(path);
                     }
                 }
             }
@@ -393,22 +502,22 @@ public final class AaptExecLoopTask extends Task {
                 // This may not exists, and aapt doesn't like it, so we check first.
                 File res = new File(path);
                 if (res.isDirectory()) {
-                    task.createArg().setValue("-S");
-                    task.createArg().setValue(path);
+                    args.add("-S");
+                    args.add(path);
                 }
             }
         }
 
         // assets location. This may not exists, and aapt doesn't like it, so we check first.
         if (mAssets != null && new File(mAssets).isDirectory()) {
-            task.createArg().setValue("-A");
-            task.createArg().setValue(mAssets);
+            args.add("-A");
+            args.add(mAssets);
         }
 
         // android.jar
         if (mAndroidJar != null) {
-            task.createArg().setValue("-I");
-            task.createArg().setValue(mAndroidJar);
+            args.add("-I");
+            args.add(mAndroidJar);
         }
 
         // apk file. This is based on the apkFolder, apkBaseName, and the configName (if applicable)
@@ -417,23 +526,18 @@ public final class AaptExecLoopTask extends Task {
             filename = mApkName;
         }
 
-        if (filename != null) {
+        if (filename != null && createPackage) {
             File file = new File(mApkFolder, filename);
-            task.createArg().setValue("-F");
-            task.createArg().setValue(file.getAbsolutePath());
+            args.add("-F");
+            args.add(file.getAbsolutePath());
         }
 
         // R class generation
         if (generateRClass) {
-            task.createArg().setValue("-J");
-            task.createArg().setValue(mRFolder);
+            args.add("-J");
+            args.add(mRFolder);
         }
 
-        // final setup of the task
-        task.setProject(taskProject);
-        task.setOwningTarget(getOwningTarget());
-
-        // execute it.
-        task.execute();
+        return args;
     }
 }
@@ -36,6 +36,8 @@ public interface AntConstants {
     public final static String PROP_AIDL = "aidl";
     /** ant property with the path to the dx tool */
     public final static String PROP_DX = "dx";
+    /** ant property with the path to the dx jar, used to identify the version of dx */
+    public final static String PROP_DX_JAR = "dx.jar";
     /** ant property with the path to the renderscript tool */
     public final static String PROP_RENDERSCRIPT = "renderscript";
     /** ref id to the <path> object containing all the boot classpaths. */
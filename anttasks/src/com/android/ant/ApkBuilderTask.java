@@ -43,6 +43,8 @@ public class ApkBuilderTask extends Task {
     private boolean mDebugSigning = false;
     private boolean mHasCode = true;
     private String mAbiFilter = null;
+    private int mThreadCount = 1;
+    private boolean mIncremental = false;
 
     private Path mDexPath;
 
@@ -127,6 +129,24 @@ public class ApkBuilderTask extends Task {
         }
     }
 
+    /**
+     * Sets the value of the "threadcount" attribute: the number of threads compressing and
+     * digesting the files of the APK. Default is 1, which packages the files sequentially.
+     * @param threadCount the value.
+     */
+    public void setThreadcount(int threadCount) {
+        mThreadCount = threadCount;
+    }
+
+    /**
+     * Sets the value of the "incremental" attribute: whether the APK built previously is
+     * updated rather than rebuilt from scratch. Default is false.
+     * @param incremental the value.
+     */
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
     /**
      * Sets the hascode attribute. Default is true.
      * If set to false, then <dex> and <sourcefolder> nodes are ignored and not processed.
@@ -251,6 +271,8 @@ public class ApkBuilderTask extends Task {
                     mDebugSigning ? ApkBuilder.getDebugKeystore() : null,
                     mVerbose ? System.out : null);
             apkBuilder.setDebugMode(mDebugPackaging);
+            apkBuilder.setThreadCount(mThreadCount);
+            apkBuilder.setIncrementalMode(mIncremental);
 
 
             // add the content of the zip files.
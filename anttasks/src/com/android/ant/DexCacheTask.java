@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ant;
+
+import com.android.prefs.AndroidLocation.AndroidLocationException;
+import com.android.sdklib.build.DexCache;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Sequential;
+import org.apache.tools.ant.types.Commandline.Argument;
+import org.apache.tools.ant.types.Path;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the dx tasks it contains only if the dex file of the same inputs is not in the
+ * {@link DexCache}, and adds the new dex file to the cache.
+ *
+ * In XML:
+ * <dex-cache dxjar="${dx.jar}" output="${intermediate.dex.file}">
+ *     <arg value="--dex" />
+ *     <input>
+ *         <pathelement path="${out.classes.absolute.dir}" />
+ *         <path refid="jar.libs.ref" />
+ *     </input>
+ *     <dex>
+ *         <apply executable="${dx}" ...>
+ *         </apply>
+ *     </dex>
+ * </dex-cache>
+ *
+ * <arg> elements list the options given to dx, which are part of the key of the cache. They
+ * must not include the output or the verbose option, which do not change the dex file.
+ * <input> behaves like a <path>. It must list the inputs of dx in the same order as the tasks
+ * of <dex>, which behaves like <sequential>.
+ */
+public class DexCacheTask extends Task {
+
+    private String mDxJar;
+    private String mOutput;
+    private final List<Argument> mOptions = new ArrayList<Argument>();
+    private Path mInput;
+    private Sequential mDex;
+
+    /**
+     * Sets the value of the "dxjar" attribute.
+     * @param dxJar the value.
+     */
+    public void setDxjar(Path dxJar) {
+        mDxJar = TaskHelper.checkSinglePath("dxjar", dxJar);
+    }
+
+    /**
+     * Sets the value of the "output" attribute.
+     * @param output the value.
+     */
+    public void setOutput(Path output) {
+        mOutput = TaskHelper.checkSinglePath("output", output);
+    }
+
+    /**
+     * Creates and returns an <arg> {@link Argument}, an option given to dx.
+     */
+    public Argument createArg() {
+        Argument option = new Argument();
+        mOptions.add(option);
+        return option;
+    }
+
+    /**
+     * Creates and returns the <input> {@link Path}.
+     */
+    public Object createInput() {
+        if (mInput == null) {
+            mInput = new Path(getProject());
+        }
+        return mInput.createPath();
+    }
+
+    /**
+     * Creates and returns the <dex> {@link Sequential}
+     */
+    public Object createDex() {
+        mDex = new Sequential();
+        return mDex;
+    }
+
+    @Override
+    public void execute() throws BuildException {
+        if (mOutput == null) {
+            throw new BuildException("output attribute must be set.");
+        }
+        if (mDex == null) {
+            throw new BuildException("Need a <dex> element.");
+        }
+
+        List<String> options = new ArrayList<String>();
+        for (Argument option : mOptions) {
+            String[] parts = option.getParts();
+            if (parts != null) {
+                for (String part : parts) {
+                    options.add(part);
+                }
+            }
+        }
+
+        String[] inputPaths = mInput != null ? mInput.list() : new String[0];
+        File outFile = new File(mOutput);
+
+        DexCache cache = null;
+        String key = null;
+        if (mDxJar != null && new File(mDxJar).isFile()) {
+            try {
+                cache = DexCache.getDefault();
+                key = cache.getKey(new File(mDxJar),
+                        options.toArray(new String[options.size()]), inputPaths);
+                if (cache.restore(key, outFile)) {
+                    System.out.println("Inputs unchanged since a previous conversion, using " +
+                            "cached " + outFile.getName() + ".");
+                    return;
+                }
+            } catch (AndroidLocationException e) {
+                log("Dex cache disabled: " + e.getMessage(), Project.MSG_VERBOSE);
+            } catch (IOException e) {
+                log("Dex cache disabled: " + e.getMessage(), Project.MSG_VERBOSE);
+                key = null;
+            }
+        }
+
+        mDex.execute();
+
+        if (key != null) {
+            try {
+                cache.store(key, outFile);
+            } catch (IOException e) {
+                // the next build will run dx again.
+                log("Failed to add " + outFile + " to the dex cache: " + e.getMessage(),
+                        Project.MSG_VERBOSE);
+            }
+        }
+    }
+}
@@ -35,11 +35,17 @@ import org.xml.sax.InputSource;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
@@ -49,16 +55,50 @@ import javax.xml.xpath.XPathFactory;
  * Multiple APK export task.
  * This task is meant to replace {@link SetupTask} as the main setup/export task, importing
  * the rules and generating the export for all projects.
+ * <p/>
+ * With a <var>threadcount</var> greater than 1, the APKs are exported in parallel. The first
+ * APK of each project is exported first, as it compiles the project, and then the other APKs,
+ * which only package the compiled project. The output of each of these sub ant tasks is
+ * written to a log file next to the exported APK.
  */
 public class MultiApkExportTask extends Task {
 
     private Target mTarget;
     private XPathFactory mXPathFactory;
+    private int mThreadCount = 1;
+
+    /**
+     * The export of an APK, by a release sub ant task.
+     */
+    private final static class Export {
+        /** the name of the exported APK, without extension */
+        final String mName;
+        final SubAnt mSubAnt;
+        /** whether the project is compiled by this export */
+        final boolean mCompile;
+        /** the time the export took, 0 until it's executed */
+        long mTime;
+
+        Export(String name, SubAnt subAnt, boolean compile) {
+            mName = name;
+            mSubAnt = subAnt;
+            mCompile = compile;
+        }
+    }
 
     public void setTarget(String target) {
         mTarget = Target.getTarget(target);
     }
 
+    /**
+     * Sets the value of the "threadcount" attribute: the number of APKs exported at the same
+     * time. Default is 1.
+     * @param threadCount the value.
+     */
+    public void setThreadcount(int threadCount) {
+        mThreadCount = threadCount;
+    }
+
     @Override
     public void execute() throws BuildException {
         Project antProject = getProject();
@@ -146,6 +186,9 @@ public class MultiApkExportTask extends Task {
                             AntConstants.PROP_KEY_ALIAS_PASSWORD);
                 }
 
+                boolean parallel = mThreadCount > 1;
+                List<Export> exports = new ArrayList<Export>();
+
                 for (ApkData apk : apks) {
 
                     Map<String, String> variantMap = apk.getSoftVariantMap();
@@ -153,17 +196,47 @@ public class MultiApkExportTask extends Task {
                     if (variantMap.size() > 0) {
                         // if there are soft variants, only export those.
                         for (Entry<String, String> entry : variantMap.entrySet()) {
-                            executeReleaseSubAnt(antProject, appPackage, versionCode, apk, entry,
-                                    exportProjectOutput, canSign, keyStore, keyAlias,
-                                    keyStorePassword, keyAliasPassword, compiledProject);
+                            exports.add(createReleaseSubAnt(antProject, appPackage, versionCode,
+                                    apk, entry, exportProjectOutput, canSign, keyStore, keyAlias,
+                                    keyStorePassword, keyAliasPassword, compiledProject,
+                                    parallel));
+                            if (parallel == false) {
+                                executeExport(exports.get(exports.size() - 1));
+                            }
                         }
                     } else {
                         // do the full export.
-                        executeReleaseSubAnt(antProject, appPackage, versionCode, apk, null,
-                                exportProjectOutput, canSign, keyStore, keyAlias,
-                                keyStorePassword, keyAliasPassword, compiledProject);
+                        exports.add(createReleaseSubAnt(antProject, appPackage, versionCode,
+                                apk, null, exportProjectOutput, canSign, keyStore, keyAlias,
+                                keyStorePassword, keyAliasPassword, compiledProject,
+                                parallel));
+                        if (parallel == false) {
+                            executeExport(exports.get(exports.size() - 1));
+                        }
+                    }
+                }
 
+                if (parallel) {
+                    // the projects are compiled first, each by one of their exports, and then
+                    // the other exports only package the compiled projects.
+                    List<Export> compileExports = new ArrayList<Export>();
+                    List<Export> packageExports = new ArrayList<Export>();
+                    for (Export export : exports) {
+                        if (export.mCompile) {
+                            compileExports.add(export);
+                        } else {
+                            packageExports.add(export);
+                        }
                     }
+
+                    executeExports(compileExports, exportProjectOutput);
+                    executeExports(packageExports, exportProjectOutput);
+                }
+
+                System.out.println("\nExport times:");
+                for (Export export : exports) {
+                    System.out.println(String.format("%1$s: %2$d ms", export.mName,
+                            export.mTime));
                 }
 
                 helper.writeLogs();
@@ -213,7 +286,62 @@ public class MultiApkExportTask extends Task {
     }
 
     /**
-     * Creates and executes a release sub ant task.
+     * Executes the sub ant task of an export, and records its time.
+     */
+    private void executeExport(Export export) {
+        long startTime = System.currentTimeMillis();
+        export.mSubAnt.execute();
+        export.mTime = System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Executes the sub ant tasks of independent exports in parallel, with
+     * {@link #mThreadCount} threads.
+     * @param exports the exports.
+     * @param exportProjectOutput the folder containing the log files of the exports.
+     */
+    private void executeExports(List<Export> exports, File exportProjectOutput) {
+        if (exports.size() == 0) {
+            return;
+        }
+
+        System.out.println(String.format("\nExporting %1$d APKs with %2$d threads...",
+                exports.size(), mThreadCount));
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(mThreadCount, exports.size()));
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (final Export export : exports) {
+                results.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        executeExport(export);
+                        System.out.println(String.format("Exported %1$s in %2$d ms",
+                                export.mName, export.mTime));
+                        return null;
+                    }
+                }));
+            }
+
+            for (int i = 0 ; i < results.size() ; i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    Export export = exports.get(i);
+                    File log = new File(exportProjectOutput, export.mName + ".log");
+                    throw new BuildException(String.format("Failed to export %1$s, see %2$s",
+                            export.mName, log.getAbsolutePath()), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new BuildException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates a release sub ant task.
      * @param antProject the current Ant project
      * @param appPackage the application package string.
      * @param versionCode the current version of the application
@@ -227,11 +355,15 @@ public class MultiApkExportTask extends Task {
      * @param keyStorePassword the password of the keystore for signing
      * @param keyAliasPassword the password of the key alias for signing
      * @param compiledProject a list of projects that have already been compiled.
+     * @param parallel whether the sub ant task is executed in parallel with others, in which
+     * case its output is written to a log file.
+     * @return the export, whose sub ant task has not been executed yet.
      */
-    private void executeReleaseSubAnt(Project antProject, String appPackage, int versionCode,
+    private Export createReleaseSubAnt(Project antProject, String appPackage, int versionCode,
             ApkData apk, Entry<String, String> softVariant, File exportProjectOutput,
             boolean canSign, String keyStore, String keyAlias,
-            String keyStorePassword, String keyAliasPassword, Set<String> compiledProject) {
+            String keyStorePassword, String keyAliasPassword, Set<String> compiledProject,
+            boolean parallel) {
 
         String relativePath = apk.getProjectConfig().getRelativePath();
 
@@ -258,7 +390,8 @@ public class MultiApkExportTask extends Task {
         // this project.
         // (projects can be export multiple time if some properties are set up to
         // generate more than one APK (for instance ABI split).
-        if (compiledProject.contains(relativePath) == false) {
+        boolean compile = compiledProject.contains(relativePath) == false;
+        if (compile) {
             compiledProject.add(relativePath);
         } else {
             addProp(subAnt, "do.not.compile", "true");
@@ -315,11 +448,10 @@ public class MultiApkExportTask extends Task {
             addProp(subAnt, "key.alias.password", keyAliasPassword);
 
             // temporary file only get a filename change (still stored in the project
-            // bin folder).
-            addProp(subAnt, "out.unsigned.file.name",
-                    name + "-" + apk.getBuildInfo() + "-unsigned.apk");
-            addProp(subAnt, "out.unaligned.file",
-                    name + "-" + apk.getBuildInfo() + "-unaligned.apk");
+            // bin folder). They include the soft variant, as the soft variants of an APK
+            // can be exported at the same time.
+            addProp(subAnt, "out.unsigned.file.name", pkgName + "-unsigned.apk");
+            addProp(subAnt, "out.unaligned.file", pkgName + "-unaligned.apk");
 
             // final file is stored locally with a name based on the package
             String outputName = finalNameRoot + "-release.apk";
@@ -341,12 +473,18 @@ public class MultiApkExportTask extends Task {
                     new File(exportProjectOutput, outputName).getAbsolutePath());
         }
 
-        // end of the output by this task. Everything that follows will be output
-        // by the subant.
-        System.out.println("Calling to project's Ant file...");
-        System.out.println("----------\n");
+        if (parallel) {
+            File log = new File(exportProjectOutput, finalNameRoot + ".log");
+            subAnt.setOutput(log.getAbsolutePath());
+            System.out.println("Output: " + log.getAbsolutePath());
+        } else {
+            // end of the output by this task. Everything that follows will be output
+            // by the subant.
+            System.out.println("Calling to project's Ant file...");
+            System.out.println("----------\n");
+        }
 
-        subAnt.execute();
+        return new Export(finalNameRoot, subAnt, compile);
     }
 
     /**
@@ -209,6 +209,8 @@ public final class SetupTask extends ImportTask {
         antProject.setProperty(AntConstants.PROP_AAPT, androidTarget.getPath(IAndroidTarget.AAPT));
         antProject.setProperty(AntConstants.PROP_AIDL, androidTarget.getPath(IAndroidTarget.AIDL));
         antProject.setProperty(AntConstants.PROP_DX, androidTarget.getPath(IAndroidTarget.DX));
+        antProject.setProperty(AntConstants.PROP_DX_JAR,
+                androidTarget.getPath(IAndroidTarget.DX_JAR));
         antProject.setProperty(AntConstants.PROP_RENDERSCRIPT,
                 sdkOsPath + SdkConstants.OS_SDK_PLATFORM_TOOLS_FOLDER +
                 SdkConstants.FN_RENDERSCRIPT);
@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.utils.ArrayHelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Columnar storage for the allocations reported by the allocation tracker.
+ * <p/>
+ * Each allocation record is stored as a row of primitive columns: allocated class (index in a
+ * string table), size, thread id and stack id (index in a table of interned stack traces).
+ * Class, method and file names, stack frames and stack traces are interned, so a record costs
+ * a few ints no matter how deep its stack trace is.
+ * <p/>
+ * The allocation tracker of the VM returns its most recent allocations each time it is polled,
+ * and its records carry no id, so the store cannot tell which records of a poll it already has.
+ * Each poll is therefore kept whole: the store holds a timeline of the polls, and consecutive
+ * polls usually share some allocations. Since strings and stacks are interned, the records of
+ * a poll only cost a few ints each, and the records of previous polls are never copied again.
+ * <p/>
+ * Records are stored in chronological order: record 0 is the oldest.
+ * <p/>
+ * This class is not thread-safe: callers must synchronize on the store.
+ */
+public final class AllocationStore {
+
+    /** Columns that records can be grouped by. */
+    public static enum GroupBy {
+        /** group by allocated class. Keys are string indices. */
+        CLASS,
+        /** group by stack trace. Keys are stack ids. */
+        STACK,
+        /** group by thread. Keys are thread ids. */
+        THREAD;
+    }
+
+    /**
+     * Result of a {@link AllocationStore#groupBy(GroupBy, int, int)}. Groups are sorted by
+     * decreasing total size.
+     */
+    public final static class GroupByResult {
+        private final int[] mKeys;
+        private final int[] mCounts;
+        private final long[] mSizes;
+
+        GroupByResult(int[] keys, int[] counts, long[] sizes) {
+            mKeys = keys;
+            mCounts = counts;
+            mSizes = sizes;
+        }
+
+        /** Returns the number of groups. */
+        public int getGroupCount() {
+            return mKeys.length;
+        }
+
+        /** Returns the key of a group. Its meaning depends on the {@link GroupBy} value. */
+        public int getKey(int group) {
+            return mKeys[group];
+        }
+
+        /** Returns the number of allocations in a group. */
+        public int getCount(int group) {
+            return mCounts[group];
+        }
+
+        /** Returns the total size of the allocations in a group. */
+        public long getSize(int group) {
+            return mSizes[group];
+        }
+    }
+
+    // ---- string table
+
+    private final ArrayList<String> mStrings = new ArrayList<String>();
+    private final HashMap<String, Integer> mStringIndices = new HashMap<String, Integer>();
+
+    // ---- frame table: class, method, file, line for each frame, interned.
+
+    private int[] mFrames = new int[4 * 256];
+    private int mFrameCount = 0;
+    private int[] mFrameSlots = new int[512];
+
+    // ---- stack table: stack i is made of the frames [mStackOffsets[i], mStackOffsets[i + 1])
+
+    private int[] mStackFrames = new int[1024];
+    private int mStackFrameCount = 0;
+    private int[] mStackOffsets = new int[257];
+    private int[] mStackHashes = new int[256];
+    private int mStackCount = 0;
+    private int[] mStackSlots = new int[512];
+    private StackTraceElement[][] mStackTraces = new StackTraceElement[256][];
+
+    // ---- records
+
+    private int[] mClasses = new int[1024];
+    private int[] mSizes = new int[1024];
+    private int[] mThreads = new int[1024];
+    private int[] mStacks = new int[1024];
+    private int mRecordCount = 0;
+
+    // ---- polls: poll i added the records [mPollEnds[i - 1], mPollEnds[i])
+
+    private int[] mPollEnds = new int[64];
+    private long[] mPollTimes = new long[64];
+    private int mPollCount = 0;
+
+    /**
+     * Interns a list of strings.
+     * @return an array giving the string index of each string.
+     */
+    public int[] internStrings(String[] strings) {
+        int[] indices = new int[strings.length];
+        for (int i = 0 ; i < strings.length ; i++) {
+            indices[i] = internString(strings[i]);
+        }
+        return indices;
+    }
+
+    /**
+     * Interns a string.
+     * @return the string index.
+     */
+    public int internString(String string) {
+        Integer index = mStringIndices.get(string);
+        if (index == null) {
+            index = mStrings.size();
+            mStrings.add(string);
+            mStringIndices.put(string, index);
+        }
+        return index;
+    }
+
+    /**
+     * Returns a string from its index.
+     */
+    public String getString(int index) {
+        return mStrings.get(index);
+    }
+
+    /**
+     * Interns a stack frame.
+     * @param classIndex the string index of the class name.
+     * @param methodIndex the string index of the method name.
+     * @param fileIndex the string index of the source file name.
+     * @param line the line number, -2 if native, -1 if unknown.
+     * @return the frame id.
+     */
+    public int internFrame(int classIndex, int methodIndex, int fileIndex, int line) {
+        int hash = ((classIndex * 31 + methodIndex) * 31 + fileIndex) * 31 + line;
+        int mask = mFrameSlots.length - 1;
+        int slot = mix(hash) & mask;
+        while (true) {
+            int value = mFrameSlots[slot];
+            if (value == 0) {
+                break;
+            }
+
+            int base = (value - 1) * 4;
+            if (mFrames[base] == classIndex && mFrames[base + 1] == methodIndex &&
+                    mFrames[base + 2] == fileIndex && mFrames[base + 3] == line) {
+                return value - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int frameId = mFrameCount++;
+        if (mFrameCount * 4 > mFrames.length) {
+            mFrames = ArrayHelper.copyOf(mFrames, mFrames.length * 2);
+        }
+        int base = frameId * 4;
+        mFrames[base] = classIndex;
+        mFrames[base + 1] = methodIndex;
+        mFrames[base + 2] = fileIndex;
+        mFrames[base + 3] = line;
+        mFrameSlots[slot] = frameId + 1;
+
+        if (mFrameCount * 2 > mFrameSlots.length) {
+            int[] slots = new int[mFrameSlots.length * 2];
+            mask = slots.length - 1;
+            for (int i = 0 ; i < mFrameCount ; i++) {
+                base = i * 4;
+                hash = ((mFrames[base] * 31 + mFrames[base + 1]) * 31 + mFrames[base + 2]) * 31 +
+                        mFrames[base + 3];
+                slot = mix(hash) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i + 1;
+            }
+            mFrameSlots = slots;
+        }
+
+        return frameId;
+    }
+
+    /**
+     * Interns a stack trace.
+     * @param frames the frame ids, from {@link #internFrame(int, int, int, int)}.
+     * @param depth the number of frames to use from <var>frames</var>.
+     * @return the stack id.
+     */
+    public int internStack(int[] frames, int depth) {
+        int hash = depth;
+        for (int i = 0 ; i < depth ; i++) {
+            hash = hash * 31 + frames[i];
+        }
+
+        int mask = mStackSlots.length - 1;
+        int slot = mix(hash) & mask;
+        while (true) {
+            int value = mStackSlots[slot];
+            if (value == 0) {
+                break;
+            }
+
+            int stackId = value - 1;
+            if (mStackHashes[stackId] == hash && isSameStack(stackId, frames, depth)) {
+                return stackId;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int stackId = mStackCount++;
+        if (mStackCount == mStackHashes.length) {
+            mStackHashes = ArrayHelper.copyOf(mStackHashes, mStackHashes.length * 2);
+            mStackOffsets = ArrayHelper.copyOf(mStackOffsets, mStackHashes.length + 1);
+            StackTraceElement[][] traces = new StackTraceElement[mStackHashes.length][];
+            System.arraycopy(mStackTraces, 0, traces, 0, mStackTraces.length);
+            mStackTraces = traces;
+        }
+        if (mStackFrameCount + depth > mStackFrames.length) {
+            mStackFrames = ArrayHelper.copyOf(mStackFrames,
+                    Math.max(mStackFrames.length * 2, mStackFrameCount + depth));
+        }
+        System.arraycopy(frames, 0, mStackFrames, mStackFrameCount, depth);
+        mStackOffsets[stackId] = mStackFrameCount;
+        mStackFrameCount += depth;
+        mStackOffsets[stackId + 1] = mStackFrameCount;
+        mStackHashes[stackId] = hash;
+        mStackSlots[slot] = stackId + 1;
+
+        if (mStackCount * 2 > mStackSlots.length) {
+            int[] slots = new int[mStackSlots.length * 2];
+            mask = slots.length - 1;
+            for (int i = 0 ; i < mStackCount ; i++) {
+                slot = mix(mStackHashes[i]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i + 1;
+            }
+            mStackSlots = slots;
+        }
+
+        return stackId;
+    }
+
+    /**
+     * Adds the records of an allocation tracker poll.
+     * <p/>
+     * The records are given in the order of the allocation tracker, which is most recent
+     * first. They may include allocations already returned by the previous polls.
+     *
+     * @param classes string index of the allocated class, per record.
+     * @param sizes allocation size, per record.
+     * @param threads thread id, per record.
+     * @param stacks stack id, per record.
+     * @param count the number of records.
+     * @param timestamp the time of the poll.
+     */
+    public void addPoll(int[] classes, int[] sizes, int[] threads, int[] stacks, int count,
+            long timestamp) {
+        ensureRecordCapacity(mRecordCount + count);
+        int r = mRecordCount;
+        for (int n = count - 1 ; n >= 0 ; n--, r++) {
+            mClasses[r] = classes[n];
+            mSizes[r] = sizes[n];
+            mThreads[r] = threads[n];
+            mStacks[r] = stacks[n];
+        }
+
+        if (mPollCount == mPollEnds.length) {
+            mPollEnds = ArrayHelper.copyOf(mPollEnds, mPollEnds.length * 2);
+            mPollTimes = ArrayHelper.copyOf(mPollTimes, mPollTimes.length * 2);
+        }
+        mPollEnds[mPollCount] = r;
+        mPollTimes[mPollCount] = timestamp;
+        mPollCount++;
+
+        mRecordCount = r;
+    }
+
+    /**
+     * Removes all the records and polls. Interned strings and stacks are kept.
+     */
+    public void clearRecords() {
+        mRecordCount = 0;
+        mPollCount = 0;
+    }
+
+    /** Returns the number of records. */
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /** Returns the string index of the allocated class of a record. */
+    public int getClassIndex(int record) {
+        return mClasses[record];
+    }
+
+    /** Returns the allocated class of a record. */
+    public String getClassName(int record) {
+        return mStrings.get(mClasses[record]);
+    }
+
+    /** Returns the size of a record. */
+    public int getSize(int record) {
+        return mSizes[record];
+    }
+
+    /** Returns the thread id of a record. */
+    public int getThreadId(int record) {
+        return mThreads[record];
+    }
+
+    /** Returns the stack id of a record. */
+    public int getStackId(int record) {
+        return mStacks[record];
+    }
+
+    /** Returns the number of interned stack traces. */
+    public int getStackCount() {
+        return mStackCount;
+    }
+
+    /**
+     * Returns the stack trace for a stack id. The array is created once per stack id and shared,
+     * and must not be modified.
+     */
+    public StackTraceElement[] getStackTrace(int stackId) {
+        StackTraceElement[] trace = mStackTraces[stackId];
+        if (trace == null) {
+            int start = mStackOffsets[stackId];
+            int depth = mStackOffsets[stackId + 1] - start;
+            trace = new StackTraceElement[depth];
+            for (int i = 0 ; i < depth ; i++) {
+                int base = mStackFrames[start + i] * 4;
+                trace[i] = new StackTraceElement(mStrings.get(mFrames[base]),
+                        mStrings.get(mFrames[base + 1]), mStrings.get(mFrames[base + 2]),
+                        mFrames[base + 3]);
+            }
+            mStackTraces[stackId] = trace;
+        }
+
+        return trace;
+    }
+
+    /** Returns the number of polls. */
+    public int getPollCount() {
+        return mPollCount;
+    }
+
+    /** Returns the index of the first record of poll <var>poll</var>. */
+    public int getPollStart(int poll) {
+        return poll == 0 ? 0 : mPollEnds[poll - 1];
+    }
+
+    /** Returns the index of the first record that was added after poll <var>poll</var>. */
+    public int getPollEnd(int poll) {
+        return mPollEnds[poll];
+    }
+
+    /** Returns the time of a poll. */
+    public long getPollTime(int poll) {
+        return mPollTimes[poll];
+    }
+
+    /**
+     * Returns the records of the most recent poll as {@link AllocationInfo} objects, most
+     * recent first, numbered as the allocation tracker numbers them.
+     */
+    public AllocationInfo[] getLastPollAllocations() {
+        int count = mPollCount > 0 ? mRecordCount - getPollStart(mPollCount - 1) : 0;
+        AllocationInfo[] allocations = new AllocationInfo[count];
+        int record = mRecordCount - 1;
+        for (int i = 0 ; i < count ; i++, record--) {
+            allocations[i] = new AllocationInfo(count - i, mStrings.get(mClasses[record]),
+                    mSizes[record], (short)mThreads[record], getStackTrace(mStacks[record]));
+        }
+        return allocations;
+    }
+
+    /**
+     * Groups the records of a range by class, stack or thread.
+     * @param groupBy the column to group by.
+     * @param start the first record of the range.
+     * @param end the index after the last record of the range.
+     */
+    public GroupByResult groupBy(GroupBy groupBy, int start, int end) {
+        int[] column;
+        int keyCount;
+        switch (groupBy) {
+            case CLASS:
+                column = mClasses;
+                keyCount = mStrings.size();
+                break;
+            case STACK:
+                column = mStacks;
+                keyCount = mStackCount;
+                break;
+            case THREAD:
+            default:
+                column = mThreads;
+                keyCount = 0x10000;
+                break;
+        }
+
+        // dense accumulators indexed by key.
+        int[] counts = new int[keyCount];
+        long[] sizes = new long[keyCount];
+        int groupCount = 0;
+        for (int i = start ; i < end ; i++) {
+            int key = column[i];
+            if (counts[key]++ == 0) {
+                groupCount++;
+            }
+            sizes[key] += mSizes[i];
+        }
+
+        int[] groupKeys = new int[groupCount];
+        int g = 0;
+        for (int key = 0 ; key < keyCount ; key++) {
+            if (counts[key] != 0) {
+                groupKeys[g++] = key;
+            }
+        }
+
+        ArrayHelper.sortByDecreasingKey(groupKeys, sizes);
+
+        int[] groupCounts = new int[groupCount];
+        long[] groupSizes = new long[groupCount];
+        for (int i = 0 ; i < groupCount ; i++) {
+            groupCounts[i] = counts[groupKeys[i]];
+            groupSizes[i] = sizes[groupKeys[i]];
+        }
+
+        return new GroupByResult(groupKeys, groupCounts, groupSizes);
+    }
+
+    private boolean isSameStack(int stackId, int[] frames, int depth) {
+        int start = mStackOffsets[stackId];
+        if (mStackOffsets[stackId + 1] - start != depth) {
+            return false;
+        }
+        for (int i = 0 ; i < depth ; i++) {
+            if (mStackFrames[start + i] != frames[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureRecordCapacity(int capacity) {
+        if (capacity > mClasses.length) {
+            int length = Math.max(mClasses.length * 2, capacity);
+            mClasses = ArrayHelper.copyOf(mClasses, length);
+            mSizes = ArrayHelper.copyOf(mSizes, length);
+            mThreads = ArrayHelper.copyOf(mThreads, length);
+            mStacks = ArrayHelper.copyOf(mStacks, length);
+        }
+    }
+
+    /** spreads the bits of a hash code, for power of two tables. */
+    private static int mix(int hash) {
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        return hash ^ (hash >>> 7) ^ (hash >>> 4);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pool of heap {@link ByteBuffer}s, used for the outgoing DDM requests.
+ * <p/>
+ * Buffers are grouped in power of two size classes, from {@link #MIN_SIZE} to
+ * {@link #MAX_SIZE}. Each class keeps at most {@link #MAX_BUFFERS_PER_CLASS} free buffers.
+ * Requests larger than {@link #MAX_SIZE} are not pooled.
+ * <p/>
+ * This class is thread-safe.
+ */
+final class ByteBufferPool {
+
+    final static int MIN_SIZE = 64;
+    final static int MAX_SIZE = 64 * 1024;
+    final static int MAX_BUFFERS_PER_CLASS = 8;
+
+    private final static int MIN_SHIFT = 6; // log2(MIN_SIZE)
+    private final static int CLASS_COUNT = 11; // 64 .. 64K
+
+    private final ByteOrder mOrder;
+
+    /** free buffers, per size class. */
+    private final ByteBuffer[][] mFreeBuffers = new ByteBuffer[CLASS_COUNT][MAX_BUFFERS_PER_CLASS];
+    private final int[] mFreeCounts = new int[CLASS_COUNT];
+
+    /** number of buffers allocated by the pool, for statistics. */
+    private int mAllocatedCount = 0;
+
+    /**
+     * Creates a pool.
+     * @param order the byte order of the buffers returned by {@link #acquire(int)}.
+     */
+    ByteBufferPool(ByteOrder order) {
+        mOrder = order;
+    }
+
+    /**
+     * Returns a cleared buffer with a capacity of at least <var>size</var> bytes.
+     */
+    ByteBuffer acquire(int size) {
+        int sizeClass = getSizeClass(size);
+        if (sizeClass == -1) {
+            return allocate(size);
+        }
+
+        synchronized (mFreeBuffers[sizeClass]) {
+            int count = mFreeCounts[sizeClass];
+            if (count > 0) {
+                count--;
+                ByteBuffer buffer = mFreeBuffers[sizeClass][count];
+                mFreeBuffers[sizeClass][count] = null;
+                mFreeCounts[sizeClass] = count;
+                buffer.clear();
+                buffer.order(mOrder);
+                return buffer;
+            }
+        }
+
+        return allocate(MIN_SIZE << sizeClass);
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used by the caller afterward.
+     * Buffers that do not match a size class of the pool are dropped.
+     */
+    void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = getSizeClass(capacity);
+        if (sizeClass == -1 || (MIN_SIZE << sizeClass) != capacity || buffer.isDirect() ||
+                buffer.isReadOnly()) {
+            return;
+        }
+
+        synchronized (mFreeBuffers[sizeClass]) {
+            int count = mFreeCounts[sizeClass];
+            if (count < MAX_BUFFERS_PER_CLASS) {
+                mFreeBuffers[sizeClass][count] = buffer;
+                mFreeCounts[sizeClass] = count + 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of buffers the pool had to allocate since its creation.
+     */
+    synchronized int getAllocatedCount() {
+        return mAllocatedCount;
+    }
+
+    private ByteBuffer allocate(int size) {
+        synchronized (this) {
+            mAllocatedCount++;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.order(mOrder);
+        return buffer;
+    }
+
+    /**
+     * Returns the size class for a given size, or -1 if the size is too large to be pooled.
+     */
+    private static int getSizeClass(int size) {
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+
+        int sizeClass = 0;
+        while ((MIN_SIZE << sizeClass) < size) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+}
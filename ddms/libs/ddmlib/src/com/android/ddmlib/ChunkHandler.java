@@ -32,6 +32,9 @@ abstract class ChunkHandler {
 
     public static final int CHUNK_FAIL = type("FAIL");
 
+    /** pool of the buffers used for outgoing chunks */
+    private static final ByteBufferPool sBufferPool = new ByteBufferPool(CHUNK_ORDER);
+
     ChunkHandler() {}
 
     /**
@@ -149,12 +152,28 @@ abstract class ChunkHandler {
      * chunk being created.
      *
      * "maxChunkLen" indicates the size of the chunk contents only.
+     *
+     * The buffer comes from a pool. It is given back to the pool once the
+     * packet has been sent with Client.sendAndConsume(packet, handler), so
+     * the caller must not keep a reference to it.
      */
     static ByteBuffer allocBuffer(int maxChunkLen) {
-        ByteBuffer buf =
-            ByteBuffer.allocate(JdwpPacket.JDWP_HEADER_LEN + 8 +maxChunkLen);
-        buf.order(CHUNK_ORDER);
-        return buf;
+        return sBufferPool.acquire(JdwpPacket.JDWP_HEADER_LEN + 8 +maxChunkLen);
+    }
+
+    /**
+     * Give the buffer of a packet allocated with allocBuffer() back to the
+     * pool. The packet must not be used afterward.
+     */
+    static void recycleBuffer(ByteBuffer buf) {
+        sBufferPool.release(buf);
+    }
+
+    /**
+     * Returns the pool used by allocBuffer().
+     */
+    static ByteBufferPool getBufferPool() {
+        return sBufferPool;
     }
 
     /**
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+/**
+ * Immutable map from chunk types to {@link ChunkHandler}.
+ * <p/>
+ * The chunk types are used directly as keys of an open addressing table, so that lookups don't
+ * box the type or allocate anything. Registering a handler through {@link #with(int, ChunkHandler)}
+ * creates a new map, which lets the monitor thread read the map without locking.
+ */
+final class ChunkHandlerMap {
+
+    final static ChunkHandlerMap EMPTY = new ChunkHandlerMap(new int[16], new ChunkHandler[16],
+            0, new ChunkHandler[0]);
+
+    /** chunk types. Slots with a null handler are free. */
+    private final int[] mTypes;
+    private final ChunkHandler[] mHandlers;
+    private final int mSize;
+    /** the distinct handlers, in registration order. */
+    private final ChunkHandler[] mDistinctHandlers;
+
+    private ChunkHandlerMap(int[] types, ChunkHandler[] handlers, int size,
+            ChunkHandler[] distinctHandlers) {
+        mTypes = types;
+        mHandlers = handlers;
+        mSize = size;
+        mDistinctHandlers = distinctHandlers;
+    }
+
+    /**
+     * Returns the handler for a chunk type, or <code>null</code> if there is none.
+     */
+    ChunkHandler get(int type) {
+        int mask = mTypes.length - 1;
+        int index = hash(type) & mask;
+        ChunkHandler handler;
+        while ((handler = mHandlers[index]) != null) {
+            if (mTypes[index] == type) {
+                return handler;
+            }
+            index = (index + 1) & mask;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the number of chunk types in the map.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the handlers of the map, each one only once even if it handles several chunk types.
+     * <p/>
+     * The returned array must not be modified.
+     */
+    ChunkHandler[] getDistinctHandlers() {
+        return mDistinctHandlers;
+    }
+
+    /**
+     * Returns a map with the content of this map, plus <var>handler</var> for the chunk type
+     * <var>type</var>. If the type already has a handler, this map is returned unchanged.
+     */
+    ChunkHandlerMap with(int type, ChunkHandler handler) {
+        if (handler == null) {
+            throw new NullPointerException();
+        }
+
+        if (get(type) != null) {
+            return this;
+        }
+
+        // keep the load factor under 1/2
+        int capacity = mTypes.length;
+        if ((mSize + 1) * 2 > capacity) {
+            capacity *= 2;
+        }
+
+        int[] types = new int[capacity];
+        ChunkHandler[] handlers = new ChunkHandler[capacity];
+        for (int i = 0 ; i < mTypes.length ; i++) {
+            if (mHandlers[i] != null) {
+                put(types, handlers, mTypes[i], mHandlers[i]);
+            }
+        }
+        put(types, handlers, type, handler);
+
+        ChunkHandler[] distinctHandlers = mDistinctHandlers;
+        boolean found = false;
+        for (ChunkHandler h : distinctHandlers) {
+            if (h == handler) {
+                found = true;
+                break;
+            }
+        }
+        if (found == false) {
+            distinctHandlers = new ChunkHandler[mDistinctHandlers.length + 1];
+            System.arraycopy(mDistinctHandlers, 0, distinctHandlers, 0, mDistinctHandlers.length);
+            distinctHandlers[mDistinctHandlers.length] = handler;
+        }
+
+        return new ChunkHandlerMap(types, handlers, mSize + 1, distinctHandlers);
+    }
+
+    private static void put(int[] types, ChunkHandler[] handlers, int type,
+            ChunkHandler handler) {
+        int mask = types.length - 1;
+        int index = hash(type) & mask;
+        while (handlers[index] != null) {
+            index = (index + 1) & mask;
+        }
+        types[index] = type;
+        handlers[index] = handler;
+    }
+
+    /**
+     * Chunk types are 4 ASCII characters, so the low bits alone are a poor hash.
+     */
+    private static int hash(int type) {
+        int h = type * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
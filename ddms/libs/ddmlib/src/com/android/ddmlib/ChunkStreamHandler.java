@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the data of a reply chunk as it is read from the client, instead of once the whole
+ * reply packet is in memory.
+ * <p/>
+ * This is used for the replies that can be hundreds of MB, like the method trace sent in reply
+ * to a MPSE request. See {@link Client#setReplyStream(int, ChunkStreamHandler)}.
+ * <p/>
+ * All the methods are called from the {@link MonitorThread}.
+ */
+interface ChunkStreamHandler {
+
+    /**
+     * Called when the header of the reply chunk has been read.
+     * @param client the client sending the reply.
+     * @param type the type of the chunk.
+     * @param length the length of the chunk data.
+     * @return true to receive the data with {@link #onChunkData(Client, ByteBuffer)}, false to
+     * have the reply handled as a regular packet by the {@link ChunkHandler} of the request.
+     */
+    boolean onChunkStart(Client client, int type, int length);
+
+    /**
+     * Called with the next part of the chunk data.
+     * @param data the data, from its position to its limit. It is only valid during the call.
+     * @throws IOException if the data could not be handled. The rest of the chunk is then
+     * dropped and {@link #onChunkFailure(Client, String)} is called.
+     */
+    void onChunkData(Client client, ByteBuffer data) throws IOException;
+
+    /**
+     * Called once all the data of the chunk was received.
+     */
+    void onChunkEnd(Client client);
+
+    /**
+     * Called if the data could not be received or handled. No other method is called after this.
+     * @param message an optional (<code>null</code> ok) error message.
+     */
+    void onChunkFailure(Client client, String message);
+}
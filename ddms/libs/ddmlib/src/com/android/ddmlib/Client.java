@@ -79,6 +79,17 @@ public class Client {
     // list of IDs for requests we have sent to the client
     private HashMap<Integer,ChunkHandler> mOutstandingReqs;
 
+    // reply passed to a ChunkStreamHandler as it is read, instead of being
+    // buffered. mStreamedReplyId and mReplyStream are guarded by
+    // mOutstandingReqs, the other fields are only used by the MonitorThread.
+    private int mStreamedReplyId = -1;
+    private ChunkStreamHandler mReplyStream;
+    // bytes of the streamed reply packet and of its chunk data left to read,
+    // or -1 until the headers of the reply are read.
+    private int mStreamPacketRemaining = -1;
+    private int mStreamDataRemaining;
+    private boolean mStreamFailed;
+
     // chunk handlers stash state data in here
     private ClientData mClientData;
 
@@ -396,11 +407,17 @@ public class Client {
      * <p/>If enabled, the VM will start tracking allocation informations. A call to
      * {@link #requestAllocationDetails()} will make the VM sends the information about all the
      * allocations that happened between the enabling and the request.
+     * <p/>Enabling the tracker also starts a new timeline in the {@link AllocationStore} of the
+     * client.
      * @param enable
      * @see #requestAllocationDetails()
      */
     public void enableAllocationTracker(boolean enable) {
         try {
+            if (enable) {
+                // start a new allocation timeline.
+                mClientData.clearAllocations();
+            }
             HandleHeap.sendREAE(this, enable);
         } catch (IOException e) {
             Log.e("ddmlib", e);
@@ -431,6 +448,8 @@ public class Client {
      * The notification that the new data is available will be received through
      * {@link IClientChangeListener#clientChanged(Client, int)} with a <code>changeMask</code>
      * containing the mask {@link #CHANGE_HEAP_ALLOCATIONS}.
+     * <p/>The tracker is left running, so the allocations returned by consecutive requests
+     * usually overlap. Each request is kept as a poll of the {@link AllocationStore}.
      */
     public void requestAllocationDetails() {
         try {
@@ -534,16 +553,30 @@ public class Client {
 
     /**
      * Send a non-DDM packet to the client.
-     *
-     * Equivalent to sendAndConsume(packet, null).
      */
     void sendAndConsume(JdwpPacket packet) throws IOException {
-        sendAndConsume(packet, null);
+        writeAndConsume(packet, null);
     }
 
     /**
      * Send a DDM packet to the client.
      *
+     * The packet must have been created with a buffer from
+     * ChunkHandler.allocBuffer(): the buffer is given back to the pool once
+     * the packet is sent.
+     */
+    void sendAndConsume(JdwpPacket packet, ChunkHandler replyHandler)
+        throws IOException {
+        try {
+            writeAndConsume(packet, replyHandler);
+        } finally {
+            packet.recycle();
+        }
+    }
+
+    /**
+     * Write a packet to the client.
+     *
      * Ideally, we can do this with a single channel write.  If that doesn't
      * happen, we have to prevent anybody else from writing to the channel
      * until this packet completes, so we synchronize on the channel.
@@ -551,7 +584,7 @@ public class Client {
      * Another goal is to avoid unnecessary buffer copies, so we write
      * directly out of the JdwpPacket's ByteBuffer.
      */
-    void sendAndConsume(JdwpPacket packet, ChunkHandler replyHandler)
+    private void writeAndConsume(JdwpPacket packet, ChunkHandler replyHandler)
         throws IOException {
 
         if (mChan == null) {
@@ -634,6 +667,121 @@ public class Client {
         if (Log.Config.LOGV) Log.v("ddms", "Read " + count + " bytes from " + this);
         //Log.hexDump("ddms", Log.DEBUG, mReadBuffer.array(),
         //    mReadBuffer.arrayOffset(), mReadBuffer.position());
+
+        streamReply();
+    }
+
+    /**
+     * Sets a handler receiving the data of the reply to the request <var>id</var> as it is read,
+     * instead of once the whole reply is in memory.
+     * <p/>
+     * This must be called before the request is sent. Only one reply can be streamed at a time.
+     * @return false if another reply is already being streamed.
+     */
+    boolean setReplyStream(int id, ChunkStreamHandler handler) {
+        synchronized (mOutstandingReqs) {
+            if (mReplyStream != null) {
+                return false;
+            }
+            mStreamedReplyId = id;
+            mReplyStream = handler;
+            return true;
+        }
+    }
+
+    /**
+     * If the streamed reply is at the start of the read buffer, passes the data read so far to
+     * its handler and removes it from the buffer.
+     * <p/>
+     * The reply is handled as a regular packet if it is an error, or if the handler declines it.
+     */
+    private void streamReply() {
+        ChunkStreamHandler stream;
+        int id;
+        synchronized (mOutstandingReqs) {
+            stream = mReplyStream;
+            id = mStreamedReplyId;
+        }
+        if (stream == null) {
+            return;
+        }
+
+        final int headerLength = JdwpPacket.JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN;
+        if (mStreamPacketRemaining == -1) {
+            JdwpPacket packet = JdwpPacket.findPacketHeader(mReadBuffer);
+            if (packet == null || packet.getId() != id || packet.isReply() == false) {
+                // Not there yet, or other packets are before it. These are
+                // handled by the MonitorThread before the next read.
+                return;
+            }
+            if (packet.isError() || packet.getLength() < headerLength) {
+                // let the ChunkHandler of the request deal with it.
+                clearReplyStream();
+                return;
+            }
+            if (mReadBuffer.position() < headerLength) {
+                return;
+            }
+
+            ByteBuffer header = mReadBuffer.duplicate();
+            header.order(ChunkHandler.CHUNK_ORDER);
+            int type = header.getInt(JdwpPacket.JDWP_HEADER_LEN);
+            int length = header.getInt(JdwpPacket.JDWP_HEADER_LEN + 4);
+            if (stream.onChunkStart(this, type, length) == false) {
+                clearReplyStream();
+                return;
+            }
+
+            Log.d("ddms", "Streaming " + ChunkHandler.name(type) + " reply (len=" + length
+                    + ") from " + this);
+            mStreamPacketRemaining = packet.getLength() - headerLength;
+            mStreamDataRemaining = Math.min(length, mStreamPacketRemaining);
+            mStreamFailed = false;
+            removeFromReadBuffer(headerLength);
+        }
+
+        int count = Math.min(mReadBuffer.position(), mStreamPacketRemaining);
+        int dataCount = Math.min(count, mStreamDataRemaining);
+        if (dataCount > 0 && mStreamFailed == false) {
+            ByteBuffer data = mReadBuffer.duplicate();
+            data.limit(dataCount);
+            data.position(0);
+            try {
+                stream.onChunkData(this, data);
+            } catch (IOException e) {
+                // drop the rest of the reply.
+                Log.e("ddms", e);
+                mStreamFailed = true;
+                stream.onChunkFailure(this, e.getMessage());
+            }
+        }
+        mStreamDataRemaining -= dataCount;
+        mStreamPacketRemaining -= count;
+        removeFromReadBuffer(count);
+
+        if (mStreamPacketRemaining == 0) {
+            removeRequestId(id);
+            if (mStreamFailed == false) {
+                stream.onChunkEnd(this);
+            }
+        }
+    }
+
+    private void clearReplyStream() {
+        synchronized (mOutstandingReqs) {
+            mReplyStream = null;
+            mStreamedReplyId = -1;
+        }
+        mStreamPacketRemaining = -1;
+    }
+
+    /**
+     * Removes the first <var>count</var> bytes of the read buffer.
+     */
+    private void removeFromReadBuffer(int count) {
+        mReadBuffer.flip();         // limit<-posn, posn<-0
+        mReadBuffer.position(count);
+        mReadBuffer.compact();      // shift posn...limit, posn<-pending data
     }
 
     /**
@@ -732,6 +880,11 @@ public class Client {
             if (Log.Config.LOGV) Log.v("ddms",
                 "Removing req 0x" + Integer.toHexString(id) + " from set");
             mOutstandingReqs.remove(id);
+
+            // the reply was handled, streamed or not.
+            if (id == mStreamedReplyId) {
+                clearReplyStream();
+            }
         }
 
         //Log.w("ddms", "Request " + Integer.toHexString(id)
@@ -803,7 +956,17 @@ public class Client {
     void close(boolean notify) {
         Log.d("ddms", "Closing " + this.toString());
 
-        mOutstandingReqs.clear();
+        ChunkStreamHandler stream;
+        synchronized (mOutstandingReqs) {
+            mOutstandingReqs.clear();
+
+            stream = mReplyStream;
+            if (mStreamPacketRemaining == -1 || mStreamFailed) {
+                // nothing was passed to the handler yet, or it already failed.
+                stream = null;
+            }
+            clearReplyStream();
+        }
 
         try {
             if (mChan != null) {
@@ -821,6 +984,12 @@ public class Client {
             // swallow it -- not much else to do
         }
 
+        if (stream != null) {
+            stream.onChunkFailure(this, "Connection to the client was lost");
+        }
+
+        mClientData.clearAllocations();
+
         mDevice.removeClient(this, notify);
     }
 
@@ -18,6 +18,7 @@ package com.android.ddmlib;
 
 import com.android.ddmlib.HeapSegment.HeapSegmentElement;
 
+import java.io.File;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -186,6 +187,7 @@ public class ClientData {
     private int mNativeTotalMemory;
 
     private AllocationInfo[] mAllocations;
+    private final AllocationStore mAllocationStore = new AllocationStore();
     private AllocationTrackingStatus mAllocationStatus = AllocationTrackingStatus.UNKNOWN;
 
     private String mPendingHprofDump;
@@ -202,8 +204,8 @@ public class ClientData {
     public static class HeapData {
         private TreeSet<HeapSegment> mHeapSegments = new TreeSet<HeapSegment>();
         private boolean mHeapDataComplete = false;
-        private byte[] mProcessedHeapData;
         private Map<Integer, ArrayList<HeapSegmentElement>> mProcessedHeapMap;
+        private final HeapMap mHeapMap = new HeapMap();
 
         /**
          * Abandon the current list of heap segments.
@@ -264,24 +266,6 @@ public class ClientData {
             return null;
         }
 
-        /**
-         * Sets the processed heap data.
-         *
-         * @param heapData The new heap data (can be null)
-         */
-        public void setProcessedHeapData(byte[] heapData) {
-            mProcessedHeapData = heapData;
-        }
-
-        /**
-         * Get the processed heap data, if present.
-         *
-         * @return the processed heap data, or null.
-         */
-        public byte[] getProcessedHeapData() {
-            return mProcessedHeapData;
-        }
-
         public void setProcessedHeapMap(Map<Integer, ArrayList<HeapSegmentElement>> heapMap) {
             mProcessedHeapMap = heapMap;
         }
@@ -289,6 +273,14 @@ public class ClientData {
         public Map<Integer, ArrayList<HeapSegmentElement>> getProcessedHeapMap() {
             return mProcessedHeapMap;
         }
+
+        /**
+         * Returns the persistent {@link HeapMap} of this heap. It is updated incrementally from
+         * the heap segments by the panels displaying it.
+         */
+        public HeapMap getHeapMap() {
+            return mHeapMap;
+        }
     }
 
     /**
@@ -350,6 +342,58 @@ public class ClientData {
         void onEndFailure(Client client, String message);
     }
 
+    /**
+     * Method profiling handlers able to receive the trace file streamed from the VM as it
+     * arrives, instead of as a single array.
+     * <p/>
+     * When the handler set with {@link ClientData#setMethodProfilingHandler} implements this
+     * interface, the trace file is written to disk by ddmlib while it is received, so it is
+     * never held in memory.
+     */
+    public interface IMethodProfilingStreamHandler extends IMethodProfilingHandler {
+        /**
+         * Called when the VM starts sending the trace file, to get the file to write it into.
+         * <p/>
+         * If the file cannot be opened for writing, it is deleted and the trace file is sent to
+         * {@link #onSuccess(byte[], Client)} instead.
+         * @param client the client that was profiled.
+         * @param length the size of the trace file.
+         * @return the file to write the trace file into, or <code>null</code> to receive it
+         * with {@link #onSuccess(byte[], Client)} instead.
+         */
+        File getStreamFile(Client client, int length);
+
+        /**
+         * Called once the file returned by {@link #getStreamFile(Client, int)} is opened for
+         * writing, before any data is written into it.
+         * <p/>
+         * The handler can start reading the file right away, as long as it handles partial
+         * content: the file grows until it reaches <var>length</var> bytes.
+         * @param file the trace file.
+         * @param client the client that was profiled.
+         * @param length the size of the trace file.
+         */
+        void onStreamStart(File file, Client client, int length);
+
+        /**
+         * Called when the trace file passed to {@link #onStreamStart(File, Client, int)} has
+         * been completely written.
+         * @param file the trace file.
+         * @param client the client that was profiled.
+         */
+        void onSuccess(File file, Client client);
+
+        /**
+         * Called instead of {@link #onEndFailure(Client, String)} when the trace file passed
+         * to {@link #onStreamStart(File, Client, int)} could not be completely received. The
+         * file is incomplete, and the handler is responsible for deleting it.
+         * @param file the trace file.
+         * @param client the client that was profiled.
+         * @param message an optional (<code>null<code> ok) error message to be displayed.
+         */
+        void onStreamFailure(File file, Client client, String message);
+    }
+
     /**
      * Sets the handler to receive notifications when an HPROF dump succeeded or failed.
      */
@@ -617,18 +661,51 @@ public class ClientData {
         return mAllocationStatus;
     }
 
+    /**
+     * Sets the list of tracked allocations. If <code>null</code>, the list is rebuilt from the
+     * most recent poll of the {@link AllocationStore} the next time it is queried.
+     */
     synchronized void setAllocations(AllocationInfo[] allocs) {
         mAllocations = allocs;
     }
 
     /**
-     * Returns the list of tracked allocations.
+     * Returns the list of tracked allocations: the ones the allocation tracker of the VM returned
+     * for the most recent request.
      * @see Client#requestAllocationDetails()
      */
     public synchronized AllocationInfo[] getAllocations() {
+        if (mAllocations == null) {
+            synchronized (mAllocationStore) {
+                if (mAllocationStore.getPollCount() > 0) {
+                    mAllocations = mAllocationStore.getLastPollAllocations();
+                }
+            }
+        }
         return mAllocations;
     }
 
+    /**
+     * Removes the tracked allocations, when the allocation tracker is enabled or the client
+     * goes away.
+     */
+    synchronized void clearAllocations() {
+        mAllocations = null;
+        synchronized (mAllocationStore) {
+            mAllocationStore.clearRecords();
+        }
+    }
+
+    /**
+     * Returns the {@link AllocationStore} accumulating the tracked allocations of every
+     * {@link Client#requestAllocationDetails()}.
+     * <p/>
+     * The caller must synchronize on the {@link AllocationStore} object while accessing it.
+     */
+    public AllocationStore getAllocationStore() {
+        return mAllocationStore;
+    }
+
     void addFeature(String feature) {
         mFeatures.add(feature);
     }
@@ -22,7 +22,6 @@ import com.android.ddmlib.ClientData.IHprofDumpHandler;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 
 /**
  * Handle heap status updates.
@@ -507,57 +506,70 @@ final class HandleHeap extends ChunkHandler {
 
         /*
          * Skip back to a point just past the header and start reading
-         * entries.
+         * entries. They are decoded straight into the columns of the
+         * allocation store, with strings, frames and stacks interned.
          */
         data.position(messageHdrLen);
 
-        ArrayList<AllocationInfo> list = new ArrayList<AllocationInfo>(numEntries);
-        int allocNumber = numEntries; // order value for the entry. This is sent in reverse order.
-        for (int i = 0; i < numEntries; i++) {
-            int totalSize;
-            int threadId, classNameIndex, stackDepth;
-
-            totalSize = data.getInt();
-            threadId = (data.getShort() & 0xffff);
-            classNameIndex = (data.getShort() & 0xffff);
-            stackDepth = (data.get() & 0xff);
-            /* we've consumed 9 bytes; gobble up any extra */
-            for (int skip = 9; skip < entryHdrLen; skip++)
-                data.get();
-
-            StackTraceElement[] steArray = new StackTraceElement[stackDepth];
-
-            /*
-             * Pull out the stack trace.
-             */
-            for (int sti = 0; sti < stackDepth; sti++) {
-                int methodClassNameIndex, methodNameIndex;
-                int methodSourceFileIndex;
-                short lineNumber;
-                String methodClassName, methodName, methodSourceFile;
-
-                methodClassNameIndex = (data.getShort() & 0xffff);
-                methodNameIndex = (data.getShort() & 0xffff);
-                methodSourceFileIndex = (data.getShort() & 0xffff);
-                lineNumber = data.getShort();
-
-                methodClassName = classNames[methodClassNameIndex];
-                methodName = methodNames[methodNameIndex];
-                methodSourceFile = fileNames[methodSourceFileIndex];
-
-                steArray[sti] = new StackTraceElement(methodClassName,
-                    methodName, methodSourceFile, lineNumber);
-
-                /* we've consumed 8 bytes; gobble up any extra */
-                for (int skip = 9; skip < stackFrameLen; skip++)
+        AllocationStore store = client.getClientData().getAllocationStore();
+        synchronized (store) {
+            int[] classIndices = store.internStrings(classNames);
+            int[] methodIndices = store.internStrings(methodNames);
+            int[] fileIndices = store.internStrings(fileNames);
+
+            int[] classes = new int[numEntries];
+            int[] sizes = new int[numEntries];
+            int[] threads = new int[numEntries];
+            int[] stacks = new int[numEntries];
+            int[] frames = new int[255];
+
+            for (int i = 0; i < numEntries; i++) {
+                int totalSize;
+                int threadId, classNameIndex, stackDepth;
+
+                totalSize = data.getInt();
+                threadId = (data.getShort() & 0xffff);
+                classNameIndex = (data.getShort() & 0xffff);
+                stackDepth = (data.get() & 0xff);
+                /* we've consumed 9 bytes; gobble up any extra */
+                for (int skip = 9; skip < entryHdrLen; skip++)
                     data.get();
+
+                /*
+                 * Pull out the stack trace.
+                 */
+                for (int sti = 0; sti < stackDepth; sti++) {
+                    int methodClassNameIndex, methodNameIndex;
+                    int methodSourceFileIndex;
+                    short lineNumber;
+
+                    methodClassNameIndex = (data.getShort() & 0xffff);
+                    methodNameIndex = (data.getShort() & 0xffff);
+                    methodSourceFileIndex = (data.getShort() & 0xffff);
+                    lineNumber = data.getShort();
+
+                    frames[sti] = store.internFrame(classIndices[methodClassNameIndex],
+                            methodIndices[methodNameIndex], fileIndices[methodSourceFileIndex],
+                            lineNumber);
+
+                    /* we've consumed 8 bytes; gobble up any extra */
+                    for (int skip = 9; skip < stackFrameLen; skip++)
+                        data.get();
+                }
+
+                classes[i] = classIndices[classNameIndex];
+                sizes[i] = totalSize;
+                threads[i] = threadId;
+                stacks[i] = store.internStack(frames, stackDepth);
             }
 
-            list.add(new AllocationInfo(allocNumber--, classNames[classNameIndex],
-                totalSize, (short) threadId, steArray));
+            store.addPoll(classes, sizes, threads, stacks, numEntries,
+                    System.currentTimeMillis());
         }
 
-        client.getClientData().setAllocations(list.toArray(new AllocationInfo[numEntries]));
+        Log.d("ddm-heap", "REAL: " + numEntries + " new allocations");
+
+        client.getClientData().setAllocations(null);
         client.update(Client.CHANGE_HEAP_ALLOCATIONS);
     }
 
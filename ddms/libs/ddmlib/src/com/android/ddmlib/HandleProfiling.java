@@ -17,10 +17,14 @@
 package com.android.ddmlib;
 
 import com.android.ddmlib.ClientData.IMethodProfilingHandler;
+import com.android.ddmlib.ClientData.IMethodProfilingStreamHandler;
 import com.android.ddmlib.ClientData.MethodProfilingStatus;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Handle heap status updates.
@@ -204,6 +208,15 @@ final class HandleProfiling extends ChunkHandler {
         // no data
 
         finishChunkPacket(packet, CHUNK_MPSE, buf.position());
+
+        // The reply contains the whole trace file, so write it to disk as it
+        // arrives if the handler supports it.
+        IMethodProfilingHandler handler = ClientData.getMethodProfilingHandler();
+        if (handler instanceof IMethodProfilingStreamHandler) {
+            client.setReplyStream(packet.getId(),
+                    new TraceStream((IMethodProfilingStreamHandler) handler));
+        }
+
         Log.d("ddm-prof", "Sending " + name(CHUNK_MPSE));
         client.sendAndConsume(packet, mInst);
     }
@@ -227,6 +240,80 @@ final class HandleProfiling extends ChunkHandler {
         client.update(Client.CHANGE_METHOD_PROFILING_STATUS);
     }
 
+    /**
+     * Writes the trace file sent in reply to a MPSE request into the file provided by the
+     * {@link IMethodProfilingStreamHandler}, as it is received.
+     */
+    private static final class TraceStream implements ChunkStreamHandler {
+        private final IMethodProfilingStreamHandler mHandler;
+        private File mFile;
+        private FileChannel mChannel;
+
+        TraceStream(IMethodProfilingStreamHandler handler) {
+            mHandler = handler;
+        }
+
+        public boolean onChunkStart(Client client, int type, int length) {
+            if (type != CHUNK_MPSE) {
+                // a FAIL chunk, handled by handleFAIL()
+                return false;
+            }
+
+            mFile = mHandler.getStreamFile(client, length);
+            if (mFile == null) {
+                return false;
+            }
+            try {
+                mChannel = new FileOutputStream(mFile).getChannel();
+            } catch (IOException e) {
+                // receive the trace file in memory instead.
+                Log.e("ddm-prof", e);
+                mFile.delete();
+                return false;
+            }
+            mHandler.onStreamStart(mFile, client, length);
+
+            Log.d("ddm-prof", "streaming trace file, size: " + length + " bytes");
+            return true;
+        }
+
+        public void onChunkData(Client client, ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                mChannel.write(data);
+            }
+        }
+
+        public void onChunkEnd(Client client) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                onChunkFailure(client, e.getMessage());
+                return;
+            }
+
+            Log.d("ddm-prof", "got trace file " + mFile);
+            mHandler.onSuccess(mFile, client);
+
+            client.getClientData().setMethodProfilingStatus(MethodProfilingStatus.OFF);
+            client.update(Client.CHANGE_METHOD_PROFILING_STATUS);
+        }
+
+        public void onChunkFailure(Client client, String message) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // we're already failing, ignore.
+            }
+
+            mHandler.onStreamFailure(mFile, client, message);
+
+            client.getClientData().setMethodProfilingStatus(MethodProfilingStatus.OFF);
+            if (client.isValid()) {
+                client.update(Client.CHANGE_METHOD_PROFILING_STATUS);
+            }
+        }
+    }
+
     /**
      * Send a MPRQ (Method PRofiling Query) request to the client.
      */
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.HeapSegment.HeapSegmentElement;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+
+/**
+ * Persistent map of a heap, built from {@link HeapSegment}s.
+ * <p/>
+ * The map contains one byte per {@link #UNIT_SIZE} bytes of heap, with the segments laid out
+ * one after the other in address order. Each byte is 1 for free memory, or the element kind + 2
+ * for allocated memory (see {@link HeapSegmentElement#getKind()}).
+ * <p/>
+ * The VM sends the whole heap on every update. When the segments have the same layout as the
+ * previous update, only the segments whose content changed are decoded again, and the range of
+ * the map they cover is reported through {@link #getDirtyRange(int)} so that renderers can
+ * redraw only that part. The elements of the heap, returned by {@link #getElementMap()}, are
+ * updated the same way.
+ * <p/>
+ * This class is thread-safe. Callers of {@link #getData()} and {@link #getElementMap()} must
+ * synchronize on the map.
+ */
+public final class HeapMap {
+
+    /** number of heap bytes represented by one byte of the map. */
+    public final static int UNIT_SIZE = 8;
+
+    private byte[] mData = new byte[0];
+    private int mLength = 0;
+
+    private int mRevision = 0;
+    private int mDirtyStart = 0;
+    private int mDirtyEnd = 0;
+
+    /** the segments of the last update, in address order. */
+    private SegmentState[] mSegments = new SegmentState[0];
+
+    /** the elements of all the segments, by map value, sorted by length. */
+    private TreeMap<Integer, ArrayList<HeapSegmentElement>> mElementMap =
+        new TreeMap<Integer, ArrayList<HeapSegmentElement>>();
+
+    /**
+     * State of a segment of the last update.
+     */
+    private final static class SegmentState {
+        long mAddress;
+        int mUnitCount;
+        ByteBuffer mRawData;
+        int mOffset;
+        int mLength;
+        /** the elements of the segment, by map value, sorted by length. */
+        TreeMap<Integer, ArrayList<HeapSegmentElement>> mElements;
+    }
+
+    /**
+     * Updates the map with a new list of segments.
+     * @param segments the segments, in address order.
+     * @return true if the map changed.
+     */
+    public synchronized boolean update(Collection<HeapSegment> segments) {
+        SegmentState[] oldSegments = mSegments;
+        SegmentState[] newSegments = new SegmentState[segments.size()];
+
+        // check whether the layout is the same as the previous update.
+        boolean sameLayout = oldSegments.length == newSegments.length;
+        int index = 0;
+        for (HeapSegment hs : segments) {
+            if (sameLayout) {
+                SegmentState old = oldSegments[index];
+                sameLayout = old.mAddress == hs.getStartAddress() &&
+                        old.mUnitCount == hs.mAllocationUnitCount;
+            }
+            index++;
+        }
+
+        if (sameLayout == false) {
+            rebuild(segments, newSegments);
+            return true;
+        }
+
+        // same layout: only decode the segments whose content changed.
+        int dirtyStart = Integer.MAX_VALUE;
+        int dirtyEnd = 0;
+        index = 0;
+        for (HeapSegment hs : segments) {
+            SegmentState old = oldSegments[index++];
+            ByteBuffer raw = hs.mUsageData.duplicate();
+            raw.rewind();
+            old.mRawData.rewind();
+            if (raw.equals(old.mRawData)) {
+                continue;
+            }
+
+            SegmentState state = decode(hs, old.mOffset);
+            if (state.mLength != old.mLength) {
+                // the segment does not cover the same amount of the map anymore.
+                rebuild(segments, newSegments);
+                return true;
+            }
+
+            oldSegments[index - 1] = state;
+            updateElements(old, state);
+            dirtyStart = Math.min(dirtyStart, state.mOffset);
+            dirtyEnd = Math.max(dirtyEnd, state.mOffset + state.mLength);
+        }
+
+        if (dirtyEnd == 0) {
+            return false;
+        }
+
+        mRevision++;
+        mDirtyStart = dirtyStart;
+        mDirtyEnd = dirtyEnd;
+        return true;
+    }
+
+    /**
+     * Returns the revision of the map. It is incremented every time the map changes.
+     */
+    public synchronized int getRevision() {
+        return mRevision;
+    }
+
+    /**
+     * Returns the number of valid bytes in {@link #getData()}.
+     */
+    public synchronized int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns the map data. Only the first {@link #getLength()} bytes are valid.
+     * <p/>
+     * The array is updated in place by {@link #update(Collection)}, so the caller must
+     * synchronize on the map while reading it, and must not modify it.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Returns the range of the map that changed since a given revision.
+     * @param sinceRevision the revision the caller last saw.
+     * @return an array of two ints: start and end (exclusive) of the changed range.
+     */
+    public synchronized int[] getDirtyRange(int sinceRevision) {
+        if (sinceRevision == mRevision) {
+            return new int[] { 0, 0 };
+        }
+        if (sinceRevision == mRevision - 1) {
+            return new int[] { mDirtyStart, mDirtyEnd };
+        }
+        return new int[] { 0, mLength };
+    }
+
+    /**
+     * Returns the elements of the heap, grouped by map value and sorted by length.
+     * <p/>
+     * The map is updated in place by {@link #update(Collection)}, so the caller must
+     * synchronize on the heap map while reading it, and must not modify it. The lists of
+     * elements are replaced rather than modified, so a list can be kept after an update.
+     */
+    public Map<Integer, ArrayList<HeapSegmentElement>> getElementMap() {
+        return mElementMap;
+    }
+
+    /**
+     * Rebuilds the whole map.
+     */
+    private void rebuild(Collection<HeapSegment> segments, SegmentState[] newSegments) {
+        int offset = 0;
+        int index = 0;
+        for (HeapSegment hs : segments) {
+            SegmentState state = decode(hs, offset);
+            newSegments[index++] = state;
+            offset += state.mLength;
+        }
+
+        // the layout changed, so all the elements are different.
+        TreeMap<Integer, ArrayList<HeapSegmentElement>> elementMap =
+            new TreeMap<Integer, ArrayList<HeapSegmentElement>>();
+        for (SegmentState state : newSegments) {
+            for (Entry<Integer, ArrayList<HeapSegmentElement>> entry :
+                    state.mElements.entrySet()) {
+                ArrayList<HeapSegmentElement> list = elementMap.get(entry.getKey());
+                if (list == null) {
+                    list = new ArrayList<HeapSegmentElement>();
+                    elementMap.put(entry.getKey(), list);
+                }
+                list.addAll(entry.getValue());
+            }
+        }
+
+        for (ArrayList<HeapSegmentElement> list : elementMap.values()) {
+            Collections.sort(list);
+        }
+
+        mElementMap = elementMap;
+        mSegments = newSegments;
+        mLength = offset;
+        mRevision++;
+        mDirtyStart = 0;
+        mDirtyEnd = offset;
+    }
+
+    /**
+     * Decodes a segment into the map at the given offset, growing the map if needed.
+     */
+    private SegmentState decode(HeapSegment hs, int offset) {
+        SegmentState state = new SegmentState();
+        state.mAddress = hs.getStartAddress();
+        state.mUnitCount = hs.mAllocationUnitCount;
+        state.mRawData = hs.mUsageData.duplicate();
+        state.mOffset = offset;
+        state.mElements = new TreeMap<Integer, ArrayList<HeapSegmentElement>>();
+
+        hs.rewindElements();
+        int position = offset;
+        HeapSegmentElement e;
+        while ((e = hs.getNextElement(null)) != null) {
+            int v;
+            if (e.getSolidity() == HeapSegmentElement.SOLIDITY_FREE) {
+                v = 1;
+            } else {
+                v = e.getKind() + 2;
+            }
+
+            ArrayList<HeapSegmentElement> elementList = state.mElements.get(v);
+            if (elementList == null) {
+                elementList = new ArrayList<HeapSegmentElement>();
+                state.mElements.put(v, elementList);
+            }
+            elementList.add(e);
+
+            int len = e.getLength() / UNIT_SIZE;
+            ensureCapacity(position + len);
+            for (int i = 0 ; i < len ; i++) {
+                mData[position++] = (byte)v;
+            }
+        }
+
+        for (ArrayList<HeapSegmentElement> elementList : state.mElements.values()) {
+            Collections.sort(elementList);
+        }
+
+        state.mLength = position - offset;
+        return state;
+    }
+
+    /**
+     * Replaces the elements of a segment in the element map with the elements of its new
+     * state. Only the lists of the map values used by either state are rebuilt.
+     */
+    private void updateElements(SegmentState oldState, SegmentState newState) {
+        for (Entry<Integer, ArrayList<HeapSegmentElement>> entry :
+                oldState.mElements.entrySet()) {
+            Integer key = entry.getKey();
+            ArrayList<HeapSegmentElement> list = merge(mElementMap.get(key),
+                    newState.mElements.get(key), entry.getValue());
+            if (list.size() > 0) {
+                mElementMap.put(key, list);
+            } else {
+                mElementMap.remove(key);
+            }
+        }
+
+        for (Entry<Integer, ArrayList<HeapSegmentElement>> entry :
+                newState.mElements.entrySet()) {
+            Integer key = entry.getKey();
+            if (oldState.mElements.containsKey(key) == false) {
+                mElementMap.put(key, merge(mElementMap.get(key), entry.getValue(), null));
+            }
+        }
+    }
+
+    /**
+     * Merges two lists of elements sorted by length into a new sorted list, leaving out some
+     * elements of the first list.
+     * @param list the first list, or <code>null</code>.
+     * @param added the elements to add, or <code>null</code>.
+     * @param removed the elements of <var>list</var> to leave out, or <code>null</code>.
+     */
+    private static ArrayList<HeapSegmentElement> merge(List<HeapSegmentElement> list,
+            List<HeapSegmentElement> added, List<HeapSegmentElement> removed) {
+        if (list == null) {
+            list = Collections.emptyList();
+        }
+        if (added == null) {
+            added = Collections.emptyList();
+        }
+
+        IdentityHashMap<HeapSegmentElement, Boolean> removedSet =
+            new IdentityHashMap<HeapSegmentElement, Boolean>();
+        if (removed != null) {
+            for (HeapSegmentElement e : removed) {
+                removedSet.put(e, Boolean.TRUE);
+            }
+        }
+
+        ArrayList<HeapSegmentElement> result =
+            new ArrayList<HeapSegmentElement>(list.size() + added.size());
+        int i = 0;
+        int j = 0;
+        while (i < list.size() || j < added.size()) {
+            HeapSegmentElement e = i < list.size() ? list.get(i) : null;
+            if (e != null && removedSet.containsKey(e)) {
+                i++;
+            } else if (e != null &&
+                    (j == added.size() || e.compareTo(added.get(j)) <= 0)) {
+                result.add(e);
+                i++;
+            } else {
+                result.add(added.get(j++));
+            }
+        }
+
+        return result;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mData.length) {
+            byte[] data = new byte[Math.max(capacity, mData.length * 2)];
+            System.arraycopy(mData, 0, data, 0, mData.length);
+            mData = data;
+        }
+    }
+}
@@ -192,6 +192,17 @@ final class JdwpPacket {
         return mLength;
     }
 
+    /**
+     * Give the buffer of the packet back to the pool of ChunkHandler. Only
+     * valid for packets created with a buffer from ChunkHandler.allocBuffer().
+     * The packet must not be used afterward.
+     */
+    void recycle() {
+        ByteBuffer buffer = mBuffer;
+        mBuffer = null;
+        ChunkHandler.recycleBuffer(buffer);
+    }
+
     /**
      * Write our packet to "chan".  Consumes the packet as part of the
      * write.
@@ -283,6 +294,19 @@ final class JdwpPacket {
      * a valid JDWP packet.
      */
     static JdwpPacket findPacket(ByteBuffer buf) {
+        JdwpPacket pkt = findPacketHeader(buf);
+        if (pkt == null || buf.position() < pkt.mLength)
+            return null;
+
+        return pkt;
+    }
+
+    /**
+     * Like findPacket(), but returns the packet as soon as its header is
+     * in the buffer, even if the rest of the packet has not been read yet.
+     * Only the header information of such a packet can be used.
+     */
+    static JdwpPacket findPacketHeader(ByteBuffer buf) {
         int count = buf.position();
         int length, id, flags, cmdSet, cmd;
 
@@ -302,8 +326,6 @@ final class JdwpPacket {
 
         if (length < JDWP_HEADER_LEN)
             throw new BadPacketException();
-        if (count < length)
-            return null;
 
         JdwpPacket pkt = new JdwpPacket(buf);
         //pkt.mBuffer = buf;
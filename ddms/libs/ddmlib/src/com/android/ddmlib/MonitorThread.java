@@ -32,9 +32,6 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -59,7 +56,8 @@ final class MonitorThread extends Thread {
     private Selector mSelector;
 
     // Map chunk types to handlers
-    private HashMap<Integer, ChunkHandler> mHandlerMap;
+    // copy-on-write, so that the monitor thread can read it without locking
+    private volatile ChunkHandlerMap mHandlerMap;
 
     // port for "debug selected"
     private ServerSocketChannel mDebugSelectedChan;
@@ -82,7 +80,7 @@ final class MonitorThread extends Thread {
     private MonitorThread() {
         super("Monitor");
         mClientList = new ArrayList<Client>();
-        mHandlerMap = new HashMap<Integer, ChunkHandler>();
+        mHandlerMap = ChunkHandlerMap.EMPTY;
 
         mNewDebugSelectedPort = DdmPreferences.getSelectedDebugPort();
     }
@@ -182,11 +180,8 @@ final class MonitorThread extends Thread {
             return;
         }
 
-        synchronized (mHandlerMap) {
-            if (mHandlerMap.get(type) == null) {
-                mHandlerMap.put(type, handler);
-            }
-        }
+        // this method is synchronized, so there is only one writer at a time.
+        mHandlerMap = mHandlerMap.with(type, handler);
     }
 
     /**
@@ -392,10 +387,8 @@ final class MonitorThread extends Thread {
 
         if (handler == null) {
             // not a reply, figure out who wants it
-            synchronized (mHandlerMap) {
-                handler = mHandlerMap.get(type);
-                reply = false;
-            }
+            handler = mHandlerMap.get(type);
+            reply = false;
         }
 
         if (handler == null) {
@@ -653,18 +646,12 @@ final class MonitorThread extends Thread {
 
         /*
          * The handler objects appear once in mHandlerMap for each message they
-         * handle. We want to notify them once each, so we convert the HashMap
-         * to a HashSet before we iterate.
+         * handle. We want to notify them once each, so we use the distinct
+         * handlers of the map.
          */
-        HashSet<ChunkHandler> set;
-        synchronized (mHandlerMap) {
-            Collection<ChunkHandler> values = mHandlerMap.values();
-            set = new HashSet<ChunkHandler>(values);
-        }
+        ChunkHandler[] handlers = mHandlerMap.getDistinctHandlers();
 
-        Iterator<ChunkHandler> iter = set.iterator();
-        while (iter.hasNext()) {
-            ChunkHandler handler = iter.next();
+        for (ChunkHandler handler : handlers) {
             switch (event) {
                 case CLIENT_READY:
                     try {
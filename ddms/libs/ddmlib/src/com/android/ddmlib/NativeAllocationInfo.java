@@ -84,6 +84,21 @@ public final class NativeAllocationInfo {
         mStackCallAddresses.add(address);
     }
 
+    /**
+     * Returns the number of stack call addresses.
+     */
+    int getStackCallCount() {
+        return mStackCallAddresses.size();
+    }
+
+    /**
+     * Returns a stack call address, without the array copy of {@link #getStackCallAddresses()}.
+     * @param index the index of the address, between 0 and {@link #getStackCallCount()}.
+     */
+    long getStackCallAddress(int index) {
+        return mStackCallAddresses.get(index);
+    }
+
     /**
      * Returns the total size of this allocation.
      */
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.utils.ArrayHelper;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Difference between two {@link NativeHeapSnapshot}, per stack call and per library.
+ * <p/>
+ * Only the stack calls whose size or allocation count changed are kept. They are sorted by
+ * decreasing size delta, so that the likely leaks come first.
+ * @see NativeHeapSnapshotStore#diff(NativeHeapSnapshot, NativeHeapSnapshot)
+ */
+public final class NativeHeapDiff {
+
+    private final NativeHeapSnapshotStore mStore;
+    private final NativeHeapSnapshot mBefore;
+    private final NativeHeapSnapshot mAfter;
+
+    private final int[] mStackIds;
+    private final long[] mSizeDeltas;
+    private final int[] mCountDeltas;
+    private final int[] mLibraries;
+
+    /** per library deltas. The last entry is for {@link NativeHeapSnapshotStore#UNKNOWN_LIBRARY} */
+    private final long[] mLibrarySizeDeltas;
+    private final long[] mLibraryCountDeltas;
+
+    NativeHeapDiff(NativeHeapSnapshotStore store, NativeHeapSnapshot before,
+            NativeHeapSnapshot after, int stackCount, int libraryCount) {
+        mStore = store;
+        mBefore = before;
+        mAfter = after;
+
+        // stack id -> entry + 1 in the "before" snapshot.
+        int[] beforeEntries = new int[stackCount];
+        int beforeCount = before.getEntryCount();
+        for (int i = 0 ; i < beforeCount ; i++) {
+            beforeEntries[before.getStackId(i)] = i + 1;
+        }
+
+        int afterCount = after.getEntryCount();
+        int capacity = beforeCount + afterCount;
+        int[] stackIds = new int[capacity];
+        long[] sizeDeltas = new long[capacity];
+        int[] countDeltas = new int[capacity];
+        int[] libraries = new int[capacity];
+        int count = 0;
+
+        // stacks of the new snapshot, matched against the old one.
+        for (int i = 0 ; i < afterCount ; i++) {
+            int stackId = after.getStackId(i);
+            long sizeDelta = after.getSize(i);
+            int countDelta = after.getAllocationCount(i);
+
+            int beforeEntry = beforeEntries[stackId] - 1;
+            if (beforeEntry != -1) {
+                sizeDelta -= before.getSize(beforeEntry);
+                countDelta -= before.getAllocationCount(beforeEntry);
+                // mark it as matched
+                beforeEntries[stackId] = 0;
+            }
+
+            if (sizeDelta != 0 || countDelta != 0) {
+                stackIds[count] = stackId;
+                sizeDeltas[count] = sizeDelta;
+                countDeltas[count] = countDelta;
+                libraries[count] = after.getLibraryIndex(i);
+                count++;
+            }
+        }
+
+        // stacks that are gone from the new snapshot.
+        for (int i = 0 ; i < beforeCount ; i++) {
+            int stackId = before.getStackId(i);
+            if (beforeEntries[stackId] != 0) {
+                stackIds[count] = stackId;
+                sizeDeltas[count] = -before.getSize(i);
+                countDeltas[count] = -before.getAllocationCount(i);
+                libraries[count] = before.getLibraryIndex(i);
+                count++;
+            }
+        }
+
+        mLibrarySizeDeltas = new long[libraryCount + 1];
+        mLibraryCountDeltas = new long[libraryCount + 1];
+        for (int i = 0 ; i < count ; i++) {
+            int library = libraries[i] == NativeHeapSnapshotStore.UNKNOWN_LIBRARY ?
+                    libraryCount : libraries[i];
+            mLibrarySizeDeltas[library] += sizeDeltas[i];
+            mLibraryCountDeltas[library] += countDeltas[i];
+        }
+
+        // sort by decreasing size delta.
+        int[] order = new int[count];
+        for (int i = 0 ; i < count ; i++) {
+            order[i] = i;
+        }
+        ArrayHelper.sortByDecreasingKey(order, sizeDeltas);
+
+        mStackIds = new int[count];
+        mSizeDeltas = new long[count];
+        mCountDeltas = new int[count];
+        mLibraries = new int[count];
+        for (int i = 0 ; i < count ; i++) {
+            int index = order[i];
+            mStackIds[i] = stackIds[index];
+            mSizeDeltas[i] = sizeDeltas[index];
+            mCountDeltas[i] = countDeltas[index];
+            mLibraries[i] = libraries[index];
+        }
+    }
+
+    /**
+     * Returns the older snapshot of the diff.
+     */
+    public NativeHeapSnapshot getBefore() {
+        return mBefore;
+    }
+
+    /**
+     * Returns the newer snapshot of the diff.
+     */
+    public NativeHeapSnapshot getAfter() {
+        return mAfter;
+    }
+
+    /**
+     * Returns the number of stack calls whose size or count changed.
+     */
+    public int getEntryCount() {
+        return mStackIds.length;
+    }
+
+    /**
+     * Returns the stack id of an entry.
+     * @see NativeHeapSnapshotStore#getStack(int)
+     */
+    public int getStackId(int entry) {
+        return mStackIds[entry];
+    }
+
+    /**
+     * Returns the size delta of an entry. Positive if the stack call allocated more memory in
+     * the newer snapshot.
+     */
+    public long getSizeDelta(int entry) {
+        return mSizeDeltas[entry];
+    }
+
+    /**
+     * Returns the allocation count delta of an entry.
+     */
+    public int getCountDelta(int entry) {
+        return mCountDeltas[entry];
+    }
+
+    /**
+     * Returns the library index of an entry.
+     * @see NativeHeapSnapshotStore#getLibraryName(int)
+     */
+    public int getLibraryIndex(int entry) {
+        return mLibraries[entry];
+    }
+
+    /**
+     * Returns the size delta of all the stack calls attributed to a library.
+     * @param libraryIndex the library index, or {@link NativeHeapSnapshotStore#UNKNOWN_LIBRARY}.
+     */
+    public long getLibrarySizeDelta(int libraryIndex) {
+        return mLibrarySizeDeltas[getLibrarySlot(libraryIndex)];
+    }
+
+    /**
+     * Returns the allocation count delta of all the stack calls attributed to a library.
+     * @param libraryIndex the library index, or {@link NativeHeapSnapshotStore#UNKNOWN_LIBRARY}.
+     */
+    public long getLibraryCountDelta(int libraryIndex) {
+        return mLibraryCountDeltas[getLibrarySlot(libraryIndex)];
+    }
+
+    /**
+     * Returns the total size delta between the two snapshots.
+     */
+    public long getTotalSizeDelta() {
+        return mAfter.getTotalSize() - mBefore.getTotalSize();
+    }
+
+    /**
+     * Exports the per stack call deltas as CSV. Each line contains the size delta, the count
+     * delta, the library and the stack call addresses separated by spaces.
+     * @param writer the writer to export to. It is not closed by this method.
+     * @throws IOException
+     */
+    public void exportStacks(Writer writer) throws IOException {
+        writer.write("size delta,count delta,library,stack\n"); //$NON-NLS-1$
+        for (int i = 0 ; i < mStackIds.length ; i++) {
+            writer.write(Long.toString(mSizeDeltas[i]));
+            writer.write(',');
+            writer.write(Integer.toString(mCountDeltas[i]));
+            writer.write(',');
+            writeLibraryName(writer, mLibraries[i]);
+            writer.write(',');
+
+            long[] stack = mStore.getStack(mStackIds[i]);
+            for (int j = 0 ; j < stack.length ; j++) {
+                if (j > 0) {
+                    writer.write(' ');
+                }
+                writer.write(Long.toHexString(stack[j]));
+            }
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Exports the per library deltas as CSV.
+     * @param writer the writer to export to. It is not closed by this method.
+     * @throws IOException
+     */
+    public void exportLibraries(Writer writer) throws IOException {
+        writer.write("library,size delta,count delta\n"); //$NON-NLS-1$
+        int libraryCount = mLibrarySizeDeltas.length - 1;
+        for (int i = -1 ; i < libraryCount ; i++) {
+            int slot = getLibrarySlot(i);
+            if (mLibrarySizeDeltas[slot] != 0 || mLibraryCountDeltas[slot] != 0) {
+                writeLibraryName(writer, i);
+                writer.write(',');
+                writer.write(Long.toString(mLibrarySizeDeltas[slot]));
+                writer.write(',');
+                writer.write(Long.toString(mLibraryCountDeltas[slot]));
+                writer.write('\n');
+            }
+        }
+    }
+
+    private void writeLibraryName(Writer writer, int libraryIndex) throws IOException {
+        String name = mStore.getLibraryName(libraryIndex);
+        writer.write(name != null ? name : "?"); //$NON-NLS-1$
+    }
+
+    private int getLibrarySlot(int libraryIndex) {
+        return libraryIndex == NativeHeapSnapshotStore.UNKNOWN_LIBRARY ?
+                mLibrarySizeDeltas.length - 1 : libraryIndex;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+/**
+ * Compact, immutable snapshot of the native heap of a process.
+ * <p/>
+ * The {@link NativeAllocationInfo} sharing the same stack call are merged into a single entry,
+ * which stores the stack id (in the {@link NativeHeapSnapshotStore} that created the snapshot),
+ * the total size and allocation count, and the library the allocation is attributed to.
+ */
+public final class NativeHeapSnapshot {
+
+    private final NativeHeapSnapshotStore mStore;
+    private final long mTimestamp;
+
+    private final int[] mStackIds;
+    private final long[] mSizes;
+    private final int[] mCounts;
+    private final int[] mLibraries;
+
+    private final long mTotalSize;
+    private final long mTotalCount;
+
+    NativeHeapSnapshot(NativeHeapSnapshotStore store, long timestamp, int[] stackIds,
+            long[] sizes, int[] counts, int[] libraries) {
+        mStore = store;
+        mTimestamp = timestamp;
+        mStackIds = stackIds;
+        mSizes = sizes;
+        mCounts = counts;
+        mLibraries = libraries;
+
+        long totalSize = 0;
+        long totalCount = 0;
+        for (int i = 0 ; i < sizes.length ; i++) {
+            totalSize += sizes[i];
+            totalCount += counts[i];
+        }
+        mTotalSize = totalSize;
+        mTotalCount = totalCount;
+    }
+
+    /**
+     * Returns the store that owns the snapshot.
+     */
+    public NativeHeapSnapshotStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * Returns the time at which the snapshot was taken.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Returns the number of entries, which is the number of distinct stack calls.
+     */
+    public int getEntryCount() {
+        return mStackIds.length;
+    }
+
+    /**
+     * Returns the stack id of an entry.
+     * @see NativeHeapSnapshotStore#getStack(int)
+     */
+    public int getStackId(int entry) {
+        return mStackIds[entry];
+    }
+
+    /**
+     * Returns the total size allocated by an entry.
+     */
+    public long getSize(int entry) {
+        return mSizes[entry];
+    }
+
+    /**
+     * Returns the number of allocations of an entry.
+     */
+    public int getAllocationCount(int entry) {
+        return mCounts[entry];
+    }
+
+    /**
+     * Returns the index of the library of an entry.
+     * @see NativeHeapSnapshotStore#getLibraryName(int)
+     */
+    public int getLibraryIndex(int entry) {
+        return mLibraries[entry];
+    }
+
+    /**
+     * Returns the total size allocated in the snapshot.
+     */
+    public long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Returns the total number of allocations in the snapshot.
+     */
+    public long getTotalAllocationCount() {
+        return mTotalCount;
+    }
+}
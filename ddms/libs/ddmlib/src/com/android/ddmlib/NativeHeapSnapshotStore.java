@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.utils.ArrayHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Stores a series of native heap snapshots ({@link NativeHeapSnapshot}) so that they can be
+ * compared with {@link #diff(NativeHeapSnapshot, NativeHeapSnapshot)}.
+ * <p/>
+ * The stack calls of the allocations are interned in a table shared by all the snapshots of the
+ * store, and each snapshot only keeps primitive arrays indexed by stack id. This keeps the memory
+ * used by a snapshot proportional to its number of distinct stack calls, independently of the
+ * number of {@link NativeAllocationInfo} it was built from, and lets snapshots be matched by stack
+ * id in linear time.
+ * <p/>
+ * This class is thread-safe.
+ */
+public final class NativeHeapSnapshotStore {
+
+    /**
+     * Libraries that are skipped when attributing an allocation to a library, since they only
+     * contain the allocator itself.
+     */
+    private final static String[] ALLOCATOR_LIBRARIES = new String[] {
+        "/libc.so", //$NON-NLS-1$
+        "/libc_malloc_debug_leak.so", //$NON-NLS-1$
+        "/libc_malloc_debug_qemu.so", //$NON-NLS-1$
+    };
+
+    /** library index used for stack calls that are not in any known library. */
+    public final static int UNKNOWN_LIBRARY = -1;
+
+    /** all the stack call addresses, one stack after the other. */
+    private long[] mStackAddresses = new long[4096];
+    private int mStackAddressCount = 0;
+
+    /** stack i is made of the addresses [mStackOffsets[i], mStackOffsets[i + 1]) */
+    private int[] mStackOffsets = new int[513];
+    private long[] mStackHashes = new long[512];
+    private int mStackCount = 0;
+
+    /** open addressing hash table of stack ids. Contains the stack id + 1, or 0 if empty. */
+    private int[] mStackSlots = new int[1024];
+
+    private final ArrayList<String> mLibraries = new ArrayList<String>();
+    private final HashMap<String, Integer> mLibraryIndices = new HashMap<String, Integer>();
+
+    private final ArrayList<NativeHeapSnapshot> mSnapshots = new ArrayList<NativeHeapSnapshot>();
+
+    /**
+     * Adds a snapshot of the current native heap information of a client.
+     * @param clientData the {@link ClientData} of the client.
+     * @return the new snapshot.
+     * @see Client#requestNativeHeapInformation()
+     */
+    public NativeHeapSnapshot addSnapshot(ClientData clientData) {
+        return addSnapshot(clientData.getNativeAllocationList(),
+                clientData.getNativeLibraryMapInfo(), System.currentTimeMillis());
+    }
+
+    /**
+     * Adds a snapshot built from a list of {@link NativeAllocationInfo}.
+     * <p/>
+     * The list is only read during this call and can be discarded afterward.
+     * @param allocations the allocations of the snapshot.
+     * @param libraries the library map of the process, used to attribute allocations to
+     * libraries.
+     * @param timestamp the time of the snapshot.
+     * @return the new snapshot.
+     */
+    public synchronized NativeHeapSnapshot addSnapshot(List<NativeAllocationInfo> allocations,
+            Iterator<NativeLibraryMapInfo> libraries, long timestamp) {
+        LibraryFinder finder = new LibraryFinder(libraries);
+
+        // stack id -> entry index in the snapshot. Grown as new stacks are interned.
+        int[] entryIndices = new int[Math.max(mStackCount, 16)];
+        Arrays.fill(entryIndices, -1);
+
+        int capacity = Math.max(allocations.size(), 16);
+        int[] stackIds = new int[capacity];
+        long[] sizes = new long[capacity];
+        int[] counts = new int[capacity];
+        int[] libraryIndices = new int[capacity];
+        int entryCount = 0;
+
+        long[] buffer = new long[64];
+
+        for (NativeAllocationInfo info : allocations) {
+            int depth = info.getStackCallCount();
+            if (buffer.length < depth) {
+                buffer = new long[depth];
+            }
+            for (int i = 0 ; i < depth ; i++) {
+                buffer[i] = info.getStackCallAddress(i);
+            }
+
+            int stackId = internStack(buffer, depth);
+            if (stackId >= entryIndices.length) {
+                int oldLength = entryIndices.length;
+                entryIndices = ArrayHelper.copyOf(entryIndices,
+                        Math.max(oldLength * 2, stackId + 1));
+                Arrays.fill(entryIndices, oldLength, entryIndices.length, -1);
+            }
+
+            int entry = entryIndices[stackId];
+            if (entry == -1) {
+                entry = entryCount++;
+                entryIndices[stackId] = entry;
+                stackIds[entry] = stackId;
+                libraryIndices[entry] = finder.findLibraryIndex(buffer, depth);
+            }
+
+            sizes[entry] += (long)info.getSize() * info.getAllocationCount();
+            counts[entry] += info.getAllocationCount();
+        }
+
+        NativeHeapSnapshot snapshot = new NativeHeapSnapshot(this, timestamp,
+                ArrayHelper.copyOf(stackIds, entryCount),
+                ArrayHelper.copyOf(sizes, entryCount),
+                ArrayHelper.copyOf(counts, entryCount),
+                ArrayHelper.copyOf(libraryIndices, entryCount));
+        mSnapshots.add(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Removes a snapshot from the store.
+     */
+    public synchronized void removeSnapshot(NativeHeapSnapshot snapshot) {
+        mSnapshots.remove(snapshot);
+    }
+
+    /**
+     * Returns the snapshots of the store, in the order they were added.
+     */
+    public synchronized List<NativeHeapSnapshot> getSnapshots() {
+        return Collections.unmodifiableList(new ArrayList<NativeHeapSnapshot>(mSnapshots));
+    }
+
+    /**
+     * Returns the number of distinct stack calls in the store.
+     */
+    public synchronized int getStackCount() {
+        return mStackCount;
+    }
+
+    /**
+     * Returns the addresses of a stack call.
+     * @param stackId the id of the stack call, as returned by
+     * {@link NativeHeapSnapshot#getStackId(int)} or {@link NativeHeapDiff#getStackId(int)}.
+     */
+    public synchronized long[] getStack(int stackId) {
+        int start = mStackOffsets[stackId];
+        long[] stack = new long[mStackOffsets[stackId + 1] - start];
+        System.arraycopy(mStackAddresses, start, stack, 0, stack.length);
+        return stack;
+    }
+
+    /**
+     * Returns the name of a library, or <code>null</code> for {@link #UNKNOWN_LIBRARY}.
+     * @param libraryIndex the index of the library.
+     */
+    public synchronized String getLibraryName(int libraryIndex) {
+        if (libraryIndex == UNKNOWN_LIBRARY) {
+            return null;
+        }
+        return mLibraries.get(libraryIndex);
+    }
+
+    /**
+     * Returns the number of libraries known by the store.
+     */
+    public synchronized int getLibraryCount() {
+        return mLibraries.size();
+    }
+
+    /**
+     * Computes the difference between two snapshots of the store.
+     * <p/>
+     * This runs in time linear in the number of stack calls of both snapshots.
+     * @param before the older snapshot.
+     * @param after the newer snapshot.
+     */
+    public NativeHeapDiff diff(NativeHeapSnapshot before, NativeHeapSnapshot after) {
+        if (before.getStore() != this || after.getStore() != this) {
+            throw new IllegalArgumentException("Snapshots do not belong to this store");
+        }
+
+        int stackCount;
+        int libraryCount;
+        synchronized (this) {
+            stackCount = mStackCount;
+            libraryCount = mLibraries.size();
+        }
+
+        return new NativeHeapDiff(this, before, after, stackCount, libraryCount);
+    }
+
+    /**
+     * Returns the id of a stack call, adding it to the table if needed.
+     */
+    private int internStack(long[] addresses, int depth) {
+        long hash = hashStack(addresses, depth);
+
+        int mask = mStackSlots.length - 1;
+        int slot = (int)(hash ^ (hash >>> 32)) & mask;
+        while (true) {
+            int value = mStackSlots[slot];
+            if (value == 0) {
+                break;
+            }
+
+            int stackId = value - 1;
+            if (mStackHashes[stackId] == hash && isSameStack(stackId, addresses, depth)) {
+                return stackId;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        // new stack.
+        int stackId = mStackCount++;
+        if (mStackCount == mStackHashes.length) {
+            mStackHashes = ArrayHelper.copyOf(mStackHashes, mStackHashes.length * 2);
+            mStackOffsets = ArrayHelper.copyOf(mStackOffsets, mStackHashes.length + 1);
+        }
+
+        if (mStackAddressCount + depth > mStackAddresses.length) {
+            mStackAddresses = ArrayHelper.copyOf(mStackAddresses,
+                    Math.max(mStackAddresses.length * 2, mStackAddressCount + depth));
+        }
+        System.arraycopy(addresses, 0, mStackAddresses, mStackAddressCount, depth);
+        mStackOffsets[stackId] = mStackAddressCount;
+        mStackAddressCount += depth;
+        mStackOffsets[stackId + 1] = mStackAddressCount;
+        mStackHashes[stackId] = hash;
+
+        mStackSlots[slot] = stackId + 1;
+
+        // keep the load factor under 0.5
+        if (mStackCount * 2 > mStackSlots.length) {
+            rehash();
+        }
+
+        return stackId;
+    }
+
+    private boolean isSameStack(int stackId, long[] addresses, int depth) {
+        int start = mStackOffsets[stackId];
+        if (mStackOffsets[stackId + 1] - start != depth) {
+            return false;
+        }
+
+        for (int i = 0 ; i < depth ; i++) {
+            if (mStackAddresses[start + i] != addresses[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void rehash() {
+        int[] slots = new int[mStackSlots.length * 2];
+        int mask = slots.length - 1;
+        for (int stackId = 0 ; stackId < mStackCount ; stackId++) {
+            long hash = mStackHashes[stackId];
+            int slot = (int)(hash ^ (hash >>> 32)) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = stackId + 1;
+        }
+        mStackSlots = slots;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the stack addresses.
+     */
+    private static long hashStack(long[] addresses, int depth) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0 ; i < depth ; i++) {
+            long addr = addresses[i];
+            for (int b = 0 ; b < 64 ; b += 8) {
+                hash ^= (addr >>> b) & 0xFF;
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the index of a library, adding it to the list if needed.
+     */
+    private int getLibraryIndex(String library) {
+        Integer index = mLibraryIndices.get(library);
+        if (index == null) {
+            index = mLibraries.size();
+            mLibraries.add(library);
+            mLibraryIndices.put(library, index);
+        }
+        return index;
+    }
+
+    /**
+     * Finds the library of stack calls with a binary search in the library map.
+     */
+    private final class LibraryFinder {
+        private final long[] mStarts;
+        private final long[] mEnds;
+        private final int[] mIndices;
+        private final boolean[] mIsAllocator;
+
+        LibraryFinder(Iterator<NativeLibraryMapInfo> libraries) {
+            ArrayList<NativeLibraryMapInfo> list = new ArrayList<NativeLibraryMapInfo>();
+            while (libraries.hasNext()) {
+                list.add(libraries.next());
+            }
+
+            Collections.sort(list, new Comparator<NativeLibraryMapInfo>() {
+                public int compare(NativeLibraryMapInfo o1, NativeLibraryMapInfo o2) {
+                    long s1 = o1.getStartAddress();
+                    long s2 = o2.getStartAddress();
+                    return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+                }
+            });
+
+            int count = list.size();
+            mStarts = new long[count];
+            mEnds = new long[count];
+            mIndices = new int[count];
+            mIsAllocator = new boolean[count];
+            for (int i = 0 ; i < count ; i++) {
+                NativeLibraryMapInfo info = list.get(i);
+                mStarts[i] = info.getStartAddress();
+                mEnds[i] = info.getEndAddress();
+                mIndices[i] = getLibraryIndex(info.getLibraryName());
+                mIsAllocator[i] = isAllocatorLibrary(info.getLibraryName());
+            }
+        }
+
+        /**
+         * Returns the index of the library responsible for an allocation: the library of the
+         * first stack call that is not in an allocator library.
+         */
+        int findLibraryIndex(long[] addresses, int depth) {
+            int fallback = UNKNOWN_LIBRARY;
+            for (int i = 0 ; i < depth ; i++) {
+                if (addresses[i] == 0) {
+                    continue;
+                }
+
+                int pos = find(addresses[i]);
+                if (pos != -1) {
+                    if (mIsAllocator[pos] == false) {
+                        return mIndices[pos];
+                    }
+
+                    if (fallback == UNKNOWN_LIBRARY) {
+                        fallback = mIndices[pos];
+                    }
+                }
+            }
+
+            return fallback;
+        }
+
+        private int find(long address) {
+            int low = 0;
+            int high = mStarts.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (mStarts[mid] > address) {
+                    high = mid - 1;
+                } else if (mEnds[mid] < address) {
+                    low = mid + 1;
+                } else {
+                    return mid;
+                }
+            }
+
+            return -1;
+        }
+
+        private boolean isAllocatorLibrary(String library) {
+            for (String allocator : ALLOCATOR_LIBRARIES) {
+                if (library.endsWith(allocator)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
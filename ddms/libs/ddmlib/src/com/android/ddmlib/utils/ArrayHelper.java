@@ -17,7 +17,8 @@
 package com.android.ddmlib.utils;
 
 /**
- * Utility class providing array to int/long conversion for data received from devices through adb. 
+ * Utility class providing array to int/long conversion for data received from devices through adb,
+ * as well as array copies and sorts for the stores.
  */
 public final class ArrayHelper {
 
@@ -87,4 +88,68 @@ public final class ArrayHelper {
 
         return v;
     }
+
+    // TODO: use Arrays#copyOf when we switch to JDK6
+    /**
+     * Copies an array, truncating it or padding it with zeros to the given length.
+     * @param array the array to copy
+     * @param length the length of the copy
+     * @return the new array
+     */
+    public static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    /**
+     * Copies an array, truncating it or padding it with zeros to the given length.
+     * @param array the array to copy
+     * @param length the length of the copy
+     * @return the new array
+     */
+    public static long[] copyOf(long[] array, int length) {
+        long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    /**
+     * Sorts indices by decreasing key. The sort is stable, and does not box the indices.
+     * @param indices the indices to sort, in place
+     * @param keys the keys of the indices
+     */
+    public static void sortByDecreasingKey(int[] indices, long[] keys) {
+        int count = indices.length;
+        int[] order = indices;
+        int[] tmp = new int[count];
+        // bottom-up merge sort.
+        for (int width = 1 ; width < count ; width *= 2) {
+            for (int start = 0 ; start < count ; start += 2 * width) {
+                int mid = Math.min(start + width, count);
+                int end = Math.min(start + 2 * width, count);
+                int i = start, j = mid, k = start;
+                while (i < mid && j < end) {
+                    if (keys[order[j]] > keys[order[i]]) {
+                        tmp[k++] = order[j++];
+                    } else {
+                        tmp[k++] = order[i++];
+                    }
+                }
+                while (i < mid) {
+                    tmp[k++] = order[i++];
+                }
+                while (j < end) {
+                    tmp[k++] = order[j++];
+                }
+            }
+            int[] swap = order;
+            order = tmp;
+            tmp = swap;
+        }
+
+        if (order != indices) {
+            System.arraycopy(order, 0, indices, 0, count);
+        }
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.AllocationStore.GroupBy;
+import com.android.ddmlib.AllocationStore.GroupByResult;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link AllocationStore}.
+ */
+public class AllocationStoreTest extends TestCase {
+
+    private AllocationStore mStore;
+    private int mStringClass;
+    private int mIntArrayClass;
+    private int mStack1;
+    private int mStack2;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStore = new AllocationStore();
+
+        int[] strings = mStore.internStrings(new String[] {
+                "java.lang.String", "int[]", "com.foo.Bar", "run", "Bar.java" });
+        mStringClass = strings[0];
+        mIntArrayClass = strings[1];
+
+        int frame1 = mStore.internFrame(strings[2], strings[3], strings[4], 10);
+        int frame2 = mStore.internFrame(strings[2], strings[3], strings[4], 20);
+        assertEquals(frame1, mStore.internFrame(strings[2], strings[3], strings[4], 10));
+
+        mStack1 = mStore.internStack(new int[] { frame1, frame2 }, 2);
+        mStack2 = mStore.internStack(new int[] { frame2 }, 1);
+        assertEquals(mStack1, mStore.internStack(new int[] { frame1, frame2, 42 }, 2));
+    }
+
+    /**
+     * Test that the records of successive polls are all kept, oldest first, even when the polls
+     * overlap.
+     */
+    public void testPolls() {
+        // most recent first: sizes 3, 2, 1 (1 is the oldest)
+        addPoll(3, 2, 1);
+        assertEquals(3, mStore.getRecordCount());
+        assertEquals(1, mStore.getSize(0));
+        assertEquals(3, mStore.getSize(2));
+
+        // the tracker returns 3 and 2 again, along with the new allocations.
+        addPoll(5, 4, 3, 2);
+        assertEquals(7, mStore.getRecordCount());
+        assertEquals(2, mStore.getSize(3));
+        assertEquals(5, mStore.getSize(6));
+        assertEquals(3, mStore.getPollStart(1));
+        assertEquals(7, mStore.getPollEnd(1));
+
+        AllocationInfo[] allocations = mStore.getLastPollAllocations();
+        assertEquals(4, allocations.length);
+        assertEquals(5, allocations[0].getSize());
+        assertEquals(4, allocations[0].getAllocNumber());
+        assertEquals(2, allocations[3].getSize());
+        assertEquals(1, allocations[3].getAllocNumber());
+
+        // nothing tracked
+        addPoll();
+        assertEquals(7, mStore.getRecordCount());
+        assertEquals(3, mStore.getPollCount());
+        assertEquals(7, mStore.getPollStart(2));
+        assertEquals(0, mStore.getLastPollAllocations().length);
+
+        mStore.clearRecords();
+        assertEquals(0, mStore.getRecordCount());
+        assertEquals(0, mStore.getPollCount());
+        assertEquals(0, mStore.getLastPollAllocations().length);
+    }
+
+    /**
+     * Test grouping records by class, stack and thread.
+     */
+    public void testGroupBy() {
+        int[] classes = new int[] { mStringClass, mIntArrayClass, mStringClass };
+        int[] sizes = new int[] { 10, 100, 20 };
+        int[] threads = new int[] { 1, 1, 2 };
+        int[] stacks = new int[] { mStack1, mStack2, mStack2 };
+        mStore.addPoll(classes, sizes, threads, stacks, 3, 0);
+
+        GroupByResult result = mStore.groupBy(GroupBy.CLASS, 0, mStore.getRecordCount());
+        assertEquals(2, result.getGroupCount());
+        assertEquals(mIntArrayClass, result.getKey(0));
+        assertEquals(100, result.getSize(0));
+        assertEquals(mStringClass, result.getKey(1));
+        assertEquals(30, result.getSize(1));
+        assertEquals(2, result.getCount(1));
+
+        result = mStore.groupBy(GroupBy.STACK, 0, mStore.getRecordCount());
+        assertEquals(mStack2, result.getKey(0));
+        assertEquals(120, result.getSize(0));
+
+        result = mStore.groupBy(GroupBy.THREAD, 0, mStore.getRecordCount());
+        assertEquals(2, result.getGroupCount());
+        assertEquals(1, result.getKey(0));
+        assertEquals(110, result.getSize(0));
+
+        StackTraceElement[] trace = mStore.getStackTrace(mStack1);
+        assertEquals(2, trace.length);
+        assertEquals("com.foo.Bar", trace[0].getClassName());
+        assertEquals(20, trace[1].getLineNumber());
+        assertSame(trace, mStore.getStackTrace(mStack1));
+    }
+
+    /**
+     * Adds a poll of allocations of the same class and stack, given most recent first.
+     */
+    private void addPoll(int... sizes) {
+        int count = sizes.length;
+        int[] classes = new int[count];
+        int[] threads = new int[count];
+        int[] stacks = new int[count];
+        for (int i = 0 ; i < count ; i++) {
+            classes[i] = mStringClass;
+            threads[i] = 1;
+            stacks[i] = mStack1;
+        }
+        mStore.addPoll(classes, sizes, threads, stacks, count, 0);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ChunkHandlerMap} and the pooled buffers of {@link ChunkHandler}.
+ */
+public class ChunkHandlerMapTest extends TestCase {
+
+    private final static int REQUEST_COUNT = 1000;
+
+    private static class TestHandler extends ChunkHandler {
+        @Override
+        void clientReady(Client client) {
+        }
+
+        @Override
+        void clientDisconnected(Client client) {
+        }
+
+        @Override
+        void handleChunk(Client client, int type, ByteBuffer data, boolean isReply, int msgId) {
+        }
+    }
+
+    private ChunkHandler mHandler1;
+    private ChunkHandler mHandler2;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandler1 = new TestHandler();
+        mHandler2 = new TestHandler();
+    }
+
+    public void testGet() {
+        ChunkHandlerMap map = ChunkHandlerMap.EMPTY;
+        map = map.with(ChunkHandler.type("HPIF"), mHandler1);
+        map = map.with(ChunkHandler.type("HPST"), mHandler1);
+        map = map.with(ChunkHandler.type("THCR"), mHandler2);
+
+        assertEquals(3, map.size());
+        assertSame(mHandler1, map.get(ChunkHandler.type("HPIF")));
+        assertSame(mHandler1, map.get(ChunkHandler.type("HPST")));
+        assertSame(mHandler2, map.get(ChunkHandler.type("THCR")));
+        assertNull(map.get(ChunkHandler.type("THEN")));
+    }
+
+    public void testCopyOnWrite() {
+        ChunkHandlerMap map1 = ChunkHandlerMap.EMPTY.with(ChunkHandler.type("HPIF"), mHandler1);
+        ChunkHandlerMap map2 = map1.with(ChunkHandler.type("THCR"), mHandler2);
+
+        assertEquals(0, ChunkHandlerMap.EMPTY.size());
+        assertNull(map1.get(ChunkHandler.type("THCR")));
+        assertSame(mHandler2, map2.get(ChunkHandler.type("THCR")));
+
+        // first registration wins, like with the previous HashMap.
+        assertSame(map2, map2.with(ChunkHandler.type("HPIF"), mHandler2));
+        assertSame(mHandler1, map2.get(ChunkHandler.type("HPIF")));
+    }
+
+    public void testGrowth() {
+        ChunkHandlerMap map = ChunkHandlerMap.EMPTY;
+        for (int i = 0 ; i < 200 ; i++) {
+            map = map.with(i * 0x10000, (i & 1) == 0 ? mHandler1 : mHandler2);
+        }
+
+        assertEquals(200, map.size());
+        for (int i = 0 ; i < 200 ; i++) {
+            assertSame((i & 1) == 0 ? mHandler1 : mHandler2, map.get(i * 0x10000));
+        }
+        assertNull(map.get(1));
+    }
+
+    public void testDistinctHandlers() {
+        ChunkHandlerMap map = ChunkHandlerMap.EMPTY;
+        map = map.with(ChunkHandler.type("HPIF"), mHandler1);
+        map = map.with(ChunkHandler.type("THCR"), mHandler2);
+        map = map.with(ChunkHandler.type("HPST"), mHandler1);
+
+        ChunkHandler[] handlers = map.getDistinctHandlers();
+        assertEquals(2, handlers.length);
+        assertSame(mHandler1, handlers[0]);
+        assertSame(mHandler2, handlers[1]);
+    }
+
+    public void testBufferPool() {
+        ByteBufferPool pool = new ByteBufferPool(ChunkHandler.CHUNK_ORDER);
+
+        ByteBuffer buffer = pool.acquire(100);
+        assertEquals(128, buffer.capacity());
+        assertEquals(ChunkHandler.CHUNK_ORDER, buffer.order());
+        buffer.putInt(42);
+        pool.release(buffer);
+
+        ByteBuffer buffer2 = pool.acquire(120);
+        assertSame(buffer, buffer2);
+        assertEquals(0, buffer2.position());
+        assertEquals(buffer2.capacity(), buffer2.limit());
+        assertEquals(1, pool.getAllocatedCount());
+
+        // too large to be pooled
+        ByteBuffer large = pool.acquire(ByteBufferPool.MAX_SIZE + 1);
+        assertEquals(ByteBufferPool.MAX_SIZE + 1, large.capacity());
+        pool.release(large);
+        assertNotSame(large, pool.acquire(ByteBufferPool.MAX_SIZE + 1));
+    }
+
+    /**
+     * Sends DDM requests to a fake JDWP client over a loopback connection, and checks that the
+     * request buffers come from the pool.
+     */
+    public void testRequestBuffers() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("localhost"), 0));
+
+        final SocketChannel clientSide = SocketChannel.open(new InetSocketAddress(
+                InetAddress.getByName("localhost"), server.socket().getLocalPort()));
+        final SocketChannel vmSide = server.accept();
+
+        // the fake VM reads and drops everything.
+        Thread drain = new Thread("fake jdwp client") {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                try {
+                    while (vmSide.read(buffer) != -1) {
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    // connection closed.
+                }
+            }
+        };
+        drain.start();
+
+        try {
+            Client client = new Client(null, clientSide, 1);
+
+            // fill the pool
+            sendRequests(client, 10);
+
+            ByteBufferPool pool = ChunkHandler.getBufferPool();
+            int allocatedBuffers = pool.getAllocatedCount();
+
+            sendRequests(client, REQUEST_COUNT);
+
+            assertEquals(allocatedBuffers, pool.getAllocatedCount());
+        } finally {
+            clientSide.close();
+            vmSide.close();
+            server.close();
+            drain.join();
+        }
+    }
+
+    private static void sendRequests(Client client, int count) throws IOException {
+        for (int i = 0 ; i < count ; i++) {
+            HandleHeap.sendHPIF(client, HandleHeap.HPIF_WHEN_NOW);
+            HandleHeap.sendHPSG(client, HandleHeap.WHEN_GC, HandleHeap.WHAT_MERGE);
+            HandleHeap.sendHPGC(client);
+        }
+    }
+}
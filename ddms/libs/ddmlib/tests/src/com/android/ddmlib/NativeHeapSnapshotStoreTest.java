@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link NativeHeapSnapshotStore} and {@link NativeHeapDiff}.
+ */
+public class NativeHeapSnapshotStoreTest extends TestCase {
+
+    private NativeHeapSnapshotStore mStore;
+    private List<NativeLibraryMapInfo> mLibraries;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStore = new NativeHeapSnapshotStore();
+        mLibraries = new ArrayList<NativeLibraryMapInfo>();
+        mLibraries.add(new NativeLibraryMapInfo(0x2000, 0x2fff, "/system/lib/libfoo.so"));
+        mLibraries.add(new NativeLibraryMapInfo(0x1000, 0x1fff, "/system/lib/libc.so"));
+    }
+
+    /**
+     * Test that allocations with the same stack call are merged, and attributed to the first
+     * library that is not the allocator.
+     */
+    public void testSnapshot() {
+        List<NativeAllocationInfo> allocations = new ArrayList<NativeAllocationInfo>();
+        allocations.add(createAllocation(16, 2, 0x1010, 0x2010));
+        allocations.add(createAllocation(32, 1, 0x1010, 0x2010));
+        allocations.add(createAllocation(8, 4, 0x1010, 0x1020));
+
+        NativeHeapSnapshot snapshot = mStore.addSnapshot(allocations, mLibraries.iterator(), 0);
+
+        assertEquals(2, snapshot.getEntryCount());
+        assertEquals(2, mStore.getStackCount());
+        assertEquals(64 + 32, snapshot.getTotalSize());
+        assertEquals(7, snapshot.getTotalAllocationCount());
+
+        assertEquals(64, snapshot.getSize(0));
+        assertEquals(3, snapshot.getAllocationCount(0));
+        assertEquals("/system/lib/libfoo.so",
+                mStore.getLibraryName(snapshot.getLibraryIndex(0)));
+
+        // only libc in the stack: falls back to libc.
+        assertEquals("/system/lib/libc.so", mStore.getLibraryName(snapshot.getLibraryIndex(1)));
+
+        long[] stack = mStore.getStack(snapshot.getStackId(0));
+        assertEquals(2, stack.length);
+        assertEquals(0x1010, stack[0]);
+        assertEquals(0x2010, stack[1]);
+    }
+
+    /**
+     * Test the diff of two snapshots, with new, changed, unchanged and freed stack calls.
+     */
+    public void testDiff() throws Exception {
+        List<NativeAllocationInfo> allocations = new ArrayList<NativeAllocationInfo>();
+        allocations.add(createAllocation(16, 1, 0x1010, 0x2010)); // grows
+        allocations.add(createAllocation(8, 1, 0x1010, 0x2020));  // unchanged
+        allocations.add(createAllocation(4, 1, 0x1010, 0x2030));  // freed
+        NativeHeapSnapshot before = mStore.addSnapshot(allocations, mLibraries.iterator(), 0);
+
+        allocations.clear();
+        allocations.add(createAllocation(8, 1, 0x1010, 0x2020));
+        allocations.add(createAllocation(16, 3, 0x1010, 0x2010));
+        allocations.add(createAllocation(100, 1, 0x3000));        // new, unknown library
+        NativeHeapSnapshot after = mStore.addSnapshot(allocations, mLibraries.iterator(), 1);
+
+        NativeHeapDiff diff = mStore.diff(before, after);
+
+        assertEquals(3, diff.getEntryCount());
+
+        // sorted by decreasing size delta
+        assertEquals(100, diff.getSizeDelta(0));
+        assertEquals(1, diff.getCountDelta(0));
+        assertEquals(NativeHeapSnapshotStore.UNKNOWN_LIBRARY, diff.getLibraryIndex(0));
+
+        assertEquals(32, diff.getSizeDelta(1));
+        assertEquals(2, diff.getCountDelta(1));
+
+        assertEquals(-4, diff.getSizeDelta(2));
+        assertEquals(-1, diff.getCountDelta(2));
+
+        assertEquals(100 + 32 - 4, diff.getTotalSizeDelta());
+        assertEquals(100, diff.getLibrarySizeDelta(NativeHeapSnapshotStore.UNKNOWN_LIBRARY));
+        assertEquals(28, diff.getLibrarySizeDelta(diff.getLibraryIndex(1)));
+        assertEquals(1, diff.getLibraryCountDelta(diff.getLibraryIndex(1)));
+
+        StringWriter writer = new StringWriter();
+        diff.exportLibraries(writer);
+        assertEquals("library,size delta,count delta\n" +
+                "?,100,1\n" +
+                "/system/lib/libfoo.so,28,1\n", writer.toString());
+    }
+
+    /**
+     * Test that the stack table grows properly.
+     */
+    public void testManyStacks() {
+        List<NativeAllocationInfo> allocations = new ArrayList<NativeAllocationInfo>();
+        for (int i = 0 ; i < 10000 ; i++) {
+            allocations.add(createAllocation(4, 1, 0x1010, 0x2000 + i, i));
+        }
+
+        NativeHeapSnapshot first = mStore.addSnapshot(allocations, mLibraries.iterator(), 0);
+        NativeHeapSnapshot second = mStore.addSnapshot(allocations, mLibraries.iterator(), 1);
+
+        assertEquals(10000, mStore.getStackCount());
+        assertEquals(10000, second.getEntryCount());
+        assertEquals(0, mStore.diff(first, second).getEntryCount());
+
+        long[] stack = mStore.getStack(second.getStackId(1234));
+        assertEquals(0x2000 + 1234, stack[1]);
+        assertEquals(1234, stack[2]);
+    }
+
+    private static NativeAllocationInfo createAllocation(int size, int count, long... stack) {
+        NativeAllocationInfo info = new NativeAllocationInfo(size, count);
+        for (long address : stack) {
+            info.addStackCallAddress(address);
+        }
+        return info;
+    }
+}
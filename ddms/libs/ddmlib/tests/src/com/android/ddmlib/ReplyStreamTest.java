@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the replies streamed to a {@link ChunkStreamHandler} by {@link Client}.
+ */
+public class ReplyStreamTest extends TestCase {
+
+    private final static int REPLY_ID = 0x40001234;
+
+    /**
+     * Handler checking that the data it receives is the one sent by {@link #sendReply}.
+     */
+    private static class TestStreamHandler implements ChunkStreamHandler {
+        int mType;
+        int mLength;
+        long mReceived;
+        boolean mCorrupted;
+        boolean mEnded;
+        String mFailure;
+        boolean mAccept = true;
+
+        public boolean onChunkStart(Client client, int type, int length) {
+            mType = type;
+            mLength = length;
+            return mAccept;
+        }
+
+        public void onChunkData(Client client, ByteBuffer data) {
+            while (data.hasRemaining()) {
+                if (data.get() != (byte) mReceived) {
+                    mCorrupted = true;
+                }
+                mReceived++;
+            }
+        }
+
+        public void onChunkEnd(Client client) {
+            mEnded = true;
+        }
+
+        public void onChunkFailure(Client client, String message) {
+            mFailure = message;
+        }
+    }
+
+    private ServerSocketChannel mServer;
+    private SocketChannel mClientSide;
+    private SocketChannel mVmSide;
+    private Client mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getByName("localhost"), 0));
+        mClientSide = SocketChannel.open(new InetSocketAddress(
+                InetAddress.getByName("localhost"), mServer.socket().getLocalPort()));
+        mVmSide = mServer.accept();
+        mClient = new Client(null, mClientSide, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mClientSide.close();
+        mVmSide.close();
+        mServer.close();
+        super.tearDown();
+    }
+
+    /**
+     * Checks that a reply larger than the maximum size of the read buffer of the client is
+     * received, since it is not buffered.
+     */
+    public void testLargeReply() throws Exception {
+        final int length = 160 * 1024 * 1024;
+        TestStreamHandler handler = new TestStreamHandler();
+        assertTrue(mClient.setReplyStream(REPLY_ID, handler));
+
+        Thread vm = sendReply(REPLY_ID, HandleProfiling.CHUNK_MPSE, length);
+        while (handler.mEnded == false && handler.mFailure == null) {
+            mClient.read();
+        }
+        vm.join();
+
+        assertNull(handler.mFailure);
+        assertEquals(HandleProfiling.CHUNK_MPSE, handler.mType);
+        assertEquals(length, handler.mLength);
+        assertEquals(length, handler.mReceived);
+        assertFalse(handler.mCorrupted);
+
+        // only one reply is streamed at a time, and the stream ends with its reply.
+        assertTrue(mClient.setReplyStream(REPLY_ID + 1, new TestStreamHandler()));
+        assertFalse(mClient.setReplyStream(REPLY_ID + 2, new TestStreamHandler()));
+    }
+
+    /**
+     * Checks that the replies to other requests are not streamed.
+     */
+    public void testOtherReply() throws Exception {
+        TestStreamHandler handler = new TestStreamHandler();
+        assertTrue(mClient.setReplyStream(REPLY_ID, handler));
+
+        sendReply(REPLY_ID + 1, HandleProfiling.CHUNK_MPSE, 1000).join();
+        mClient.read();
+        assertEquals(0, handler.mType);
+        assertEquals(0, handler.mReceived);
+    }
+
+    /**
+     * Checks that a reply declined by the handler is not streamed, and that the handler is
+     * removed.
+     */
+    public void testDeclinedReply() throws Exception {
+        TestStreamHandler handler = new TestStreamHandler();
+        handler.mAccept = false;
+        assertTrue(mClient.setReplyStream(REPLY_ID, handler));
+
+        sendReply(REPLY_ID, HandleProfiling.CHUNK_FAIL, 1000).join();
+        mClient.read();
+        assertEquals(HandleProfiling.CHUNK_FAIL, handler.mType);
+        assertEquals(0, handler.mReceived);
+        assertFalse(handler.mEnded);
+
+        assertTrue(mClient.setReplyStream(REPLY_ID + 1, new TestStreamHandler()));
+    }
+
+    /**
+     * Sends a reply packet with one chunk of <var>length</var> bytes from the fake VM, in a new
+     * thread.
+     */
+    private Thread sendReply(final int id, final int type, final int length) {
+        Thread vm = new Thread("fake jdwp client") {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                buffer.order(ChunkHandler.CHUNK_ORDER);
+                buffer.putInt(JdwpPacket.JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN
+                        + length);
+                buffer.putInt(id);
+                buffer.put((byte) 0x80); // reply
+                buffer.putShort((short) 0); // no error
+                buffer.putInt(type);
+                buffer.putInt(length);
+
+                try {
+                    for (int i = 0 ; i < length ; i++) {
+                        if (buffer.hasRemaining() == false) {
+                            write(buffer);
+                        }
+                        buffer.put((byte) i);
+                    }
+                    write(buffer);
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+            }
+
+            private void write(ByteBuffer buffer) throws IOException {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    mVmSide.write(buffer);
+                }
+                buffer.clear();
+            }
+        };
+        vm.start();
+        return vm;
+    }
+}
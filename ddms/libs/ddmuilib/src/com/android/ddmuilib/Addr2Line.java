@@ -20,10 +20,20 @@ import com.android.ddmlib.*;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Represents an addr2line process to get filename/method information from a
@@ -36,7 +46,12 @@ import java.util.HashMap;
  * keeps an internal list of processes and one asks for a process for a specific
  * library, using <code>getProcess(String library)<code>.<br></br>
  * Internally, the processes are started in pipe mode to be able to query them
- * with multiple addresses.
+ * with multiple addresses.<br>
+ * <br>
+ * Addresses can be resolved in batches through {@link #getAddresses(long[])},
+ * and batches for several libraries can be resolved concurrently (one process per
+ * library) through {@link #resolve(Map)}, which also goes through the on-disk
+ * {@link SymbolCache}.
  */
 public class Addr2Line {
 
@@ -56,6 +71,20 @@ public class Addr2Line {
         '\n'
     };
 
+    /**
+     * Maximum number of addresses pushed in the process pipe before reading the results back.
+     * This keeps the pending output of the process well below the pipe buffer size so that
+     * neither side blocks on a full pipe.
+     */
+    private static final int BATCH_SIZE = 128;
+
+    /** Maximum number of libraries resolved in parallel by {@link #resolve(Map)}. */
+    private static final int MAX_WORKERS = Math.max(2,
+            Runtime.getRuntime().availableProcessors());
+
+    /** Worker pool used by {@link #resolve(Map)}. Lazily created. */
+    private static ExecutorService sWorkers;
+
     /** Path to the library */
     private String mLibrary;
 
@@ -133,10 +162,7 @@ public class Addr2Line {
         // to synchronize this code.
 
         // get the output directory.
-        String symbols = System.getenv("ANDROID_SYMBOLS");
-        if (symbols == null) {
-            symbols = DdmUiPreferences.getSymbolDirectory();
-        }
+        String symbols = getSymbolDirectory();
 
         // build the command line
         String[] command = new String[5];
@@ -196,17 +222,21 @@ public class Addr2Line {
      */
     public void stop() {
         synchronized (sProcessCache) {
-            if (mProcess != null) {
-                // remove the process from the list
-                sProcessCache.remove(mLibrary);
-
-                // then stops the process
-                mProcess.destroy();
+            // queries only lock the instance, so we need to wait for any pending one to be
+            // done before destroying the process.
+            synchronized (this) {
+                if (mProcess != null) {
+                    // remove the process from the list
+                    sProcessCache.remove(mLibrary);
+
+                    // then stops the process
+                    mProcess.destroy();
 
-                // set the reference to null.
-                // this allows to make sure another thread calling getAddress()
-                // will not query a stopped thread
-                mProcess = null;
+                    // set the reference to null.
+                    // this allows to make sure another thread calling getAddress()
+                    // will not query a stopped thread
+                    mProcess = null;
+                }
             }
         }
     }
@@ -221,7 +251,8 @@ public class Addr2Line {
         synchronized (sProcessCache) {
             // just a basic loop on all the values in the hashmap and call to
             // stop();
-            Collection<Addr2Line> col = sProcessCache.values();
+            // stop() removes the process from the map, so we iterate on a copy.
+            Collection<Addr2Line> col = new ArrayList<Addr2Line>(sProcessCache.values());
             for (Addr2Line a2l : col) {
                 a2l.stop();
             }
@@ -238,10 +269,10 @@ public class Addr2Line {
      *         processed, or if an IO exception happened.
      */
     public NativeStackCallInfo getAddress(long addr) {
-        // even though we don't access the hashmap object, we need to
-        // synchronized on it to prevent
-        // another thread from stopping the process we're going to query.
-        synchronized (sProcessCache) {
+        // lock the instance to prevent another thread from stopping the process we're
+        // going to query, or from interleaving its own queries with ours.
+        // Other processes can still be queried in parallel.
+        synchronized (this) {
             // check the process is still alive/allocated
             if (mProcess != null) {
                 // prepare to the write the address to the output buffer.
@@ -278,4 +309,187 @@ public class Addr2Line {
         }
         return null;
     }
+
+    /**
+     * Looks up several addresses at once. The addresses are pushed to the process by batches
+     * of {@link #BATCH_SIZE} before the results are read back, which avoids one pipe round-trip
+     * per address.
+     *
+     * @param addrs the addresses to look up, relative to the start of the library.
+     * @return an array of the same size as <var>addrs</var>. Each entry contains the
+     *         method/filename/linenumber of the matching address, or is <code>null</code> if the
+     *         address could not be resolved (process stopped, or IO exception).
+     */
+    public NativeStackCallInfo[] getAddresses(long[] addrs) {
+        NativeStackCallInfo[] results = new NativeStackCallInfo[addrs.length];
+
+        synchronized (this) {
+            int start = 0;
+            try {
+                while (mProcess != null && start < addrs.length) {
+                    int end = Math.min(start + BATCH_SIZE, addrs.length);
+
+                    // push the whole batch
+                    for (int i = start ; i < end ; i++) {
+                        mAddressWriter.write(Long.toString(addrs[i], 16).getBytes());
+                        mAddressWriter.write(sCrLf);
+                    }
+                    mAddressWriter.flush();
+
+                    // then read the results, 2 lines per address.
+                    for (int i = start ; i < end ; i++) {
+                        String method = mResultReader.readLine();
+                        String source = mResultReader.readLine();
+                        if (method == null || source == null) {
+                            // the process is gone, the rest cannot be resolved.
+                            return results;
+                        }
+
+                        results[i] = new NativeStackCallInfo(mLibrary, method, source);
+                    }
+
+                    start = end;
+                }
+            } catch (IOException e) {
+                Log.e("ddms", String.format(
+                        "Error while trying to get information for %1$d addresses in library: %2$s",
+                        addrs.length - start, mLibrary));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Resolves addresses for several libraries at once.
+     * <p/>
+     * Addresses found in the {@link SymbolCache} are returned directly. The others are resolved
+     * by the addr2line process of their library, with the libraries processed in parallel by a
+     * pool of workers. Newly resolved addresses are then saved in the {@link SymbolCache}.
+     *
+     * @param addresses a map of library name to the addresses to resolve in the library. The
+     *         addresses are relative to the start of the library.
+     * @return a map of library name to the resolved addresses. Each array is the same size as the
+     *         matching array in <var>addresses</var>, with <code>null</code> entries for the
+     *         addresses that could not be resolved.
+     */
+    public static Map<String, NativeStackCallInfo[]> resolve(Map<String, long[]> addresses) {
+        HashMap<String, Future<NativeStackCallInfo[]>> futures =
+            new HashMap<String, Future<NativeStackCallInfo[]>>();
+
+        ExecutorService workers = getWorkers();
+        for (Entry<String, long[]> entry : addresses.entrySet()) {
+            final String library = entry.getKey();
+            final long[] addrs = entry.getValue();
+            futures.put(library, workers.submit(new Callable<NativeStackCallInfo[]>() {
+                public NativeStackCallInfo[] call() throws Exception {
+                    return resolveLibrary(library, addrs);
+                }
+            }));
+        }
+
+        HashMap<String, NativeStackCallInfo[]> results =
+            new HashMap<String, NativeStackCallInfo[]>();
+        for (Entry<String, Future<NativeStackCallInfo[]>> entry : futures.entrySet()) {
+            String library = entry.getKey();
+            try {
+                results.put(library, entry.getValue().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.put(library, new NativeStackCallInfo[addresses.get(library).length]);
+            } catch (ExecutionException e) {
+                Log.e("ddm-Addr2Line", String.format("Failed to resolve addresses for %1$s: %2$s",
+                        library, e.getCause()));
+                results.put(library, new NativeStackCallInfo[addresses.get(library).length]);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Resolves addresses of a single library, going through the {@link SymbolCache} first.
+     * @param library the library name.
+     * @param addrs the addresses relative to the start of the library.
+     */
+    private static NativeStackCallInfo[] resolveLibrary(String library, long[] addrs) {
+        SymbolCache cache = SymbolCache.getCache(getSymbolFile(library));
+
+        NativeStackCallInfo[] results = new NativeStackCallInfo[addrs.length];
+
+        // gather the addresses missing from the cache.
+        long[] missing = new long[addrs.length];
+        int[] missingIndices = new int[addrs.length];
+        int missingCount = 0;
+        for (int i = 0 ; i < addrs.length ; i++) {
+            if (cache != null) {
+                results[i] = cache.get(library, addrs[i]);
+            }
+            if (results[i] == null) {
+                missing[missingCount] = addrs[i];
+                missingIndices[missingCount] = i;
+                missingCount++;
+            }
+        }
+
+        if (missingCount > 0) {
+            Addr2Line process = getProcess(library);
+            if (process != null) {
+                long[] query = new long[missingCount];
+                System.arraycopy(missing, 0, query, 0, missingCount);
+
+                NativeStackCallInfo[] resolved = process.getAddresses(query);
+                for (int i = 0 ; i < missingCount ; i++) {
+                    results[missingIndices[i]] = resolved[i];
+                    if (cache != null && resolved[i] != null) {
+                        cache.put(query[i], resolved[i]);
+                    }
+                }
+
+                if (cache != null) {
+                    cache.save();
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Returns the symbol file for the given library.
+     */
+    private static File getSymbolFile(String library) {
+        return new File(getSymbolDirectory() + library);
+    }
+
+    /**
+     * Returns the location of the symbol directory.
+     */
+    private static String getSymbolDirectory() {
+        String symbols = System.getenv("ANDROID_SYMBOLS");
+        if (symbols == null) {
+            symbols = DdmUiPreferences.getSymbolDirectory();
+        }
+
+        return symbols;
+    }
+
+    /**
+     * Returns the pool of workers used to resolve libraries in parallel.
+     */
+    private static synchronized ExecutorService getWorkers() {
+        if (sWorkers == null) {
+            sWorkers = Executors.newFixedThreadPool(MAX_WORKERS, new ThreadFactory() {
+                private int mCount = 0;
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Addr2Line Worker " + mCount++);
+                    // never prevent the VM from exiting.
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        return sWorkers;
+    }
 }
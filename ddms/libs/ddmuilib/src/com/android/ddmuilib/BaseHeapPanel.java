@@ -16,6 +16,7 @@
 
 package com.android.ddmuilib;
 
+import com.android.ddmlib.HeapMap;
 import com.android.ddmlib.HeapSegment;
 import com.android.ddmlib.ClientData.HeapData;
 import com.android.ddmlib.HeapSegment.HeapSegmentElement;
@@ -23,12 +24,8 @@ import com.android.ddmlib.HeapSegment.HeapSegmentElement;
 import org.eclipse.swt.graphics.ImageData;
 import org.eclipse.swt.graphics.PaletteData;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.Map;
 import java.util.TreeMap;
 
 
@@ -37,13 +34,17 @@ import java.util.TreeMap;
  */
 public abstract class BaseHeapPanel extends TablePanel {
 
-    /** store the processed heap segment, so that we don't recompute Image for nothing */
-    protected byte[] mProcessedHeapData;
-    private Map<Integer, ArrayList<HeapSegmentElement>> mHeapMap;
+    /** the heap map currently displayed, and its revision, so that we don't recompute Image
+     * for nothing */
+    private HeapMap mHeapMap;
+    private int mHeapMapRevision;
+
+    /** renderer for the linear heap image */
+    private HeapMapRenderer mLinearRenderer;
 
     /**
-     * Serialize the heap data into an array. The resulting array is available through
-     * <code>getSerializedData()</code>.
+     * Applies the new heap segments of the heap data (if any) to its {@link HeapMap}. The
+     * resulting map is available through <code>getHeapMap()</code>.
      * @param heapData The heap data to serialize
      * @return true if the data changed.
      */
@@ -54,140 +55,63 @@ public abstract class BaseHeapPanel extends TablePanel {
         synchronized (heapData) {
             // get the segments
             heapSegments = heapData.getHeapSegments();
-            
-            
+            HeapMap heapMap = heapData.getHeapMap();
+
             if (heapSegments != null) {
                 // if they are not null, we never processed them.
                 // Before we process then, we drop them from the HeapData
                 heapData.clearHeapData();
 
-                // process them into a linear byte[]
-                doSerializeHeapData(heapSegments);
-                heapData.setProcessedHeapData(mProcessedHeapData);
-                heapData.setProcessedHeapMap(mHeapMap);
-                
-            } else {
-                // the heap segments are null. Let see if the heapData contains a 
-                // list that is already processed.
-                
-                byte[] pixData = heapData.getProcessedHeapData();
-                
-                // and compare it to the one we currently have in the panel.
-                if (pixData == mProcessedHeapData) {
-                    // looks like its the same
-                    return false;
-                } else {
-                    mProcessedHeapData = pixData;
+                // apply them to the persistent map. Only the segments that changed since the
+                // last update are processed.
+                synchronized (heapMap) {
+                    if (heapMap.update(heapSegments)) {
+                        // the lists of elements are replaced rather than modified by the
+                        // updates, so a copy of the map is enough to keep them.
+                        heapData.setProcessedHeapMap(
+                                new TreeMap<Integer, ArrayList<HeapSegmentElement>>(
+                                        heapMap.getElementMap()));
+                    }
                 }
-                
-                Map<Integer, ArrayList<HeapSegmentElement>> heapMap =
-                    heapData.getProcessedHeapMap();
-                mHeapMap = heapMap;
             }
+
+            // compare the map to the one we currently have in the panel.
+            if (heapMap == mHeapMap && heapMap.getRevision() == mHeapMapRevision) {
+                // looks like its the same
+                return false;
+            }
+
+            mHeapMap = heapMap;
+            mHeapMapRevision = heapMap.getRevision();
         }
 
         return true;
     }
 
     /**
-     * Returns the serialized heap data
-     */
-    protected byte[] getSerializedData() {
-        return mProcessedHeapData;
-    }
-
-    /**
-     * Processes and serialize the heapData.
-     * <p/>
-     * The resulting serialized array is {@link #mProcessedHeapData}.
-     * <p/>
-     * the resulting map is {@link #mHeapMap}.
-     * @param heapData the collection of {@link HeapSegment} that forms the heap data.
+     * Returns the heap map, or <code>null</code> if there is no heap data.
      */
-    private void doSerializeHeapData(Collection<HeapSegment> heapData) {
-        mHeapMap = new TreeMap<Integer, ArrayList<HeapSegmentElement>>();
-
-        Iterator<HeapSegment> iterator;
-        ByteArrayOutputStream out;
-
-        out = new ByteArrayOutputStream(4 * 1024);
-
-        iterator = heapData.iterator();
-        while (iterator.hasNext()) {
-            HeapSegment hs = iterator.next();
-
-            HeapSegmentElement e = null;
-            while (true) {
-                int v;
-
-                e = hs.getNextElement(null);
-                if (e == null) {
-                    break;
-                }
-                
-                if (e.getSolidity() == HeapSegmentElement.SOLIDITY_FREE) {
-                    v = 1;
-                } else {
-                    v = e.getKind() + 2;
-                }
-                
-                // put the element in the map
-                ArrayList<HeapSegmentElement> elementList = mHeapMap.get(v);
-                if (elementList == null) {
-                    elementList = new ArrayList<HeapSegmentElement>();
-                    mHeapMap.put(v, elementList);
-                }
-                elementList.add(e);
-
-
-                int len = e.getLength() / 8;
-                while (len > 0) {
-                    out.write(v);
-                    --len;
-                }
-            }
-        }
-        mProcessedHeapData = out.toByteArray();
-        
-        // sort the segment element in the heap info.
-        Collection<ArrayList<HeapSegmentElement>> elementLists = mHeapMap.values();
-        for (ArrayList<HeapSegmentElement> elementList : elementLists) {
-            Collections.sort(elementList);
+    protected HeapMap getHeapMap() {
+        if (mHeapMap != null && mHeapMap.getLength() > 0) {
+            return mHeapMap;
         }
+
+        return null;
     }
-    
+
     /**
-     * Creates a linear image of the heap data.
-     * @param pixData
-     * @param h
-     * @param palette
-     * @return
+     * Creates a linear image of the heap map. Only the parts of the image covering the parts
+     * of the map that changed since the previous call are rendered again.
+     * @param heapMap the heap map
+     * @param h the height of the image
+     * @param palette the palette of the image
+     * @return the image, or <code>null</code> if the map is empty.
      */
-    protected ImageData createLinearHeapImage(byte[] pixData, int h, PaletteData palette) {
-        int w = pixData.length / h;
-        if (pixData.length % h != 0) {
-            w++;
+    protected ImageData createLinearHeapImage(HeapMap heapMap, int h, PaletteData palette) {
+        if (mLinearRenderer == null) {
+            mLinearRenderer = new HeapMapRenderer(HeapMapRenderer.MODE_LINEAR, h, palette);
         }
 
-        // Create the heap image.
-        ImageData id = new ImageData(w, h, 8, palette);
-
-        int x = 0;
-        int y = 0;
-        for (byte b : pixData) {
-            if (b >= 0) {
-                id.setPixel(x, y, b);
-            }
-
-            y++;
-            if (y >= h) {
-                y = 0;
-                x++;
-            }
-        }
-
-        return id;
+        return mLinearRenderer.render(heapMap, 1);
     }
-
-
 }
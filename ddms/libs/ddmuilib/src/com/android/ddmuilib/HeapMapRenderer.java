@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmuilib;
+
+import com.android.ddmlib.HeapMap;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Renders a {@link HeapMap} into an {@link ImageData}, either linearly (column after column) or
+ * along a Hilbert curve.
+ * <p/>
+ * The image is made of square tiles rendered directly at the requested zoom level, by sampling
+ * the map. Tiles are cached, and when the map is updated only the tiles covering the range of
+ * the map that changed are rendered again.
+ * <p/>
+ * Thanks to the layouts used, each tile covers a contiguous range of the map: a tile is a set
+ * of full columns in linear mode, and an aligned power of two square in Hilbert mode.
+ */
+final class HeapMapRenderer {
+
+    /** linear layout: the map fills columns of fixed height, from left to right. */
+    final static int MODE_LINEAR = 0;
+    /** Hilbert layout: the map follows a Hilbert curve in a square. */
+    final static int MODE_HILBERT = 1;
+
+    /** size of the tiles in output pixels. Must be a power of two. */
+    private final static int TILE_SIZE = 64;
+
+    /** minimum side of the Hilbert square, large enough for a 16MB heap. */
+    private final static int MIN_HILBERT_SIDE = 2048;
+
+    private final int mMode;
+    private final int mLinearHeight;
+    private final PaletteData mPalette;
+
+    // current cache state
+    private HeapMap mMap;
+    private int mRevision;
+    private int mFactor;
+    private int mSide;
+    private final HashMap<Integer, Tile> mTiles = new HashMap<Integer, Tile>();
+
+    /**
+     * A rendered tile.
+     */
+    private final static class Tile {
+        /** range of the map covered by the tile */
+        int mStart;
+        int mEnd;
+        /** pixels, TILE_SIZE * TILE_SIZE, row by row */
+        byte[] mPixels;
+        /** last column and row containing data, or -1 if the tile is empty */
+        int mMaxX = -1;
+        int mMaxY = -1;
+    }
+
+    /**
+     * Creates a renderer.
+     * @param mode the layout, {@link #MODE_LINEAR} or {@link #MODE_HILBERT}.
+     * @param linearHeight the height of the columns, in map bytes, for {@link #MODE_LINEAR}.
+     * @param palette the palette of the images. The map values are used as palette indices.
+     */
+    HeapMapRenderer(int mode, int linearHeight, PaletteData palette) {
+        mMode = mode;
+        mLinearHeight = linearHeight;
+        mPalette = palette;
+    }
+
+    /**
+     * Renders the map. The image is cropped to the part that contains data.
+     * @param map the heap map.
+     * @param factor the zoom factor: each output pixel represents a square of
+     * <var>factor</var> x <var>factor</var> map bytes. Must be a power of two.
+     * @return the image, or <code>null</code> if the map is empty.
+     */
+    ImageData render(HeapMap map, int factor) {
+        synchronized (map) {
+            int length = map.getLength();
+            if (length == 0) {
+                return null;
+            }
+
+            int side = mMode == MODE_HILBERT ? getHilbertSide(length) : mLinearHeight;
+
+            if (map != mMap || factor != mFactor || side != mSide) {
+                mTiles.clear();
+                mMap = map;
+                mFactor = factor;
+                mSide = side;
+            } else {
+                invalidate(map.getDirtyRange(mRevision));
+            }
+            mRevision = map.getRevision();
+
+            if (mMode == MODE_HILBERT) {
+                return renderHilbert(map.getData(), length);
+            }
+
+            return renderLinear(map.getData(), length);
+        }
+    }
+
+    /**
+     * Drops the tiles intersecting a range of the map.
+     */
+    private void invalidate(int[] range) {
+        if (range[0] >= range[1]) {
+            return;
+        }
+
+        Iterator<Tile> iterator = mTiles.values().iterator();
+        while (iterator.hasNext()) {
+            Tile tile = iterator.next();
+            if (tile.mStart < range[1] && tile.mEnd > range[0]) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private ImageData renderLinear(byte[] data, int length) {
+        int height = mLinearHeight / mFactor;
+        int columns = (length + mLinearHeight - 1) / mLinearHeight;
+        int width = Math.max(1, (columns + mFactor - 1) / mFactor);
+
+        ImageData id = new ImageData(width, height, 8, mPalette);
+
+        int tilesPerRow = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesPerColumn = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int tileSpan = TILE_SIZE * mFactor * mLinearHeight;
+
+        for (int tx = 0 ; tx < tilesPerRow ; tx++) {
+            for (int ty = 0 ; ty < tilesPerColumn ; ty++) {
+                int key = tx * tilesPerColumn + ty;
+                Tile tile = mTiles.get(key);
+                if (tile == null) {
+                    tile = new Tile();
+                    tile.mStart = tx * tileSpan;
+                    tile.mEnd = tile.mStart + tileSpan;
+                    tile.mPixels = new byte[TILE_SIZE * TILE_SIZE];
+
+                    for (int x = 0 ; x < TILE_SIZE ; x++) {
+                        int column = (tx * TILE_SIZE + x) * mFactor;
+                        for (int y = 0 ; y < TILE_SIZE ; y++) {
+                            int row = (ty * TILE_SIZE + y) * mFactor;
+                            if (row >= mLinearHeight) {
+                                break;
+                            }
+                            int index = column * mLinearHeight + row;
+                            if (index < length) {
+                                tile.mPixels[y * TILE_SIZE + x] = data[index];
+                            }
+                        }
+                    }
+                    mTiles.put(key, tile);
+                }
+
+                copyTile(id, tile, tx * TILE_SIZE, ty * TILE_SIZE);
+            }
+        }
+
+        return id;
+    }
+
+    private ImageData renderHilbert(byte[] data, int length) {
+        int outputSide = mSide / mFactor;
+        int tileCount = Math.max(1, outputSide / TILE_SIZE);
+        int tileSide = TILE_SIZE * mFactor;
+        int tileSpan = tileSide * tileSide;
+
+        int maxX = 0;
+        int maxY = 0;
+        Tile[] tiles = new Tile[tileCount * tileCount];
+
+        for (int tx = 0 ; tx < tileCount ; tx++) {
+            for (int ty = 0 ; ty < tileCount ; ty++) {
+                // aligned squares cover a contiguous range of the curve.
+                int start = hilbertIndex(mSide, ty * tileSide, tx * tileSide) & ~(tileSpan - 1);
+                if (start >= length) {
+                    continue;
+                }
+
+                int key = tx * tileCount + ty;
+                Tile tile = mTiles.get(key);
+                if (tile == null) {
+                    tile = new Tile();
+                    tile.mStart = start;
+                    tile.mEnd = start + tileSpan;
+                    tile.mPixels = new byte[TILE_SIZE * TILE_SIZE];
+
+                    for (int y = 0 ; y < TILE_SIZE ; y++) {
+                        int row = (ty * TILE_SIZE + y) * mFactor;
+                        for (int x = 0 ; x < TILE_SIZE ; x++) {
+                            int column = (tx * TILE_SIZE + x) * mFactor;
+                            int index = hilbertIndex(mSide, row, column);
+                            if (index < length) {
+                                tile.mPixels[y * TILE_SIZE + x] = data[index];
+                                tile.mMaxX = Math.max(tile.mMaxX, x);
+                                tile.mMaxY = Math.max(tile.mMaxY, y);
+                            }
+                        }
+                    }
+                    mTiles.put(key, tile);
+                }
+
+                tiles[key] = tile;
+                if (tile.mMaxX != -1) {
+                    maxX = Math.max(maxX, tx * TILE_SIZE + tile.mMaxX + 1);
+                    maxY = Math.max(maxY, ty * TILE_SIZE + tile.mMaxY + 1);
+                }
+            }
+        }
+
+        // crop the image to the interesting part.
+        ImageData id = new ImageData(Math.max(1, maxX), Math.max(1, maxY), 8, mPalette);
+        for (int tx = 0 ; tx < tileCount ; tx++) {
+            for (int ty = 0 ; ty < tileCount ; ty++) {
+                Tile tile = tiles[tx * tileCount + ty];
+                if (tile != null) {
+                    copyTile(id, tile, tx * TILE_SIZE, ty * TILE_SIZE);
+                }
+            }
+        }
+
+        return id;
+    }
+
+    /**
+     * Copies a tile in the image, clipping it to the image bounds.
+     */
+    private static void copyTile(ImageData id, Tile tile, int x, int y) {
+        int width = Math.min(TILE_SIZE, id.width - x);
+        int height = Math.min(TILE_SIZE, id.height - y);
+        for (int line = 0 ; line < height ; line++) {
+            id.setPixels(x, y + line, width, tile.mPixels, line * TILE_SIZE);
+        }
+    }
+
+    /**
+     * Returns the side of the Hilbert square for a map of the given length.
+     */
+    private static int getHilbertSide(int length) {
+        int side = MIN_HILBERT_SIDE;
+        while ((long)side * side < length) {
+            side *= 2;
+        }
+        return side;
+    }
+
+    /**
+     * Returns the index along the Hilbert curve of the pixel at the given row and column.
+     * <p/>
+     * The curve starts in the top left corner and first goes right, which is the classic
+     * Hilbert curve with its x and y axes flipped.
+     * @param side the side of the square, a power of two.
+     */
+    static int hilbertIndex(int side, int row, int column) {
+        int x = row;
+        int y = column;
+        int d = 0;
+        for (int s = side / 2 ; s > 0 ; s /= 2) {
+            int rx = (x & s) != 0 ? 1 : 0;
+            int ry = (y & s) != 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int tmp = x;
+                x = y;
+                y = tmp;
+            }
+        }
+        return d;
+    }
+}
@@ -18,6 +18,7 @@ package com.android.ddmuilib;
 
 import com.android.ddmlib.Client;
 import com.android.ddmlib.ClientData;
+import com.android.ddmlib.HeapMap;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.NativeAllocationInfo;
 import com.android.ddmlib.NativeLibraryMapInfo;
@@ -65,7 +66,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 /**
  * Panel with native heap information.
@@ -258,45 +263,41 @@ public final class NativeHeapPanel extends BaseHeapPanel {
 
         @Override
         public void run() {
-            // loop through all the NativeAllocationInfo and init them
-            Iterator<NativeAllocationInfo> iter = mAllocations.iterator();
+            // loop through all the NativeAllocationInfo and init them, one page at a time.
+            // The addresses of each page are resolved in one batch, which lets Addr2Line
+            // query all the libraries in parallel.
             int total = mAllocations.size();
             int count = 0;
-            while (iter.hasNext()) {
-
+            while (count < total) {
                 if (isQuitting())
                     return;
 
-                NativeAllocationInfo info = iter.next();
-                if (info.isStackCallResolved() == false) {
-                    final Long[] list = info.getStackCallAddresses();
-                    final int size = list.length;
-                    
-                    ArrayList<NativeStackCallInfo> resolvedStackCall =
-                        new ArrayList<NativeStackCallInfo>(); 
+                int end = Math.min(count + DISPLAY_PER_PAGE, total);
+                List<NativeAllocationInfo> page = mAllocations.subList(count, end);
+
+                resolveAddresses(page);
 
-                    for (int i = 0; i < size; i++) {
-                        long addr = list[i];
+                for (NativeAllocationInfo info : page) {
+                    if (info.isStackCallResolved() == false) {
+                        final Long[] list = info.getStackCallAddresses();
+                        final int size = list.length;
 
-                        // first check if the addr has already been converted.
-                        NativeStackCallInfo source = mSourceCache.get(addr);
+                        ArrayList<NativeStackCallInfo> resolvedStackCall =
+                            new ArrayList<NativeStackCallInfo>(size);
 
-                        // if not we convert it
-                        if (source == null) {
-                            source = sourceForAddr(addr);
-                            mSourceCache.put(addr, source);
+                        for (int i = 0; i < size; i++) {
+                            resolvedStackCall.add(mSourceCache.get(list[i]));
                         }
 
-                        resolvedStackCall.add(source);
+                        info.setResolvedStackCall(resolvedStackCall);
                     }
-                    
-                    info.setResolvedStackCall(resolvedStackCall);
                 }
+
                 // after every DISPLAY_PER_PAGE we ask for a ui refresh, unless
                 // we reach total, since we also do it after the loop
                 // (only an issue in case we have a perfect number of page)
-                count++;
-                if ((count % DISPLAY_PER_PAGE) == 0 && count != total) {
+                count = end;
+                if (count != total) {
                     if (updateNHAllocationStackCalls(mClientData, count) == false) {
                         // looks like the app is quitting, so we just
                         // stopped the thread
@@ -308,24 +309,78 @@ public final class NativeHeapPanel extends BaseHeapPanel {
             updateNHAllocationStackCalls(mClientData, count);
         }
 
-        private NativeStackCallInfo sourceForAddr(long addr) {
-            NativeLibraryMapInfo library = getLibraryFor(addr);
+        /**
+         * Makes sure all the stack call addresses of the given allocations are in
+         * the source cache.
+         */
+        private void resolveAddresses(List<NativeAllocationInfo> allocations) {
+            // gather the addresses that have not been converted yet, per library name, along
+            // with their offsets. A library is mapped in several segments, and each offset is
+            // relative to the start of the segment containing the address.
+            HashMap<String, ArrayList<Long>> missing = new HashMap<String, ArrayList<Long>>();
+            HashMap<String, ArrayList<Long>> offsets = new HashMap<String, ArrayList<Long>>();
+            HashSet<Long> queued = new HashSet<Long>();
+
+            for (NativeAllocationInfo info : allocations) {
+                if (info.isStackCallResolved()) {
+                    continue;
+                }
+
+                for (Long addr : info.getStackCallAddresses()) {
+                    if (mSourceCache.containsKey(addr) || queued.add(addr) == false) {
+                        continue;
+                    }
 
-            if (library != null) {
+                    NativeLibraryMapInfo library = getLibraryFor(addr);
+                    if (library == null) {
+                        mSourceCache.put(addr, new NativeStackCallInfo(null,
+                                Long.toHexString(addr), ""));
+                        continue;
+                    }
 
-                Addr2Line process = Addr2Line.getProcess(library.getLibraryName());
-                if (process != null) {
-                    // remove the base of the library address
-                    long value = addr - library.getStartAddress();
-                    NativeStackCallInfo info = process.getAddress(value);
-                    if (info != null) {
-                        return info;
+                    String libraryName = library.getLibraryName();
+                    ArrayList<Long> list = missing.get(libraryName);
+                    if (list == null) {
+                        list = new ArrayList<Long>();
+                        missing.put(libraryName, list);
+                        offsets.put(libraryName, new ArrayList<Long>());
                     }
+                    list.add(addr);
+                    offsets.get(libraryName).add(addr - library.getStartAddress());
                 }
             }
 
-            return new NativeStackCallInfo(library != null ? library.getLibraryName() : null,
-                    Long.toHexString(addr), "");
+            if (missing.size() == 0) {
+                return;
+            }
+
+            // build the queries, with the offsets in the same order as the addresses.
+            HashMap<String, long[]> queries = new HashMap<String, long[]>();
+            for (Entry<String, ArrayList<Long>> entry : offsets.entrySet()) {
+                ArrayList<Long> list = entry.getValue();
+                long[] values = new long[list.size()];
+                for (int i = 0 ; i < values.length ; i++) {
+                    values[i] = list.get(i);
+                }
+                queries.put(entry.getKey(), values);
+            }
+
+            Map<String, NativeStackCallInfo[]> results = Addr2Line.resolve(queries);
+
+            for (Entry<String, ArrayList<Long>> entry : missing.entrySet()) {
+                String libraryName = entry.getKey();
+                ArrayList<Long> list = entry.getValue();
+                NativeStackCallInfo[] infos = results.get(libraryName);
+
+                for (int i = 0 ; i < list.size() ; i++) {
+                    Long addr = list.get(i);
+                    NativeStackCallInfo source = infos != null ? infos[i] : null;
+                    if (source == null) {
+                        source = new NativeStackCallInfo(libraryName, Long.toHexString(addr), "");
+                    }
+                    mSourceCache.put(addr, source);
+                }
+            }
         }
 
         private NativeLibraryMapInfo getLibraryFor(long addr) {
@@ -1542,7 +1597,7 @@ public final class NativeHeapPanel extends BaseHeapPanel {
     }
 
     private void renderBitmap(ClientData cd) {
-        byte[] pixData;
+        HeapMap heapMap;
 
         // Atomically get and clear the heap data.
         synchronized (cd) {
@@ -1551,9 +1606,12 @@ public final class NativeHeapPanel extends BaseHeapPanel {
                 return;
             }
 
-            pixData = getSerializedData();
+            heapMap = getHeapMap();
+            if (heapMap == null) {
+                return;
+            }
 
-            ImageData id = createLinearHeapImage(pixData, 200, mMapPalette);
+            ImageData id = createLinearHeapImage(heapMap, 200, mMapPalette);
             Image image = new Image(mBase.getDisplay(), id);
             mImage.setImage(image);
             mImage.pack(true);
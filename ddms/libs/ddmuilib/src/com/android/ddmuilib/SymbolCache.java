@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmuilib;
+
+import com.android.ddmlib.Log;
+import com.android.ddmlib.NativeStackCallInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+/**
+ * On-disk cache of the addresses resolved by {@link Addr2Line}.
+ * <p/>
+ * There is one cache file per library, in ~/.android/ddms-symbols. The cache is keyed by the
+ * path, size and modification date of the symbol file, so that rebuilding the library
+ * invalidates its cache.
+ * <p/>
+ * The content of the file is:
+ * <pre>
+ * int magic
+ * int version
+ * UTF symbol file path
+ * long symbol file size
+ * long symbol file modification date
+ * int entry count
+ * [long address, UTF method, UTF source] * entry count
+ * </pre>
+ */
+final class SymbolCache {
+
+    private static final int MAGIC = 0x41324C43; // A2LC
+    private static final int VERSION = 1;
+
+    private static final String CACHE_EXTENSION = ".a2l"; //$NON-NLS-1$
+
+    /** loaded caches, indexed by symbol file path. */
+    private static final HashMap<String, SymbolCache> sCaches =
+        new HashMap<String, SymbolCache>();
+
+    private final File mSymbolFile;
+    private final File mCacheFile;
+    private final long mSymbolSize;
+    private final long mSymbolDate;
+
+    /** resolved address to {method, source} */
+    private final HashMap<Long, String[]> mEntries = new HashMap<Long, String[]>();
+
+    private boolean mDirty = false;
+
+    /**
+     * Returns the cache for a given symbol file, or <code>null</code> if the file does not
+     * exist or if the cache folder cannot be created.
+     * @param symbolFile the symbol file of the library.
+     */
+    static SymbolCache getCache(File symbolFile) {
+        if (symbolFile.isFile() == false) {
+            return null;
+        }
+
+        synchronized (sCaches) {
+            String key = symbolFile.getAbsolutePath();
+            SymbolCache cache = sCaches.get(key);
+
+            // drop the cache if the library was rebuilt since it was loaded.
+            if (cache != null && cache.isValid() == false) {
+                cache = null;
+            }
+
+            if (cache == null) {
+                File folder = getCacheFolder();
+                if (folder == null) {
+                    return null;
+                }
+
+                cache = new SymbolCache(symbolFile, new File(folder, getCacheName(key)));
+                cache.load();
+                sCaches.put(key, cache);
+            }
+
+            return cache;
+        }
+    }
+
+    private SymbolCache(File symbolFile, File cacheFile) {
+        mSymbolFile = symbolFile;
+        mCacheFile = cacheFile;
+        mSymbolSize = symbolFile.length();
+        mSymbolDate = symbolFile.lastModified();
+    }
+
+    /**
+     * Returns the cached information for an address, or <code>null</code> if the address is
+     * not in the cache.
+     * @param library the name of the library, used to build the returned object.
+     * @param addr the address, relative to the start of the library.
+     */
+    synchronized NativeStackCallInfo get(String library, long addr) {
+        String[] entry = mEntries.get(addr);
+        if (entry != null) {
+            return new NativeStackCallInfo(library, entry[0], entry[1]);
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds a resolved address to the cache. The cache is not written to disk until
+     * {@link #save()} is called.
+     * @param addr the address, relative to the start of the library.
+     * @param info the resolved information.
+     */
+    synchronized void put(long addr, NativeStackCallInfo info) {
+        String source = info.getSourceFile();
+        if (info.getLineNumber() != -1) {
+            source = source + ":" + info.getLineNumber(); //$NON-NLS-1$
+        }
+
+        mEntries.put(addr, new String[] { info.getMethodName(), source });
+        mDirty = true;
+    }
+
+    /**
+     * Writes the cache to disk if it was modified.
+     */
+    synchronized void save() {
+        if (mDirty == false) {
+            return;
+        }
+
+        // write to a temp file first so that a crash cannot leave a truncated cache.
+        File tmpFile = new File(mCacheFile.getPath() + ".tmp"); //$NON-NLS-1$
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mSymbolFile.getAbsolutePath());
+            out.writeLong(mSymbolSize);
+            out.writeLong(mSymbolDate);
+            out.writeInt(mEntries.size());
+            for (Entry<Long, String[]> entry : mEntries.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeUTF(entry.getValue()[0]);
+                out.writeUTF(entry.getValue()[1]);
+            }
+            out.close();
+            out = null;
+
+            mCacheFile.delete();
+            if (tmpFile.renameTo(mCacheFile)) {
+                mDirty = false;
+            }
+        } catch (IOException e) {
+            Log.e("ddm-Addr2Line", "Failed to write symbol cache " + mCacheFile); //$NON-NLS-1$
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Returns whether the symbol file still matches the one the cache was created from.
+     */
+    private boolean isValid() {
+        return mSymbolFile.length() == mSymbolSize && mSymbolFile.lastModified() == mSymbolDate;
+    }
+
+    /**
+     * Loads the cache file, if it exists and matches the current symbol file.
+     */
+    private void load() {
+        if (mCacheFile.isFile() == false) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mCacheFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+
+            if (mSymbolFile.getAbsolutePath().equals(in.readUTF()) == false ||
+                    in.readLong() != mSymbolSize || in.readLong() != mSymbolDate) {
+                // stale cache, it'll be overwritten on the next save.
+                return;
+            }
+
+            int count = in.readInt();
+            for (int i = 0 ; i < count ; i++) {
+                long addr = in.readLong();
+                String method = in.readUTF();
+                String source = in.readUTF();
+                mEntries.put(addr, new String[] { method, source });
+            }
+        } catch (IOException e) {
+            // corrupted cache: start from scratch.
+            mEntries.clear();
+            Log.w("ddm-Addr2Line", "Ignoring corrupted symbol cache " + mCacheFile); //$NON-NLS-1$
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a file name for the cache of the given symbol file path.
+     */
+    private static String getCacheName(String path) {
+        return path.replaceAll("[^a-zA-Z0-9._-]", "_") + CACHE_EXTENSION; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Returns the cache folder, ~/.android/ddms-symbols, creating it if needed, or
+     * <code>null</code> if it cannot be created.
+     */
+    private static File getCacheFolder() {
+        File folder = new File(System.getProperty("user.home"), //$NON-NLS-1$
+                ".android" + File.separator + "ddms-symbols"); //$NON-NLS-1$ //$NON-NLS-2$
+
+        if (folder.isDirectory() || folder.mkdirs()) {
+            return folder;
+        }
+
+        return null;
+    }
+}
@@ -23,7 +23,7 @@ import com.android.ddmlib.Log;
 import com.android.ddmlib.SyncException;
 import com.android.ddmlib.SyncService;
 import com.android.ddmlib.TimeoutException;
-import com.android.ddmlib.ClientData.IMethodProfilingHandler;
+import com.android.ddmlib.ClientData.IMethodProfilingStreamHandler;
 import com.android.ddmlib.SyncService.ISyncProgressMonitor;
 import com.android.ddmuilib.DdmUiPreferences;
 import com.android.ddmuilib.SyncProgressHelper;
@@ -37,13 +37,20 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.reflect.InvocationTargetException;
+import java.util.HashSet;
 
 /**
  * Handler for Method tracing.
  * This will pull the trace file into a temp file and launch traceview.
+ * <p/>
+ * A trace file streamed from the VM is written into the temp file by ddmlib as it is received,
+ * and traceview is launched right away to read it as it grows.
  */
 public class MethodProfilingHandler extends BaseFileHandler
-        implements IMethodProfilingHandler {
+        implements IMethodProfilingStreamHandler {
+
+    /** trace files opened by {@link #openPartial(String, int)} that are still being received */
+    private final HashSet<File> mPartialFiles = new HashSet<File>();
 
     public MethodProfilingHandler(Shell parentShell) {
         super(parentShell);
@@ -112,6 +119,44 @@ public class MethodProfilingHandler extends BaseFileHandler
         }
     }
 
+    public File getStreamFile(Client client, int length) {
+        try {
+            return File.createTempFile("ddms", DdmConstants.DOT_TRACE); //$NON-NLS-1$
+        } catch (IOException e) {
+            // ddmlib will send the trace data to onSuccess(byte[], Client) instead.
+            Log.e("traceview", e);
+            return null;
+        }
+    }
+
+    public void onStreamStart(File file, Client client, int length) {
+        if (openPartial(file.getAbsolutePath(), length)) {
+            synchronized (mPartialFiles) {
+                mPartialFiles.add(file);
+            }
+        }
+    }
+
+    public void onSuccess(File file, Client client) {
+        boolean opened;
+        synchronized (mPartialFiles) {
+            opened = mPartialFiles.remove(file);
+        }
+        if (opened == false) {
+            open(file.getAbsolutePath());
+        }
+    }
+
+    public void onStreamFailure(File file, Client client, String message) {
+        synchronized (mPartialFiles) {
+            mPartialFiles.remove(file);
+        }
+        // traceview gives up on the file once it stops growing.
+        file.delete();
+
+        onEndFailure(client, message);
+    }
+
     /**
      * pulls and open a file. This is run from the UI thread.
      */
@@ -152,6 +197,27 @@ public class MethodProfilingHandler extends BaseFileHandler
         command[0] = DdmUiPreferences.getTraceview();
         command[1] = tempPath;
 
+        launchTraceview(command);
+    }
+
+    /**
+     * Opens a trace file that is still being received, and will grow to <var>length</var> bytes.
+     * <p/>
+     * This launches traceview right away, so that it reads the trace as it is written.
+     * @return false if the file must be opened with {@link #open(String)} once it is complete.
+     */
+    protected boolean openPartial(String tempPath, int length) {
+        String[] command = new String[4];
+        command[0] = DdmUiPreferences.getTraceview();
+        command[1] = "-w"; //$NON-NLS-1$
+        command[2] = Integer.toString(length);
+        command[3] = tempPath;
+
+        launchTraceview(command);
+        return true;
+    }
+
+    private void launchTraceview(String[] command) {
         try {
             final Process p = Runtime.getRuntime().exec(command);
 
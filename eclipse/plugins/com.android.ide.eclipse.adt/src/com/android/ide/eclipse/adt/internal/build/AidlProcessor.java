@@ -39,7 +39,6 @@ import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.core.runtime.SubProgressMonitor;
 import org.eclipse.jdt.core.IJavaProject;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -113,19 +112,10 @@ public class AidlProcessor extends SourceProcessor {
         // remove the generic marker from the project
         builder.removeMarkersFromResource(project, AndroidConstants.MARKER_AIDL);
 
-        // loop until we've compile them all
+        // aidl compiles a single file at a time. Prepare the command line of each file, and
+        // run them in parallel.
+        List<String[]> commands = new ArrayList<String[]>(sources.size());
         for (IFile sourceFile : sources) {
-            if (verbose) {
-                String name = sourceFile.getName();
-                IPath sourceFolderPath = getSourceFolderFor(sourceFile);
-                if (sourceFolderPath != null) {
-                    // make a path to the source file relative to the source folder.
-                    IPath relative = sourceFile.getFullPath().makeRelativeTo(sourceFolderPath);
-                    name = relative.toString();
-                }
-                AdtPlugin.printToConsole(project, "AIDL: " + name);
-            }
-
             // Remove the AIDL error markers from the aidl file
             builder.removeMarkersFromResource(sourceFile, AndroidConstants.MARKER_AIDL);
 
@@ -149,9 +139,30 @@ public class AidlProcessor extends SourceProcessor {
             // finish to set the command line.
             command[index] = quote(osSourcePath);
             command[index + 1] = quote(data.getOutput().getLocation().toOSString());
+            commands.add(command.clone());
+        }
+
+        // launch the processes
+        List<CommandResult> results = execCommands(project, commands);
 
-            // launch the process
-            if (execAidl(builder, project, command, sourceFile, verbose) == false) {
+        // handle the results in order, so that the files are marked and the console output is
+        // printed as if aidl ran serially.
+        for (int i = 0 ; i < sources.size() ; i++) {
+            IFile sourceFile = sources.get(i);
+            if (verbose) {
+                String name = sourceFile.getName();
+                IPath sourceFolderPath = getSourceFolderFor(sourceFile);
+                if (sourceFolderPath != null) {
+                    // make a path to the source file relative to the source folder.
+                    IPath relative = sourceFile.getFullPath().makeRelativeTo(sourceFolderPath);
+                    name = relative.toString();
+                }
+                AdtPlugin.printToConsole(project, "AIDL: " + name);
+                printCommand(project, commands.get(i));
+            }
+            printOutput(project, results.get(i));
+            if (checkAidlResult(project, commands.get(i), results.get(i), sourceFile,
+                    verbose) == false) {
                 // aidl failed. File should be marked. We add the file to the list
                 // of file that will need compilation again.
                 notCompiledOut.add(sourceFile);
@@ -179,68 +190,47 @@ public class AidlProcessor extends SourceProcessor {
     }
 
     /**
-     * Execute the aidl command line, parse the output, and mark the aidl file
+     * Parses the output of an aidl command line, and marks the aidl file
      * with any reported errors.
-     * @param command the String array containing the command line to execute.
+     * @param command the String array containing the command line that was executed.
+     * @param result the result of the command.
      * @param file The IFile object representing the aidl file being
      *      compiled.
      * @param verbose the build verbosity
      * @return false if the exec failed, and build needs to be aborted.
      */
-    private boolean execAidl(BaseBuilder builder, IProject project, String[] command, IFile file,
-            boolean verbose) {
-        // do the exec
-        try {
-            if (verbose) {
-                StringBuilder sb = new StringBuilder();
-                for (String c : command) {
-                    sb.append(c);
-                    sb.append(' ');
-                }
-                String cmd_line = sb.toString();
-                AdtPlugin.printToConsole(project, cmd_line);
-            }
-
-            Process p = Runtime.getRuntime().exec(command);
-
-            // list to store each line of stderr
-            ArrayList<String> results = new ArrayList<String>();
+    private boolean checkAidlResult(IProject project, String[] command, CommandResult result,
+            IFile file, boolean verbose) {
+        if (result.getException() != null) {
+            // mark the project and exit
+            String msg = String.format(Messages.AIDL_Exec_Error, command[0]);
+            BaseProjectHelper.markResource(project, AndroidConstants.MARKER_AIDL, msg,
+                    IMarker.SEVERITY_ERROR);
+            return false;
+        }
 
-            // get the output and return code from the process
-            int result = BuildHelper.grabProcessOutput(project, p, results);
+        // list to store each line of stderr
+        ArrayList<String> results = result.getErrorOutput();
 
-            // attempt to parse the error output
-            boolean error = parseAidlOutput(results, file);
+        // attempt to parse the error output
+        boolean error = parseAidlOutput(results, file);
 
-            // If the process failed and we couldn't parse the output
-            // we print a message, mark the project and exit
-            if (result != 0) {
+        // If the process failed and we couldn't parse the output
+        // we print a message, mark the project and exit
+        if (result.getReturnCode() != 0) {
 
-                if (error || verbose) {
-                    // display the message in the console.
-                    if (error) {
-                        AdtPlugin.printErrorToConsole(project, results.toArray());
+            if (error || verbose) {
+                // display the message in the console.
+                if (error) {
+                    AdtPlugin.printErrorToConsole(project, results.toArray());
 
-                        // mark the project
-                        BaseProjectHelper.markResource(project, AndroidConstants.MARKER_AIDL,
-                                Messages.Unparsed_AIDL_Errors, IMarker.SEVERITY_ERROR);
-                    } else {
-                        AdtPlugin.printToConsole(project, results.toArray());
-                    }
+                    // mark the project
+                    BaseProjectHelper.markResource(project, AndroidConstants.MARKER_AIDL,
+                            Messages.Unparsed_AIDL_Errors, IMarker.SEVERITY_ERROR);
+                } else {
+                    AdtPlugin.printToConsole(project, results.toArray());
                 }
-                return false;
             }
-        } catch (IOException e) {
-            // mark the project and exit
-            String msg = String.format(Messages.AIDL_Exec_Error, command[0]);
-            BaseProjectHelper.markResource(project, AndroidConstants.MARKER_AIDL, msg,
-                    IMarker.SEVERITY_ERROR);
-            return false;
-        } catch (InterruptedException e) {
-            // mark the project and exit
-            String msg = String.format(Messages.AIDL_Exec_Error, command[0]);
-            BaseProjectHelper.markResource(project, AndroidConstants.MARKER_AIDL, msg,
-                    IMarker.SEVERITY_ERROR);
             return false;
         }
 
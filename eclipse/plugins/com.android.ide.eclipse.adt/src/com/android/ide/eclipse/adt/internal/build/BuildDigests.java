@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.eclipse.adt.internal.build;
+
+import com.android.ide.eclipse.adt.AdtPlugin;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.IPath;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the content of the inputs and outputs of build steps, so that a step can be skipped
+ * when its inputs and outputs did not change since it last ran successfully.
+ * <p/>
+ * Unlike the resource deltas, this ignores files that were touched or rewritten with the same
+ * content, for instance when switching branches back and forth.
+ * <p/>
+ * The digests are saved in the working location of the project, and the digest of each file is
+ * saved along with its length and modification date, so that only the files that changed since
+ * the last build are read again.
+ */
+public final class BuildDigests {
+
+    private final static String HEADER = "# adt build digests 1"; //$NON-NLS-1$
+    private final static String EXT_DIGESTS = ".digests"; //$NON-NLS-1$
+    private final static String DIGEST_ALGORITHM = "SHA-1"; //$NON-NLS-1$
+    private final static String ENCODING = "UTF-8"; //$NON-NLS-1$
+
+    /** line of the digest of a file */
+    private final static String TYPE_FILE = "F"; //$NON-NLS-1$
+    /** line of the digests of a step */
+    private final static String TYPE_STEP = "S"; //$NON-NLS-1$
+    /** digest of an output that does not exist */
+    private final static String MISSING = "missing"; //$NON-NLS-1$
+
+    private final static class FileDigest {
+        final long length;
+        final long lastModified;
+        final String digest;
+
+        FileDigest(long length, long lastModified, String digest) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
+    private final File mFile;
+    /** the digests of the files, by path */
+    private final Map<String, FileDigest> mFiles = new HashMap<String, FileDigest>();
+    /** the digests of the inputs and the outputs of the steps, by step */
+    private final Map<String, String[]> mSteps = new HashMap<String, String[]>();
+
+    /**
+     * Loads the digests of a project.
+     * @param project the project.
+     * @param name the name of the set of digests, unique for the project.
+     * @return the digests, empty if they could not be loaded.
+     */
+    public static BuildDigests load(IProject project, String name) {
+        IPath location = project.getWorkingLocation(AdtPlugin.PLUGIN_ID);
+        BuildDigests digests = new BuildDigests(
+                location.append(name + EXT_DIGESTS).toFile());
+        digests.read();
+        return digests;
+    }
+
+    private BuildDigests(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the digest of a set of input files.
+     * @param context a string identifying everything else the step depends on, such as the
+     * version of the tool it runs and its options.
+     * @param inputs the input files, in a stable order. Folders are read recursively, ignoring
+     * their hidden files.
+     * @return the digest, or <code>null</code> if the files could not be read.
+     */
+    public String getDigest(String context, List<File> inputs) {
+        try {
+            MessageDigest md = createDigest();
+            update(md, context);
+            for (File input : inputs) {
+                updateFile(md, input, input.getAbsolutePath());
+            }
+            return toHex(md.digest());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the locations of some workspace files, ignoring the files with no location.
+     */
+    public static List<File> getFiles(List<IFile> files) {
+        List<File> result = new ArrayList<File>(files.size());
+        for (IFile file : files) {
+            IPath location = file.getLocation();
+            if (location != null) {
+                result.add(location.toFile());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether a step already ran with the same inputs, and whether its outputs are
+     * still the ones it created.
+     * @param step the name of the step.
+     * @param inputDigest the digest of the inputs, from {@link #getDigest(String, List)}.
+     * @param outputs the output files.
+     */
+    public boolean isUpToDate(String step, String inputDigest, List<File> outputs) {
+        String[] digests = mSteps.get(step);
+        if (inputDigest == null || digests == null || inputDigest.equals(digests[0]) == false) {
+            return false;
+        }
+
+        return digests[1].equals(getOutputDigest(outputs));
+    }
+
+    /**
+     * Records that a step ran successfully.
+     * @param step the name of the step.
+     * @param inputDigest the digest of the inputs, computed before the step ran.
+     * @param outputs the output files of the step.
+     */
+    public void record(String step, String inputDigest, List<File> outputs) {
+        String outputDigest = getOutputDigest(outputs);
+        if (inputDigest != null && outputDigest != null) {
+            mSteps.put(step, new String[] { inputDigest, outputDigest });
+        } else {
+            mSteps.remove(step);
+        }
+    }
+
+    /**
+     * Forgets about a step, so that it is not up to date anymore.
+     */
+    public void remove(String step) {
+        mSteps.remove(step);
+    }
+
+    /**
+     * Saves the digests. Errors are ignored, since the next build only runs all the steps
+     * again if the digests are lost.
+     */
+    public void save() {
+        try {
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(mFile), ENCODING));
+            try {
+                writer.println(HEADER);
+                for (Map.Entry<String, FileDigest> entry : mFiles.entrySet()) {
+                    // forget about deleted files.
+                    if (new File(entry.getKey()).isFile()) {
+                        FileDigest digest = entry.getValue();
+                        writer.println(TYPE_FILE + "\t" + digest.length + "\t" +
+                                digest.lastModified + "\t" + digest.digest + "\t" +
+                                entry.getKey());
+                    }
+                }
+                for (Map.Entry<String, String[]> entry : mSteps.entrySet()) {
+                    String[] digests = entry.getValue();
+                    writer.println(TYPE_STEP + "\t" + digests[0] + "\t" + digests[1] + "\t" +
+                            entry.getKey());
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            mFile.delete();
+        }
+    }
+
+    private void read() {
+        if (mFile.isFile() == false) {
+            return;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mFile), ENCODING));
+            try {
+                if (HEADER.equals(reader.readLine()) == false) {
+                    return;
+                }
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] values = line.split("\t", 5); //$NON-NLS-1$
+                    if (TYPE_FILE.equals(values[0]) && values.length == 5) {
+                        mFiles.put(values[4], new FileDigest(Long.parseLong(values[1]),
+                                Long.parseLong(values[2]), values[3]));
+                    } else if (TYPE_STEP.equals(values[0]) && values.length == 4) {
+                        mSteps.put(values[3], new String[] { values[1], values[2] });
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (NumberFormatException e) {
+            mFiles.clear();
+            mSteps.clear();
+        } catch (IOException e) {
+            mFiles.clear();
+            mSteps.clear();
+        }
+    }
+
+    /**
+     * Returns the digest of the output files, or <code>null</code> if they could not be read.
+     */
+    private String getOutputDigest(List<File> outputs) {
+        try {
+            MessageDigest md = createDigest();
+            for (File output : outputs) {
+                update(md, output.getAbsolutePath());
+                update(md, output.isFile() ? getFileDigest(output) : MISSING);
+            }
+            return toHex(md.digest());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void updateFile(MessageDigest md, File file, String path) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    if (child.getName().startsWith(".") == false) { //$NON-NLS-1$
+                        updateFile(md, child, path + "/" + child.getName()); //$NON-NLS-1$
+                    }
+                }
+            }
+        } else {
+            update(md, path);
+            update(md, file.isFile() ? getFileDigest(file) : MISSING);
+        }
+    }
+
+    /**
+     * Returns the digest of the content of a file, reading it only if it changed since its
+     * digest was last computed.
+     */
+    private String getFileDigest(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        FileDigest digest = mFiles.get(path);
+        if (digest != null && digest.length == length && digest.lastModified == lastModified) {
+            return digest.digest;
+        }
+
+        MessageDigest md = createDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                md.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+
+        digest = new FileDigest(length, lastModified, toHex(md.digest()));
+        mFiles.put(path, digest);
+        return digest.digest;
+    }
+
+    private static MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    private static void update(MessageDigest md, String value) throws IOException {
+        md.update(value.getBytes(ENCODING));
+        md.update((byte) 0);
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b & 0xFF)); //$NON-NLS-1$
+        }
+        return sb.toString();
+    }
+}
@@ -32,6 +32,7 @@ import com.android.sdklib.build.ApkBuilder;
 import com.android.sdklib.build.ApkBuilder.JarStatus;
 import com.android.sdklib.build.ApkBuilder.SigningInfo;
 import com.android.sdklib.build.ApkCreationException;
+import com.android.sdklib.build.DexCache;
 import com.android.sdklib.build.DuplicateFileException;
 import com.android.sdklib.build.SealedApkException;
 import com.android.sdklib.internal.build.DebugKeyProvider;
@@ -102,6 +103,10 @@ public class BuildHelper {
     private final boolean mVerbose;
     private final boolean mDebugMode;
 
+    /** the cache of dex files, shared by all the projects. */
+    private static DexCache sDexCache;
+    private static boolean sDexCacheLoaded = false;
+
     /**
      * An object able to put a marker on a resource.
      */
@@ -235,9 +240,11 @@ public class BuildHelper {
         // from the keystore, get the signing info
         SigningInfo info = ApkBuilder.getDebugKey(keystoreOsPath, mVerbose ? mOutStream : null);
 
+        // debug packages are updated incrementally, as they are rebuilt after each change.
         finalPackage(intermediateApk, dex, output, javaProject, libProjects,
                 referencedJavaProjects, null /*abiFilter*/,
-                info != null ? info.key : null, info != null ? info.certificate : null, resMarker);
+                info != null ? info.key : null, info != null ? info.certificate : null, resMarker,
+                true /*incremental*/);
     }
 
     /**
@@ -269,12 +276,32 @@ public class BuildHelper {
             X509Certificate certificate, ResourceMarker resMarker)
             throws NativeLibInJarException, ApkCreationException, DuplicateFileException,
             CoreException {
+        finalPackage(intermediateApk, dex, output, javaProject, libProjects,
+                referencedJavaProjects, abiFilter, key, certificate, resMarker,
+                false /*incremental*/);
+    }
+
+    /**
+     * Makes the final package, updating the package built previously if <var>incremental</var>
+     * is true.
+     *
+     * @see #finalPackage(String, String, String, IJavaProject, List, List, String, PrivateKey,
+     * X509Certificate, ResourceMarker)
+     * @see ApkBuilder#setIncrementalMode(boolean)
+     */
+    private void finalPackage(String intermediateApk, String dex, String output,
+            final IJavaProject javaProject, List<IProject> libProjects,
+            List<IJavaProject> referencedJavaProjects, String abiFilter, PrivateKey key,
+            X509Certificate certificate, ResourceMarker resMarker, boolean incremental)
+            throws NativeLibInJarException, ApkCreationException, DuplicateFileException,
+            CoreException {
 
         try {
             ApkBuilder apkBuilder = new ApkBuilder(output, intermediateApk, dex,
                     key, certificate,
                     mVerbose ? mOutStream: null);
             apkBuilder.setDebugMode(mDebugMode);
+            apkBuilder.setIncrementalMode(incremental);
 
             // Now we write the standard resources from the project and the referenced projects.
             writeStandardResources(apkBuilder, javaProject, referencedJavaProjects);
@@ -556,6 +583,21 @@ public class BuildHelper {
     }
 
 
+    /**
+     * Returns the cache of dex files, or <code>null</code> if its location could not be found.
+     */
+    private static synchronized DexCache getDexCache() {
+        if (sDexCacheLoaded == false) {
+            sDexCacheLoaded = true;
+            try {
+                sDexCache = DexCache.getDefault();
+            } catch (AndroidLocationException e) {
+                // the dex files will not be cached.
+            }
+        }
+        return sDexCache;
+    }
+
     /**
      * Execute the Dx tool for dalvik code conversion.
      * @param javaProject The java project
@@ -577,6 +619,25 @@ public class BuildHelper {
                     Messages.ApkBuilder_UnableBuild_Dex_Not_loaded));
         }
 
+        // look for the same inputs converted by a previous build.
+        DexCache cache = getDexCache();
+        File dexJar = wrapper.getDexJar();
+        File outFile = new File(osOutFilePath);
+        String cacheKey = null;
+        if (cache != null && dexJar != null) {
+            try {
+                cacheKey = cache.getKey(dexJar, wrapper.getOptions(), inputPaths);
+                if (cache.restore(cacheKey, outFile)) {
+                    AdtPlugin.printBuildToConsole(BuildVerbosity.VERBOSE, mProject,
+                            String.format(Messages.Dalvik_Using_Cache_s, outFile.getName()));
+                    return;
+                }
+            } catch (IOException e) {
+                // the cache is only an optimization, run dx instead.
+                cacheKey = null;
+            }
+        }
+
         try {
             // set a temporary prefix on the print streams.
             mOutStream.setPrefix(CONSOLE_PREFIX_DX);
@@ -595,6 +656,14 @@ public class BuildHelper {
                 String message = String.format(Messages.Dalvik_Error_d, res);
                 throw new DexException(message);
             }
+
+            if (cacheKey != null) {
+                try {
+                    cache.store(cacheKey, outFile);
+                } catch (IOException e) {
+                    // the next build will run dx again.
+                }
+            }
         } catch (DexException e) {
             throw e;
         } catch (Throwable t) {
@@ -980,13 +1049,28 @@ public class BuildHelper {
     public final static int grabProcessOutput(final IProject project, final Process process,
             final ArrayList<String> results)
             throws InterruptedException {
+        return grabProcessOutput(project, process, results, null);
+    }
+
+    /**
+     * Get the stderr and stdout output of a process and return when the process is done.
+     * @param process The process to get the ouput from
+     * @param results The array to store the stderr output
+     * @param output The array to store the stdout output, or <code>null</code> to print it to
+     * the console as it comes.
+     * @return the process return code.
+     * @throws InterruptedException
+     */
+    public final static int grabProcessOutput(final IProject project, final Process process,
+            final ArrayList<String> results, final ArrayList<String> output)
+            throws InterruptedException {
         // Due to the limited buffer size on windows for the standard io (stderr, stdout), we
         // *need* to read both stdout and stderr all the time. If we don't and a process output
         // a large amount, this could deadlock the process.
 
         // read the lines as they come. if null is returned, it's
         // because the process finished
-        new Thread("") { //$NON-NLS-1$
+        Thread errThread = new Thread("") { //$NON-NLS-1$
             @Override
             public void run() {
                 // create a buffer to read the stderr output
@@ -1006,9 +1090,10 @@ public class BuildHelper {
                     // do nothing.
                 }
             }
-        }.start();
+        };
+        errThread.start();
 
-        new Thread("") { //$NON-NLS-1$
+        Thread outThread = new Thread("") { //$NON-NLS-1$
             @Override
             public void run() {
                 InputStreamReader is = new InputStreamReader(process.getInputStream());
@@ -1017,11 +1102,13 @@ public class BuildHelper {
                 try {
                     while (true) {
                         String line = outReader.readLine();
-                        if (line != null) {
+                        if (line == null) {
+                            break;
+                        } else if (output != null) {
+                            output.add(line);
+                        } else {
                             AdtPlugin.printBuildToConsole(BuildVerbosity.VERBOSE,
                                     project, line);
-                        } else {
-                            break;
                         }
                     }
                 } catch (IOException e) {
@@ -1029,9 +1116,15 @@ public class BuildHelper {
                 }
             }
 
-        }.start();
+        };
+        outThread.start();
 
         // get the return code from the process
-        return process.waitFor();
+        int result = process.waitFor();
+
+        // the output may not be fully read yet.
+        errThread.join();
+        outThread.join();
+        return result;
     }
 }
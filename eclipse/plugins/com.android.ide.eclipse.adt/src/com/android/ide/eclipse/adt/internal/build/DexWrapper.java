@@ -44,6 +44,7 @@ public final class DexWrapper {
 
     private final static String MAIN_RUN = "run"; //$NON-NLS-1$
 
+    private File mDexJar;
     private Method mRunMethod;
 
     private Constructor<?> mArgConstructor;
@@ -102,6 +103,7 @@ public final class DexWrapper {
                 return createErrorStatus(Messages.DexWrapper_SecuryEx_Unable_To_Find_Field, e);
             }
 
+            mDexJar = f;
             return Status.OK_STATUS;
         } catch (MalformedURLException e) {
             // really this should not happen.
@@ -121,6 +123,7 @@ public final class DexWrapper {
      * be used again.
      */
     public synchronized void unload() {
+        mDexJar = null;
         mRunMethod = null;
         mArgConstructor = null;
         mArgOutName = null;
@@ -132,6 +135,22 @@ public final class DexWrapper {
         System.gc();
     }
 
+    /**
+     * Returns the dx.jar file loaded by the wrapper, or <code>null</code> if it is not loaded.
+     */
+    public synchronized File getDexJar() {
+        return mDexJar;
+    }
+
+    /**
+     * Returns the dx command line options matching the arguments set by
+     * {@link #run(String, String[], boolean, PrintStream, PrintStream)}, without the output,
+     * the inputs and the verbose option.
+     */
+    public String[] getOptions() {
+        return new String[] { "--dex" }; //$NON-NLS-1$
+    }
+
     /**
      * Runs the dex command.
      * The wrapper must have been initialized via {@link #loadDex(String)} first.
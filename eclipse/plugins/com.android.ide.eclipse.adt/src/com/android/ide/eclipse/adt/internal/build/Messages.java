@@ -10,6 +10,10 @@ public class Messages extends NLS {
 
     public static String AAPT_Exec_Error;
 
+    public static String AAPT_Stats_d;
+
+    public static String AAPT_Up_To_Date;
+
     public static String Added_s_s_Needs_Updating;
 
     public static String AIDL_Exec_Error;
@@ -48,6 +52,8 @@ public class Messages extends NLS {
 
     public static String Dalvik_Error_s;
 
+    public static String Dalvik_Using_Cache_s;
+
     public static String Delete_Obsolete_Error;
 
     public static String DexWrapper_Dex_Loader;
@@ -84,6 +90,8 @@ public class Messages extends NLS {
 
     public static String Preparing_Generated_Files;
 
+    public static String Processor_Stats_s_d_d_d;
+
     public static String Project_Has_Errors;
 
     public static String Refreshing_Res;
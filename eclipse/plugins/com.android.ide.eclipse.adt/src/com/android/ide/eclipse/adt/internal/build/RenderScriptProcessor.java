@@ -43,10 +43,11 @@ import org.eclipse.core.runtime.Path;
 import org.eclipse.jdt.core.IJavaProject;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -142,25 +143,19 @@ public class RenderScriptProcessor extends SourceProcessor {
         IFolder rawFolder = project.getFolder(
                 new Path(SdkConstants.FD_RES).append(SdkConstants.FD_RAW));
 
-        int depIndex;
-
         // create the command line
-        String[] command = new String[13];
-        int index = 0;
-        command[index++] = quote(sdkOsPath + SdkConstants.OS_SDK_PLATFORM_TOOLS_FOLDER
-                + SdkConstants.FN_RENDERSCRIPT);
-        command[index++] = "-I";   //$NON-NLS-1$
-        command[index++] = quote(projectTarget.getPath(IAndroidTarget.ANDROID_RS_CLANG));
-        command[index++] = "-I";   //$NON-NLS-1$
-        command[index++] = quote(projectTarget.getPath(IAndroidTarget.ANDROID_RS));
-        command[index++] = "-p";   //$NON-NLS-1$
-        command[index++] = quote(genFolder.getLocation().toOSString());
-        command[index++] = "-o";   //$NON-NLS-1$
-        command[index++] = quote(rawFolder.getLocation().toOSString());
-
-        command[index++] = "-d";   //$NON-NLS-1$
-        command[depIndex = index++] = null;
-        command[index++] = "-MD";  //$NON-NLS-1$
+        List<String> command = new ArrayList<String>();
+        command.add(quote(sdkOsPath + SdkConstants.OS_SDK_PLATFORM_TOOLS_FOLDER
+                + SdkConstants.FN_RENDERSCRIPT));
+        command.add("-I");   //$NON-NLS-1$
+        command.add(quote(projectTarget.getPath(IAndroidTarget.ANDROID_RS_CLANG)));
+        command.add("-I");   //$NON-NLS-1$
+        command.add(quote(projectTarget.getPath(IAndroidTarget.ANDROID_RS)));
+        command.add("-p");   //$NON-NLS-1$
+        command.add(quote(genFolder.getLocation().toOSString()));
+        command.add("-o");   //$NON-NLS-1$
+        command.add(quote(rawFolder.getLocation().toOSString()));
+        command.add("-MD");  //$NON-NLS-1$
 
         boolean verbose = AdtPrefs.getPrefs().getBuildVerbosity() == BuildVerbosity.VERBOSE;
         boolean someSuccess = false;
@@ -168,19 +163,10 @@ public class RenderScriptProcessor extends SourceProcessor {
         // remove the generic marker from the project
         builder.removeMarkersFromResource(project, AndroidConstants.MARKER_RENDERSCRIPT);
 
-        // loop until we've compile them all
+        // llvm-rs-cc compiles several files at once, as long as their dependency files go
+        // in the same folder. Group the files by dependency folder, keeping their order.
+        Map<IFolder, List<IFile>> filesByDepFolder = new LinkedHashMap<IFolder, List<IFile>>();
         for (IFile sourceFile : sources) {
-            if (verbose) {
-                String name = sourceFile.getName();
-                IPath sourceFolderPath = getSourceFolderFor(sourceFile);
-                if (sourceFolderPath != null) {
-                    // make a path to the source file relative to the source folder.
-                    IPath relative = sourceFile.getFullPath().makeRelativeTo(sourceFolderPath);
-                    name = relative.toString();
-                }
-                AdtPlugin.printToConsole(project, "RenderScript: " + name);
-            }
-
             // Remove the RS error markers from the source file and the dependencies
             builder.removeMarkersFromResource(sourceFile, AndroidConstants.MARKER_RENDERSCRIPT);
             SourceFileData data = getFileData(sourceFile);
@@ -190,25 +176,73 @@ public class RenderScriptProcessor extends SourceProcessor {
                 }
             }
 
-            // get the path of the source file.
-            IPath sourcePath = sourceFile.getLocation();
-            String osSourcePath = sourcePath.toOSString();
+            IFolder depFolder = getDependencyFolder(sourceFile);
+            List<IFile> files = filesByDepFolder.get(depFolder);
+            if (files == null) {
+                files = new ArrayList<IFile>();
+                filesByDepFolder.put(depFolder, files);
+            }
+            files.add(sourceFile);
+        }
+
+        // split the groups so that all the processes can be used.
+        int processCount = getProcessCount();
+        List<List<IFile>> batches = new ArrayList<List<IFile>>();
+        List<String[]> commands = new ArrayList<String[]>();
+        for (Map.Entry<IFolder, List<IFile>> entry : filesByDepFolder.entrySet()) {
+            List<IFile> files = entry.getValue();
+            int batchSize = (files.size() + processCount - 1) / processCount;
+            for (int i = 0 ; i < files.size() ; i += batchSize) {
+                List<IFile> batch = files.subList(i, Math.min(i + batchSize, files.size()));
+
+                // finish to set the command line.
+                List<String> batchCommand = new ArrayList<String>(command);
+                batchCommand.add("-d");   //$NON-NLS-1$
+                batchCommand.add(quote(entry.getKey().getLocation().toOSString()));
+                for (IFile sourceFile : batch) {
+                    batchCommand.add(quote(sourceFile.getLocation().toOSString()));
+                }
+
+                batches.add(batch);
+                commands.add(batchCommand.toArray(new String[batchCommand.size()]));
+            }
+        }
 
-            // finish to set the command line.
-            command[depIndex] = quote(getDependencyFolder(sourceFile).getLocation().toOSString());
-            command[index] = quote(osSourcePath);
+        // launch the processes
+        List<CommandResult> results = execCommands(project, commands);
 
-            // launch the process
-            if (execLlvmRsCc(builder, project, command, sourceFile, verbose) == false) {
-                // llvm-rs-cc failed. File should be marked. We add the file to the list
+        // handle the results in order, so that the files are marked and the console output is
+        // printed as if llvm-rs-cc ran serially, one batch at a time.
+        for (int i = 0 ; i < batches.size() ; i++) {
+            List<IFile> batch = batches.get(i);
+            if (verbose) {
+                for (IFile sourceFile : batch) {
+                    String name = sourceFile.getName();
+                    IPath sourceFolderPath = getSourceFolderFor(sourceFile);
+                    if (sourceFolderPath != null) {
+                        // make a path to the source file relative to the source folder.
+                        IPath relative = sourceFile.getFullPath().makeRelativeTo(
+                                sourceFolderPath);
+                        name = relative.toString();
+                    }
+                    AdtPlugin.printToConsole(project, "RenderScript: " + name);
+                }
+                printCommand(project, commands.get(i));
+            }
+            printOutput(project, results.get(i));
+            if (checkLlvmRsCcResult(project, commands.get(i), results.get(i), verbose) == false) {
+                // llvm-rs-cc failed. Files should be marked. We add the files to the list
                 // of file that will need compilation again.
-                notCompiledOut.add(sourceFile);
+                notCompiledOut.addAll(batch);
             } else {
                 // Success. we'll return that we generated code and resources.
                 setCompilationStatus(COMPILE_STATUS_CODE | COMPILE_STATUS_RES);
 
-                // need to parse the .d file to figure out the dependencies and the generated file
-                parseDependencyFileFor(sourceFile);
+                // need to parse the .d files to figure out the dependencies and the generated
+                // files
+                for (IFile sourceFile : batch) {
+                    parseDependencyFileFor(sourceFile);
+                }
                 someSuccess = true;
             }
         }
@@ -218,52 +252,14 @@ public class RenderScriptProcessor extends SourceProcessor {
         }
     }
 
-    private boolean execLlvmRsCc(BaseBuilder builder, IProject project, String[] command,
-            IFile sourceFile, boolean verbose) {
-        // do the exec
-        try {
-            if (verbose) {
-                StringBuilder sb = new StringBuilder();
-                for (String c : command) {
-                    sb.append(c);
-                    sb.append(' ');
-                }
-                String cmd_line = sb.toString();
-                AdtPlugin.printToConsole(project, cmd_line);
-            }
-
-            Process p = Runtime.getRuntime().exec(command);
-
-            // list to store each line of stderr
-            ArrayList<String> results = new ArrayList<String>();
-
-            // get the output and return code from the process
-            int result = BuildHelper.grabProcessOutput(project, p, results);
-
-            // attempt to parse the error output
-            boolean error = parseLlvmOutput(results);
-
-            // If the process failed and we couldn't parse the output
-            // we print a message, mark the project and exit
-            if (result != 0) {
-
-                if (error || verbose) {
-                    // display the message in the console.
-                    if (error) {
-                        AdtPlugin.printErrorToConsole(project, results.toArray());
-
-                        // mark the project
-                        BaseProjectHelper.markResource(project,
-                                AndroidConstants.MARKER_RENDERSCRIPT,
-                                "Unparsed Renderscript error! Check the console for output.",
-                                IMarker.SEVERITY_ERROR);
-                    } else {
-                        AdtPlugin.printToConsole(project, results.toArray());
-                    }
-                }
-                return false;
-            }
-        } catch (IOException e) {
+    /**
+     * Parses the output of a llvm-rs-cc command line, and marks the files with any reported
+     * errors.
+     * @return false if the exec failed.
+     */
+    private boolean checkLlvmRsCcResult(IProject project, String[] command,
+            CommandResult result, boolean verbose) {
+        if (result.getException() != null) {
             // mark the project and exit
             String msg = String.format(
                     "Error executing Renderscript. Please check llvm-rs-cc is present at %1$s",
@@ -271,13 +267,32 @@ public class RenderScriptProcessor extends SourceProcessor {
             BaseProjectHelper.markResource(project, AndroidConstants.MARKER_RENDERSCRIPT, msg,
                     IMarker.SEVERITY_ERROR);
             return false;
-        } catch (InterruptedException e) {
-            // mark the project and exit
-            String msg = String.format(
-                    "Error executing Renderscript. Please check llvm-rs-cc is present at %1$s",
-                    command[0]);
-            BaseProjectHelper.markResource(project, AndroidConstants.MARKER_RENDERSCRIPT, msg,
-                    IMarker.SEVERITY_ERROR);
+        }
+
+        // list to store each line of stderr
+        ArrayList<String> results = result.getErrorOutput();
+
+        // attempt to parse the error output
+        boolean error = parseLlvmOutput(results);
+
+        // If the process failed and we couldn't parse the output
+        // we print a message, mark the project and exit
+        if (result.getReturnCode() != 0) {
+
+            if (error || verbose) {
+                // display the message in the console.
+                if (error) {
+                    AdtPlugin.printErrorToConsole(project, results.toArray());
+
+                    // mark the project
+                    BaseProjectHelper.markResource(project,
+                            AndroidConstants.MARKER_RENDERSCRIPT,
+                            "Unparsed Renderscript error! Check the console for output.",
+                            IMarker.SEVERITY_ERROR);
+                } else {
+                    AdtPlugin.printToConsole(project, results.toArray());
+                }
+            }
             return false;
         }
 
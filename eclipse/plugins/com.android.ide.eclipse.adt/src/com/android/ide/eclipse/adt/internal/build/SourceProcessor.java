@@ -16,7 +16,10 @@
 
 package com.android.ide.eclipse.adt.internal.build;
 
+import com.android.ide.eclipse.adt.AdtPlugin;
 import com.android.ide.eclipse.adt.internal.build.builders.BaseBuilder;
+import com.android.ide.eclipse.adt.internal.preferences.AdtPrefs;
+import com.android.ide.eclipse.adt.internal.preferences.AdtPrefs.BuildVerbosity;
 import com.android.ide.eclipse.adt.internal.project.BaseProjectHelper;
 import com.android.ide.eclipse.adt.internal.project.ProjectHelper;
 import com.android.sdklib.IAndroidTarget;
@@ -33,12 +36,20 @@ import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.jdt.core.IJavaProject;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Base class to handle generated java code.
@@ -68,6 +79,42 @@ public abstract class SourceProcessor {
 
     private int mLastCompilationStatus = COMPILE_STATUS_NONE;
 
+    /**
+     * The result of a command run by {@link SourceProcessor#execCommands(IProject, List)}.
+     */
+    protected final static class CommandResult {
+        private int mReturnCode = -1;
+        private final ArrayList<String> mOutput = new ArrayList<String>();
+        private final ArrayList<String> mErrorOutput = new ArrayList<String>();
+        private Exception mException;
+
+        /** Returns the return code of the command. */
+        int getReturnCode() {
+            return mReturnCode;
+        }
+
+        /** Returns the lines the command wrote on its standard output. */
+        ArrayList<String> getOutput() {
+            return mOutput;
+        }
+
+        /** Returns the lines the command wrote on its error output. */
+        ArrayList<String> getErrorOutput() {
+            return mErrorOutput;
+        }
+
+        /**
+         * Returns the exception that prevented the command from running, or <code>null</code>
+         * if it ran.
+         */
+        Exception getException() {
+            return mException;
+        }
+    }
+
+    /** The content of the source files and outputs, loaded at the first compilation. */
+    private BuildDigests mDigests;
+
     /**
      * Quotes a path inside "". If the platform is not windows, the path is returned as is.
      * @param path the path to quote
@@ -236,11 +283,42 @@ public abstract class SourceProcessor {
             }
         }
 
+        long startTime = System.currentTimeMillis();
+        if (mDigests == null) {
+            mDigests = BuildDigests.load(project, getSavePropertyName());
+        }
+        String context = projectTarget.hashString();
+
+        // skip the files whose content, dependencies and outputs are the same as when they
+        // were last compiled. They are only touched, or were changed back.
+        int upToDateCount = 0;
+        for (Iterator<IFile> it = mToCompile.iterator(); it.hasNext(); ) {
+            SourceFileData data = getFileData(it.next());
+            if (data != null && data.getOutputFiles().size() > 0 &&
+                    mDigests.isUpToDate(getStepName(data), getInputDigest(context, data),
+                            BuildDigests.getFiles(data.getOutputFiles()))) {
+                it.remove();
+                upToDateCount++;
+            }
+        }
+
         // list of files that have failed compilation.
         List<IFile> stillNeedCompilation = new ArrayList<IFile>();
 
-        doCompileFiles(mToCompile, builder, project, projectTarget, sourceFolders,
-                stillNeedCompilation, monitor);
+        int compiledCount = mToCompile.size();
+        if (compiledCount > 0) {
+            doCompileFiles(mToCompile, builder, project, projectTarget, sourceFolders,
+                    stillNeedCompilation, monitor);
+        }
+
+        // record the content of the files that compiled.
+        for (IFile sourceFile : mToCompile) {
+            SourceFileData data = getFileData(sourceFile);
+            if (data != null && stillNeedCompilation.contains(sourceFile) == false) {
+                mDigests.record(getStepName(data), getInputDigest(context, data),
+                        BuildDigests.getFiles(data.getOutputFiles()));
+            }
+        }
 
         mToCompile.clear();
         mToCompile.addAll(stillNeedCompilation);
@@ -256,10 +334,19 @@ public abstract class SourceProcessor {
 
         // remove the associated file data.
         for (IFile removedFile : mRemoved) {
-            mFiles.remove(removedFile);
+            SourceFileData data = mFiles.remove(removedFile);
+            if (data != null) {
+                mDigests.remove(getStepName(data));
+            }
         }
 
         mRemoved.clear();
+        mDigests.save();
+
+        AdtPlugin.printBuildToConsole(BuildVerbosity.VERBOSE, project,
+                String.format(Messages.Processor_Stats_s_d_d_d, getExtension(),
+                        compiledCount, upToDateCount,
+                        System.currentTimeMillis() - startTime));
 
         // store the build state. If there are any files that failed to compile, we will
         // force a full aidl compile on the next project open. (unless a full compilation succeed
@@ -269,12 +356,136 @@ public abstract class SourceProcessor {
         return mLastCompilationStatus;
     }
 
+    /**
+     * Returns the name under which the digests of a source file are recorded.
+     */
+    private static String getStepName(SourceFileData data) {
+        return data.getSourceFile().getFullPath().toString();
+    }
+
+    /**
+     * Returns the digest of the content of a source file and its dependencies.
+     */
+    private String getInputDigest(String context, SourceFileData data) {
+        List<IFile> inputs = new ArrayList<IFile>();
+        inputs.add(data.getSourceFile());
+        inputs.addAll(data.getDependencyFiles());
+        List<File> files = BuildDigests.getFiles(inputs);
+        return mDigests.getDigest(context, files);
+    }
+
     protected abstract void doCompileFiles(
             List<IFile> filesToCompile, BaseBuilder builder,
             IProject project, IAndroidTarget projectTarget,
             List<IPath> sourceFolders, List<IFile> notCompiledOut, IProgressMonitor monitor)
             throws CoreException;
 
+    /**
+     * Runs some commands, at most {@link AdtPrefs#getBuildProcessCount()} at the same time.
+     * <p/>
+     * The results are returned in the order of the commands, so that the output of the
+     * commands is parsed, and the files are marked, in the same order as if the commands ran
+     * one after the other.
+     * @param project the project being built.
+     * @param commands the command lines.
+     * @return the results of the commands, in the same order.
+     */
+    protected final List<CommandResult> execCommands(final IProject project,
+            List<String[]> commands) {
+        List<CommandResult> results = new ArrayList<CommandResult>(commands.size());
+
+        int processCount = Math.min(getProcessCount(), commands.size());
+        if (processCount <= 1) {
+            for (String[] command : commands) {
+                results.add(execCommand(project, command));
+            }
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(processCount);
+        try {
+            List<Future<CommandResult>> runs = new ArrayList<Future<CommandResult>>();
+            for (final String[] command : commands) {
+                runs.add(executor.submit(new Callable<CommandResult>() {
+                    public CommandResult call() {
+                        return execCommand(project, command);
+                    }
+                }));
+            }
+
+            for (Future<CommandResult> run : runs) {
+                CommandResult result;
+                try {
+                    result = run.get();
+                } catch (InterruptedException e) {
+                    result = new CommandResult();
+                    result.mException = e;
+                } catch (ExecutionException e) {
+                    result = new CommandResult();
+                    result.mException = e;
+                }
+                results.add(result);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return results;
+    }
+
+    /**
+     * Prints a command line to the console of the project.
+     * <p/>
+     * The commands run by {@link #execCommands(IProject, List)} should be printed right before
+     * their result is handled, so that each command is followed by its own output.
+     * @see #printOutput(IProject, CommandResult)
+     */
+    protected final void printCommand(IProject project, String[] command) {
+        StringBuilder sb = new StringBuilder();
+        for (String c : command) {
+            sb.append(c);
+            sb.append(' ');
+        }
+        AdtPlugin.printToConsole(project, sb.toString());
+    }
+
+    /**
+     * Prints the standard output of a command run by {@link #execCommands(IProject, List)} to
+     * the console of the project, in verbose mode.
+     * <p/>
+     * The output is kept until the commands are done, so that the output of commands running
+     * in parallel is not mixed. It should be printed right after the command.
+     */
+    protected final void printOutput(IProject project, CommandResult result) {
+        for (String line : result.getOutput()) {
+            AdtPlugin.printBuildToConsole(BuildVerbosity.VERBOSE, project, line);
+        }
+    }
+
+    /**
+     * Returns the maximum number of commands run at the same time.
+     */
+    protected final int getProcessCount() {
+        return AdtPrefs.getPrefs().getBuildProcessCount();
+    }
+
+    private static CommandResult execCommand(IProject project, String[] command) {
+        CommandResult result = new CommandResult();
+        try {
+            Process p = Runtime.getRuntime().exec(command);
+
+            // get the output and return code from the process
+            result.mReturnCode = BuildHelper.grabProcessOutput(project, p, result.mErrorOutput,
+                    result.mOutput);
+        } catch (IOException e) {
+            result.mException = e;
+        } catch (InterruptedException e) {
+            result.mException = e;
+        }
+
+        return result;
+    }
+
     /**
      * Adds a compilation status. It can be any of (in combination too):
      * <p/>
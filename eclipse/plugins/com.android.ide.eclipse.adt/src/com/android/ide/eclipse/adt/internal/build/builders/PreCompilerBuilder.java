@@ -20,6 +20,7 @@ import com.android.ide.eclipse.adt.AdtPlugin;
 import com.android.ide.eclipse.adt.AndroidConstants;
 import com.android.ide.eclipse.adt.internal.build.AaptParser;
 import com.android.ide.eclipse.adt.internal.build.AidlProcessor;
+import com.android.ide.eclipse.adt.internal.build.BuildDigests;
 import com.android.ide.eclipse.adt.internal.build.SourceProcessor;
 import com.android.ide.eclipse.adt.internal.build.Messages;
 import com.android.ide.eclipse.adt.internal.build.RenderScriptProcessor;
@@ -53,6 +54,7 @@ import org.eclipse.core.runtime.Path;
 import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.JavaCore;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -78,6 +80,9 @@ public class PreCompilerBuilder extends BaseBuilder {
 
     private static final String PROPERTY_COMPILE_RESOURCES = "compileResources"; //$NON-NLS-1$
 
+    /** name of the digests of the resources, and of the aapt step */
+    private static final String DIGESTS_RESOURCES = "resources"; //$NON-NLS-1$
+
     /**
      * Resource Compile flag. This flag is reset to false after each successful compilation, and
      * stored in the project persistent properties. This allows the builder to remember its state
@@ -87,6 +92,12 @@ public class PreCompilerBuilder extends BaseBuilder {
 
     private final List<SourceProcessor> mProcessors = new ArrayList<SourceProcessor>();
 
+    /**
+     * The content of the resources and of the generated R classes the last time they were
+     * generated, used to skip aapt when the resources are only touched.
+     */
+    private BuildDigests mResourceDigests;
+
     /** cache of the java package defined in the manifest */
     private String mManifestPackage;
 
@@ -590,10 +601,6 @@ public class PreCompilerBuilder extends BaseBuilder {
             String osResPath = resLocation.toOSString();
             String osManifestPath = manifestLocation.toOSString();
 
-            // remove the aapt markers
-            removeMarkersFromResource(manifest, AndroidConstants.MARKER_AAPT_COMPILE);
-            removeMarkersFromContainer(resFolder, AndroidConstants.MARKER_AAPT_COMPILE);
-
             AdtPlugin.printBuildToConsole(BuildVerbosity.VERBOSE, project,
                     Messages.Preparing_Generated_Files);
 
@@ -623,6 +630,52 @@ public class PreCompilerBuilder extends BaseBuilder {
                 }
             }
 
+            // skip aapt if the resources, the manifest and the generated classes did not
+            // change since they were last generated.
+            if (mResourceDigests == null) {
+                mResourceDigests = BuildDigests.load(project, DIGESTS_RESOURCES);
+            }
+
+            List<File> inputs = new ArrayList<File>();
+            inputs.add(manifestLocation.toFile());
+            inputs.add(resLocation.toFile());
+            for (IFolder libResFolder : libResFolders) {
+                inputs.add(libResFolder.getLocation().toFile());
+            }
+
+            List<File> outputs = new ArrayList<File>();
+            addGeneratedFiles(mainPackageFolder, outputs);
+            for (IFolder libFolder : libOutputFolders) {
+                addGeneratedFiles(libFolder, outputs);
+            }
+
+            // the aapt tool, the target and the java packages are part of the context.
+            File aapt = new File(projectTarget.getPath(IAndroidTarget.AAPT));
+            String context = aapt.getAbsolutePath() + '\t' + aapt.length() + '\t' +
+                    aapt.lastModified() + '\t' + projectTarget.hashString() + '\t' +
+                    javaPackage + '\t' + libJavaPackages;
+
+            String inputDigest = mResourceDigests.getDigest(context, inputs);
+            if (mResourceDigests.isUpToDate(DIGESTS_RESOURCES, inputDigest, outputs)) {
+                AdtPlugin.printBuildToConsole(BuildVerbosity.VERBOSE, project,
+                        Messages.AAPT_Up_To_Date);
+
+                mMustCompileResources = false;
+                saveProjectBooleanProperty(PROPERTY_COMPILE_RESOURCES, mMustCompileResources);
+                return;
+            }
+
+            // forget the previous digests, in case aapt fails half way.
+            mResourceDigests.remove(DIGESTS_RESOURCES);
+            mResourceDigests.save();
+
+            // remove the aapt markers. This is only done when aapt runs again, so that the
+            // warnings of its previous run stay when it is skipped.
+            removeMarkersFromResource(manifest, AndroidConstants.MARKER_AAPT_COMPILE);
+            removeMarkersFromContainer(resFolder, AndroidConstants.MARKER_AAPT_COMPILE);
+
+            long startTime = System.currentTimeMillis();
+
             execAapt(project, projectTarget, osOutputPath, osResPath, osManifestPath,
                     mainPackageFolder, libResFolders, null /* custom java package */);
 
@@ -635,6 +688,24 @@ public class PreCompilerBuilder extends BaseBuilder {
                             libFolder, libResFolders, libJavaPackage);
                 }
             }
+
+            AdtPlugin.printBuildToConsole(BuildVerbosity.VERBOSE, project,
+                    String.format(Messages.AAPT_Stats_d,
+                            System.currentTimeMillis() - startTime));
+
+            mResourceDigests.record(DIGESTS_RESOURCES, inputDigest, outputs);
+            mResourceDigests.save();
+        }
+    }
+
+    /**
+     * Adds the files generated by aapt in a package folder to a list.
+     */
+    private void addGeneratedFiles(IFolder packageFolder, List<File> files) {
+        IPath location = packageFolder.getLocation();
+        if (location != null) {
+            files.add(location.append(AndroidConstants.FN_RESOURCE_CLASS).toFile());
+            files.add(location.append(AndroidConstants.FN_MANIFEST_CLASS).toFile());
         }
     }
 
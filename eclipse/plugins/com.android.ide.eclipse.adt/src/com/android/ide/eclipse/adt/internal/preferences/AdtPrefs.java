@@ -36,6 +36,8 @@ public final class AdtPrefs extends AbstractPreferenceInitializer {
 
     public final static String PREFS_BUILD_VERBOSITY = AdtPlugin.PLUGIN_ID + ".buildVerbosity"; //$NON-NLS-1$
 
+    public final static String PREFS_BUILD_PROCESS_COUNT = AdtPlugin.PLUGIN_ID + ".buildProcessCount"; //$NON-NLS-1$
+
     public final static String PREFS_DEFAULT_DEBUG_KEYSTORE = AdtPlugin.PLUGIN_ID + ".defaultDebugKeyStore"; //$NON-NLS-1$
 
     public final static String PREFS_CUSTOM_DEBUG_KEYSTORE = AdtPlugin.PLUGIN_ID + ".customDebugKeyStore"; //$NON-NLS-1$
@@ -64,6 +66,7 @@ public final class AdtPrefs extends AbstractPreferenceInitializer {
 
     private boolean mBuildForceResResfresh = false;
     private boolean mBuildForceErrorOnNativeLibInJar = true;
+    private int mBuildProcessCount = 1;
     private boolean mFormatXml = false;
     private float mMonitorDensity = 0.f;
     private String mPalette;
@@ -153,6 +156,10 @@ public final class AdtPrefs extends AbstractPreferenceInitializer {
             mBuildForceErrorOnNativeLibInJar = mStore.getBoolean(PREFS_BUILD_RES_AUTO_REFRESH);
         }
 
+        if (property == null || PREFS_BUILD_PROCESS_COUNT.equals(property)) {
+            mBuildProcessCount = Math.max(1, mStore.getInt(PREFS_BUILD_PROCESS_COUNT));
+        }
+
         if (property == null || PREFS_MONITOR_DENSITY.equals(property)) {
             mMonitorDensity = mStore.getFloat(PREFS_MONITOR_DENSITY);
         }
@@ -190,6 +197,14 @@ public final class AdtPrefs extends AbstractPreferenceInitializer {
         return mBuildForceErrorOnNativeLibInJar;
     }
 
+    /**
+     * Returns the maximum number of tool processes (aidl, llvm-rs-cc) the builders run at
+     * the same time.
+     */
+    public int getBuildProcessCount() {
+        return mBuildProcessCount;
+    }
+
     public String getPaletteModes() {
         return mPalette;
     }
@@ -222,6 +237,7 @@ public final class AdtPrefs extends AbstractPreferenceInitializer {
         store.setDefault(PREFS_BUILD_FORCE_ERROR_ON_NATIVELIB_IN_JAR, true);
 
         store.setDefault(PREFS_BUILD_VERBOSITY, BuildVerbosity.ALWAYS.name());
+        store.setDefault(PREFS_BUILD_PROCESS_COUNT, Runtime.getRuntime().availableProcessors());
 
         store.setDefault(PREFS_HOME_PACKAGE, "android.process.acore"); //$NON-NLS-1$
 
@@ -25,6 +25,7 @@ import com.android.sdklib.internal.build.DebugKeyProvider.KeytoolException;
 import org.eclipse.jface.preference.BooleanFieldEditor;
 import org.eclipse.jface.preference.FieldEditorPreferencePage;
 import org.eclipse.jface.preference.FileFieldEditor;
+import org.eclipse.jface.preference.IntegerFieldEditor;
 import org.eclipse.jface.preference.RadioGroupFieldEditor;
 import org.eclipse.jface.preference.StringFieldEditor;
 import org.eclipse.swt.widgets.Composite;
@@ -62,6 +63,12 @@ public class BuildPreferencePage extends FieldEditorPreferencePage implements
                 "Force error when external jars contain native libraries",
                 getFieldEditorParent()));
 
+        IntegerFieldEditor processCount = new IntegerFieldEditor(
+                AdtPrefs.PREFS_BUILD_PROCESS_COUNT,
+                Messages.BuildPreferencePage_Process_Count, getFieldEditorParent());
+        processCount.setValidRange(1, 64);
+        addField(processCount);
+
         RadioGroupFieldEditor rgfe = new RadioGroupFieldEditor(
                 AdtPrefs.PREFS_BUILD_VERBOSITY,
                 Messages.BuildPreferencePage_Build_Output, 1, new String[][] {
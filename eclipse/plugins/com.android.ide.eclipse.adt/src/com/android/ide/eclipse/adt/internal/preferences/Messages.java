@@ -22,6 +22,8 @@ public class Messages extends NLS {
 
     public static String BuildPreferencePage_Normal;
 
+    public static String BuildPreferencePage_Process_Count;
+
     public static String BuildPreferencePage_Silent;
 
     public static String BuildPreferencePage_Title;
@@ -461,6 +461,12 @@ public class DeviceView extends ViewPart implements IUiSelectionListener, IClien
                     super.open(tempPath);
                 }
             }
+
+            @Override
+            protected boolean openPartial(String tempPath, int length) {
+                // the traceview editor needs the complete file.
+                return false;
+            }
         });
     }
 
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.internal.build;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Compares the time {@link SignedJarBuilder} takes to copy the content of an APK into another
+ * one, with and without recompressing its entries.
+ * <p/>
+ * The APK is the one given on the command line, or else a generated archive with the size and
+ * the kind of content of the resource package of a large application. The first iterations
+ * warm up the JIT and are not measured.
+ */
+public class WriteZipBenchmark {
+
+    private static final int DEFAULT_ITERATIONS = 5;
+    private static final int WARMUP_ITERATIONS = 2;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 || (args.length == 1 && new File(args[0]).isFile() == false)) {
+            System.err.printf("Usage: java %s [apk]%n", WriteZipBenchmark.class.getName());
+            System.exit(1);
+        }
+
+        File input = null;
+        File output = File.createTempFile("benchmark", ".apk"); //$NON-NLS-1$ //$NON-NLS-2$
+        try {
+            if (args.length == 1) {
+                input = new File(args[0]);
+            } else {
+                input = File.createTempFile("resources", ".apk"); //$NON-NLS-1$ //$NON-NLS-2$
+                createLargeInput(input);
+            }
+
+            long[] streamTimes = new long[DEFAULT_ITERATIONS];
+            long[] rawTimes = new long[DEFAULT_ITERATIONS];
+            for (int i = -WARMUP_ITERATIONS; i < DEFAULT_ITERATIONS; i++) {
+                long streamTime = writeZip(input, output, false);
+                long rawTime = writeZip(input, output, true);
+                if (i >= 0) {
+                    streamTimes[i] = streamTime;
+                    rawTimes[i] = rawTime;
+                }
+            }
+
+            Arrays.sort(streamTimes);
+            Arrays.sort(rawTimes);
+            System.out.printf("%s (%d KB): median %d ms with recompression, %d ms without%n",
+                    input.getName(), input.length() / 1024,
+                    streamTimes[DEFAULT_ITERATIONS / 2], rawTimes[DEFAULT_ITERATIONS / 2]);
+        } finally {
+            output.delete();
+            if (input != null && args.length == 0) {
+                input.delete();
+            }
+        }
+    }
+
+    /**
+     * Copies an archive with
+     * {@link SignedJarBuilder#writeZip(File, SignedJarBuilder.IZipEntryFilter)} if <var>raw</var>
+     * is true, or else through a stream, which compresses the entries again.
+     * @return the time it took, in milliseconds.
+     */
+    private static long writeZip(File input, File output, boolean raw) throws Exception {
+        long start = System.currentTimeMillis();
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(output),
+                null, null);
+        if (raw) {
+            builder.writeZip(input, null);
+        } else {
+            FileInputStream fis = new FileInputStream(input);
+            try {
+                builder.writeZip(fis, null);
+            } finally {
+                fis.close();
+            }
+        }
+        builder.close();
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Creates an archive with the size and the kind of content of the resource package of a
+     * large application: a 4MB resources.arsc, 1000 png files, 1000 layouts and 20 assets.
+     */
+    private static void createLargeInput(File file) throws IOException {
+        Random random = new Random(0);
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            zos.setLevel(9);
+            addEntry(zos, "AndroidManifest.xml", getText(random, 20000), false);
+            addEntry(zos, "resources.arsc", getText(random, 4 * 1024 * 1024), false);
+            for (int i = 0 ; i < 1000 ; i++) {
+                addEntry(zos, "res/drawable/image" + i + ".png", //$NON-NLS-1$ //$NON-NLS-2$
+                        getBytes(random, 8000), true);
+            }
+            for (int i = 0 ; i < 1000 ; i++) {
+                addEntry(zos, "res/layout/layout" + i + ".xml", //$NON-NLS-1$ //$NON-NLS-2$
+                        getText(random, 6000), false);
+            }
+            for (int i = 0 ; i < 20 ; i++) {
+                addEntry(zos, "assets/data" + i + ".txt", //$NON-NLS-1$ //$NON-NLS-2$
+                        getText(random, 500000), false);
+            }
+        } finally {
+            zos.close();
+        }
+    }
+
+    private static void addEntry(ZipOutputStream zos, String name, byte[] content,
+            boolean stored) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        zos.putNextEntry(entry);
+        zos.write(content);
+        zos.closeEntry();
+    }
+
+    /** Returns compressible content: random words from a small vocabulary. */
+    private static byte[] getText(Random random, int size) {
+        String[] words = new String[] { "android", "layout", "width", "height", "match_parent",
+                "wrap_content", "id", "text", "<", "/>", "=", "\"", "\n", " ", " ", " " };
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            sb.append(words[random.nextInt(words.length)]);
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes();
+    }
+
+    /** Returns content that does not compress, like the content of a png file. */
+    private static byte[] getBytes(Random random, int size) {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.internal.repository;
+
+import com.android.sdklib.IAndroidTarget;
+import com.android.sdklib.SdkConstants;
+import com.android.sdklib.SdkManager;
+import com.android.sdklib.repository.SdkRepoConstants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Measures the time {@link ArchiveInstaller} takes to install a large archive, for several
+ * numbers of threads extracting its files.
+ * <p/>
+ * The archive is a generated extra package served by a local repository, with
+ * <code>file:</code> URLs, so that it is fetched, checked and extracted the way the SDK Manager
+ * installs a downloaded archive. The files of the archive are of random sizes, half of them
+ * compressible text and half random bytes, like the binaries of the platform packages. The
+ * first iterations warm up the JIT and are not measured.
+ */
+public class UnzipBenchmark {
+
+    private static final int DEFAULT_FILE_COUNT = 3000;
+    private static final int[] DEFAULT_THREAD_COUNTS = new int[] { 1, 4 };
+    private static final int MAX_FILE_SIZE = 128 * 1024;
+    private static final int DEFAULT_ITERATIONS = 3;
+    private static final int WARMUP_ITERATIONS = 1;
+
+    /** An {@link ArchiveInstaller} with a given number of threads, timing the extraction. */
+    private static class TimedArchiveInstaller extends ArchiveInstaller {
+        private final int mThreadCount;
+        private long mUnzipTime;
+
+        public TimedArchiveInstaller(int threadCount) {
+            mThreadCount = threadCount;
+        }
+
+        @Override
+        protected boolean unzipFolder(File archiveFile, long compressedSize,
+                File unzipDestFolder, String description, ITaskMonitor monitor) {
+            long start = System.currentTimeMillis();
+            try {
+                return super.unzipFolder(archiveFile, compressedSize, unzipDestFolder,
+                        description, monitor);
+            } finally {
+                mUnzipTime = System.currentTimeMillis() - start;
+            }
+        }
+
+        @Override
+        protected int getUnzipThreadCount() {
+            return mThreadCount;
+        }
+    }
+
+    /** An empty SDK, without any target. */
+    private static class EmptySdkManager extends SdkManager {
+        public EmptySdkManager(String osSdkPath) {
+            super(osSdkPath);
+            setTargets(new IAndroidTarget[0]);
+        }
+    }
+
+    /** A monitor without UI, which keeps the results to report the errors. */
+    private static class BenchmarkMonitor implements ITaskMonitor {
+        private final StringBuilder mResults = new StringBuilder();
+
+        public void setDescription(String descriptionFormat, Object... args) {
+        }
+
+        public void setResult(String resultFormat, Object... args) {
+            mResults.append(String.format(resultFormat, args)).append('\n');
+        }
+
+        public void setProgressMax(int max) {
+        }
+
+        public void incProgress(int delta) {
+        }
+
+        public int getProgress() {
+            return 0;
+        }
+
+        public boolean isCancelRequested() {
+            return false;
+        }
+
+        public ITaskMonitor createSubMonitor(int tickCount) {
+            return this;
+        }
+
+        public boolean displayPrompt(String title, String message) {
+            return false;
+        }
+
+        public String getResults() {
+            return mResults.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = DEFAULT_FILE_COUNT;
+        int[] threadCounts = DEFAULT_THREAD_COUNTS;
+        try {
+            if (args.length > 0) {
+                fileCount = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                threadCounts = new int[args.length - 1];
+                for (int i = 1; i < args.length; i++) {
+                    threadCounts[i - 1] = Integer.parseInt(args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            // reported as a usage error below.
+            fileCount = 0;
+        }
+        if (fileCount <= 0) {
+            System.err.printf("Usage: java %s [file-count] [thread-count...]%n",
+                    UnzipBenchmark.class.getName());
+            System.exit(1);
+        }
+
+        File tempDir = File.createTempFile("benchmark", null); //$NON-NLS-1$
+        tempDir.delete();
+        tempDir.mkdir();
+        try {
+            File archiveFile = new File(tempDir, "extra.zip"); //$NON-NLS-1$
+            createArchive(archiveFile, fileCount);
+            File repoFile = new File(tempDir, "repository.xml"); //$NON-NLS-1$
+            createRepository(repoFile, archiveFile);
+            System.out.printf("archive: %d files, %d MB%n", fileCount,
+                    archiveFile.length() >> 20);
+
+            BenchmarkMonitor monitor = new BenchmarkMonitor();
+            SdkRepoSource source = new SdkRepoSource(repoFile.toURI().toString(),
+                    "benchmark"); //$NON-NLS-1$
+            source.load(monitor, false /*forceHttp*/);
+            if (source.getPackages() == null || source.getPackages().length != 1) {
+                System.err.printf("Failed to load %s: %s%n%s", repoFile,
+                        source.getFetchError(), monitor.getResults());
+                System.exit(1);
+            }
+            Archive archive = source.getPackages()[0].getArchives()[0];
+
+            File sdkRoot = new File(tempDir, "sdk"); //$NON-NLS-1$
+            sdkRoot.mkdir();
+            SdkManager sdkManager = new EmptySdkManager(sdkRoot.getPath());
+
+            long[][] installTimes = new long[threadCounts.length][DEFAULT_ITERATIONS];
+            long[][] unzipTimes = new long[threadCounts.length][DEFAULT_ITERATIONS];
+            for (int i = -WARMUP_ITERATIONS; i < DEFAULT_ITERATIONS; i++) {
+                // the thread counts take turns, so that they see the same state of the disk.
+                for (int t = 0; t < threadCounts.length; t++) {
+                    OsHelper.deleteFileOrFolder(new File(sdkRoot, SdkConstants.FD_EXTRAS));
+
+                    TimedArchiveInstaller installer = new TimedArchiveInstaller(threadCounts[t]);
+                    long start = System.currentTimeMillis();
+                    if (installer.install(archive, sdkRoot.getPath(), false /*forceHttp*/,
+                            sdkManager, monitor) == false) {
+                        System.err.printf("Failed to install the archive:%n%s",
+                                monitor.getResults());
+                        System.exit(1);
+                    }
+                    if (i >= 0) {
+                        installTimes[t][i] = System.currentTimeMillis() - start;
+                        unzipTimes[t][i] = installer.mUnzipTime;
+                    }
+                }
+            }
+
+            for (int t = 0; t < threadCounts.length; t++) {
+                Arrays.sort(installTimes[t]);
+                Arrays.sort(unzipTimes[t]);
+                System.out.printf("%d threads: median %d ms to install, %d ms to extract%n",
+                        threadCounts[t], installTimes[t][DEFAULT_ITERATIONS / 2],
+                        unzipTimes[t][DEFAULT_ITERATIONS / 2]);
+            }
+        } finally {
+            OsHelper.deleteFileOrFolder(tempDir);
+        }
+    }
+
+    /**
+     * Creates the archive of an extra package, with all its files in a root folder, as the
+     * archives of the repository are.
+     */
+    private static void createArchive(File file, int fileCount) throws IOException {
+        Random random = new Random(0);
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            zos.putNextEntry(new ZipEntry("extra/")); //$NON-NLS-1$
+            for (int i = 0; i < fileCount; i++) {
+                zos.putNextEntry(new ZipEntry(
+                        "extra/folder" + (i % 20) + "/file" + i)); //$NON-NLS-1$ //$NON-NLS-2$
+                int size = random.nextInt(MAX_FILE_SIZE);
+                zos.write(i % 2 == 0 ? getText(random, size) : getBytes(random, size));
+            }
+        } finally {
+            zos.close();
+        }
+    }
+
+    /**
+     * Creates a repository with a single extra package, whose archive is the given file.
+     */
+    private static void createRepository(File file, File archiveFile) throws Exception {
+        String xml = String.format(
+                "<?xml version=\"1.0\"?>\n" +                                   //$NON-NLS-1$
+                "<sdk:sdk-repository xmlns:sdk=\"%1$s\">\n" +                   //$NON-NLS-1$
+                "    <sdk:extra>\n" +                                           //$NON-NLS-1$
+                "        <sdk:vendor>benchmark</sdk:vendor>\n" +                //$NON-NLS-1$
+                "        <sdk:path>unzip</sdk:path>\n" +                        //$NON-NLS-1$
+                "        <sdk:revision>1</sdk:revision>\n" +                    //$NON-NLS-1$
+                "        <sdk:archives>\n" +                                    //$NON-NLS-1$
+                "            <sdk:archive os=\"any\" arch=\"any\">\n" +         //$NON-NLS-1$
+                "                <sdk:size>%2$d</sdk:size>\n" +                 //$NON-NLS-1$
+                "                <sdk:checksum type=\"sha1\">%3$s</sdk:checksum>\n" + //$NON-NLS-1$
+                "                <sdk:url>%4$s</sdk:url>\n" +                   //$NON-NLS-1$
+                "            </sdk:archive>\n" +                                //$NON-NLS-1$
+                "        </sdk:archives>\n" +                                   //$NON-NLS-1$
+                "    </sdk:extra>\n" +                                          //$NON-NLS-1$
+                "</sdk:sdk-repository>\n",                                      //$NON-NLS-1$
+                SdkRepoConstants.NS_URI, archiveFile.length(),
+                getSha1(archiveFile), archiveFile.toURI().toString());
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(xml.getBytes("UTF-8")); //$NON-NLS-1$
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static String getSha1(File file) throws Exception {
+        MessageDigest digester = MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digester.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digester.digest()) {
+            sb.append(String.format("%02x", b & 0x0FF)); //$NON-NLS-1$
+        }
+        return sb.toString();
+    }
+
+    /** Returns compressible content: random words from a small vocabulary. */
+    private static byte[] getText(Random random, int size) {
+        String[] words = new String[] { "android", "layout", "width", "height", "class",
+                "public", "void", "int", "(", ")", ";", "{", "}", "\n", " ", " " };
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            sb.append(words[random.nextInt(words.length)]);
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes();
+    }
+
+    /** Returns content that does not compress, like the content of a binary. */
+    private static byte[] getBytes(Random random, int size) {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        return content;
+    }
+}
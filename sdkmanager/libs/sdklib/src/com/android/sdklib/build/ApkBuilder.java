@@ -24,7 +24,6 @@ import com.android.sdklib.internal.build.DebugKeyProvider.KeytoolException;
 import com.android.sdklib.internal.build.SignedJarBuilder.IZipEntryFilter;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -46,6 +45,9 @@ import java.util.regex.Pattern;
  * - Java resources coming from the project, its libraries, and its jar files
  * - Native libraries from the project or its library.
  *
+ * In incremental mode, the APK built previously is updated rather than rebuilt from scratch, see
+ * {@link #setIncrementalMode(boolean)}.
+ *
  */
 public final class ApkBuilder {
 
@@ -80,10 +82,11 @@ public final class ApkBuilder {
     /**
      * Custom {@link IZipEntryFilter} to filter out everything that is not a standard java
      * resources, and also record whether the zip file contains native libraries.
-     * <p/>Used in {@link SignedJarBuilder#writeZip(java.io.InputStream, IZipEntryFilter)} when
+     * <p/>Used in {@link SignedJarBuilder#writeZip(File, IZipEntryFilter)} when
      * we only want the java resources from external jars.
      */
     private final class JavaAndNativeResourceFilter implements IZipEntryFilter {
+        private final List<String> mResources = new ArrayList<String>();
         private final List<String> mNativeLibs = new ArrayList<String>();
         private boolean mNativeLibsConflict = false;
         private File mInputFile;
@@ -123,6 +126,8 @@ public final class ApkBuilder {
                     mAddedFiles.put(archivePath, mInputFile);
                 }
 
+                mResources.add(archivePath);
+
                 if (archivePath.endsWith(".so")) {
                     mNativeLibs.add(archivePath);
 
@@ -138,6 +143,10 @@ public final class ApkBuilder {
             return check;
         }
 
+        List<String> getResources() {
+            return mResources;
+        }
+
         List<String> getNativeLibs() {
             return mNativeLibs;
         }
@@ -148,6 +157,7 @@ public final class ApkBuilder {
 
         void reset(File inputFile) {
             mInputFile = inputFile;
+            mResources.clear();
             mNativeLibs.clear();
             mNativeLibsConflict = false;
         }
@@ -157,10 +167,22 @@ public final class ApkBuilder {
     private File mResFile;
     private File mDexFile;
     private PrintStream mVerboseStream;
+    private PrivateKey mKey;
+    private X509Certificate mCertificate;
+    /** the builder, created when the packaging starts with {@link #startPackaging()}. */
     private SignedJarBuilder mBuilder;
     private boolean mDebugMode = false;
+    private boolean mIncremental = false;
+    private int mThreadCount = 1;
     private boolean mIsSealed = false;
 
+    /** the state of the APK built previously, when packaging incrementally. */
+    private PackagingState mPreviousState;
+    /** the state of the APK being built, when packaging incrementally. */
+    private PackagingState mState;
+    /** the APK built previously, moved out of the way while it's being updated. */
+    private File mPreviousApk;
+
     private final NullZipFilter mNullFilter = new NullZipFilter();
     private final JavaAndNativeResourceFilter mFilter = new JavaAndNativeResourceFilter();
     private final HashMap<String, File> mAddedFiles = new HashMap<String, File>();
@@ -434,13 +456,62 @@ public final class ApkBuilder {
                 mDexFile = null;
             }
             mVerboseStream = verboseStream;
+            mKey = key;
+            mCertificate = certificate;
+
+            verbosePrintln("Packaging %s", mApkFile.getName());
+        } catch (ApkCreationException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ApkCreationException(e);
+        }
+    }
+
+    /**
+     * Starts the packaging, if it's not started already. This is done lazily, on the first
+     * addition to the APK, so that the packaging mode can be set after the creation.
+     * <p/>This creates the {@link SignedJarBuilder}, and adds the resources and the dex file.
+     */
+    private void startPackaging() throws ApkCreationException, SealedApkException {
+        if (mBuilder != null) {
+            return;
+        }
+
+        try {
+            File stateFile = PackagingState.getStateFile(mApkFile);
+            File previousApk = new File(mApkFile.getParentFile(),
+                    mApkFile.getName() + ".previous"); //$NON-NLS-1$
+
+            // a left over of a packaging that failed.
+            previousApk.delete();
+
+            if (mIncremental) {
+                mPreviousState = PackagingState.read(mApkFile);
+                if (mPreviousState != null && mApkFile.renameTo(previousApk)) {
+                    mPreviousApk = previousApk;
+                } else {
+                    mPreviousState = null;
+                }
+                mState = new PackagingState();
+            }
+
+            // the state is saved again once the APK is sealed.
+            stateFile.delete();
 
             mBuilder = new SignedJarBuilder(
-                    new FileOutputStream(mApkFile, false /* append */), key,
-                    certificate);
+                    new FileOutputStream(mApkFile, false /* append */), mKey,
+                    mCertificate);
+            mBuilder.setThreadCount(mThreadCount);
 
-            verbosePrintln("Packaging %s", mApkFile.getName());
+            if (mPreviousApk != null &&
+                    mBuilder.setPreviousArchive(mPreviousApk) == false) {
+                mPreviousState = null;
+            }
+        } catch (Exception e) {
+            throw new ApkCreationException(e, "Failed to create %s", mApkFile);
+        }
 
+        try {
             // add the resources
             addZipFile(mResFile);
 
@@ -448,10 +519,8 @@ public final class ApkBuilder {
             if (mDexFile != null) {
                 addFile(mDexFile, SdkConstants.FN_APK_CLASSES_DEX);
             }
-
-        } catch (ApkCreationException e) {
-            throw e;
-        } catch (Exception e) {
+        } catch (DuplicateFileException e) {
+            // the APK is empty at this point.
             throw new ApkCreationException(e);
         }
     }
@@ -473,6 +542,68 @@ public final class ApkBuilder {
         mDebugMode = debugMode;
     }
 
+    /**
+     * Sets the incremental mode. In incremental mode, the APK is updated rather than rebuilt
+     * from scratch: the entries whose file has not changed since the previous packaging are
+     * copied from the previous APK as is, with their compressed data and their digest.
+     *
+     * A file is considered unchanged if it has the same path, length and modification date.
+     * When only its modification date changed, its content is checked against the digest of the
+     * previous APK, if it is signed.
+     *
+     * The resources found in the jars given to {@link #addResourcesFromJar(File)} are indexed.
+     * The resources of a jar with the same path, length and modification date are copied from
+     * the previous APK, without the jar being scanned again.
+     *
+     * The files the APK was packaged from are saved next to it, in a <code>.state</code> file.
+     * When there is no such file, or when the APK was modified since, the APK is built from
+     * scratch. The resulting APK has the same content whatever the mode.
+     *
+     * This must be called before anything is added to the APK.
+     *
+     * @param incremental the incremental mode flag.
+     * @throws SealedApkException if the APK is already sealed.
+     * @throws IllegalStateException if the packaging has already started.
+     */
+    public void setIncrementalMode(boolean incremental) throws SealedApkException {
+        if (mIsSealed) {
+            throw new SealedApkException("APK is already sealed");
+        }
+
+        if (mBuilder != null) {
+            throw new IllegalStateException("Packaging has already started");
+        }
+
+        mIncremental = incremental;
+    }
+
+    /**
+     * Sets the number of threads compressing and digesting the files added to the APK.
+     *
+     * The APK is the same whatever the number of threads. The default is 1, in which case the
+     * files are compressed and digested one after the other as they are added.
+     *
+     * @param threadCount the number of threads.
+     * @throws ApkCreationException if an error occurred
+     * @throws SealedApkException if the APK is already sealed.
+     * @see SignedJarBuilder#setThreadCount(int)
+     */
+    public void setThreadCount(int threadCount) throws ApkCreationException, SealedApkException {
+        if (mIsSealed) {
+            throw new SealedApkException("APK is already sealed");
+        }
+
+        mThreadCount = threadCount;
+
+        if (mBuilder != null) {
+            try {
+                mBuilder.setThreadCount(threadCount);
+            } catch (Exception e) {
+                throw new ApkCreationException(e, "Failed to set the thread count");
+            }
+        }
+    }
+
     /**
      * Adds a file to the APK at a given path
      * @param file the file to add
@@ -488,6 +619,8 @@ public final class ApkBuilder {
             throw new SealedApkException("APK is already sealed");
         }
 
+        startPackaging();
+
         try {
             doAddFile(file, archivePath);
         } catch (DuplicateFileException e) {
@@ -512,6 +645,8 @@ public final class ApkBuilder {
             throw new SealedApkException("APK is already sealed");
         }
 
+        startPackaging();
+
         try {
             verbosePrintln("%s:", zipFile);
 
@@ -519,8 +654,7 @@ public final class ApkBuilder {
             mNullFilter.reset(zipFile);
 
             // ask the builder to add the content of the file.
-            FileInputStream fis = new FileInputStream(zipFile);
-            mBuilder.writeZip(fis, mNullFilter);
+            mBuilder.writeZip(zipFile, mNullFilter);
         } catch (DuplicateFileException e) {
             throw e;
         } catch (Exception e) {
@@ -544,16 +678,31 @@ public final class ApkBuilder {
             throw new SealedApkException("APK is already sealed");
         }
 
+        startPackaging();
+
         try {
             verbosePrintln("%s:", jarFile);
 
+            // an unchanged jar is merged from its index, without scanning it.
+            if (mState != null) {
+                JarStatus status = addResourcesFromIndex(jarFile);
+                if (status != null) {
+                    return status;
+                }
+            }
+
             // reset the filter with this input.
             mFilter.reset(jarFile);
 
             // ask the builder to add the content of the file, filtered to only let through
             // the java resources.
-            FileInputStream fis = new FileInputStream(jarFile);
-            mBuilder.writeZip(fis, mFilter);
+            mBuilder.writeZip(jarFile, mFilter);
+
+            if (mState != null) {
+                mState.putJar(new PackagingState.Jar(new PackagingState.Source(jarFile),
+                        new ArrayList<String>(mFilter.getResources()),
+                        new ArrayList<String>(mFilter.getNativeLibs())));
+            }
 
             // check if native libraries were found in the external library. This should
             // constitutes an error or warning depending on if they are in lib/
@@ -579,6 +728,8 @@ public final class ApkBuilder {
             throw new SealedApkException("APK is already sealed");
         }
 
+        startPackaging();
+
         if (sourceFolder.isDirectory()) {
             try {
                 // file is a directory, process its content.
@@ -623,6 +774,8 @@ public final class ApkBuilder {
             throw new SealedApkException("APK is already sealed");
         }
 
+        startPackaging();
+
         if (nativeFolder.isDirectory() == false) {
             // not a directory? check if it's a file or doesn't exist
             if (nativeFolder.exists()) {
@@ -687,12 +840,22 @@ public final class ApkBuilder {
             throw new SealedApkException("APK is already sealed");
         }
 
+        startPackaging();
+
         // close and sign the application package.
         try {
             mBuilder.close();
             mIsSealed = true;
+
+            if (mState != null) {
+                mState.write(mApkFile);
+            }
         } catch (Exception e) {
             throw new ApkCreationException(e, "Failed to seal APK");
+        } finally {
+            if (mPreviousApk != null) {
+                mPreviousApk.delete();
+            }
         }
     }
 
@@ -707,6 +870,50 @@ public final class ApkBuilder {
         }
     }
 
+    /**
+     * Adds the resources of a jar which has not changed since the previous packaging, by
+     * copying them from the previous APK.
+     * @param jarFile the jar file.
+     * @return the status of the jar, or <code>null</code> if the jar changed or its resources
+     * could not be copied, in which case nothing was added to the APK.
+     * @throws DuplicateFileException if a file conflicts with another already added to the APK
+     *                                   at the same location inside the APK archive.
+     * @throws IOException
+     */
+    private JarStatus addResourcesFromIndex(File jarFile)
+            throws DuplicateFileException, IOException {
+        PackagingState.Jar jar = mPreviousState != null ? mPreviousState.getJar(jarFile) : null;
+        if (jar == null || jar.source.isSameAs(new PackagingState.Source(jarFile)) == false) {
+            return null;
+        }
+
+        for (String archivePath : jar.resources) {
+            File duplicate = checkFileForDuplicate(archivePath);
+            if (duplicate != null) {
+                throw new DuplicateFileException(archivePath, duplicate, jarFile);
+            }
+        }
+
+        if (mBuilder.copyPreviousEntries(jar.resources) == false) {
+            return null;
+        }
+
+        boolean nativeLibsConflict = false;
+        for (String archivePath : jar.resources) {
+            verbosePrintln("=> %s", archivePath);
+            mAddedFiles.put(archivePath, jarFile);
+
+            // only .so located in lib/ will interfere with the installation
+            if (archivePath.endsWith(".so") &&
+                    archivePath.startsWith(SdkConstants.FD_APK_NATIVE_LIBS + "/")) {
+                nativeLibsConflict = true;
+            }
+        }
+
+        mState.putJar(jar);
+        return new JarStatusImpl(jar.nativeLibs, nativeLibsConflict);
+    }
+
     private void doAddFile(File file, String archivePath) throws DuplicateFileException,
             IOException {
         verbosePrintln("%1$s => %2$s", file, archivePath);
@@ -717,6 +924,26 @@ public final class ApkBuilder {
         }
 
         mAddedFiles.put(archivePath, file);
+
+        if (mState != null) {
+            PackagingState.Source source = new PackagingState.Source(file);
+            mState.put(archivePath, source);
+
+            PackagingState.Source previous =
+                    mPreviousState != null ? mPreviousState.get(archivePath) : null;
+            if (previous != null) {
+                if (previous.isSameAs(source)) {
+                    if (mBuilder.copyPreviousEntry(archivePath)) {
+                        return;
+                    }
+                } else if (previous.isSameFileAs(source)) {
+                    if (mBuilder.copyPreviousEntry(archivePath, file)) {
+                        return;
+                    }
+                }
+            }
+        }
+
         mBuilder.writeFile(file, archivePath);
     }
 
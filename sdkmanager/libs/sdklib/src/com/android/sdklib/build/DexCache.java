@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.build;
+
+import com.android.prefs.AndroidLocation;
+import com.android.prefs.AndroidLocation.AndroidLocationException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A cache of the dex files created by dx, keyed by the content of their inputs and by the
+ * options given to dx.
+ * <p/>
+ * Converting the same class folders and library jars with the same dx and the same options
+ * always creates the same dex file, so a dex file found in the cache is copied to the output
+ * instead of running dx again. This happens when switching back and forth between branches or
+ * build configurations, when rebuilding after a clean, and for projects sharing the same inputs.
+ * <p/>
+ * The inputs are identified by the content of their files, and not by their modification date.
+ * The digest of each file is kept in memory along with its length and modification date, so
+ * that a file that did not change is not read again when the cache is used by a long running
+ * process.
+ * <p/>
+ * The cache only holds a limited number of dex files. The least recently used ones are
+ * deleted when new ones are added.
+ */
+public final class DexCache {
+
+    private final static String FOLDER_DEX_CACHE = "dex-cache"; //$NON-NLS-1$
+    private final static String EXT_DEX = ".dex"; //$NON-NLS-1$
+    private final static String EXT_TMP = ".tmp"; //$NON-NLS-1$
+    private final static String EXT_CLASS = ".class"; //$NON-NLS-1$
+    private final static String DIGEST_ALGORITHM = "SHA-1"; //$NON-NLS-1$
+    private final static String ENCODING = "UTF-8"; //$NON-NLS-1$
+
+    /** Default number of dex files kept in the cache. */
+    public final static int DEFAULT_MAX_ENTRIES = 20;
+
+    /** The digests of the files already read, by absolute path. */
+    private final static Map<String, FileDigest> sDigests = new HashMap<String, FileDigest>();
+
+    private final static class FileDigest {
+        final long length;
+        final long lastModified;
+        final byte[] digest;
+
+        FileDigest(long length, long lastModified, byte[] digest) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
+    private final File mFolder;
+    private final int mMaxEntries;
+
+    /**
+     * Returns the default cache, located in the android folder of the user.
+     * @throws AndroidLocationException if the android folder could not be found.
+     */
+    public static DexCache getDefault() throws AndroidLocationException {
+        return new DexCache(new File(AndroidLocation.getFolder() + FOLDER_DEX_CACHE),
+                DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a cache.
+     * @param folder the folder the dex files are stored in. It is created if needed.
+     * @param maxEntries the maximum number of dex files kept in the cache.
+     */
+    public DexCache(File folder, int maxEntries) {
+        mFolder = folder;
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the key of the dex file created from some inputs.
+     * @param dxTool the dx jar or executable. Its length and modification date are part of
+     * the key, so that a new version of dx does not use the dex files created by another one.
+     * @param options the options given to dx, such as <code>--no-locals</code>, in order. This
+     * must not include the options that do not change the dex file, such as the output path or
+     * <code>--verbose</code>, so that the dex file can be shared by callers writing it to
+     * different locations.
+     * @param inputPaths the paths of the class folders and jar files given to dx, in order.
+     * @return the key to give to {@link #restore(String, File)} and {@link #store(String, File)}
+     * @throws IOException if an input could not be read.
+     */
+    public String getKey(File dxTool, String[] options, String[] inputPaths)
+            throws IOException {
+        MessageDigest md = createDigest();
+        update(md, dxTool.getAbsolutePath() + "\t" + dxTool.length() + "\t" + //$NON-NLS-1$
+                dxTool.lastModified());
+
+        update(md, Integer.toString(options.length));
+        for (String option : options) {
+            update(md, option);
+        }
+
+        for (String inputPath : inputPaths) {
+            File input = new File(inputPath);
+            if (input.isDirectory()) {
+                update(md, "D"); //$NON-NLS-1$
+                updateFolder(md, input, ""); //$NON-NLS-1$
+            } else if (input.isFile()) {
+                update(md, "F"); //$NON-NLS-1$
+                md.update(getDigest(input));
+            } else {
+                // dx fails on missing inputs, but they still need to be part of the key.
+                update(md, "M" + input.getAbsolutePath()); //$NON-NLS-1$
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b & 0xFF)); //$NON-NLS-1$
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Copies a cached dex file to a given location.
+     * @param key the key of the dex file.
+     * @param dexFile the file to copy the dex file to.
+     * @return <code>true</code> if the cache contained the dex file.
+     * @throws IOException if the dex file could not be copied.
+     */
+    public boolean restore(String key, File dexFile) throws IOException {
+        File cachedFile = new File(mFolder, key + EXT_DEX);
+        if (cachedFile.isFile() == false) {
+            return false;
+        }
+
+        copy(cachedFile, dexFile);
+
+        // the modification date of the cached files is the date they were last used.
+        cachedFile.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Adds a dex file to the cache, and deletes the least recently used ones if there are too
+     * many dex files in the cache.
+     * @param key the key of the dex file, computed before the dex file was created.
+     * @param dexFile the dex file.
+     * @throws IOException if the dex file could not be copied.
+     */
+    public void store(String key, File dexFile) throws IOException {
+        if (mFolder.isDirectory() == false && mFolder.mkdirs() == false) {
+            throw new IOException("Failed to create " + mFolder.getAbsolutePath());
+        }
+
+        // copy to a temporary file first so that other processes never restore a partial file.
+        File tmpFile = File.createTempFile(key, EXT_TMP, mFolder);
+        try {
+            copy(dexFile, tmpFile);
+            File cachedFile = new File(mFolder, key + EXT_DEX);
+            cachedFile.delete();
+            if (tmpFile.renameTo(cachedFile) == false) {
+                throw new IOException("Failed to create " + cachedFile.getAbsolutePath());
+            }
+        } finally {
+            tmpFile.delete();
+        }
+
+        prune();
+    }
+
+    /**
+     * Deletes the least recently used dex files above the maximum number of dex files.
+     */
+    private void prune() {
+        File[] files = mFolder.listFiles();
+        if (files == null || files.length <= mMaxEntries) {
+            return;
+        }
+
+        // the most recently used first.
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 > m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(EXT_DEX) && ++count > mMaxEntries) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Adds the class files of a folder to a digest, in a stable order.
+     */
+    private void updateFolder(MessageDigest md, File folder, String relativePath)
+            throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+
+        for (File file : files) {
+            String path = relativePath + "/" + file.getName(); //$NON-NLS-1$
+            if (file.isDirectory()) {
+                updateFolder(md, file, path);
+            } else if (file.getName().endsWith(EXT_CLASS)) {
+                // dx ignores the other files of the folder.
+                update(md, path);
+                md.update(getDigest(file));
+            }
+        }
+    }
+
+    /**
+     * Returns the digest of the content of a file, reading it only if it changed since the
+     * last time its digest was computed.
+     */
+    private static byte[] getDigest(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        synchronized (sDigests) {
+            FileDigest digest = sDigests.get(path);
+            if (digest != null && digest.length == length &&
+                    digest.lastModified == lastModified) {
+                return digest.digest;
+            }
+        }
+
+        MessageDigest md = createDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                md.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+
+        byte[] digest = md.digest();
+        synchronized (sDigests) {
+            sDigests.put(path, new FileDigest(length, lastModified, digest));
+        }
+        return digest;
+    }
+
+    private static MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    private static void update(MessageDigest md, String value)
+            throws UnsupportedEncodingException {
+        md.update(value.getBytes(ENCODING));
+        md.update((byte) 0);
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        FileInputStream fis = new FileInputStream(from);
+        try {
+            FileOutputStream fos = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = fis.read(buffer)) != -1) {
+                    fos.write(buffer, 0, count);
+                }
+            } finally {
+                fos.close();
+            }
+        } finally {
+            fis.close();
+        }
+    }
+}
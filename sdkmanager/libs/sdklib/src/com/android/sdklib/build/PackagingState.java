@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.build;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The files an APK was packaged from, saved next to the APK so that the next incremental
+ * packaging can tell which entries of the APK are still up to date.
+ * <p/>
+ * The state also indexes the library jars the Java resources were taken from, so that the
+ * resources of an unchanged jar can be copied from the previous APK without scanning the jar.
+ * <p/>
+ * The state records the length and modification date of the APK itself. It is ignored if the
+ * APK was modified after it was saved.
+ *
+ * @see ApkBuilder#setIncrementalMode(boolean)
+ */
+final class PackagingState {
+
+    private final static String EXT_STATE = ".state"; //$NON-NLS-1$
+    private final static String HEADER = "# apk packaging state 2"; //$NON-NLS-1$
+
+    /** line of a file added to the APK */
+    private final static String TYPE_FILE = "F"; //$NON-NLS-1$
+    /** line of a jar whose resources were added to the APK, followed by its resources */
+    private final static String TYPE_JAR = "J"; //$NON-NLS-1$
+    /** line of a resource of the previous jar */
+    private final static String TYPE_RESOURCE = "R"; //$NON-NLS-1$
+    /** line of a resource of the previous jar which is a native library */
+    private final static String TYPE_NATIVE_LIB = "N"; //$NON-NLS-1$
+    private final static String ENCODING = "UTF-8"; //$NON-NLS-1$
+
+    /**
+     * A file added to the APK.
+     */
+    final static class Source {
+        final String path;
+        final long length;
+        final long lastModified;
+
+        Source(File file) {
+            this(file.getAbsolutePath(), file.length(), file.lastModified());
+        }
+
+        private Source(String path, long length, long lastModified) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns whether this is the same file, with the same length and modification date.
+         */
+        boolean isSameAs(Source source) {
+            return path.equals(source.path) && length == source.length &&
+                    lastModified == source.lastModified;
+        }
+
+        /**
+         * Returns whether this is the same file, with the same length. Its content may still
+         * be the same if only its modification date changed.
+         */
+        boolean isSameFileAs(Source source) {
+            return path.equals(source.path) && length == source.length;
+        }
+    }
+
+    /**
+     * A jar whose Java resources were added to the APK.
+     */
+    final static class Jar {
+        final Source source;
+        /** the entries of the jar added to the APK, in order */
+        final List<String> resources;
+        /** the resources which are native libraries */
+        final List<String> nativeLibs;
+
+        Jar(Source source, List<String> resources, List<String> nativeLibs) {
+            this.source = source;
+            this.resources = Collections.unmodifiableList(resources);
+            this.nativeLibs = Collections.unmodifiableList(nativeLibs);
+        }
+    }
+
+    /** the sources, by path in the APK */
+    private final Map<String, Source> mSources = new HashMap<String, Source>();
+    /** the jars, by path of the jar */
+    private final Map<String, Jar> mJars = new HashMap<String, Jar>();
+
+    /**
+     * Returns the file the state of a given APK is saved to.
+     */
+    static File getStateFile(File apkFile) {
+        return new File(apkFile.getParentFile(), apkFile.getName() + EXT_STATE);
+    }
+
+    /**
+     * Reads the state saved for an APK.
+     * @param apkFile the APK.
+     * @return the state, or <code>null</code> if there is none, or if it does not match the APK.
+     */
+    static PackagingState read(File apkFile) {
+        File stateFile = getStateFile(apkFile);
+        if (stateFile.isFile() == false || apkFile.isFile() == false) {
+            return null;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(stateFile), ENCODING));
+            try {
+                if (HEADER.equals(reader.readLine()) == false) {
+                    return null;
+                }
+
+                String[] apk = split(reader.readLine(), 2);
+                if (apk == null || Long.parseLong(apk[0]) != apkFile.length() ||
+                        Long.parseLong(apk[1]) != apkFile.lastModified()) {
+                    return null;
+                }
+
+                PackagingState state = new PackagingState();
+
+                // the jar being read, whose resources follow it.
+                Source jarSource = null;
+                List<String> resources = null;
+                List<String> nativeLibs = null;
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] values = split(line, 2);
+                    if (values == null) {
+                        return null;
+                    }
+
+                    String type = values[0];
+                    if (TYPE_RESOURCE.equals(type) || TYPE_NATIVE_LIB.equals(type)) {
+                        if (jarSource == null) {
+                            return null;
+                        }
+                        resources.add(values[1]);
+                        if (TYPE_NATIVE_LIB.equals(type)) {
+                            nativeLibs.add(values[1]);
+                        }
+                        continue;
+                    }
+
+                    if (jarSource != null) {
+                        state.putJar(new Jar(jarSource, resources, nativeLibs));
+                        jarSource = null;
+                    }
+
+                    if (TYPE_FILE.equals(type)) {
+                        // length, modification date, path in the APK and path of the file.
+                        values = split(values[1], 4);
+                        if (values == null) {
+                            return null;
+                        }
+                        state.mSources.put(values[2], new Source(values[3],
+                                Long.parseLong(values[0]), Long.parseLong(values[1])));
+                    } else if (TYPE_JAR.equals(type)) {
+                        // length, modification date and path of the jar.
+                        values = split(values[1], 3);
+                        if (values == null) {
+                            return null;
+                        }
+                        jarSource = new Source(values[2], Long.parseLong(values[0]),
+                                Long.parseLong(values[1]));
+                        resources = new ArrayList<String>();
+                        nativeLibs = new ArrayList<String>();
+                    } else {
+                        return null;
+                    }
+                }
+
+                if (jarSource != null) {
+                    state.putJar(new Jar(jarSource, resources, nativeLibs));
+                }
+                return state;
+            } finally {
+                reader.close();
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the state of an APK, which must be packaged already.
+     * @throws IOException
+     */
+    void write(File apkFile) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(getStateFile(apkFile)), ENCODING));
+        try {
+            writer.println(HEADER);
+            writer.println(apkFile.length() + "\t" + apkFile.lastModified());
+            for (Map.Entry<String, Source> entry : mSources.entrySet()) {
+                Source source = entry.getValue();
+                writer.println(TYPE_FILE + "\t" + source.length + "\t" + source.lastModified +
+                        "\t" + entry.getKey() + "\t" + source.path);
+            }
+            for (Jar jar : mJars.values()) {
+                writer.println(TYPE_JAR + "\t" + jar.source.length + "\t" +
+                        jar.source.lastModified + "\t" + jar.source.path);
+                for (String resource : jar.resources) {
+                    writer.println((jar.nativeLibs.contains(resource) ?
+                            TYPE_NATIVE_LIB : TYPE_RESOURCE) + "\t" + resource);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (writer.checkError()) {
+            throw new IOException("Failed to write " + getStateFile(apkFile));
+        }
+    }
+
+    /**
+     * Returns the file a given entry of the APK was added from, or <code>null</code>.
+     */
+    Source get(String archivePath) {
+        return mSources.get(archivePath);
+    }
+
+    void put(String archivePath, Source source) {
+        mSources.put(archivePath, source);
+    }
+
+    /**
+     * Returns the index of a jar whose resources were added to the APK, or <code>null</code>.
+     * @param jarFile the jar.
+     */
+    Jar getJar(File jarFile) {
+        return mJars.get(jarFile.getAbsolutePath());
+    }
+
+    void putJar(Jar jar) {
+        mJars.put(jar.source.path, jar);
+    }
+
+    private static String[] split(String line, int count) {
+        if (line == null) {
+            return null;
+        }
+        String[] values = line.split("\t", count); //$NON-NLS-1$
+        return values.length == count ? values : null;
+    }
+}
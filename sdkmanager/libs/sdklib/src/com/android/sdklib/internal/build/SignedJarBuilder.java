@@ -31,6 +31,7 @@ import java.io.FileInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.security.DigestOutputStream;
@@ -41,22 +42,48 @@ import java.security.PrivateKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
 /**
  * A Jar file builder with signature support.
+ * <p/>
+ * The entries of the archives given to {@link #writeZip(File, IZipEntryFilter)} are copied
+ * without being recompressed. When the archive is signed, their content is still inflated to
+ * compute the digests of the manifest, but the deflated data is written as is.
+ * <p/>
+ * With {@link #setThreadCount(int)}, the entries are compressed and digested in parallel. The
+ * archive is the same as when they are compressed and digested one after the other.
+ * <p/>
+ * With {@link #setPreviousArchive(File)}, the entries of an archive built previously can be
+ * copied with their digest, see {@link #copyPreviousEntry(String)}.
  */
 public class SignedJarBuilder {
     private static final String DIGEST_ALGORITHM = "SHA1";
     private static final String DIGEST_ATTR = "SHA1-Digest";
     private static final String DIGEST_MANIFEST_ATTR = "SHA1-Digest-Manifest";
+    private static final int COMPRESSION_LEVEL = 9;
+    private static final int BUFFER_SIZE = 65536;
+    /** the maximum size of the data of the entries waiting to be written, in bytes */
+    private static final long MAX_PENDING_SIZE = 32 * 1024 * 1024;
 
     /** Write to another stream and also feed it to the Signature object. */
     private static class SignatureOutputStream extends FilterOutputStream {
@@ -86,7 +113,8 @@ public class SignedJarBuilder {
             } catch (SignatureException e) {
                 throw new IOException("SignatureException: " + e);
             }
-            super.write(b, off, len);
+            // not super.write(), which would go through write(int) and sign the bytes again.
+            out.write(b, off, len);
             mCount += len;
         }
 
@@ -95,14 +123,60 @@ public class SignedJarBuilder {
         }
     }
 
-    private JarOutputStream mOutputJar;
+    private ZipArchiveOutputStream mOutputJar;
     private PrivateKey mKey;
     private X509Certificate mCertificate;
     private Manifest mManifest;
     private BASE64Encoder mBase64Encoder;
     private MessageDigest mMessageDigest;
 
-    private byte[] mBuffer = new byte[4096];
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+    /** buffer of the inflated content of the entries copied as is, for the digests */
+    private byte[] mInflaterBuffer;
+    private Inflater mInflater;
+
+    /** the workers compressing and digesting the entries, or <code>null</code> */
+    private ExecutorService mExecutor;
+    /** the entries being prepared by the workers, in the order they must be written */
+    private final LinkedList<PendingEntry> mPendingEntries = new LinkedList<PendingEntry>();
+    /** the total size of the data of {@link #mPendingEntries} */
+    private long mPendingSize;
+
+    /** the archive built previously, or <code>null</code> */
+    private ZipArchive mPreviousArchive;
+    /** the entries of {@link #mPreviousArchive}, by name */
+    private Map<String, ZipArchive.Entry> mPreviousEntries;
+    /** the encoded digests of the entries of {@link #mPreviousArchive}, by name */
+    private Map<String, String> mPreviousDigests;
+
+    /**
+     * An entry given to the workers, with the size of its data.
+     */
+    private static final class PendingEntry {
+        final Future<PreparedEntry> mFuture;
+        /** the size of the data of the entry, or of the file it is compressed from */
+        final long mSize;
+
+        PendingEntry(Future<PreparedEntry> future, long size) {
+            mFuture = future;
+            mSize = size;
+        }
+    }
+
+    /**
+     * An entry compressed and digested by a worker, which is written as is.
+     */
+    private static final class PreparedEntry {
+        String mName;
+        /** whether the data was deflated by the worker, rather than copied from an archive */
+        boolean mDeflated;
+        int mMethod;
+        int mDosTime;
+        long mCrc;
+        long mSize;
+        byte[] mData;
+        byte[] mDigest;
+    }
 
     /**
      * Classes which implement this interface provides a method to check whether a file should
@@ -158,8 +232,8 @@ public class SignedJarBuilder {
      */
     public SignedJarBuilder(OutputStream out, PrivateKey key, X509Certificate certificate)
             throws IOException, NoSuchAlgorithmException {
-        mOutputJar = new JarOutputStream(out);
-        mOutputJar.setLevel(9);
+        mOutputJar = new ZipArchiveOutputStream(out);
+        mOutputJar.setLevel(COMPRESSION_LEVEL);
         mKey = key;
         mCertificate = certificate;
 
@@ -174,22 +248,190 @@ public class SignedJarBuilder {
         }
     }
 
+    /**
+     * Sets the number of threads compressing and digesting the entries.
+     * <p/>With more than one thread, the files given to {@link #writeFile(File, String)} are
+     * read, compressed and digested by a pool of workers, and so are the entries of the archives
+     * given to {@link #writeZip(File, IZipEntryFilter)} when the archive is signed. The entries
+     * are still written in the order they were given, and the archive is the same as with a
+     * single thread, which is the default.
+     * @param threadCount the number of threads.
+     * @throws IOException if writing the entries already prepared failed.
+     */
+    public void setThreadCount(int threadCount) throws IOException {
+        writePendingEntries();
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+
+        if (threadCount > 1) {
+            mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SignedJarBuilder worker"); //$NON-NLS-1$
+                    // don't keep the VM alive if the archive is never closed.
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets an archive built previously by a {@link SignedJarBuilder}, whose entries can be
+     * copied with {@link #copyPreviousEntry(String)}.
+     * <p/>The digests of the manifest of the previous archive are also reused for the entries of
+     * the archives given to {@link #writeZip(File, IZipEntryFilter)} which are the same as in
+     * the previous archive, so that they don't need to be inflated.
+     * <p/>The previous archive must not be the output of this builder. It is kept open until
+     * {@link #close()}.
+     * @param previousArchive the previous archive.
+     * @return <code>true</code> if the entries of the previous archive can be copied.
+     * @throws IOException
+     */
+    public boolean setPreviousArchive(File previousArchive) throws IOException {
+        closePreviousArchive();
+
+        ZipArchive archive = ZipArchive.open(previousArchive);
+        if (archive == null) {
+            return false;
+        }
+
+        mPreviousArchive = archive;
+        mPreviousEntries = new HashMap<String, ZipArchive.Entry>();
+        for (ZipArchive.Entry entry : archive.getEntries()) {
+            mPreviousEntries.put(entry.getName(), entry);
+        }
+
+        mPreviousDigests = new HashMap<String, String>();
+        if (mManifest != null) {
+            JarFile jar = new JarFile(previousArchive, false /*verify*/);
+            try {
+                Manifest manifest = jar.getManifest();
+                if (manifest != null) {
+                    for (Map.Entry<String, Attributes> entry :
+                            manifest.getEntries().entrySet()) {
+                        String digest = entry.getValue().getValue(DIGEST_ATTR);
+                        if (digest != null) {
+                            mPreviousDigests.put(entry.getKey(), digest);
+                        }
+                    }
+                }
+            } finally {
+                jar.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies an entry of the archive set with {@link #setPreviousArchive(File)}, without
+     * reading its content. This must only be used for entries whose content has not changed.
+     * @param jarPath the filepath inside the archive.
+     * @return <code>false</code> if the entry cannot be copied, because it is not in the
+     * previous archive, or because the previous archive has no digest for it.
+     * @throws IOException
+     */
+    public boolean copyPreviousEntry(String jarPath) throws IOException {
+        if (hasPreviousEntry(jarPath) == false) {
+            return false;
+        }
+
+        ZipArchive.Entry entry = mPreviousEntries.get(jarPath);
+        String digest = mPreviousDigests.get(jarPath);
+
+        writePendingEntries();
+        mOutputJar.putRawEntry(jarPath, entry.getMethod(), entry.getDosTime(), entry.getCrc(),
+                entry.getCompressedSize(), entry.getSize());
+        copyEntry(mPreviousArchive.getRawData(entry));
+        putDigest(jarPath, digest);
+        return true;
+    }
+
+    /**
+     * Copies entries of the archive set with {@link #setPreviousArchive(File)}, all or none.
+     * @param jarPaths the filepaths inside the archive.
+     * @return <code>false</code> if one of the entries cannot be copied, in which case none
+     * is copied.
+     * @throws IOException
+     * @see #copyPreviousEntry(String)
+     */
+    public boolean copyPreviousEntries(List<String> jarPaths) throws IOException {
+        for (String jarPath : jarPaths) {
+            if (hasPreviousEntry(jarPath) == false) {
+                return false;
+            }
+        }
+
+        for (String jarPath : jarPaths) {
+            copyPreviousEntry(jarPath);
+        }
+        return true;
+    }
+
+    /**
+     * Copies an entry of the archive set with {@link #setPreviousArchive(File)} if the content
+     * of the given file is still the same, as checked against the digest of the previous
+     * manifest. The content of the file is read, but not compressed.
+     * <p/>This always returns <code>false</code> if the archive is not signed.
+     * @param jarPath the filepath inside the archive.
+     * @param inputFile the file the entry was created from.
+     * @return <code>false</code> if the entry was not copied.
+     * @throws IOException
+     * @see #copyPreviousEntry(String)
+     */
+    public boolean copyPreviousEntry(String jarPath, File inputFile) throws IOException {
+        if (mPreviousArchive == null || mManifest == null) {
+            return false;
+        }
+
+        String digest = mPreviousDigests.get(jarPath);
+        if (digest == null) {
+            return false;
+        }
+
+        FileInputStream fis = new FileInputStream(inputFile);
+        try {
+            int count;
+            while ((count = fis.read(mBuffer)) != -1) {
+                mMessageDigest.update(mBuffer, 0, count);
+            }
+        } finally {
+            fis.close();
+        }
+
+        if (digest.equals(mBase64Encoder.encode(mMessageDigest.digest())) == false) {
+            return false;
+        }
+
+        return copyPreviousEntry(jarPath);
+    }
+
     /**
      * Writes a new {@link File} into the archive.
      * @param inputFile the {@link File} to write.
      * @param jarPath the filepath inside the archive.
      * @throws IOException
      */
-    public void writeFile(File inputFile, String jarPath) throws IOException {
+    public void writeFile(final File inputFile, final String jarPath) throws IOException {
+        if (mExecutor != null) {
+            final int dosTime = ZipArchiveOutputStream.javaToDosTime(inputFile.lastModified());
+            addPendingEntry(new Callable<PreparedEntry>() {
+                public PreparedEntry call() throws Exception {
+                    return compressFile(inputFile, jarPath, dosTime);
+                }
+            }, inputFile.length());
+            return;
+        }
+        writePendingEntries();
+
         // Get an input stream on the file.
         FileInputStream fis = new FileInputStream(inputFile);
         try {
+            // add the entry to the jar archive
+            mOutputJar.putNextEntry(jarPath, inputFile.lastModified());
 
-            // create the zip entry
-            JarEntry entry = new JarEntry(jarPath);
-            entry.setTime(inputFile.lastModified());
-
-            writeEntry(fis, entry);
+            writeEntry(fis, jarPath);
         } finally {
             // close the file stream used to read the file
             fis.close();
@@ -198,6 +440,88 @@ public class SignedJarBuilder {
 
     /**
      * Copies the content of a Jar/Zip archive into the receiver archive.
+     * <p/>The entries are copied without being recompressed, unless the archive cannot be read
+     * through its central directory, in which case this is the same as
+     * {@link #writeZip(InputStream, IZipEntryFilter)}.
+     * <p/>An optional {@link IZipEntryFilter} allows to selectively choose which files
+     * to copy over.
+     * @param input the Jar/Zip {@link File} to copy.
+     * @param filter the filter or <code>null</code>
+     * @throws IOException
+     * @throws ZipAbortException if the {@link IZipEntryFilter} filter indicated that the write
+     *                           must be aborted.
+     */
+    public void writeZip(File input, IZipEntryFilter filter)
+            throws IOException, ZipAbortException {
+        ZipArchive archive = ZipArchive.open(input);
+        if (archive == null) {
+            writeZip(new FileInputStream(input), filter);
+            return;
+        }
+
+        // without digests, there is nothing for the workers to do.
+        boolean parallel = mExecutor != null && mManifest != null;
+        if (parallel == false) {
+            writePendingEntries();
+        }
+
+        try {
+            for (ZipArchive.Entry entry : archive.getEntries()) {
+                String name = entry.getName();
+
+                // do not take directories or anything inside a potential META-INF folder.
+                if (entry.isDirectory() || name.startsWith("META-INF/")) {
+                    continue;
+                }
+
+                // if we have a filter, we check the entry against it
+                if (filter != null && filter.checkEntry(name) == false) {
+                    continue;
+                }
+
+                // an entry which is the same as in the previous archive has the same digest.
+                String previousDigest = getPreviousDigest(entry);
+                if (previousDigest != null) {
+                    writePendingEntries();
+                    mOutputJar.putRawEntry(name, entry.getMethod(), entry.getDosTime(),
+                            entry.getCrc(), entry.getCompressedSize(), entry.getSize());
+                    copyEntry(archive.getRawData(entry));
+                    putDigest(name, previousDigest);
+                    continue;
+                }
+
+                if (parallel) {
+                    final ZipArchive.Entry archiveEntry = entry;
+                    final byte[] data = readFully(archive.getRawData(entry),
+                            (int) entry.getCompressedSize());
+                    addPendingEntry(new Callable<PreparedEntry>() {
+                        public PreparedEntry call() throws Exception {
+                            return digestEntry(archiveEntry, data);
+                        }
+                    }, data.length);
+                    continue;
+                }
+
+                mOutputJar.putRawEntry(name, entry.getMethod(), entry.getDosTime(),
+                        entry.getCrc(), entry.getCompressedSize(), entry.getSize());
+
+                InputStream data = archive.getRawData(entry);
+                if (mManifest != null && entry.getMethod() == ZipEntry.DEFLATED) {
+                    writeDeflatedEntry(data, entry);
+                } else {
+                    // no digest, or the data of a stored entry, which is its content.
+                    writeEntry(data, name);
+                }
+            }
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * Copies the content of a Jar/Zip archive into the receiver archive.
+     * <p/>Unlike {@link #writeZip(File, IZipEntryFilter)}, the entries are inflated and
+     * compressed again.
      * <p/>An optional {@link IZipEntryFilter} allows to selectively choose which files
      * to copy over.
      * @param input the {@link InputStream} for the Jar/Zip to copy.
@@ -208,6 +532,8 @@ public class SignedJarBuilder {
      */
     public void writeZip(InputStream input, IZipEntryFilter filter)
             throws IOException, ZipAbortException {
+        writePendingEntries();
+
         ZipInputStream zis = new ZipInputStream(input);
 
         try {
@@ -226,17 +552,20 @@ public class SignedJarBuilder {
                     continue;
                 }
 
-                JarEntry newEntry;
-
                 // Preserve the STORED method of the input entry.
-                if (entry.getMethod() == JarEntry.STORED) {
-                    newEntry = new JarEntry(entry);
+                if (entry.getMethod() == ZipEntry.STORED) {
+                    mOutputJar.putRawEntry(name, ZipEntry.STORED,
+                            ZipArchiveOutputStream.javaToDosTime(entry.getTime()),
+                            entry.getCrc(), entry.getSize(), entry.getSize());
                 } else {
-                    // Create a new entry so that the compressed len is recomputed.
-                    newEntry = new JarEntry(name);
+                    // Create a new entry so that the compressed len is recomputed. Keep the
+                    // time of the input so that the same input gives the same archive.
+                    long time = entry.getTime();
+                    mOutputJar.putNextEntry(name,
+                            time != -1 ? time : System.currentTimeMillis());
                 }
 
-                writeEntry(zis, newEntry);
+                writeEntry(zis, name);
 
                 zis.closeEntry();
             }
@@ -251,35 +580,47 @@ public class SignedJarBuilder {
      * @throws GeneralSecurityException
      */
     public void close() throws IOException, GeneralSecurityException {
+        try {
+            writePendingEntries();
+        } finally {
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+                mExecutor = null;
+            }
+            closePreviousArchive();
+        }
+
         if (mManifest != null) {
             // write the manifest to the jar file
-            mOutputJar.putNextEntry(new JarEntry(JarFile.MANIFEST_NAME));
+            long time = System.currentTimeMillis();
+            mOutputJar.putNextEntry(JarFile.MANIFEST_NAME, time);
             mManifest.write(mOutputJar);
 
             // CERT.SF
             Signature signature = Signature.getInstance("SHA1with" + mKey.getAlgorithm());
             signature.initSign(mKey);
-            mOutputJar.putNextEntry(new JarEntry("META-INF/CERT.SF"));
+            mOutputJar.putNextEntry("META-INF/CERT.SF", time);
             writeSignatureFile(new SignatureOutputStream(mOutputJar, signature));
 
             // CERT.*
-            mOutputJar.putNextEntry(new JarEntry("META-INF/CERT." + mKey.getAlgorithm()));
+            mOutputJar.putNextEntry("META-INF/CERT." + mKey.getAlgorithm(), time);
             writeSignatureBlock(signature, mCertificate, mKey);
         }
 
         mOutputJar.close();
+
+        if (mInflater != null) {
+            mInflater.end();
+        }
     }
 
     /**
-     * Adds an entry to the output jar, and write its content from the {@link InputStream}
+     * Writes the content of the current entry of the output jar from the {@link InputStream}
      * @param input The input stream from where to write the entry content.
-     * @param entry the entry to write in the jar.
+     * @param name the name of the entry in the jar.
      * @throws IOException
      */
-    private void writeEntry(InputStream input, JarEntry entry) throws IOException {
-        // add the entry to the jar archive
-        mOutputJar.putNextEntry(entry);
-
+    private void writeEntry(InputStream input, String name) throws IOException {
         // read the content of the entry from the input stream, and write it into the archive.
         int count;
         while ((count = input.read(mBuffer)) != -1) {
@@ -294,15 +635,330 @@ public class SignedJarBuilder {
         // close the entry for this file
         mOutputJar.closeEntry();
 
+        updateManifest(name, mMessageDigest != null ? mMessageDigest.digest() : null);
+    }
+
+    /**
+     * Writes the deflated data of the current entry of the output jar as is, and inflates it
+     * only to compute the digest of its content.
+     * @param input The input stream from where to write the deflated data.
+     * @param entry the entry of the input archive.
+     * @throws IOException
+     */
+    private void writeDeflatedEntry(InputStream input, ZipArchive.Entry entry)
+            throws IOException {
+        if (mInflater == null) {
+            mInflater = new Inflater(true /*nowrap*/);
+            mInflaterBuffer = new byte[65536];
+        } else {
+            mInflater.reset();
+        }
+
+        long size = 0;
+        try {
+            int count;
+            while ((count = input.read(mBuffer)) != -1) {
+                mOutputJar.write(mBuffer, 0, count);
+
+                mInflater.setInput(mBuffer, 0, count);
+                size += inflate(mInflater, mInflaterBuffer, mMessageDigest);
+            }
+
+            size += endInflate(mInflater, mInflaterBuffer, mMessageDigest, entry);
+        } catch (DataFormatException e) {
+            throw new ZipException(String.format("Invalid data for %1$s: %2$s",
+                    entry.getName(), e.getMessage()));
+        }
+
+        if (size != entry.getSize()) {
+            throw new ZipException("Invalid data for " + entry.getName());
+        }
+
+        mOutputJar.closeEntry();
+
+        updateManifest(entry.getName(), mMessageDigest.digest());
+    }
+
+    /**
+     * Inflates the input of <var>inflater</var>, and updates the digest with the result.
+     * @return the number of inflated bytes.
+     */
+    private static int inflate(Inflater inflater, byte[] buffer, MessageDigest digest)
+            throws DataFormatException {
+        int size = 0;
+        int count;
+        while ((count = inflater.inflate(buffer)) > 0) {
+            digest.update(buffer, 0, count);
+            size += count;
+        }
+        return size;
+    }
+
+    /**
+     * Ends the inflation of the data of <var>entry</var>, once all of it has been given to
+     * <var>inflater</var>.
+     * @return the number of inflated bytes.
+     */
+    private static int endInflate(Inflater inflater, byte[] buffer, MessageDigest digest,
+            ZipArchive.Entry entry) throws DataFormatException, ZipException {
+        int size = 0;
+        // with nowrap, the inflater may need an extra byte to finish.
+        if (inflater.finished() == false) {
+            inflater.setInput(new byte[1]);
+            size = inflate(inflater, buffer, digest);
+        }
+
+        if (inflater.finished() == false) {
+            throw new ZipException("Invalid data for " + entry.getName());
+        }
+        return size;
+    }
+
+    /**
+     * Adds the digest of an entry to the manifest.
+     * @param name the name of the entry in the jar.
+     * @param digest the digest of the content of the entry, <code>null</code> if the archive
+     * is not signed.
+     */
+    private void updateManifest(String name, byte[] digest) {
+        if (mManifest != null) {
+            putDigest(name, mBase64Encoder.encode(digest));
+        }
+    }
+
+    /**
+     * Adds the encoded digest of an entry to the manifest, if the archive is signed.
+     */
+    private void putDigest(String name, String digest) {
         if (mManifest != null) {
             // update the manifest for this entry.
-            Attributes attr = mManifest.getAttributes(entry.getName());
+            Attributes attr = mManifest.getAttributes(name);
             if (attr == null) {
                 attr = new Attributes();
-                mManifest.getEntries().put(entry.getName(), attr);
+                mManifest.getEntries().put(name, attr);
             }
-            attr.putValue(DIGEST_ATTR, mBase64Encoder.encode(mMessageDigest.digest()));
+            attr.putValue(DIGEST_ATTR, digest);
+        }
+    }
+
+    /**
+     * Writes the data of the current entry of the output jar as is, without digesting it, and
+     * closes the entry.
+     */
+    private void copyEntry(InputStream input) throws IOException {
+        int count;
+        while ((count = input.read(mBuffer)) != -1) {
+            mOutputJar.write(mBuffer, 0, count);
+        }
+        mOutputJar.closeEntry();
+    }
+
+    /**
+     * Returns the digest of an entry of the previous archive, if it is the same as the given
+     * entry, or <code>null</code>.
+     */
+    private String getPreviousDigest(ZipArchive.Entry entry) {
+        if (mManifest == null || mPreviousArchive == null) {
+            return null;
+        }
+
+        ZipArchive.Entry previous = mPreviousEntries.get(entry.getName());
+        if (previous == null
+                || previous.getMethod() != entry.getMethod()
+                || previous.getCrc() != entry.getCrc()
+                || previous.getSize() != entry.getSize()
+                || previous.getCompressedSize() != entry.getCompressedSize()) {
+            return null;
+        }
+        return mPreviousDigests.get(entry.getName());
+    }
+
+    /**
+     * Returns whether an entry of the previous archive can be copied: it must exist, and have a
+     * digest if the archive is signed.
+     */
+    private boolean hasPreviousEntry(String name) {
+        return mPreviousArchive != null && mPreviousEntries.containsKey(name) &&
+                (mManifest == null || mPreviousDigests.containsKey(name));
+    }
+
+    private void closePreviousArchive() throws IOException {
+        if (mPreviousArchive != null) {
+            ZipArchive archive = mPreviousArchive;
+            mPreviousArchive = null;
+            mPreviousEntries = null;
+            mPreviousDigests = null;
+            archive.close();
+        }
+    }
+
+    /**
+     * Gives an entry to prepare to the workers, and writes the first pending entries if their
+     * data takes more than {@link #MAX_PENDING_SIZE} bytes.
+     * <p/>The size of the data of a file to compress is not known before it is compressed, so
+     * the size of the file is used instead.
+     * @param task the task preparing the entry.
+     * @param size the size of the data of the entry.
+     */
+    private void addPendingEntry(Callable<PreparedEntry> task, long size) throws IOException {
+        mPendingEntries.add(new PendingEntry(mExecutor.submit(task), size));
+        mPendingSize += size;
+        // the last entry is kept even if it is too large by itself, so that the workers keep
+        // preparing it while the previous entries are written.
+        while (mPendingSize > MAX_PENDING_SIZE && mPendingEntries.size() > 1) {
+            writePendingEntry();
+        }
+    }
+
+    /**
+     * Writes all the entries prepared by the workers, in order.
+     */
+    private void writePendingEntries() throws IOException {
+        while (mPendingEntries.size() > 0) {
+            writePendingEntry();
+        }
+    }
+
+    /**
+     * Waits for the first of the pending entries to be prepared, and writes it.
+     */
+    private void writePendingEntry() throws IOException {
+        PendingEntry pendingEntry = mPendingEntries.removeFirst();
+        mPendingSize -= pendingEntry.mSize;
+        PreparedEntry entry;
+        try {
+            entry = pendingEntry.mFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            IOException ioe = new IOException(cause.getMessage());
+            ioe.initCause(cause);
+            throw ioe;
+        }
+
+        if (entry.mDeflated) {
+            mOutputJar.putDeflatedEntry(entry.mName, entry.mDosTime, entry.mCrc,
+                    entry.mData.length, entry.mSize);
+        } else {
+            mOutputJar.putRawEntry(entry.mName, entry.mMethod, entry.mDosTime, entry.mCrc,
+                    entry.mData.length, entry.mSize);
+        }
+        mOutputJar.write(entry.mData, 0, entry.mData.length);
+        mOutputJar.closeEntry();
+
+        updateManifest(entry.mName, entry.mDigest);
+    }
+
+    /**
+     * Reads, deflates and digests a file, in a worker. This deflates the content the same way
+     * {@link #writeFile(File, String)} does with a single thread.
+     */
+    private PreparedEntry compressFile(File inputFile, String jarPath, int dosTime)
+            throws IOException, NoSuchAlgorithmException {
+        PreparedEntry entry = new PreparedEntry();
+        entry.mName = jarPath;
+        entry.mDeflated = true;
+        entry.mMethod = ZipEntry.DEFLATED;
+        entry.mDosTime = dosTime;
+
+        MessageDigest digest = mManifest != null ?
+                MessageDigest.getInstance(DIGEST_ALGORITHM) : null;
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL, true /*nowrap*/);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] deflaterBuffer = new byte[BUFFER_SIZE];
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        FileInputStream fis = new FileInputStream(inputFile);
+        try {
+            int count;
+            while ((count = fis.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+                if (digest != null) {
+                    digest.update(buffer, 0, count);
+                }
+
+                deflater.setInput(buffer, 0, count);
+                while (deflater.needsInput() == false) {
+                    count = deflater.deflate(deflaterBuffer);
+                    data.write(deflaterBuffer, 0, count);
+                }
+            }
+
+            deflater.finish();
+            while (deflater.finished() == false) {
+                count = deflater.deflate(deflaterBuffer);
+                data.write(deflaterBuffer, 0, count);
+            }
+            entry.mSize = deflater.getBytesRead();
+        } finally {
+            fis.close();
+            deflater.end();
+        }
+
+        entry.mCrc = crc.getValue();
+        entry.mData = data.toByteArray();
+        if (digest != null) {
+            entry.mDigest = digest.digest();
+        }
+        return entry;
+    }
+
+    /**
+     * Digests the content of an entry of an archive from its data, in a worker.
+     */
+    private static PreparedEntry digestEntry(ZipArchive.Entry archiveEntry, byte[] data)
+            throws IOException, NoSuchAlgorithmException {
+        PreparedEntry entry = new PreparedEntry();
+        entry.mName = archiveEntry.getName();
+        entry.mMethod = archiveEntry.getMethod();
+        entry.mDosTime = archiveEntry.getDosTime();
+        entry.mCrc = archiveEntry.getCrc();
+        entry.mSize = archiveEntry.getSize();
+        entry.mData = data;
+
+        MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        if (entry.mMethod == ZipEntry.STORED) {
+            digest.update(data);
+        } else {
+            Inflater inflater = new Inflater(true /*nowrap*/);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                inflater.setInput(data);
+                long size = inflate(inflater, buffer, digest);
+                size += endInflate(inflater, buffer, digest, archiveEntry);
+                if (size != entry.mSize) {
+                    throw new ZipException("Invalid data for " + entry.mName);
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(String.format("Invalid data for %1$s: %2$s",
+                        entry.mName, e.getMessage()));
+            } finally {
+                inflater.end();
+            }
+        }
+        entry.mDigest = digest.digest();
+        return entry;
+    }
+
+    private static byte[] readFully(InputStream input, int size) throws IOException {
+        byte[] data = new byte[size];
+        int offset = 0;
+        int count;
+        while (offset < size && (count = input.read(data, offset, size - offset)) != -1) {
+            offset += count;
+        }
+        if (offset < size) {
+            throw new ZipException("Unexpected end of archive");
         }
+        return data;
     }
 
     /** Writes a .SF file with a digest to the manifest. */
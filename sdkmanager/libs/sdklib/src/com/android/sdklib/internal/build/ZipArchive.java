@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.internal.build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+/**
+ * A zip archive read through its central directory, giving access to the compressed data of
+ * its entries so that they can be copied into another archive without being recompressed.
+ * <p/>
+ * Only the archives that {@link java.util.zip.ZipInputStream} would read the same way are
+ * supported: no Zip64, no encryption, and only stored or deflated entries. {@link #open(File)}
+ * returns <code>null</code> for the others, which must be read as a stream instead.
+ */
+final class ZipArchive {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    /** general purpose flag of encrypted entries */
+    private static final int FLAG_ENCRYPTED = 0x0001;
+    /** general purpose flag of the entries whose name is in UTF-8 */
+    static final int FLAG_UTF8 = 0x0800;
+
+    /**
+     * An entry of the archive, as described by the central directory.
+     */
+    static final class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final int mDosTime;
+        private final long mCrc;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+
+        Entry(String name, int method, int dosTime, long crc, long compressedSize, long size,
+                long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mDosTime = dosTime;
+            mCrc = crc;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        boolean isDirectory() {
+            return mName.endsWith("/"); //$NON-NLS-1$
+        }
+
+        /** Returns {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}. */
+        int getMethod() {
+            return mMethod;
+        }
+
+        /** Returns the modification time and date, in the MS-DOS format of the zip headers. */
+        int getDosTime() {
+            return mDosTime;
+        }
+
+        long getCrc() {
+            return mCrc;
+        }
+
+        long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        long getSize() {
+            return mSize;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final List<Entry> mEntries;
+
+    private ZipArchive(RandomAccessFile file, List<Entry> entries) {
+        mFile = file;
+        mEntries = entries;
+    }
+
+    /**
+     * Opens an archive and reads its central directory.
+     * @return the archive, or <code>null</code> if the file is not an archive that can be
+     * read this way.
+     * @throws IOException
+     */
+    static ZipArchive open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        boolean success = false;
+        try {
+            List<Entry> entries = readCentralDirectory(raf);
+            if (entries == null) {
+                return null;
+            }
+            success = true;
+            return new ZipArchive(raf, entries);
+        } finally {
+            if (success == false) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the entries of the archive, in the order of the central directory.
+     */
+    List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Returns a stream on the compressed data of an entry.
+     * @throws IOException
+     */
+    InputStream getRawData(Entry entry) throws IOException {
+        byte[] header = new byte[LOCAL_HEADER_SIZE];
+        mFile.seek(entry.mLocalHeaderOffset);
+        mFile.readFully(header);
+        if (getInt(header, 0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header for " + entry.mName);
+        }
+
+        // The sizes of the name and extra field can differ from the central directory.
+        long dataOffset = entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE
+                + getShort(header, 26) + getShort(header, 28);
+        return new RawDataInputStream(dataOffset, entry.mCompressedSize);
+    }
+
+    void close() throws IOException {
+        mFile.close();
+    }
+
+    private static List<Entry> readCentralDirectory(RandomAccessFile raf) throws IOException {
+        // Look for the end of central directory record, which is followed by the comment
+        // of the archive.
+        long length = raf.length();
+        int tailSize = (int) Math.min(length, END_SIZE + MAX_COMMENT_SIZE);
+        byte[] tail = new byte[tailSize];
+        raf.seek(length - tailSize);
+        raf.readFully(tail);
+
+        int end = -1;
+        for (int i = tailSize - END_SIZE ; i >= 0 ; i--) {
+            if (getInt(tail, i) == END_SIGNATURE
+                    && i + END_SIZE + getShort(tail, i + 20) == tailSize) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            return null;
+        }
+
+        int diskNumber = getShort(tail, end + 4);
+        int centralDisk = getShort(tail, end + 6);
+        int diskEntryCount = getShort(tail, end + 8);
+        int entryCount = getShort(tail, end + 10);
+        long centralSize = getUnsignedInt(tail, end + 12);
+        long centralOffset = getUnsignedInt(tail, end + 16);
+        if (diskNumber != 0 || centralDisk != 0 || diskEntryCount != entryCount
+                || entryCount == 0xffff || centralOffset == 0xffffffffL
+                || centralOffset + centralSize > length - tailSize + end) {
+            // split or Zip64 archive
+            return null;
+        }
+
+        byte[] central = new byte[(int) centralSize];
+        raf.seek(centralOffset);
+        raf.readFully(central);
+
+        List<Entry> entries = new ArrayList<Entry>(entryCount);
+        int offset = 0;
+        for (int i = 0 ; i < entryCount ; i++) {
+            if (offset + CENTRAL_HEADER_SIZE > central.length
+                    || getInt(central, offset) != CENTRAL_HEADER_SIGNATURE) {
+                return null;
+            }
+
+            int flags = getShort(central, offset + 8);
+            int method = getShort(central, offset + 10);
+            int dosTime = getInt(central, offset + 12);
+            long crc = getUnsignedInt(central, offset + 16);
+            long compressedSize = getUnsignedInt(central, offset + 20);
+            long size = getUnsignedInt(central, offset + 24);
+            int nameLength = getShort(central, offset + 28);
+            int extraLength = getShort(central, offset + 30);
+            int commentLength = getShort(central, offset + 32);
+            long localHeaderOffset = getUnsignedInt(central, offset + 42);
+
+            if ((flags & FLAG_ENCRYPTED) != 0
+                    || (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)
+                    || compressedSize == 0xffffffffL || size == 0xffffffffL
+                    || localHeaderOffset == 0xffffffffL
+                    || (method == ZipEntry.STORED && compressedSize != size)) {
+                return null;
+            }
+
+            int nameOffset = offset + CENTRAL_HEADER_SIZE;
+            if (nameOffset + nameLength > central.length) {
+                return null;
+            }
+            String name = getName(central, nameOffset, nameLength);
+
+            entries.add(new Entry(name, method, dosTime, crc, compressedSize, size,
+                    localHeaderOffset));
+            offset = nameOffset + nameLength + extraLength + commentLength;
+        }
+
+        return Collections.unmodifiableList(entries);
+    }
+
+    private static String getName(byte[] b, int offset, int length) {
+        try {
+            // ZipInputStream always decodes the names as UTF-8.
+            return new String(b, offset, length, "UTF-8"); //$NON-NLS-1$
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int getShort(byte[] b, int offset) {
+        return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8;
+    }
+
+    private static int getInt(byte[] b, int offset) {
+        return getShort(b, offset) | getShort(b, offset + 2) << 16;
+    }
+
+    private static long getUnsignedInt(byte[] b, int offset) {
+        return getInt(b, offset) & 0xffffffffL;
+    }
+
+    /**
+     * Stream on a range of the archive file.
+     */
+    private final class RawDataInputStream extends InputStream {
+        private long mPosition;
+        private long mRemaining;
+
+        RawDataInputStream(long offset, long length) {
+            mPosition = offset;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining == 0) {
+                return -1;
+            }
+            if (len > mRemaining) {
+                len = (int) mRemaining;
+            }
+
+            mFile.seek(mPosition);
+            int count = mFile.read(b, off, len);
+            if (count == -1) {
+                throw new IOException("Unexpected end of archive");
+            }
+            mPosition += count;
+            mRemaining -= count;
+            return count;
+        }
+    }
+}
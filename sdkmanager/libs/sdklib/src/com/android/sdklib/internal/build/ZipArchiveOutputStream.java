@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.internal.build;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * An output stream writing a zip archive, like {@link java.util.zip.ZipOutputStream}, which can
+ * also write entries whose data is already compressed.
+ * <p/>
+ * Entries added with {@link #putNextEntry(String, long)} are deflated as they are written, and
+ * followed by a data descriptor with their CRC and sizes. Entries added with
+ * {@link #putRawEntry(String, int, int, long, long, long)} are written as is, which lets the
+ * entries of another archive be copied without inflating and deflating them again.
+ * <p/>
+ * Entries added with {@link #putDeflatedEntry(String, int, long, long, long)} are also written
+ * as is, but laid out like the ones added with {@link #putNextEntry(String, long)}: if their
+ * data was deflated with the same level, the archive is the same as if this stream had
+ * deflated it.
+ */
+final class ZipArchiveOutputStream extends OutputStream {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    /** general purpose flag of the entries followed by a data descriptor */
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+
+    /**
+     * An entry written to the archive, kept for the central directory.
+     */
+    private static final class Entry {
+        byte[] mName;
+        int mFlags;
+        int mMethod;
+        int mDosTime;
+        long mCrc;
+        long mCompressedSize;
+        long mSize;
+        long mOffset;
+    }
+
+    private final OutputStream mOut;
+    private long mWritten = 0;
+
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    private final Set<String> mNames = new HashSet<String>();
+
+    /** the entry being written, or <code>null</code> */
+    private Entry mEntry;
+    /** whether the data of {@link #mEntry} is written as is */
+    private boolean mRaw;
+    /** the number of bytes of {@link #mEntry} written so far */
+    private long mCount;
+
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mDeflaterBuffer = new byte[8192];
+    private final byte[] mHeader = new byte[46];
+
+    private boolean mFinished = false;
+
+    ZipArchiveOutputStream(OutputStream out) {
+        mOut = new BufferedOutputStream(out, 65536);
+    }
+
+    /**
+     * Sets the compression level of the entries added with {@link #putNextEntry(String, long)}.
+     */
+    void setLevel(int level) {
+        mDeflater.setLevel(level);
+    }
+
+    /**
+     * Begins an entry that is deflated as its content is written.
+     * @param name the path of the entry in the archive.
+     * @param time the modification time of the entry, in milliseconds since the epoch.
+     * @throws IOException
+     */
+    void putNextEntry(String name, long time) throws IOException {
+        beginEntry(name, FLAG_DATA_DESCRIPTOR, ZipEntry.DEFLATED, javaToDosTime(time), 0, 0, 0);
+        mRaw = false;
+        mCrc.reset();
+        mDeflater.reset();
+    }
+
+    /**
+     * Begins an entry whose data is written as is. The data written must be
+     * <var>compressedSize</var> bytes, compressed with <var>method</var>.
+     * @param name the path of the entry in the archive.
+     * @param method {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+     * @param dosTime the modification time of the entry, in the MS-DOS format.
+     * @param crc the CRC-32 of the uncompressed data.
+     * @param compressedSize the size of the data as written.
+     * @param size the size of the uncompressed data.
+     * @throws IOException
+     */
+    void putRawEntry(String name, int method, int dosTime, long crc, long compressedSize,
+            long size) throws IOException {
+        beginEntry(name, 0, method, dosTime, crc, compressedSize, size);
+        mRaw = true;
+    }
+
+    /**
+     * Begins an entry whose deflated data is written as is, followed by a data descriptor like
+     * the entries added with {@link #putNextEntry(String, long)}. The data written must be
+     * <var>compressedSize</var> bytes.
+     * @param name the path of the entry in the archive.
+     * @param dosTime the modification time of the entry, in the MS-DOS format.
+     * @param crc the CRC-32 of the uncompressed data.
+     * @param compressedSize the size of the deflated data.
+     * @param size the size of the uncompressed data.
+     * @throws IOException
+     */
+    void putDeflatedEntry(String name, int dosTime, long crc, long compressedSize, long size)
+            throws IOException {
+        beginEntry(name, FLAG_DATA_DESCRIPTOR, ZipEntry.DEFLATED, dosTime, crc, compressedSize,
+                size);
+        mRaw = true;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        byte[] buffer = new byte[] { (byte) b };
+        write(buffer, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mEntry == null) {
+            throw new ZipException("no current entry");
+        }
+
+        if (mRaw) {
+            writeOut(b, off, len);
+        } else if (len > 0) {
+            mCrc.update(b, off, len);
+            mDeflater.setInput(b, off, len);
+            while (mDeflater.needsInput() == false) {
+                deflate();
+            }
+        }
+        mCount += len;
+    }
+
+    /**
+     * Ends the current entry, if any.
+     * @throws IOException
+     */
+    void closeEntry() throws IOException {
+        if (mEntry == null) {
+            return;
+        }
+
+        Entry entry = mEntry;
+        mEntry = null;
+
+        if (mRaw) {
+            if (mCount != entry.mCompressedSize) {
+                throw new ZipException(String.format(
+                        "invalid entry compressed size (expected %d but got %d bytes)",
+                        entry.mCompressedSize, mCount));
+            }
+        } else {
+            mDeflater.finish();
+            while (mDeflater.finished() == false) {
+                deflate();
+            }
+
+            entry.mCrc = mCrc.getValue();
+            entry.mCompressedSize = mDeflater.getBytesWritten();
+            entry.mSize = mCount;
+        }
+
+        if ((entry.mFlags & FLAG_DATA_DESCRIPTOR) != 0) {
+            putInt(mHeader, 0, DATA_DESCRIPTOR_SIGNATURE);
+            putInt(mHeader, 4, (int) entry.mCrc);
+            putInt(mHeader, 8, (int) entry.mCompressedSize);
+            putInt(mHeader, 12, (int) entry.mSize);
+            writeOut(mHeader, 0, 16);
+        }
+    }
+
+    /**
+     * Ends the current entry and writes the central directory, without closing the underlying
+     * stream.
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        closeEntry();
+
+        long centralOffset = mWritten;
+        for (Entry entry : mEntries) {
+            putInt(mHeader, 0, CENTRAL_HEADER_SIGNATURE);
+            putShort(mHeader, 4, VERSION_DEFLATED);
+            putShort(mHeader, 6, getVersion(entry));
+            putShort(mHeader, 8, entry.mFlags);
+            putShort(mHeader, 10, entry.mMethod);
+            putInt(mHeader, 12, entry.mDosTime);
+            putInt(mHeader, 16, (int) entry.mCrc);
+            putInt(mHeader, 20, (int) entry.mCompressedSize);
+            putInt(mHeader, 24, (int) entry.mSize);
+            putShort(mHeader, 28, entry.mName.length);
+            putShort(mHeader, 30, 0); // extra field length
+            putShort(mHeader, 32, 0); // comment length
+            putShort(mHeader, 34, 0); // disk number
+            putShort(mHeader, 36, 0); // internal attributes
+            putInt(mHeader, 38, 0);   // external attributes
+            putInt(mHeader, 42, (int) entry.mOffset);
+            writeOut(mHeader, 0, 46);
+            writeOut(entry.mName, 0, entry.mName.length);
+        }
+        long centralSize = mWritten - centralOffset;
+
+        putInt(mHeader, 0, END_SIGNATURE);
+        putShort(mHeader, 4, 0); // disk number
+        putShort(mHeader, 6, 0); // disk of the central directory
+        putShort(mHeader, 8, mEntries.size());
+        putShort(mHeader, 10, mEntries.size());
+        putInt(mHeader, 12, (int) centralSize);
+        putInt(mHeader, 16, (int) centralOffset);
+        putShort(mHeader, 20, 0); // comment length
+        writeOut(mHeader, 0, 22);
+
+        mOut.flush();
+        mFinished = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            mDeflater.end();
+            mOut.close();
+        }
+    }
+
+    private void beginEntry(String name, int flags, int method, int dosTime, long crc,
+            long compressedSize, long size) throws IOException {
+        if (mFinished) {
+            throw new ZipException("archive is finished");
+        }
+        if (mNames.add(name) == false) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+        if (compressedSize > 0xffffffffL || size > 0xffffffffL || mWritten > 0xffffffffL) {
+            throw new ZipException("archive too large: " + name);
+        }
+
+        closeEntry();
+
+        Entry entry = new Entry();
+        entry.mName = getBytes(name);
+        entry.mFlags = flags;
+        if (entry.mName.length != name.length()) {
+            entry.mFlags |= ZipArchive.FLAG_UTF8;
+        }
+        entry.mMethod = method;
+        entry.mDosTime = dosTime;
+        entry.mCrc = crc;
+        entry.mCompressedSize = compressedSize;
+        entry.mSize = size;
+        entry.mOffset = mWritten;
+
+        // the CRC and sizes of the entries with a data descriptor are only written there.
+        boolean descriptor = (flags & FLAG_DATA_DESCRIPTOR) != 0;
+        putInt(mHeader, 0, LOCAL_HEADER_SIGNATURE);
+        putShort(mHeader, 4, getVersion(entry));
+        putShort(mHeader, 6, entry.mFlags);
+        putShort(mHeader, 8, method);
+        putInt(mHeader, 10, dosTime);
+        putInt(mHeader, 14, descriptor ? 0 : (int) crc);
+        putInt(mHeader, 18, descriptor ? 0 : (int) compressedSize);
+        putInt(mHeader, 22, descriptor ? 0 : (int) size);
+        putShort(mHeader, 26, entry.mName.length);
+        putShort(mHeader, 28, 0); // extra field length
+        writeOut(mHeader, 0, 30);
+        writeOut(entry.mName, 0, entry.mName.length);
+
+        mEntries.add(entry);
+        mEntry = entry;
+        mCount = 0;
+    }
+
+    private void deflate() throws IOException {
+        int count = mDeflater.deflate(mDeflaterBuffer, 0, mDeflaterBuffer.length);
+        if (count > 0) {
+            writeOut(mDeflaterBuffer, 0, count);
+        }
+    }
+
+    private void writeOut(byte[] b, int off, int len) throws IOException {
+        mOut.write(b, off, len);
+        mWritten += len;
+    }
+
+    private static int getVersion(Entry entry) {
+        return entry.mMethod == ZipEntry.STORED ? VERSION_STORED : VERSION_DEFLATED;
+    }
+
+    private static byte[] getBytes(String name) {
+        try {
+            return name.getBytes("UTF-8"); //$NON-NLS-1$
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Converts a time in milliseconds since the epoch to the MS-DOS format of the zip headers,
+     * like {@link ZipEntry#setTime(long)}.
+     */
+    static int javaToDosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            // 1980-01-01 00:00:00
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (c.get(Calendar.MONTH) + 1) << 21
+                | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11
+                | c.get(Calendar.MINUTE) << 5
+                | c.get(Calendar.SECOND) >> 1;
+    }
+
+    private static void putShort(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        putShort(b, offset, value);
+        putShort(b, offset + 2, value >> 16);
+    }
+}
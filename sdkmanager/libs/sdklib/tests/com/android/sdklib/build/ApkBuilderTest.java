@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.build;
+
+import com.android.sdklib.SdkConstants;
+import com.android.sdklib.build.ApkBuilder.JarStatus;
+import com.android.sdklib.build.ApkBuilder.SigningInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+public class ApkBuilderTest extends TestCase {
+
+    private File mTempDir;
+    private File mResFile;
+    private File mDexFile;
+    private File mSourceFolder;
+    private SigningInfo mSigningInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTempDir = File.createTempFile("apkbuilder", null); //$NON-NLS-1$
+        mTempDir.delete();
+        mTempDir.mkdir();
+
+        mResFile = new File(mTempDir, "resources.ap_"); //$NON-NLS-1$
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(mResFile));
+        try {
+            zos.putNextEntry(new ZipEntry("AndroidManifest.xml")); //$NON-NLS-1$
+            zos.write("<manifest />".getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+            zos.putNextEntry(new ZipEntry("res/layout/main.xml")); //$NON-NLS-1$
+            zos.write("<LinearLayout />".getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+        } finally {
+            zos.close();
+        }
+
+        mDexFile = new File(mTempDir, SdkConstants.FN_APK_CLASSES_DEX);
+        writeFile(mDexFile, "dex 1"); //$NON-NLS-1$
+
+        mSourceFolder = new File(mTempDir, "src"); //$NON-NLS-1$
+        new File(mSourceFolder, "foo").mkdirs(); //$NON-NLS-1$
+        writeFile(new File(mSourceFolder, "foo/a.txt"), "a"); //$NON-NLS-1$
+        writeFile(new File(mSourceFolder, "foo/b.txt"), "b"); //$NON-NLS-1$
+        writeFile(new File(mSourceFolder, "foo/c.txt"), "c"); //$NON-NLS-1$
+
+        mSigningInfo = ApkBuilder.getDebugKey(
+                new File(mTempDir, "debug.keystore").getAbsolutePath(), //$NON-NLS-1$
+                null /*verboseStream*/);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll(mTempDir);
+        super.tearDown();
+    }
+
+    public void testIncrementalMode() throws Exception {
+        File apk = new File(mTempDir, "incremental.apk"); //$NON-NLS-1$
+        File fullApk = new File(mTempDir, "full.apk"); //$NON-NLS-1$
+
+        build(apk, true);
+        assertTrue(PackagingState.getStateFile(apk).isFile());
+        assertEquals(getContents(apk), getContents(buildFull(fullApk)));
+
+        // change the dex file and a resource, and touch another one.
+        long time = System.currentTimeMillis() - 3600 * 1000;
+        writeFile(mDexFile, "dex 2 is longer"); //$NON-NLS-1$
+        writeFile(new File(mSourceFolder, "foo/a.txt"), "A"); //$NON-NLS-1$
+        new File(mSourceFolder, "foo/a.txt").setLastModified(time); //$NON-NLS-1$
+        File touched = new File(mSourceFolder, "foo/b.txt"); //$NON-NLS-1$
+        long dosTime = getTime(apk, "foo/b.txt"); //$NON-NLS-1$
+        touched.setLastModified(time);
+
+        build(apk, true);
+        assertEquals(getContents(buildFull(fullApk)), getContents(apk));
+        assertEquals("A", getContents(apk).get("foo/a.txt")); //$NON-NLS-1$ //$NON-NLS-2$
+
+        // the content of the touched file is the same, so its entry was copied as is.
+        assertEquals(dosTime, getTime(apk, "foo/b.txt")); //$NON-NLS-1$
+        assertFalse(dosTime == getTime(fullApk, "foo/b.txt")); //$NON-NLS-1$
+
+        assertFalse(new File(mTempDir, "incremental.apk.previous").exists()); //$NON-NLS-1$
+    }
+
+    public void testIncrementalModeWithModifiedApk() throws Exception {
+        File apk = new File(mTempDir, "incremental.apk"); //$NON-NLS-1$
+        build(apk, true);
+
+        // a full build deletes the state, so that the next incremental build is a full build.
+        build(apk, false);
+        assertFalse(PackagingState.getStateFile(apk).exists());
+
+        build(apk, true);
+        writeFile(new File(mSourceFolder, "foo/c.txt"), "C"); //$NON-NLS-1$
+
+        // the state does not match an APK modified since.
+        apk.setLastModified(apk.lastModified() - 3600 * 1000);
+        assertNull(PackagingState.read(apk));
+
+        build(apk, true);
+        assertEquals("C", getContents(apk).get("foo/c.txt")); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    public void testIncrementalModeWithJars() throws Exception {
+        File apk = new File(mTempDir, "incremental.apk"); //$NON-NLS-1$
+        File jar = new File(mTempDir, "lib.jar"); //$NON-NLS-1$
+        writeJar(jar, "1"); //$NON-NLS-1$
+
+        JarStatus status = build(apk, true, jar);
+        assertEquals(Arrays.asList("lib/armeabi/libfoo.so"), //$NON-NLS-1$
+                status.getNativeLibs());
+        assertTrue(status.hasNativeLibsConflicts());
+        Map<String, String> contents = getContents(apk);
+        assertEquals("res 1", contents.get("foo/res.txt")); //$NON-NLS-1$ //$NON-NLS-2$
+        assertFalse(contents.containsKey("foo/Foo.class")); //$NON-NLS-1$
+
+        // the jar is unchanged according to its length and modification date, so its
+        // resources are copied from the previous APK without reading it.
+        long lastModified = jar.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(jar, "rw"); //$NON-NLS-1$
+        try {
+            raf.write(new byte[(int) raf.length()]);
+        } finally {
+            raf.close();
+        }
+        jar.setLastModified(lastModified);
+
+        status = build(apk, true, jar);
+        assertEquals(Arrays.asList("lib/armeabi/libfoo.so"), //$NON-NLS-1$
+                status.getNativeLibs());
+        assertTrue(status.hasNativeLibsConflicts());
+        assertEquals(contents, getContents(apk));
+
+        // a modified jar is read again.
+        writeJar(jar, "2"); //$NON-NLS-1$
+        jar.setLastModified(lastModified - 3600 * 1000);
+        build(apk, true, jar);
+        assertEquals("res 2", getContents(apk).get("foo/res.txt")); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    private File build(File apk, boolean incremental) throws Exception {
+        build(apk, incremental, null);
+        return apk;
+    }
+
+    private JarStatus build(File apk, boolean incremental, File jar) throws Exception {
+        ApkBuilder builder = new ApkBuilder(apk, mResFile, mDexFile, mSigningInfo.key,
+                mSigningInfo.certificate, null /*verboseStream*/);
+        builder.setIncrementalMode(incremental);
+        builder.addSourceFolder(mSourceFolder);
+        JarStatus status = jar != null ? builder.addResourcesFromJar(jar) : null;
+        builder.sealApk();
+        return status;
+    }
+
+    /** Writes a library jar with a class, a Java resource and a native library. */
+    private static void writeJar(File jar, String version) throws IOException {
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            zos.putNextEntry(new ZipEntry("foo/Foo.class")); //$NON-NLS-1$
+            zos.write(("class " + version).getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+            zos.putNextEntry(new ZipEntry("foo/res.txt")); //$NON-NLS-1$
+            zos.write(("res " + version).getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+            zos.putNextEntry(new ZipEntry("lib/armeabi/libfoo.so")); //$NON-NLS-1$
+            zos.write(("lib " + version).getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+        } finally {
+            zos.close();
+        }
+    }
+
+    private File buildFull(File apk) throws Exception {
+        apk.delete();
+        return build(apk, false);
+    }
+
+    /**
+     * Returns the contents of the entries of a signed APK, by name, checking their signature.
+     */
+    private static Map<String, String> getContents(File apk) throws IOException {
+        Map<String, String> contents = new HashMap<String, String>();
+        JarFile jar = new JarFile(apk, true /*verify*/);
+        try {
+            for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+                JarEntry entry = e.nextElement();
+                if (entry.getName().startsWith("META-INF/") == false) { //$NON-NLS-1$
+                    contents.put(entry.getName(), readStream(jar.getInputStream(entry)));
+                    assertNotNull(entry.getName(), entry.getCertificates());
+                }
+            }
+        } finally {
+            jar.close();
+        }
+        return contents;
+    }
+
+    private static long getTime(File apk, String name) throws IOException {
+        JarFile jar = new JarFile(apk, false /*verify*/);
+        try {
+            return jar.getEntry(name).getTime();
+        } finally {
+            jar.close();
+        }
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content.getBytes("UTF-8")); //$NON-NLS-1$
+        } finally {
+            fos.close();
+        }
+    }
+
+    /** Reads a stream fully, and closes it. */
+    private static String readStream(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), "UTF-8"); //$NON-NLS-1$
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteAll(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.build;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class DexCacheTest extends TestCase {
+
+    private final static String[] OPTIONS = new String[] { "--dex" }; //$NON-NLS-1$
+
+    private File mTempDir;
+    private File mDx;
+    private File mClasses;
+    private File mJar;
+    private DexCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTempDir = File.createTempFile("dexcache", null); //$NON-NLS-1$
+        mTempDir.delete();
+        mTempDir.mkdir();
+
+        mDx = new File(mTempDir, "dx.jar"); //$NON-NLS-1$
+        writeFile(mDx, "dx"); //$NON-NLS-1$
+
+        mClasses = new File(mTempDir, "classes"); //$NON-NLS-1$
+        new File(mClasses, "foo").mkdirs(); //$NON-NLS-1$
+        writeFile(new File(mClasses, "foo/A.class"), "A"); //$NON-NLS-1$ //$NON-NLS-2$
+        writeFile(new File(mClasses, "foo/B.class"), "B"); //$NON-NLS-1$ //$NON-NLS-2$
+
+        mJar = new File(mTempDir, "lib.jar"); //$NON-NLS-1$
+        writeFile(mJar, "jar 1"); //$NON-NLS-1$
+
+        mCache = new DexCache(new File(mTempDir, "cache"), 2); //$NON-NLS-1$
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll(mTempDir);
+        super.tearDown();
+    }
+
+    public void testKey() throws Exception {
+        String key = getKey();
+        assertEquals(key, getKey());
+
+        // only the content of the inputs matters.
+        long time = System.currentTimeMillis() - 3600 * 1000;
+        mJar.setLastModified(time);
+        new File(mClasses, "foo/A.class").setLastModified(time); //$NON-NLS-1$
+        assertEquals(key, getKey());
+
+        // other files of the class folder are ignored.
+        writeFile(new File(mClasses, "foo/readme.txt"), "readme"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals(key, getKey());
+
+        writeFile(mJar, "jar 2"); //$NON-NLS-1$
+        String jarKey = getKey();
+        assertFalse(key.equals(jarKey));
+
+        writeFile(new File(mClasses, "foo/C.class"), "C"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertFalse(jarKey.equals(getKey()));
+
+        // the order of the inputs matters, and so does the version of dx.
+        String classesKey = getKey();
+        assertFalse(classesKey.equals(mCache.getKey(mDx, OPTIONS,
+                new String[] { mJar.getPath(), mClasses.getPath() })));
+
+        // the options of dx are part of the key.
+        assertFalse(classesKey.equals(mCache.getKey(mDx,
+                new String[] { "--dex", "--no-locals" }, //$NON-NLS-1$ //$NON-NLS-2$
+                new String[] { mClasses.getPath(), mJar.getPath() })));
+        assertFalse(classesKey.equals(mCache.getKey(mDx, new String[0],
+                new String[] { mClasses.getPath(), mJar.getPath() })));
+
+        writeFile(mDx, "dx 2"); //$NON-NLS-1$
+        assertFalse(classesKey.equals(getKey()));
+    }
+
+    public void testRestore() throws Exception {
+        File dex = new File(mTempDir, "classes.dex"); //$NON-NLS-1$
+        String key = getKey();
+        assertFalse(mCache.restore(key, dex));
+        assertFalse(dex.exists());
+
+        writeFile(dex, "dex 1"); //$NON-NLS-1$
+        mCache.store(key, dex);
+        dex.delete();
+        assertTrue(mCache.restore(key, dex));
+        assertEquals("dex 1", readFile(dex)); //$NON-NLS-1$
+
+        // the least recently used dex files are deleted.
+        long time = System.currentTimeMillis() - 3600 * 1000;
+        new File(mTempDir, "cache/" + key + ".dex").setLastModified(time); //$NON-NLS-1$
+        for (int i = 2 ; i <= 3 ; i++) {
+            writeFile(mJar, "jar " + i); //$NON-NLS-1$
+            writeFile(dex, "dex " + i); //$NON-NLS-1$
+            mCache.store(getKey(), dex);
+        }
+
+        assertTrue(mCache.restore(getKey(), dex));
+        assertEquals("dex 3", readFile(dex)); //$NON-NLS-1$
+        assertFalse(mCache.restore(key, dex));
+        assertEquals(2, new File(mTempDir, "cache").list().length); //$NON-NLS-1$
+    }
+
+    private String getKey() throws IOException {
+        return mCache.getKey(mDx, OPTIONS, new String[] { mClasses.getPath(), mJar.getPath() });
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        // keep the modification date changing even on file systems with a coarse resolution.
+        long lastModified = file.lastModified();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content.getBytes("UTF-8")); //$NON-NLS-1$
+        } finally {
+            fos.close();
+        }
+        if (file.lastModified() == lastModified) {
+            file.setLastModified(lastModified + 1000);
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[(int) file.length()];
+            int count = 0;
+            while (count < buffer.length) {
+                count += fis.read(buffer, count, buffer.length - count);
+            }
+            return new String(buffer, "UTF-8"); //$NON-NLS-1$
+        } finally {
+            fis.close();
+        }
+    }
+
+    private static void deleteAll(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.internal.build;
+
+import com.android.sdklib.internal.build.SignedJarBuilder.IZipEntryFilter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+public class SignedJarBuilderTest extends TestCase {
+
+    private File mTempDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTempDir = File.createTempFile("signedjar", null); //$NON-NLS-1$
+        mTempDir.delete();
+        mTempDir.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mTempDir.listFiles()) {
+            file.delete();
+        }
+        mTempDir.delete();
+        super.tearDown();
+    }
+
+    /** Filter rejecting the entries in skip/. */
+    private static final class SkipFilter implements IZipEntryFilter {
+        public boolean checkEntry(String archivePath) {
+            return archivePath.startsWith("skip/") == false; //$NON-NLS-1$
+        }
+    }
+
+    private static final SkipFilter sFilter = new SkipFilter();
+
+    /** the debug key, created once for all the tests as generating it is slow. */
+    private static PrivateKey sDebugKey;
+    private static X509Certificate sDebugCertificate;
+
+    private static PrivateKey getDebugKey() throws Exception {
+        if (sDebugKey == null) {
+            File keystore = File.createTempFile("debug", ".keystore"); //$NON-NLS-1$ //$NON-NLS-2$
+            keystore.delete();
+            try {
+                DebugKeyProvider keyProvider = new DebugKeyProvider(keystore.getAbsolutePath(),
+                        null /*storeType*/, null /*output*/);
+                sDebugKey = keyProvider.getDebugKey();
+                sDebugCertificate = (X509Certificate) keyProvider.getCertificate();
+            } finally {
+                keystore.delete();
+            }
+        }
+        return sDebugKey;
+    }
+
+    public void testWriteZipCopiesEntries() throws Exception {
+        File input = createInput(new File(mTempDir, "input.zip")); //$NON-NLS-1$
+        File output = new File(mTempDir, "output.apk"); //$NON-NLS-1$
+
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(output),
+                null, null);
+        builder.writeZip(input, sFilter);
+        builder.close();
+
+        ZipFile inputZip = new ZipFile(input);
+        ZipFile outputZip = new ZipFile(output);
+        try {
+            assertEquals(getContents(inputZip, true), getContents(outputZip, false));
+
+            // the entries are copied without being compressed again.
+            for (Enumeration<? extends ZipEntry> e = outputZip.entries(); e.hasMoreElements();) {
+                ZipEntry entry = e.nextElement();
+                ZipEntry inputEntry = inputZip.getEntry(entry.getName());
+                assertEquals(inputEntry.getMethod(), entry.getMethod());
+                assertEquals(inputEntry.getCompressedSize(), entry.getCompressedSize());
+                assertEquals(inputEntry.getCrc(), entry.getCrc());
+                assertEquals(inputEntry.getTime(), entry.getTime());
+            }
+        } finally {
+            inputZip.close();
+            outputZip.close();
+        }
+    }
+
+    public void testWriteZipSigned() throws Exception {
+        File input = createInput(new File(mTempDir, "input.zip")); //$NON-NLS-1$
+        File rawOutput = new File(mTempDir, "raw.apk"); //$NON-NLS-1$
+        File streamOutput = new File(mTempDir, "stream.apk"); //$NON-NLS-1$
+
+        PrivateKey key = getDebugKey();
+        X509Certificate certificate = sDebugCertificate;
+        assertNotNull(key);
+
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(rawOutput),
+                key, certificate);
+        builder.writeZip(input, sFilter);
+        builder.close();
+
+        builder = new SignedJarBuilder(new FileOutputStream(streamOutput), key, certificate);
+        builder.writeZip(new FileInputStream(input), sFilter);
+        builder.close();
+
+        // the digests do not depend on how the entries were copied.
+        JarFile rawJar = new JarFile(rawOutput, true /*verify*/);
+        JarFile streamJar = new JarFile(streamOutput, true /*verify*/);
+        try {
+            assertEquals(rawJar.getManifest(), streamJar.getManifest());
+
+            ZipFile inputZip = new ZipFile(input);
+            try {
+                Map<String, String> contents = getContents(inputZip, true);
+                assertEquals(contents, getContents(rawJar, false));
+            } finally {
+                inputZip.close();
+            }
+
+            // the entries have been read fully, so their signature has been checked.
+            for (Enumeration<JarEntry> e = rawJar.entries(); e.hasMoreElements();) {
+                JarEntry entry = e.nextElement();
+                if (entry.getName().startsWith("META-INF/") == false) { //$NON-NLS-1$
+                    assertNotNull(entry.getName(), entry.getCertificates());
+                }
+            }
+        } finally {
+            rawJar.close();
+            streamJar.close();
+        }
+    }
+
+    public void testParallelMode() throws Exception {
+        File input = createInput(new File(mTempDir, "input.zip")); //$NON-NLS-1$
+        Random random = new Random(0);
+        File[] files = new File[20];
+        for (int i = 0 ; i < files.length ; i++) {
+            files[i] = new File(mTempDir, "file" + i); //$NON-NLS-1$
+            FileOutputStream fos = new FileOutputStream(files[i]);
+            try {
+                // from empty to twice the size of the buffers.
+                fos.write(getText(random, i * i * 400));
+            } finally {
+                fos.close();
+            }
+        }
+
+        // without signature, the archives must be the same.
+        File sequential = writeFiles(input, files, 1, null, null);
+        File parallel = writeFiles(input, files, 4, null, null);
+        assertEquals(readFile(sequential), readFile(parallel));
+
+        // with a signature, only the time of the META-INF files can differ.
+        PrivateKey key = getDebugKey();
+        X509Certificate certificate = sDebugCertificate;
+        sequential = writeFiles(input, files, 1, key, certificate);
+        parallel = writeFiles(input, files, 4, key, certificate);
+
+        ZipFile sequentialZip = new ZipFile(sequential);
+        ZipFile parallelZip = new ZipFile(parallel);
+        try {
+            assertEquals(getAllContents(sequentialZip), getAllContents(parallelZip));
+        } finally {
+            sequentialZip.close();
+            parallelZip.close();
+        }
+    }
+
+    private File writeFiles(File input, File[] files, int threadCount, PrivateKey key,
+            X509Certificate certificate) throws Exception {
+        File output = new File(mTempDir, "output" + threadCount + ".apk"); //$NON-NLS-1$
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(output),
+                key, certificate);
+        builder.setThreadCount(threadCount);
+        builder.writeFile(files[1], "first"); //$NON-NLS-1$
+        builder.writeZip(input, new IZipEntryFilter() {
+            public boolean checkEntry(String archivePath) {
+                return archivePath.startsWith("res/") == false; //$NON-NLS-1$
+            }
+        });
+        for (File file : files) {
+            builder.writeFile(file, "files/" + file.getName()); //$NON-NLS-1$
+        }
+        // through a stream, the entries are compressed again.
+        builder.writeZip(new FileInputStream(input), new IZipEntryFilter() {
+            public boolean checkEntry(String archivePath) {
+                return archivePath.startsWith("res/"); //$NON-NLS-1$
+            }
+        });
+        builder.writeFile(files[files.length - 1], "last"); //$NON-NLS-1$
+        builder.close();
+        return output;
+    }
+
+    /**
+     * Checks that an APK with many entries is copied the same way with and without
+     * recompressing its entries.
+     */
+    public void testWriteZipManyEntries() throws Exception {
+        File input = createApkInput(new File(mTempDir, "resources.apk")); //$NON-NLS-1$
+        File rawOutput = new File(mTempDir, "raw.apk"); //$NON-NLS-1$
+        File streamOutput = new File(mTempDir, "stream.apk"); //$NON-NLS-1$
+
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(rawOutput),
+                null, null);
+        builder.writeZip(input, null);
+        builder.close();
+
+        builder = new SignedJarBuilder(new FileOutputStream(streamOutput), null, null);
+        builder.writeZip(new FileInputStream(input), null);
+        builder.close();
+
+        ZipFile rawZip = new ZipFile(rawOutput);
+        ZipFile streamZip = new ZipFile(streamOutput);
+        try {
+            assertEquals(getContents(streamZip, false), getContents(rawZip, false));
+        } finally {
+            rawZip.close();
+            streamZip.close();
+        }
+    }
+
+    /**
+     * Creates an archive with stored and deflated entries, and the entries that
+     * {@link SignedJarBuilder#writeZip(File, IZipEntryFilter)} must skip.
+     */
+    private File createInput(File file) throws IOException {
+        Random random = new Random(0);
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            zos.setLevel(9);
+            addEntry(zos, "AndroidManifest.xml", getText(random, 2000), false);
+            addEntry(zos, "resources.arsc", getText(random, 100000), true);
+            addEntry(zos, "res/drawable/icon.png", getBytes(random, 5000), true);
+            addEntry(zos, "res/layout/main.xml", getText(random, 3000), false);
+            addEntry(zos, "res/raw/empty", new byte[0], false);
+            addEntry(zos, "assets/\u00e9t\u00e9.txt", getText(random, 500), false);
+            addEntry(zos, "res/", null, false);
+            addEntry(zos, "META-INF/MANIFEST.MF", getText(random, 100), false);
+            addEntry(zos, "skip/file.txt", getText(random, 100), false);
+        } finally {
+            zos.close();
+        }
+        return file;
+    }
+
+    /**
+     * Creates an archive with the kind of content of the resource package of an application.
+     */
+    private File createApkInput(File file) throws IOException {
+        Random random = new Random(0);
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            zos.setLevel(9);
+            addEntry(zos, "AndroidManifest.xml", getText(random, 20000), false);
+            addEntry(zos, "resources.arsc", getText(random, 128 * 1024), false);
+            for (int i = 0 ; i < 50 ; i++) {
+                addEntry(zos, "res/drawable/image" + i + ".png", //$NON-NLS-1$ //$NON-NLS-2$
+                        getBytes(random, 8000), true);
+            }
+            for (int i = 0 ; i < 50 ; i++) {
+                addEntry(zos, "res/layout/layout" + i + ".xml", //$NON-NLS-1$ //$NON-NLS-2$
+                        getText(random, 6000), false);
+            }
+            for (int i = 0 ; i < 2 ; i++) {
+                addEntry(zos, "assets/data" + i + ".txt", //$NON-NLS-1$ //$NON-NLS-2$
+                        getText(random, 100000), false);
+            }
+        } finally {
+            zos.close();
+        }
+        return file;
+    }
+
+    private static void addEntry(ZipOutputStream zos, String name, byte[] content,
+            boolean stored) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        zos.putNextEntry(entry);
+        if (content != null) {
+            zos.write(content);
+        }
+        zos.closeEntry();
+    }
+
+    /** Returns compressible content: random words from a small vocabulary. */
+    private static byte[] getText(Random random, int size) {
+        String[] words = new String[] { "android", "layout", "width", "height", "match_parent",
+                "wrap_content", "id", "text", "<", "/>", "=", "\"", "\n", " ", " ", " " };
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            sb.append(words[random.nextInt(words.length)]);
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes();
+    }
+
+    /** Returns content that does not compress, like the content of a png file. */
+    private static byte[] getBytes(Random random, int size) {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        return content;
+    }
+
+    private static String readFile(File file) throws IOException {
+        return readStream(new FileInputStream(file));
+    }
+
+    /** Returns the name, method and content of all the entries of an archive, in order. */
+    private static String getAllContents(ZipFile zip) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+            ZipEntry entry = e.nextElement();
+            sb.append(entry.getName()).append(' ').append(entry.getMethod()).append('\n');
+            sb.append(readStream(zip.getInputStream(entry))).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the contents of the entries of an archive, by name. If <var>input</var> is true,
+     * this skips the entries that {@link SignedJarBuilder} does not copy, otherwise this skips
+     * the entries it adds.
+     */
+    private static Map<String, String> getContents(ZipFile zip, boolean input)
+            throws IOException {
+        Map<String, String> contents = new HashMap<String, String>();
+        for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+            ZipEntry entry = e.nextElement();
+            String name = entry.getName();
+            if (entry.isDirectory() || name.startsWith("META-INF/") || //$NON-NLS-1$
+                    (input && sFilter.checkEntry(name) == false)) {
+                continue;
+            }
+
+            contents.put(name, readStream(zip.getInputStream(entry)));
+        }
+        return contents;
+    }
+
+    /** Reads a stream fully, and closes it. */
+    private static String readStream(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), "ISO-8859-1"); //$NON-NLS-1$
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.internal.repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+public class ArchiveInstallerTest extends TestCase {
+
+    private static final int NUM_FILES = 50;
+
+    /**
+     * An {@link ArchiveInstaller} extracting archives with a given number of threads.
+     */
+    private static class MockArchiveInstaller extends ArchiveInstaller {
+        private final int mThreadCount;
+
+        public MockArchiveInstaller(int threadCount) {
+            mThreadCount = threadCount;
+        }
+
+        @Override
+        protected int getUnzipThreadCount() {
+            return mThreadCount;
+        }
+    }
+
+    private File mTempDir;
+    private File mArchive;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTempDir = File.createTempFile("archiveinstaller", null); //$NON-NLS-1$
+        mTempDir.delete();
+        mTempDir.mkdir();
+
+        mArchive = new File(mTempDir, "archive.zip"); //$NON-NLS-1$
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(mArchive));
+        try {
+            zos.putNextEntry(new ZipEntry("root/")); //$NON-NLS-1$
+            zos.putNextEntry(new ZipEntry("root/empty/")); //$NON-NLS-1$
+            for (int i = 0; i < NUM_FILES; i++) {
+                // no entry for the folders of the files.
+                zos.putNextEntry(new ZipEntry("root/" + getPath(i))); //$NON-NLS-1$
+                zos.write(getContent(i).getBytes("UTF-8")); //$NON-NLS-1$
+            }
+            zos.putNextEntry(new ZipEntry("root/empty.txt")); //$NON-NLS-1$
+        } finally {
+            zos.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        OsHelper.deleteFileOrFolder(mTempDir);
+        super.tearDown();
+    }
+
+    public void testUnzipFolder() throws Exception {
+        checkUnzipFolder(1);
+    }
+
+    public void testUnzipFolder_Parallel() throws Exception {
+        checkUnzipFolder(4);
+    }
+
+    private void checkUnzipFolder(int threadCount) throws Exception {
+        File destFolder = new File(mTempDir, "dest"); //$NON-NLS-1$
+        MockMonitor monitor = new MockMonitor();
+
+        assertTrue(new MockArchiveInstaller(threadCount).unzipFolder(mArchive,
+                mArchive.length(), destFolder, "Installing", monitor)); //$NON-NLS-1$
+        assertEquals("", monitor.getCapturedResults()); //$NON-NLS-1$
+
+        // the root folder is skipped.
+        assertTrue(new File(destFolder, "empty").isDirectory()); //$NON-NLS-1$
+        assertEquals(0, new File(destFolder, "empty.txt").length()); //$NON-NLS-1$
+        for (int i = 0; i < NUM_FILES; i++) {
+            assertEquals(getContent(i), readFile(new File(destFolder, getPath(i))));
+        }
+    }
+
+    private static String getPath(int index) {
+        return "folder" + (index % 5) + "/file" + index; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    private static String getContent(int index) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= index; i++) {
+            sb.append("file ").append(index).append('\n'); //$NON-NLS-1$
+        }
+        return sb.toString();
+    }
+
+    private static String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), "UTF-8"); //$NON-NLS-1$
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+# Copyright 2010 The Android Open Source Project
+#
+# Benchmarks of the trace readers. They are plain main classes, run by hand
+# on large synthetic traces, and are not part of the traceview tool.
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_MODULE := traceview-benchmarks
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_JAVA_LIBRARIES := traceview swt
+
+include $(BUILD_HOST_JAVA_LIBRARY)
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Measures the time {@link DmTraceReader} takes to decode the records of a synthetic trace.
+ * <p/>
+ * The trace is read with profile-only readers, which decode each record and look up its method
+ * and thread without keeping the records, so the time is mostly the one of the decode loop.
+ * The first iterations warm up the JIT and are not measured.
+ */
+public class TraceDecodeBenchmark {
+
+    private static final int DEFAULT_RECORD_COUNT = 5000000;
+    private static final int DEFAULT_ITERATIONS = 10;
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int THREAD_COUNT = 16;
+    private static final int METHOD_COUNT = 5000;
+
+    public static void main(String[] args) throws IOException {
+        int recordCount = DEFAULT_RECORD_COUNT;
+        int iterations = DEFAULT_ITERATIONS;
+        try {
+            if (args.length > 0) {
+                recordCount = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                iterations = Integer.parseInt(args[1]);
+            }
+        } catch (NumberFormatException e) {
+            // reported as a usage error below.
+            recordCount = 0;
+        }
+        if (recordCount <= 0 || iterations <= 0) {
+            System.err.printf("Usage: java %s [record-count] [iterations]%n",
+                    TraceDecodeBenchmark.class.getName());
+            System.exit(1);
+        }
+
+        File traceFile = File.createTempFile("benchmark", ".trace"); //$NON-NLS-1$ //$NON-NLS-2$
+        File cacheFile = TraceCache.getCacheFile(traceFile.getPath());
+        try {
+            new TraceGenerator(THREAD_COUNT, METHOD_COUNT, 0).write(traceFile.getPath(),
+                    recordCount);
+
+            long[] times = new long[iterations];
+            for (int i = -WARMUP_ITERATIONS; i < iterations; i++) {
+                // the records must be decoded each time, not read from the cache.
+                cacheFile.delete();
+                long start = System.nanoTime();
+                new DmTraceReader(traceFile.getPath(), false, true);
+                long time = System.nanoTime() - start;
+                if (i >= 0) {
+                    times[i] = time;
+                }
+            }
+
+            Arrays.sort(times);
+            System.out.printf("%d records: best %d ns per record, median %d ns per record%n",
+                    recordCount, times[0] / recordCount, times[iterations / 2] / recordCount);
+        } finally {
+            traceFile.delete();
+            cacheFile.delete();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Writes synthetic method traces for the benchmarks.
+ * <p/>
+ * The traces have the format of the traces of the VM, version 2. Each thread runs random calls,
+ * about {@link #MEAN_DEPTH} deep, each method calling one of {@link #CALLEE_COUNT} others. The
+ * threads are switched at random. The calls still on the stacks at the end of the trace are not
+ * exited.
+ */
+final class TraceGenerator {
+
+    private static final int TRACE_MAGIC = 0x574f4c53;
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 16;
+    private static final int RECORD_LENGTH = 10;
+    private static final int MAX_DEPTH = 32;
+    private static final int MEAN_DEPTH = 8;
+    private static final int CALLEE_COUNT = 4;
+    /** the line of a method in the key section: id, class, name, signature, file and line */
+    private static final String METHOD_FORMAT =
+        "0x%x\tcom/example/Class%d\tmethod%d\t()V\tClass%d.java\t%d\n"; //$NON-NLS-1$
+
+    private final int mThreadCount;
+    private final int mMethodCount;
+    private final Random mRandom;
+
+    /**
+     * Creates a generator.
+     * @param threadCount the number of threads of the traces.
+     * @param methodCount the number of methods of the traces.
+     * @param seed the seed of the random calls, so that a trace can be written again.
+     */
+    TraceGenerator(int threadCount, int methodCount, long seed) {
+        mThreadCount = threadCount;
+        mMethodCount = methodCount;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Writes a trace with the given number of records.
+     */
+    void write(String fileName, int recordCount) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName), 65536);
+        try {
+            writeKeys(out);
+            writeData(out, recordCount);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeKeys(OutputStream out) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("*version\n").append(VERSION).append('\n'); //$NON-NLS-1$
+        sb.append("*threads\n"); //$NON-NLS-1$
+        for (int i = 0; i < mThreadCount; i++) {
+            sb.append(getThreadId(i)).append("\tThread-").append(i).append('\n'); //$NON-NLS-1$
+        }
+        sb.append("*methods\n"); //$NON-NLS-1$
+        for (int i = 0; i < mMethodCount; i++) {
+            int classIndex = i / 10;
+            sb.append(String.format(METHOD_FORMAT, getMethodId(i), classIndex, i, classIndex,
+                    i * 10));
+        }
+        sb.append("*end\n"); //$NON-NLS-1$
+        out.write(sb.toString().getBytes("US-ASCII")); //$NON-NLS-1$
+    }
+
+    private void writeData(OutputStream out, int recordCount) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(TRACE_MAGIC);
+        header.putShort((short) VERSION);
+        header.putShort((short) HEADER_LENGTH);
+        header.putLong(System.currentTimeMillis() * 1000);
+        out.write(header.array());
+
+        // the stacks of the threads, as method indexes.
+        int[][] stacks = new int[mThreadCount][MAX_DEPTH];
+        int[] depths = new int[mThreadCount];
+        int[] times = new int[mThreadCount];
+        ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        int thread = 0;
+        for (int i = 0; i < recordCount; i++) {
+            if (mRandom.nextInt(64) == 0) {
+                thread = mRandom.nextInt(mThreadCount);
+            }
+            int[] stack = stacks[thread];
+            int depth = depths[thread];
+            times[thread] += 1 + mRandom.nextInt(20);
+
+            int methodId;
+            int action;
+            if (depth > 0 && (depth == MAX_DEPTH || mRandom.nextInt(MEAN_DEPTH * 2) < depth)) {
+                depth--;
+                methodId = getMethodId(stack[depth]);
+                action = 1;
+            } else {
+                // each method only calls a few others, like real code does.
+                int caller = depth > 0 ? stack[depth - 1] : thread;
+                int method = (caller * 31 + mRandom.nextInt(CALLEE_COUNT)) % mMethodCount;
+                methodId = getMethodId(method);
+                stack[depth] = method;
+                depth++;
+                action = 0;
+            }
+            depths[thread] = depth;
+
+            record.clear();
+            record.putShort((short) getThreadId(thread));
+            record.putInt(methodId | action);
+            record.putInt(times[thread]);
+            out.write(record.array());
+        }
+    }
+
+    private static int getThreadId(int index) {
+        return index + 1;
+    }
+
+    private static int getMethodId(int index) {
+        // the low 2 bits of the ids are the actions of the records.
+        return (index + 1) << 2;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Measures the heap used by a {@link DmTraceReader} keeping all the records of a large
+ * synthetic trace, as they are stored by {@link CallStore}, then once the records shown by the
+ * timeline are created.
+ * <p/>
+ * Run it with a heap large enough for the trace, for instance
+ * <code>java -Xmx1g com.android.traceview.TraceMemoryBenchmark 10000000</code>.
+ */
+public class TraceMemoryBenchmark {
+
+    private static final int DEFAULT_RECORD_COUNT = 10000000;
+    private static final int THREAD_COUNT = 16;
+    private static final int METHOD_COUNT = 5000;
+
+    public static void main(String[] args) throws IOException {
+        int recordCount = DEFAULT_RECORD_COUNT;
+        if (args.length > 0) {
+            try {
+                recordCount = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                System.err.printf("Usage: java %s [record-count]%n",
+                        TraceMemoryBenchmark.class.getName());
+                System.exit(1);
+            }
+        }
+
+        File traceFile = File.createTempFile("benchmark", ".trace"); //$NON-NLS-1$ //$NON-NLS-2$
+        File cacheFile = TraceCache.getCacheFile(traceFile.getPath());
+        try {
+            new TraceGenerator(THREAD_COUNT, METHOD_COUNT, 0).write(traceFile.getPath(),
+                    recordCount);
+            System.out.printf("trace: %d records, %d MB%n", recordCount,
+                    traceFile.length() >> 20);
+
+            long baseMemory = getUsedMemory();
+            long start = System.currentTimeMillis();
+            DmTraceReader reader = new DmTraceReader(traceFile.getPath(), false);
+            long loadTime = System.currentTimeMillis() - start;
+            long readerMemory = getUsedMemory() - baseMemory;
+            printMemory("records", loadTime, readerMemory, recordCount);
+
+            start = System.currentTimeMillis();
+            ArrayList<TimeLineView.Record> timeRecords = reader.getThreadTimeRecords();
+            long recordsTime = System.currentTimeMillis() - start;
+            long recordsMemory = getUsedMemory() - baseMemory - readerMemory;
+            printMemory("timeline", recordsTime, recordsMemory, timeRecords.size());
+
+            // keeps the reader and its records alive until the end of the measures.
+            System.out.printf("threads: %d, methods: %d%n", reader.getThreads().length,
+                    reader.getMethods().length);
+        } finally {
+            traceFile.delete();
+            cacheFile.delete();
+        }
+    }
+
+    private static void printMemory(String label, long time, long memory, int count) {
+        System.out.printf("%s: %d ms, %d MB, %d bytes per record%n", label, time, memory >> 20,
+                count > 0 ? memory / count : 0);
+    }
+
+    /**
+     * Returns the memory used by the reachable objects of the heap.
+     */
+    private static long getUsedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        // several collections, so that the finalized objects are collected too.
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
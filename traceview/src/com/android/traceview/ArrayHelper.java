@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+/**
+ * Array copies for the growable arrays of the trace stores.
+ * <p/>
+ * Each method copies an array, truncating it or padding it with zeros (or <code>null</code>) to
+ * the given length.
+ */
+final class ArrayHelper {
+
+    // TODO: use Arrays#copyOf when we switch to JDK6
+    static int[] copyOf(int[] array, int length) {
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+
+    static long[] copyOf(long[] array, int length) {
+        long[] result = new long[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+
+    static byte[] copyOf(byte[] array, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+
+    static double[] copyOf(double[] array, int length) {
+        double[] result = new double[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+
+    static MethodData[] copyOf(MethodData[] array, int length) {
+        MethodData[] result = new MethodData[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+}
@@ -18,124 +18,70 @@ package com.android.traceview;
 
 import org.eclipse.swt.graphics.Color;
 
+/**
+ * A view on one record of a {@link CallStore}.
+ * <p/>
+ * The records themselves are kept in the store, so these objects are only created for the
+ * records that are displayed.
+ */
 class Call implements TimeLineView.Block {
-    
-    // Values for bits within the mFlags field.
-    private static final int METHOD_ACTION_MASK = 0x3;
-    private static final int IS_RECURSIVE = 0x10;
-
-    private int mThreadId;
-    private int mFlags;
-    MethodData mMethodData;
-    
-    /** 0-based thread-local start time */
-    long mThreadStartTime;
-    
-    /**  global start time */
-    long mGlobalStartTime;
-
-    /** global end time */
-    long mGlobalEndTime;
-    
-    private String mName;
 
-    /**
-     * This constructor is used for the root of a Call tree. The name is
-     * the name of the corresponding thread. 
-     */
-    Call(String name, MethodData methodData) {
-        mName = name;
-        mMethodData = methodData;
-    }
+    private final CallStore mStore;
+    private final int mIndex;
 
-    Call() {
-    }
-    
-    Call(int threadId, MethodData methodData, long time, int methodAction) {
-        mThreadId = threadId;
-        mMethodData = methodData;
-        mThreadStartTime = time;
-        mFlags = methodAction & METHOD_ACTION_MASK;
-        mName = methodData.getProfileName();
-    }
-    
-    public void set(int threadId, MethodData methodData, long time, int methodAction) {
-        mThreadId = threadId;
-        mMethodData = methodData;
-        mThreadStartTime = time;
-        mFlags = methodAction & METHOD_ACTION_MASK;
-        mName = methodData.getProfileName();
+    Call(CallStore store, int index) {
+        mStore = store;
+        mIndex = index;
     }
 
-    public void updateName() {
-        mName = mMethodData.getProfileName();
+    public String getName() {
+        return getMethodData().getProfileName();
     }
 
     public double addWeight(int x, int y, double weight) {
-        return mMethodData.addWeight(x, y, weight);
+        return getMethodData().addWeight(x, y, weight);
     }
 
     public void clearWeight() {
-        mMethodData.clearWeight();
+        getMethodData().clearWeight();
     }
 
     public long getStartTime() {
-        return mGlobalStartTime;
+        return mStore.getGlobalStartTime(mIndex);
     }
 
     public long getEndTime() {
-        return mGlobalEndTime;
-    }
-
-    public Color getColor() {
-        return mMethodData.getColor();
+        return mStore.getGlobalEndTime(mIndex);
     }
 
-    public void addExclusiveTime(long elapsed) {
-        mMethodData.addElapsedExclusive(elapsed);
-        if ((mFlags & IS_RECURSIVE) == 0) {
-            mMethodData.addTopExclusive(elapsed);
-        }
-    }
-
-    public void addInclusiveTime(long elapsed, Call parent) {
-        boolean isRecursive = (mFlags & IS_RECURSIVE) != 0;
-        mMethodData.addElapsedInclusive(elapsed, isRecursive, parent);
-    }
-
-    public String getName() {
-        return mName;
+    /**
+     * Returns the 0-based thread-local start time.
+     */
+    long getThreadStartTime() {
+        return mStore.getThreadStartTime(mIndex);
     }
 
-    public void setName(String name) {
-        mName = name;
+    public Color getColor() {
+        return getMethodData().getColor();
     }
 
     int getThreadId() {
-        return mThreadId;
+        return mStore.getThreadId(mIndex);
     }
 
     public MethodData getMethodData() {
-        return mMethodData;
+        return mStore.getMethodData(mIndex);
     }
 
     int getMethodAction() {
-        return mFlags & METHOD_ACTION_MASK;
+        return mStore.getMethodAction(mIndex);
     }
 
     public void dump() {
-        System.out.printf("%s [%d, %d]\n", mName, mGlobalStartTime, mGlobalEndTime);
-    }
-
-    public void setRecursive(boolean isRecursive) {
-        if (isRecursive) {
-            mFlags |= IS_RECURSIVE;
-        } else {
-            mFlags &= ~IS_RECURSIVE;
-        }
+        System.out.printf("%s [%d, %d]\n", getName(), getStartTime(), getEndTime());
     }
 
     public boolean isRecursive() {
-        return (mFlags & IS_RECURSIVE) != 0;
+        return mStore.isRecursive(mIndex);
     }
 }
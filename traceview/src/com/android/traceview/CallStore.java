@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+/**
+ * Storage for the method entry/exit records of a trace.
+ * <p/>
+ * A large trace contains tens of millions of records, so instead of one {@link Call} object per
+ * record, the fields of the records are kept in parallel arrays indexed by the record number.
+ * {@link Call} objects are only created as views on top of this storage, when something needs to
+ * display a record.
+ */
+final class CallStore {
+
+    // Values for bits within the flags.
+    static final int METHOD_ACTION_MASK = 0x3;
+    static final int IS_RECURSIVE = 0x10;
+
+    private int mSize;
+    private int[] mThreadIds;
+    private MethodData[] mMethods;
+    /** 0-based thread-local start times */
+    private long[] mThreadStartTimes;
+    private long[] mGlobalStartTimes;
+    private long[] mGlobalEndTimes;
+    private byte[] mFlags;
+
+    CallStore() {
+        this(1024);
+    }
+
+    CallStore(int capacity) {
+        mThreadIds = new int[capacity];
+        mMethods = new MethodData[capacity];
+        mThreadStartTimes = new long[capacity];
+        mGlobalStartTimes = new long[capacity];
+        mGlobalEndTimes = new long[capacity];
+        mFlags = new byte[capacity];
+    }
+
+    /**
+     * Creates a store with the records in the given arrays, as read from a {@link TraceCache}.
+     * The arrays must have the same length, which is the number of records.
+     */
+    CallStore(int[] threadIds, MethodData[] methods, long[] threadStartTimes,
+            long[] globalStartTimes, long[] globalEndTimes, byte[] flags) {
+        mSize = threadIds.length;
+        mThreadIds = threadIds;
+        mMethods = methods;
+        mThreadStartTimes = threadStartTimes;
+        mGlobalStartTimes = globalStartTimes;
+        mGlobalEndTimes = globalEndTimes;
+        mFlags = flags;
+    }
+
+    /**
+     * Adds a record and returns its index.
+     */
+    int add(int threadId, MethodData methodData, long threadTime, int methodAction) {
+        if (mSize == mThreadIds.length) {
+            grow();
+        }
+
+        int index = mSize++;
+        mThreadIds[index] = threadId;
+        mMethods[index] = methodData;
+        mThreadStartTimes[index] = threadTime;
+        mGlobalStartTimes[index] = 0;
+        mGlobalEndTimes[index] = 0;
+        mFlags[index] = (byte) (methodAction & METHOD_ACTION_MASK);
+        return index;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Removes the records from index <var>size</var> on.
+     */
+    void truncate(int size) {
+        for (int i = size ; i < mSize ; i++) {
+            mMethods[i] = null;
+        }
+        mSize = size;
+    }
+
+    int getThreadId(int index) {
+        return mThreadIds[index];
+    }
+
+    MethodData getMethodData(int index) {
+        return mMethods[index];
+    }
+
+    /**
+     * Returns the flags of a record: its method action and whether it is recursive.
+     */
+    byte getFlags(int index) {
+        return mFlags[index];
+    }
+
+    int getMethodAction(int index) {
+        return mFlags[index] & METHOD_ACTION_MASK;
+    }
+
+    boolean isRecursive(int index) {
+        return (mFlags[index] & IS_RECURSIVE) != 0;
+    }
+
+    void setRecursive(int index, boolean isRecursive) {
+        if (isRecursive) {
+            mFlags[index] |= IS_RECURSIVE;
+        } else {
+            mFlags[index] &= ~IS_RECURSIVE;
+        }
+    }
+
+    long getThreadStartTime(int index) {
+        return mThreadStartTimes[index];
+    }
+
+    void setThreadStartTime(int index, long time) {
+        mThreadStartTimes[index] = time;
+    }
+
+    long getGlobalStartTime(int index) {
+        return mGlobalStartTimes[index];
+    }
+
+    void setGlobalStartTime(int index, long time) {
+        mGlobalStartTimes[index] = time;
+    }
+
+    long getGlobalEndTime(int index) {
+        return mGlobalEndTimes[index];
+    }
+
+    void setGlobalEndTime(int index, long time) {
+        mGlobalEndTimes[index] = time;
+    }
+
+    /**
+     * Releases the unused part of the arrays, once all the records have been added. This is
+     * only done if it saves a significant amount of memory.
+     */
+    void trimToSize() {
+        if (mThreadIds.length - mSize > (mSize >> 4)) {
+            resize(mSize);
+        }
+    }
+
+    private void grow() {
+        // The stores are usually created with a good estimate of their final
+        // size, so grow slowly.
+        int capacity = mThreadIds.length;
+        resize(capacity + (capacity >> 2) + 16);
+    }
+
+    private void resize(int capacity) {
+        mThreadIds = ArrayHelper.copyOf(mThreadIds, capacity);
+        mMethods = ArrayHelper.copyOf(mMethods, capacity);
+        mThreadStartTimes = ArrayHelper.copyOf(mThreadStartTimes, capacity);
+        mGlobalStartTimes = ArrayHelper.copyOf(mGlobalStartTimes, capacity);
+        mGlobalEndTimes = ArrayHelper.copyOf(mGlobalEndTimes, capacity);
+        mFlags = ArrayHelper.copyOf(mFlags, capacity);
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Tree of the call paths of a trace, in which the calls with identical stacks are merged into
+ * one node. This is the data of the flame graph.
+ * <p/>
+ * Each node is a method called from the path of its parent, with the total inclusive and
+ * exclusive times and the number of calls made from that path. The tree is built by
+ * {@link ThreadData} as it handles the records, so its size depends on the number of distinct
+ * call paths, not on the number of calls.
+ * <p/>
+ * Like {@link CallStore}, the nodes are kept in parallel arrays indexed by the node number.
+ * {@link #ROOT} is the node of the top level.
+ */
+final class CallTree {
+
+    static final int ROOT = 0;
+    /** value of {@link #getFirstChild(int)} and {@link #getNextSibling(int)} for no node */
+    static final int NO_NODE = -1;
+
+    private int mSize;
+    private MethodData[] mMethods;
+    private int[] mParents;
+    private int[] mDepths;
+    private int[] mFirstChildren;
+    private int[] mNextSiblings;
+    private long[] mInclusiveTimes;
+    private long[] mExclusiveTimes;
+    private int[] mCalls;
+    private int mMaxDepth;
+
+    /** hash table of the nodes by parent and method, containing node + 1, or 0 */
+    private int[] mTable;
+
+    CallTree(MethodData topLevel) {
+        int capacity = 64;
+        mMethods = new MethodData[capacity];
+        mParents = new int[capacity];
+        mDepths = new int[capacity];
+        mFirstChildren = new int[capacity];
+        mNextSiblings = new int[capacity];
+        mInclusiveTimes = new long[capacity];
+        mExclusiveTimes = new long[capacity];
+        mCalls = new int[capacity];
+        mTable = new int[capacity * 2];
+
+        mSize = 1;
+        mMethods[ROOT] = topLevel;
+        mParents[ROOT] = NO_NODE;
+        mFirstChildren[ROOT] = NO_NODE;
+        mNextSiblings[ROOT] = NO_NODE;
+    }
+
+    /**
+     * Returns the node of <var>method</var> called from <var>parent</var>, adding it if needed.
+     */
+    int getChild(int parent, MethodData method) {
+        int mask = mTable.length - 1;
+        int index = hash(parent, method) & mask;
+        int entry;
+        while ((entry = mTable[index]) != 0) {
+            int node = entry - 1;
+            if (mParents[node] == parent && mMethods[node] == method) {
+                return node;
+            }
+            index = (index + 1) & mask;
+        }
+
+        if (mSize == mMethods.length) {
+            grow();
+            // the table was rehashed
+            return getChild(parent, method);
+        }
+
+        int node = mSize++;
+        mMethods[node] = method;
+        mParents[node] = parent;
+        mDepths[node] = mDepths[parent] + 1;
+        mFirstChildren[node] = NO_NODE;
+        mNextSiblings[node] = mFirstChildren[parent];
+        mFirstChildren[parent] = node;
+        mTable[index] = node + 1;
+        if (mDepths[node] > mMaxDepth) {
+            mMaxDepth = mDepths[node];
+        }
+        return node;
+    }
+
+    void addCalls(int node, int count) {
+        mCalls[node] += count;
+    }
+
+    void addInclusive(int node, long time) {
+        mInclusiveTimes[node] += time;
+    }
+
+    void addExclusive(int node, long time) {
+        mExclusiveTimes[node] += time;
+    }
+
+    /**
+     * Adds all the paths of <var>tree</var> to this tree, under the child of the root for
+     * <var>label</var>. This is used to show the trees of all the threads in one tree, with a
+     * node per thread.
+     */
+    void addTree(CallTree tree, MethodData label) {
+        // pairs of (node of tree, node of this tree) to add. The paths can be deeper
+        // than what the java stack allows, so this doesn't recurse.
+        int[] stack = new int[64];
+        stack[0] = ROOT;
+        stack[1] = getChild(ROOT, label);
+        int stackSize = 2;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            int treeNode = stack[--stackSize];
+            mInclusiveTimes[node] += tree.mInclusiveTimes[treeNode];
+            mExclusiveTimes[node] += tree.mExclusiveTimes[treeNode];
+            mCalls[node] += tree.mCalls[treeNode];
+            for (int child = tree.mFirstChildren[treeNode] ; child != NO_NODE ;
+                    child = tree.mNextSiblings[child]) {
+                if (stackSize == stack.length) {
+                    stack = ArrayHelper.copyOf(stack, stackSize * 2);
+                }
+                stack[stackSize++] = child;
+                stack[stackSize++] = getChild(node, tree.mMethods[child]);
+            }
+        }
+    }
+
+    /**
+     * Ends the tree once all the calls have been added: sets the inclusive time of the root,
+     * which has no calls, and sorts the children of each node by name.
+     */
+    void endTree() {
+        long inclusive = mExclusiveTimes[ROOT];
+        for (int child = mFirstChildren[ROOT] ; child != NO_NODE ; child = mNextSiblings[child]) {
+            inclusive += mInclusiveTimes[child];
+        }
+        mInclusiveTimes[ROOT] = inclusive;
+
+        Comparator<Integer> byName = new Comparator<Integer>() {
+            public int compare(Integer node1, Integer node2) {
+                return mMethods[node1].getName().compareTo(mMethods[node2].getName());
+            }
+        };
+        for (int node = 0 ; node < mSize ; node++) {
+            int first = mFirstChildren[node];
+            if (first == NO_NODE || mNextSiblings[first] == NO_NODE) {
+                continue;
+            }
+
+            int count = 0;
+            for (int child = first ; child != NO_NODE ; child = mNextSiblings[child]) {
+                count++;
+            }
+            Integer[] children = new Integer[count];
+            count = 0;
+            for (int child = first ; child != NO_NODE ; child = mNextSiblings[child]) {
+                children[count++] = child;
+            }
+            Arrays.sort(children, byName);
+
+            int next = NO_NODE;
+            for (int i = count - 1 ; i >= 0 ; i--) {
+                mNextSiblings[children[i]] = next;
+                next = children[i];
+            }
+            mFirstChildren[node] = next;
+        }
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the depth of the deepest node, the root being at depth 0.
+     */
+    int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    MethodData getMethodData(int node) {
+        return mMethods[node];
+    }
+
+    /**
+     * Returns the parent of <var>node</var>, or {@link #NO_NODE} for the root.
+     */
+    int getParent(int node) {
+        return mParents[node];
+    }
+
+    int getDepth(int node) {
+        return mDepths[node];
+    }
+
+    int getFirstChild(int node) {
+        return mFirstChildren[node];
+    }
+
+    int getNextSibling(int node) {
+        return mNextSiblings[node];
+    }
+
+    long getInclusiveTime(int node) {
+        return mInclusiveTimes[node];
+    }
+
+    long getExclusiveTime(int node) {
+        return mExclusiveTimes[node];
+    }
+
+    int getCalls(int node) {
+        return mCalls[node];
+    }
+
+    private void grow() {
+        int capacity = mMethods.length * 2;
+        mMethods = ArrayHelper.copyOf(mMethods, capacity);
+        mParents = ArrayHelper.copyOf(mParents, capacity);
+        mDepths = ArrayHelper.copyOf(mDepths, capacity);
+        mFirstChildren = ArrayHelper.copyOf(mFirstChildren, capacity);
+        mNextSiblings = ArrayHelper.copyOf(mNextSiblings, capacity);
+        mInclusiveTimes = ArrayHelper.copyOf(mInclusiveTimes, capacity);
+        mExclusiveTimes = ArrayHelper.copyOf(mExclusiveTimes, capacity);
+        mCalls = ArrayHelper.copyOf(mCalls, capacity);
+
+        // keep the load factor of the table under 1/2
+        mTable = new int[capacity * 2];
+        int mask = mTable.length - 1;
+        for (int node = ROOT + 1 ; node < mSize ; node++) {
+            int index = hash(mParents[node], mMethods[node]) & mask;
+            while (mTable[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            mTable[index] = node + 1;
+        }
+    }
+
+    private static int hash(int parent, MethodData method) {
+        int h = (parent * 31 + method.getId()) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -20,9 +20,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.nio.BufferUnderflowException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
@@ -31,6 +31,10 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -40,42 +44,137 @@ public class DmTraceReader extends TraceReader {
     private boolean mDebug = false;
     private static final int TRACE_MAGIC = 0x574f4c53;
     private boolean mRegression;
+    private boolean mProfileOnly;
+    private boolean mCallTrees;
     private ProfileProvider mProfileProvider;
     private String mTraceFileName;
     private MethodData mTopLevel;
-    private ArrayList<Call> mCallList;
-    private ArrayList<Call> mSwitchList;
-    private HashMap<Integer, MethodData> mMethodMap;
-    private HashMap<Integer, ThreadData> mThreadMap;
+    private CallStore mCalls;
+    private IntMap<MethodData> mMethodMap;
+    private IntMap<ThreadData> mThreadMap;
     private ThreadData[] mSortedThreads;
     private MethodData[] mSortedMethods;
+    private CallTree mCallTree;
     private long mGlobalEndTime;
     private MethodData mContextSwitch;
     private int mOffsetToData;
     private byte[] mBytes = new byte[8];
 
+    // How long to wait for a trace file that stopped growing, and how often to
+    // check its length.
+    private static final long WAIT_TIMEOUT = 30000;
+    private static final long WAIT_INTERVAL = 50;
+
+    // The length the trace file will have once it's completely written, or
+    // -1 if it is complete.
+    private long mExpectedLength;
+
+    // The mapped part of the data section, and its offset in the file. Only
+    // a window of the file is mapped at a time, so that traces larger than
+    // the address space can be read.
+    private static final long MAP_WINDOW = 256 * 1024 * 1024;
+    private MappedByteBuffer mBuffer;
+    private long mBufferOffset;
+
+    // True if the records have global timestamps, in which case the global
+    // times are not computed from the thread times.
+    private boolean mGlobalClock;
+
+    // The fields of the last record read by readRecord()
+    private int mRecordThreadId;
+    private MethodData mRecordMethod;
+    private long mRecordTime;
+    private long mRecordGlobalTime;
+    private int mRecordAction;
+
     // A regex for matching the thread "id name" lines in the .key file
     private static final Pattern mIdNamePattern = Pattern.compile("(\\d+)\t(.*)");  //$NON-NLS-1$
 
     public DmTraceReader(String traceFileName, boolean regression) {
-        mTraceFileName = traceFileName;
+        this(traceFileName, regression, false);
+    }
+
+    /**
+     * Creates a reader for a trace file.
+     * @param traceFileName the trace file
+     * @param regression whether to dump the data for regression tests
+     * @param profileOnly if true, only the profile data of the methods and threads is computed.
+     * The records are analyzed as they are read and are not kept, so the memory used does not
+     * depend on the length of the trace, but {@link #getThreadTimeRecords()} does not return
+     * any record.
+     */
+    public DmTraceReader(String traceFileName, boolean regression, boolean profileOnly) {
+        this(traceFileName, regression, profileOnly, -1);
+    }
+
+    /**
+     * Creates a reader for a trace file that may still be being written, for instance while it
+     * is received from a device. The file is read as it grows.
+     * @param expectedLength the length of the file once it's completely written, or -1 if the
+     * file is complete. If the file stops growing for a while before reaching that length, the
+     * trace is truncated to the records written so far.
+     * @see #DmTraceReader(String, boolean, boolean)
+     */
+    public DmTraceReader(String traceFileName, boolean regression, boolean profileOnly,
+            long expectedLength) {
+        this(traceFileName, regression, profileOnly, profileOnly == false, expectedLength);
+    }
+
+    /**
+     * Creates a reader for a trace file.
+     * @param callTrees whether to build the call paths returned by {@link #getCallTree()}. Their
+     * size depends on the number of distinct call paths in the trace, so this is only done by
+     * default when the records are kept.
+     * @see #DmTraceReader(String, boolean, boolean, long)
+     */
+    public DmTraceReader(String traceFileName, boolean regression, boolean profileOnly,
+            boolean callTrees, long expectedLength) {
+        this(traceFileName, profileOnly, callTrees, false);
         mRegression = regression;
-        mMethodMap = new HashMap<Integer, MethodData>();
-        mThreadMap = new HashMap<Integer, ThreadData>();
+        mExpectedLength = expectedLength;
+        generateTrees();
+        // dumpTrees();
+    }
+
+    /**
+     * Creates a reader for another trace format, which calls {@link #generateTrees()} once it
+     * is ready to read the trace with {@link #parseKeys()}, {@link #readDataHeader()} and
+     * {@link #readRecord()}.
+     * @param globalClock true if the records have global timestamps, instead of only the time
+     * of their thread. The global times of the records are then used as they are.
+     */
+    DmTraceReader(String traceFileName, boolean profileOnly, boolean callTrees,
+            boolean globalClock) {
+        mTraceFileName = traceFileName;
+        mProfileOnly = profileOnly;
+        mCallTrees = callTrees;
+        mGlobalClock = globalClock;
+        mExpectedLength = -1;
+        mMethodMap = new IntMap<MethodData>();
+        mThreadMap = new IntMap<ThreadData>();
 
         // Create a single top-level MethodData object to hold the profile data
         // for time spent in the unknown caller.
         mTopLevel = new MethodData(0, "(toplevel)");
         mContextSwitch = new MethodData(-1, "(context switch)");
         mMethodMap.put(0, mTopLevel);
-        generateTrees();
-        // dumpTrees();
     }
 
     void generateTrees() {
+        // A trace that is still being written has no cache yet, and the
+        // regression dumps are only made while parsing.
+        boolean useCache = mExpectedLength < 0 && mRegression == false;
+        if (useCache && readCache()) {
+            analyzeData();
+            return;
+        }
+
         try {
             long offset = parseKeys();
             parseData(offset);
+            if (useCache) {
+                writeCache();
+            }
             analyzeData();
         } catch (IOException e) {
             System.err.println(e.getMessage());
@@ -83,6 +182,46 @@ public class DmTraceReader extends TraceReader {
         }
     }
 
+    /**
+     * Reads the analyzed trace from its {@link TraceCache}, if the trace has a valid one.
+     * @return true if the cache was read.
+     */
+    private boolean readCache() {
+        TraceCache cache = TraceCache.read(getTraceFiles(), mTopLevel, mContextSwitch,
+                mProfileOnly == false, mCallTrees);
+        if (cache == null) {
+            return false;
+        }
+
+        mVersionNumber = cache.mVersionNumber;
+        mGlobalEndTime = cache.mGlobalEndTime;
+        mMethodMap = cache.mMethodMap;
+        mThreadMap = cache.mThreadMap;
+        mCalls = cache.mCalls;
+        return true;
+    }
+
+    /**
+     * Saves the analyzed trace to its {@link TraceCache}, so that it opens faster next time.
+     * Small traces are quick enough to parse, so they are not cached.
+     */
+    private void writeCache() {
+        if (new File(mTraceFileName).length() < TraceCache.MIN_TRACE_LENGTH) {
+            return;
+        }
+        TraceCache cache = new TraceCache(mVersionNumber, mGlobalEndTime, mMethodMap,
+                mThreadMap, mCalls);
+        cache.write(getTraceFiles(), mContextSwitch, mCallTrees);
+    }
+
+    /**
+     * Returns the files the trace is read from, starting with the trace file. The cache of the
+     * trace is only valid as long as none of them changes.
+     */
+    File[] getTraceFiles() {
+        return new File[] { new File(mTraceFileName) };
+    }
+
     @Override
     public ProfileProvider getProfileProvider() {
         if (mProfileProvider == null)
@@ -90,46 +229,101 @@ public class DmTraceReader extends TraceReader {
         return mProfileProvider;
     }
 
-    Call readCall(MappedByteBuffer buffer, Call call) {
+    /**
+     * Reads the next record of the data section, and sets it with
+     * {@link #setRecord(int, MethodData, long, long, int)}.
+     * @return false if there are no more records.
+     */
+    boolean readRecord() {
         int threadId;
         int methodId;
         long time;
-        
-        try {
-            if (mVersionNumber == 1)
-                threadId = buffer.get();
-            else
-                threadId = buffer.getShort();
-            methodId = buffer.getInt();
-            time = buffer.getInt();
-        } catch (BufferUnderflowException ex) {
-            return null;
+
+        if (ensureAvailable(getRecordSize()) == false) {
+            return false;
         }
-        
+
+        MappedByteBuffer buffer = mBuffer;
+        if (mVersionNumber == 1)
+            threadId = buffer.get();
+        else
+            threadId = buffer.getShort();
+        methodId = buffer.getInt();
+        time = buffer.getInt();
+
         int methodAction = methodId & 0x03;
         methodId = methodId & ~0x03;
+        setRecord(threadId, getMethodData(methodId), time, -1, methodAction);
+        return true;
+    }
+
+    /**
+     * Sets the record read by {@link #readRecord()}.
+     * @param threadTime the time of the record for its thread.
+     * @param globalTime the global time of the record if the trace has a global clock, see
+     * {@link #DmTraceReader(String, boolean, boolean, boolean)}.
+     */
+    final void setRecord(int threadId, MethodData methodData, long threadTime, long globalTime,
+            int methodAction) {
+        mRecordThreadId = threadId;
+        mRecordMethod = methodData;
+        mRecordTime = threadTime;
+        mRecordGlobalTime = globalTime;
+        mRecordAction = methodAction;
+    }
+
+    /**
+     * Returns the method with the given id, adding it with {@link #createMethodData(int)} if it
+     * is not in the key section.
+     */
+    final MethodData getMethodData(int methodId) {
         MethodData methodData = mMethodMap.get(methodId);
         if (methodData == null) {
-            String name = String.format("(0x%1$x)", methodId);  //$NON-NLS-1$
-            methodData = new MethodData(methodId, name);
+            // Add the method to the table, so that all the records of the
+            // method share the same object.
+            methodData = createMethodData(methodId);
+            mMethodMap.put(methodId, methodData);
         }
-        
-        if (call != null) {
-            call.set(threadId, methodData, time, methodAction);
-        } else {
-            call = new Call(threadId, methodData, time, methodAction);
-        }
-        return call;
+        return methodData;
     }
-    
+
+    /**
+     * Creates the method for an id which is not in the key section, when its first record is
+     * read. This returns a placeholder named after the id.
+     */
+    MethodData createMethodData(int methodId) {
+        String name = String.format("(0x%1$x)", methodId);  //$NON-NLS-1$
+        return new MethodData(methodId, name);
+    }
+
+    /**
+     * Returns the size in bytes of a record of the data section, or its typical size for a
+     * variable-length format. This is only used to estimate the number of records.
+     */
+    int getRecordSize() {
+        return mVersionNumber == 1 ? 9 : 10;
+    }
+
+    /**
+     * Returns the mapped data section, positioned at the next unread byte, with at least
+     * <var>count</var> bytes remaining unless the trace ends before.
+     */
+    final MappedByteBuffer getDataBuffer(int count) {
+        ensureAvailable(count);
+        return mBuffer;
+    }
+
     private MappedByteBuffer mapFile(String filename, long offset) {
         MappedByteBuffer buffer = null;
         try {
             FileInputStream dataFile = new FileInputStream(filename);
             File file = new File(filename);
             FileChannel fc = dataFile.getChannel();
-            buffer = fc.map(FileChannel.MapMode.READ_ONLY, offset, file.length() - offset);
+            long size = Math.min(file.length() - offset, MAP_WINDOW);
+            buffer = fc.map(FileChannel.MapMode.READ_ONLY, offset, size);
             buffer.order(ByteOrder.LITTLE_ENDIAN);
+            // the mapping stays valid once the file is closed
+            dataFile.close();
         } catch (FileNotFoundException ex) {
             System.err.println(ex.getMessage());
             System.exit(1);
@@ -141,7 +335,110 @@ public class DmTraceReader extends TraceReader {
         return buffer;
     }
     
-    private void readDataFileHeader(MappedByteBuffer buffer) {
+    /**
+     * Makes sure that at least <var>count</var> bytes are left in mBuffer, mapping the next
+     * window of the file if needed. If the trace file is still being written, this waits for
+     * the data.
+     * @return false if the trace ends before.
+     */
+    private boolean ensureAvailable(int count) {
+        if (mBuffer.remaining() >= count) {
+            return true;
+        }
+
+        long position = mBufferOffset + mBuffer.position();
+        long fileLength = waitForLength(position + count);
+        if (fileLength == mBufferOffset + mBuffer.limit()) {
+            // nothing more to map
+            return false;
+        }
+        mBuffer = mapFile(mTraceFileName, position);
+        mBufferOffset = position;
+        return mBuffer.remaining() >= count;
+    }
+
+    /**
+     * Waits until the trace file is at least <var>length</var> bytes long, if it is still being
+     * written.
+     * @return the current length of the file.
+     */
+    private long waitForLength(long length) {
+        File file = new File(mTraceFileName);
+        long fileLength = file.length();
+        if (mExpectedLength < 0) {
+            return fileLength;
+        }
+
+        long lastChange = System.currentTimeMillis();
+        while (fileLength < length && fileLength < mExpectedLength) {
+            if (System.currentTimeMillis() - lastChange > WAIT_TIMEOUT) {
+                System.err.printf("trace file '%s' stopped growing at %d bytes instead of %d\n",
+                        mTraceFileName, fileLength, mExpectedLength);
+                mExpectedLength = -1;
+                return fileLength;
+            }
+            try {
+                Thread.sleep(WAIT_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mExpectedLength = -1;
+                return fileLength;
+            }
+
+            long newLength = file.length();
+            if (newLength != fileLength) {
+                fileLength = newLength;
+                lastChange = System.currentTimeMillis();
+            }
+        }
+
+        if (fileLength >= mExpectedLength) {
+            // the file is complete
+            mExpectedLength = -1;
+        }
+        return fileLength;
+    }
+
+    /**
+     * Input stream on the trace file that waits for more data at the end of the file, if the
+     * file is still being written.
+     */
+    private class TraceInputStream extends FileInputStream {
+        private long mPosition;
+
+        TraceInputStream() throws FileNotFoundException {
+            super(mTraceFileName);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                int count = super.read(b, off, len);
+                if (count != -1) {
+                    mPosition += count;
+                    return count;
+                }
+                if (waitForLength(mPosition + 1) <= mPosition) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the header of the data section, leaving the buffer at the first record.
+     */
+    void readDataHeader() {
+        if (ensureAvailable(16) == false) {
+            throw new RuntimeException("Trace file has no data section");
+        }
+        MappedByteBuffer buffer = mBuffer;
         int magic = buffer.getInt();
         if (magic != TRACE_MAGIC) {
             System.err.printf(
@@ -159,156 +456,262 @@ public class DmTraceReader extends TraceReader {
         buffer.getLong();
         
         // Skip over "mOffsetToData" bytes
-        for (int ii = 0; ii < mOffsetToData; ii++) {
-            buffer.get();
+        if (ensureAvailable(mOffsetToData) == false) {
+            throw new RuntimeException("Trace file has no data section");
         }
-        
-        // Save this position so that we can re-read the data later
-        buffer.mark();
+        mBuffer.position(mBuffer.position() + mOffsetToData);
     }
 
     private void parseData(long offset) {
-        MappedByteBuffer buffer = mapFile(mTraceFileName, offset);
-        readDataFileHeader(buffer);
-        parseDataPass1(buffer);
-        
-        buffer.reset();
-        parseDataPass2(buffer);
+        waitForLength(offset);
+        mBuffer = mapFile(mTraceFileName, offset);
+        mBufferOffset = offset;
+        readDataHeader();
+        if (mProfileOnly) {
+            analyzeRecords();
+        } else {
+            readRecords();
+            computeGlobalTimes();
+            analyzeThreads();
+        }
+        addThreadStats();
+
+        if (mRegression && mCalls != null) {
+            dumpCallTimes();
+        }
     }
-    
-    private void parseDataPass1(MappedByteBuffer buffer) {
-        mSwitchList = new ArrayList<Call>();
 
-        // Read the first call so that we can set "prevThreadData"
-        Call call = new Call();
-        call = readCall(buffer, call);
-        if (call == null)
-            return;
-        long callTime = call.mThreadStartTime;
+    /**
+     * Reads all the records of the data section into mCalls, in a single pass.
+     * <p/>
+     * When a context switch occurs, a placeholder "call" record is inserted
+     * so that we can do something reasonable with the global timestamps.
+     * The thread-local time of a context switch is only known when the thread
+     * that was switched out runs again, so it is updated later on.
+     */
+    private void readRecords() {
+        // The number of records is known, but not the number of context
+        // switches, so leave a bit of room for them.
+        long dataEnd = mExpectedLength >= 0
+                ? mExpectedLength : new File(mTraceFileName).length();
+        long dataStart = mBufferOffset + mBuffer.position();
+        int recordCount = (int) ((dataEnd - dataStart) / getRecordSize());
+        mCalls = new CallStore(recordCount + (recordCount >> 3) + 16);
+
+        ThreadData prevThreadData = null;
         long prevCallTime = 0;
-        ThreadData threadData = mThreadMap.get(call.getThreadId());
-        if (threadData == null) {
-            String name = String.format("[%1$d]", call.getThreadId());  //$NON-NLS-1$
-            threadData = new ThreadData(call.getThreadId(), name, mTopLevel);
-            mThreadMap.put(call.getThreadId(), threadData);
-        }
-        ThreadData prevThreadData = threadData;
-        while (true) {
-            // If a context switch occurred, then insert a placeholder "call"
-            // record so that we can do something reasonable with the global
-            // timestamps.
-            if (prevThreadData != threadData) {
-                Call switchEnter = new Call(prevThreadData.getId(),
+        while (readRecord()) {
+            long callTime = mRecordTime;
+            ThreadData threadData = getThreadData(mRecordThreadId);
+
+            if (prevThreadData != null && prevThreadData != threadData) {
+                // This context switch is entered by the previous thread.
+                int switchEnter = mCalls.add(prevThreadData.getId(),
                         mContextSwitch, prevCallTime, 0);
                 prevThreadData.setLastContextSwitch(switchEnter);
-                mSwitchList.add(switchEnter);
-                Call contextSwitch = threadData.getLastContextSwitch();
-                if (contextSwitch != null) {
-                    long prevStartTime = contextSwitch.mThreadStartTime;
+                prevThreadData.addRecord(switchEnter);
+                if (mGlobalClock) {
+                    mCalls.setGlobalStartTime(switchEnter, mRecordGlobalTime);
+                }
+
+                // If the current thread was switched out before, the context
+                // switch is now exited by the current thread. Split the time
+                // between the two.
+                int contextSwitch = threadData.getLastContextSwitch();
+                if (contextSwitch != -1) {
+                    long prevStartTime = mCalls.getThreadStartTime(contextSwitch);
                     long elapsed = callTime - prevStartTime;
                     long beforeSwitch = elapsed / 2;
                     long afterSwitch = elapsed - beforeSwitch;
                     long exitTime = callTime - afterSwitch;
-                    contextSwitch.mThreadStartTime = prevStartTime + beforeSwitch;
-                    Call switchExit = new Call(threadData.getId(),
-                            mContextSwitch, exitTime, 1);
-                    
-                    mSwitchList.add(switchExit);
+                    mCalls.setThreadStartTime(contextSwitch, prevStartTime + beforeSwitch);
+                    int switchExit = mCalls.add(threadData.getId(), mContextSwitch, exitTime, 1);
+                    threadData.addRecord(switchExit);
+                    if (mGlobalClock) {
+                        mCalls.setGlobalStartTime(switchExit, mRecordGlobalTime);
+                    }
                 }
-                prevThreadData = threadData;
             }
 
-            // Read the next call
-            call = readCall(buffer, call);
-            if (call == null) {
-                break;
+            int call = mCalls.add(mRecordThreadId, mRecordMethod, callTime, mRecordAction);
+            threadData.addRecord(call);
+            if (mGlobalClock) {
+                mCalls.setGlobalStartTime(call, mRecordGlobalTime);
             }
+
+            prevThreadData = threadData;
             prevCallTime = callTime;
-            callTime = call.mThreadStartTime;
+        }
+
+        mCalls.trimToSize();
+    }
 
-            threadData = mThreadMap.get(call.getThreadId());
-            if (threadData == null) {
-                String name = String.format("[%d]", call.getThreadId());
-                threadData = new ThreadData(call.getThreadId(), name, mTopLevel);
-                mThreadMap.put(call.getThreadId(), threadData);
+    /**
+     * Reads all the records of the data section and analyzes them right away, without keeping
+     * them. Only the records of the calls on the stack of each thread are kept.
+     * <p/>
+     * This inserts the same context switch records as {@link #readRecords()}.
+     * The thread-local time of a context switch is only known when the thread that was switched
+     * out runs again, so the context switch is only handled at that point.
+     */
+    private void analyzeRecords() {
+        ThreadData prevThreadData = null;
+        long prevCallTime = 0;
+        while (readRecord()) {
+            long callTime = mRecordTime;
+            ThreadData threadData = getThreadData(mRecordThreadId);
+
+            if (prevThreadData != null && prevThreadData != threadData) {
+                // This context switch is entered by the previous thread.
+                prevThreadData.setPendingContextSwitch(prevCallTime);
+
+                // If the current thread was switched out before, split the
+                // time of the context switch between the two.
+                long prevStartTime = threadData.getPendingContextSwitch();
+                if (prevStartTime != -1) {
+                    long elapsed = callTime - prevStartTime;
+                    long beforeSwitch = elapsed / 2;
+                    long afterSwitch = elapsed - beforeSwitch;
+                    threadData.handleRecord(mContextSwitch, prevStartTime + beforeSwitch, 0);
+                    threadData.handleRecord(mContextSwitch, callTime - afterSwitch, 1);
+                    threadData.setPendingContextSwitch(-1);
+                }
+            }
+
+            threadData.handleRecord(mRecordMethod, callTime, mRecordAction);
+
+            prevThreadData = threadData;
+            prevCallTime = callTime;
+        }
+
+        for (ThreadData threadData : mThreadMap.values()) {
+            // The threads that were switched out and never ran again.
+            long prevStartTime = threadData.getPendingContextSwitch();
+            if (prevStartTime != -1) {
+                threadData.handleRecord(mContextSwitch, prevStartTime, 0);
+                threadData.setPendingContextSwitch(-1);
             }
+            threadData.endRecords();
+        }
+    }
+
+    /**
+     * Returns the thread with the given id, creating it if it is not in the key section.
+     */
+    private ThreadData getThreadData(int threadId) {
+        ThreadData threadData = mThreadMap.get(threadId);
+        if (threadData == null) {
+            String name = String.format("[%1$d]", threadId);  //$NON-NLS-1$
+            threadData = new ThreadData(threadId, name, mTopLevel, mCallTrees);
+            mThreadMap.put(threadId, threadData);
         }
+        return threadData;
     }
 
-    void parseDataPass2(MappedByteBuffer buffer) {
-        mCallList = new ArrayList<Call>();
+    /**
+     * Assigns a global timestamp to each record.
+     */
+    private void computeGlobalTimes() {
+        CallStore calls = mCalls;
+        int count = calls.size();
+        if (count == 0)
+            return;
 
-        // Read the first call so that we can set "prevThreadData"
-        Call call = readCall(buffer, null);
-        long callTime = call.mThreadStartTime;
-        long prevCallTime = callTime;
-        ThreadData threadData = mThreadMap.get(call.getThreadId());
-        ThreadData prevThreadData = threadData;
-        threadData.setGlobalStartTime(0);
-        
-        int nthContextSwitch = 0;
+        if (mGlobalClock) {
+            // The records already have their global time.
+            for (int i = 0 ; i < count ; i++) {
+                ThreadData threadData = mThreadMap.get(calls.getThreadId(i));
+                if (threadData.getGlobalStartTime() == -1)
+                    threadData.setGlobalStartTime(calls.getGlobalStartTime(i));
+            }
+            mGlobalEndTime = calls.getGlobalStartTime(count - 1);
+            return;
+        }
 
-        // Assign a global timestamp to each event.
         long globalTime = 0;
-        while (true) {
-            long elapsed = callTime - prevCallTime;
-            if (threadData != prevThreadData) {
-                // Get the next context switch.  This one is entered
-                // by the previous thread.
-                Call contextSwitch = mSwitchList.get(nthContextSwitch++);
-                mCallList.add(contextSwitch);
-                elapsed = contextSwitch.mThreadStartTime - prevCallTime;
-                globalTime += elapsed;
-                elapsed = 0;
-                contextSwitch.mGlobalStartTime = globalTime;
-                prevThreadData.handleCall(contextSwitch, globalTime);
-                
-                if (!threadData.isEmpty()) {
-                    // This context switch is exited by the current thread.
-                    contextSwitch = mSwitchList.get(nthContextSwitch++);
-                    mCallList.add(contextSwitch);
-                    contextSwitch.mGlobalStartTime = globalTime;
-                    elapsed = callTime - contextSwitch.mThreadStartTime;
-                    threadData.handleCall(contextSwitch, globalTime);
+
+        // The thread-local time that matches globalTime, or -1 after a
+        // context switch that was not exited yet.
+        long baseTime = calls.getThreadStartTime(0);
+        for (int i = 0 ; i < count ; i++) {
+            long callTime = calls.getThreadStartTime(i);
+            if (calls.getMethodData(i) == mContextSwitch) {
+                if (calls.getMethodAction(i) == 0) {
+                    globalTime += callTime - baseTime;
+                    baseTime = -1;
+                } else {
+                    baseTime = callTime;
                 }
+                calls.setGlobalStartTime(i, globalTime);
+                continue;
+            }
 
-                // If the thread's global start time has not been set yet,
-                // then set it.
-                if (threadData.getGlobalStartTime() == -1)
-                    threadData.setGlobalStartTime(globalTime);
-                prevThreadData = threadData;
+            ThreadData threadData = mThreadMap.get(calls.getThreadId(i));
+            if (baseTime == -1) {
+                baseTime = callTime;
             }
 
-            globalTime += elapsed;
-            call.mGlobalStartTime = globalTime;
-            
-            threadData.handleCall(call, globalTime);
-            mCallList.add(call);
-            
-            // Read the next call
-            call = readCall(buffer, null);
-            if (call == null) {
-                break;
+            // If the thread's global start time has not been set yet,
+            // then set it.
+            if (threadData.getGlobalStartTime() == -1)
+                threadData.setGlobalStartTime(globalTime);
+
+            globalTime += callTime - baseTime;
+            baseTime = callTime;
+            calls.setGlobalStartTime(i, globalTime);
+        }
+
+        mGlobalEndTime = globalTime;
+    }
+
+    /**
+     * Computes the call stacks and the profile data of each thread. The
+     * threads are independent, so they are analyzed in parallel.
+     */
+    private void analyzeThreads() {
+        Collection<ThreadData> threads = mThreadMap.values();
+        ExecutorService workers = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(threads.size(), Runtime.getRuntime().availableProcessors())));
+        try {
+            ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final ThreadData threadData : threads) {
+                futures.add(workers.submit(new Runnable() {
+                    public void run() {
+                        threadData.analyze(mCalls);
+                    }
+                }));
             }
-            prevCallTime = callTime;
-            callTime = call.mThreadStartTime;
-            threadData = mThreadMap.get(call.getThreadId());
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            workers.shutdown();
         }
+    }
+
+    private void addThreadStats() {
+        Collection<ThreadData> threads = mThreadMap.values();
 
-        // Allow each thread to do any cleanup of the call stack.
+        // Merge the profile data of the threads into the methods.
         // Also add the elapsed time for each thread to the toplevel
         // method's inclusive time.
-        for (int id : mThreadMap.keySet()) {
-            threadData = mThreadMap.get(id);
-            long endTime = threadData.endTrace();
+        for (ThreadData threadData : threads) {
+            threadData.addStatsToMethods();
+            long endTime = threadData.getLastEventTime();
             if (endTime > 0)
-                mTopLevel.addElapsedInclusive(endTime, false, null);
-        }
-
-        mGlobalEndTime = globalTime;
-        
-        if (mRegression) {
-            dumpCallTimes();
+                mTopLevel.addElapsedInclusive(endTime, false, null, false);
         }
     }
 
@@ -317,14 +720,26 @@ public class DmTraceReader extends TraceReader {
     static final int PARSE_METHODS = 2;
     static final int PARSE_OPTIONS = 4;
 
+    /**
+     * Reads the key section of the trace.
+     * @return the offset of the data section in the file.
+     */
     long parseKeys() throws IOException {
-        BufferedReader in = null;
+        InputStream in = null;
         try {
-            in = new BufferedReader(new FileReader(mTraceFileName));
+            in = new TraceInputStream();
         } catch (FileNotFoundException ex) {
             System.err.println(ex.getMessage());
         }
+        return parseKeys(in);
+    }
 
+    /**
+     * Reads a key section, up to its *end marker.
+     * @return the number of bytes read.
+     */
+    final long parseKeys(InputStream stream) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(stream));
         long offset = 0;
         int mode = PARSE_VERSION;
         String line = null;
@@ -382,8 +797,14 @@ public class DmTraceReader extends TraceReader {
         if (idStr == null) return;
         if (name == null) name = "(unknown)";
 
-        int id = Integer.decode(idStr);
-        mThreadMap.put(id, new ThreadData(id, name, mTopLevel));
+        addThread(Integer.decode(idStr), name);
+    }
+
+    /**
+     * Adds a thread named in the key section.
+     */
+    final void addThread(int id, String name) {
+        mThreadMap.put(id, new ThreadData(id, name, mTopLevel, mCallTrees));
     }
 
     void parseMethod(String line) {
@@ -436,16 +857,6 @@ public class DmTraceReader extends TraceReader {
             }
         });
 
-        // Analyze the call tree so that we can label the "worst" children.
-        // Also set all the root pointers in each node in the call tree.
-        long sum = 0;
-        for (ThreadData t : mSortedThreads) {
-            if (t.isEmpty() == false) {
-                Call root = t.getCalltreeRoot();
-                root.mGlobalStartTime = t.getGlobalStartTime();
-            }
-        }
-
         // Sort the methods into decreasing inclusive time
         Collection<MethodData> mv = mMethodMap.values();
         MethodData[] methods;
@@ -483,12 +894,6 @@ public class DmTraceReader extends TraceReader {
             md.analyzeData();
         }
 
-        // Update all the calls to include the method rank in
-        // their name.
-        for (Call call : mCallList) {
-            call.updateName();
-        }
-        
         if (mRegression) {
             dumpMethodStats();
         }
@@ -505,25 +910,32 @@ public class DmTraceReader extends TraceReader {
         TimeLineView.Record record;
         ArrayList<TimeLineView.Record> timeRecs;
         timeRecs = new ArrayList<TimeLineView.Record>();
+        if (mProfileOnly) {
+            return timeRecs;
+        }
 
         // For each thread, push a "toplevel" call that encompasses the
         // entire execution of the thread.
+        CallStore topLevelCalls = new CallStore(mSortedThreads.length);
         for (ThreadData threadData : mSortedThreads) {
             if (!threadData.isEmpty() && threadData.getId() != 0) {
-                Call call = new Call(threadData.getId(), mTopLevel,
+                int index = topLevelCalls.add(threadData.getId(), mTopLevel,
                         threadData.getGlobalStartTime(), 0);
-                call.mGlobalStartTime = threadData.getGlobalStartTime();
-                call.mGlobalEndTime = threadData.getGlobalEndTime();
-                record = new TimeLineView.Record(threadData, call);
+                topLevelCalls.setGlobalStartTime(index, threadData.getGlobalStartTime());
+                topLevelCalls.setGlobalEndTime(index, threadData.getGlobalEndTime());
+                record = new TimeLineView.Record(threadData, new Call(topLevelCalls, index));
                 timeRecs.add(record);
             }
         }
 
-        for (Call call : mCallList) {
-            if (call.getMethodAction() != 0 || call.getThreadId() == 0)
+        // Only create Call objects for the method entries, which are the
+        // only records displayed by the timeline.
+        int count = mCalls != null ? mCalls.size() : 0;
+        for (int i = 0 ; i < count ; i++) {
+            if (mCalls.getMethodAction(i) != 0 || mCalls.getThreadId(i) == 0)
                 continue;
-            ThreadData threadData = mThreadMap.get(call.getThreadId());
-            record = new TimeLineView.Record(threadData, call);
+            ThreadData threadData = mThreadMap.get(mCalls.getThreadId(i));
+            record = new TimeLineView.Record(threadData, new Call(mCalls, i));
             timeRecs.add(record);
         }
         
@@ -538,16 +950,16 @@ public class DmTraceReader extends TraceReader {
         String action;
         
         System.out.format("id thread  global start,end   method\n");
-        for (Call call : mCallList) {
-            if (call.getMethodAction() == 0) {
+        for (int i = 0 ; i < mCalls.size() ; i++) {
+            if (mCalls.getMethodAction(i) == 0) {
                 action = "+";
             } else {
                 action = " ";
             }
-            long callTime = call.mThreadStartTime;
+            long callTime = mCalls.getThreadStartTime(i);
             System.out.format("%2d %6d %8d %8d %s %s\n",
-                    call.getThreadId(), callTime, call.mGlobalStartTime,
-                    call.mGlobalEndTime, action, call.getMethodData().getName());
+                    mCalls.getThreadId(i), callTime, mCalls.getGlobalStartTime(i),
+                    mCalls.getGlobalEndTime(i), action, mCalls.getMethodData(i).getName());
 //            if (call.getMethodAction() == 0 && call.getGlobalEndTime() < call.getGlobalStartTime()) {
 //                System.out.printf("endtime %d < startTime %d\n",
 //                        call.getGlobalEndTime(), call.getGlobalStartTime());
@@ -568,10 +980,10 @@ public class DmTraceReader extends TraceReader {
         System.out.format("\nid thread  global start,end  method\n");
         for (TimeLineView.Record record : timeRecs) {
             Call call = (Call) record.block;
-            long callTime = call.mThreadStartTime;
+            long callTime = call.getThreadStartTime();
             System.out.format("%2d %6d %8d %8d  %s\n",
                     call.getThreadId(), callTime,
-                    call.mGlobalStartTime, call.mGlobalEndTime,
+                    call.getStartTime(), call.getEndTime(),
                     call.getMethodData().getName());
         }
     }
@@ -595,6 +1007,25 @@ public class DmTraceReader extends TraceReader {
         return mSortedThreads;
     }
 
+    /**
+     * Returns the call paths of all the threads, with a child of the root for each thread, or
+     * <code>null</code> if they were not built.
+     */
+    @Override
+    public CallTree getCallTree() {
+        if (mCallTree == null && mCallTrees) {
+            mCallTree = new CallTree(mTopLevel);
+            for (ThreadData threadData : mSortedThreads) {
+                if (threadData.isEmpty() == false) {
+                    mCallTree.addTree(threadData.getCallTree(),
+                            new MethodData(threadData.getId(), threadData.getName()));
+                }
+            }
+            mCallTree.endTree();
+        }
+        return mCallTree;
+    }
+
     @Override
     public long getEndTime() {
         return mGlobalEndTime;
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Layout of the flame graph of a {@link CallTree}, used by {@link FlameGraphView} and to export
+ * the graph as SVG.
+ * <p/>
+ * Each node of the tree is a frame whose width is proportional to its inclusive time, on the
+ * row of its depth. The children of a node are laid out from left to right, in the order of
+ * the tree. Frames too narrow to be seen are skipped, along with their children, so the cost
+ * of the layout does not depend on the size of the tree.
+ */
+final class FlameGraph {
+
+    /**
+     * Receives the frames of the layout.
+     */
+    interface FrameVisitor {
+        /**
+         * Called for each visible frame, parents first.
+         * @param node the node of the tree.
+         * @param depth the row of the frame, 0 being the row of the root.
+         * @param x the left of the frame.
+         * @param width the width of the frame.
+         */
+        void visitFrame(int node, int depth, double x, double width);
+    }
+
+    // The layout of the SVG export, in pixels.
+    private static final int SVG_WIDTH = 1200;
+    private static final int SVG_MARGIN = 10;
+    private static final int SVG_TITLE_HEIGHT = 30;
+    private static final int SVG_FRAME_HEIGHT = 16;
+    private static final double SVG_CHAR_WIDTH = 7;
+    private static final double SVG_MIN_WIDTH = 0.1;
+
+    /**
+     * Lays out the frames of <var>tree</var>, with <var>focus</var> and its ancestors taking
+     * the whole width.
+     * @param width the width of the graph.
+     * @param minWidth the width under which a frame and its children are skipped.
+     */
+    static void layout(CallTree tree, int focus, double width, double minWidth,
+            FrameVisitor visitor) {
+        // The ancestors of the focus.
+        int depth = tree.getDepth(focus);
+        int[] ancestors = new int[depth];
+        for (int node = tree.getParent(focus) ; node != CallTree.NO_NODE ;
+                node = tree.getParent(node)) {
+            ancestors[tree.getDepth(node)] = node;
+        }
+        for (int i = 0 ; i < depth ; i++) {
+            visitor.visitFrame(ancestors[i], i, 0, width);
+        }
+
+        visitor.visitFrame(focus, depth, 0, width);
+        long focusTime = tree.getInclusiveTime(focus);
+        if (focusTime <= 0) {
+            return;
+        }
+        double scale = width / focusTime;
+
+        // The nodes to lay out the children of, with their x. The paths can be deeper than
+        // what the java stack allows, so this doesn't recurse.
+        int[] nodes = new int[64];
+        double[] xs = new double[64];
+        nodes[0] = focus;
+        xs[0] = 0;
+        int stackSize = 1;
+        while (stackSize > 0) {
+            stackSize--;
+            int parent = nodes[stackSize];
+            double x = xs[stackSize];
+            int childDepth = tree.getDepth(parent) + 1;
+            for (int child = tree.getFirstChild(parent) ; child != CallTree.NO_NODE ;
+                    child = tree.getNextSibling(child)) {
+                double childWidth = tree.getInclusiveTime(child) * scale;
+                if (childWidth >= minWidth) {
+                    visitor.visitFrame(child, childDepth, x, childWidth);
+                    if (tree.getFirstChild(child) != CallTree.NO_NODE) {
+                        if (stackSize == nodes.length) {
+                            nodes = ArrayHelper.copyOf(nodes, stackSize * 2);
+                            xs = ArrayHelper.copyOf(xs, stackSize * 2);
+                        }
+                        nodes[stackSize] = child;
+                        xs[stackSize] = x;
+                        stackSize++;
+                    }
+                }
+                x += childWidth;
+            }
+        }
+    }
+
+    /**
+     * Returns the text describing a frame: its name, inclusive time and share of the root time.
+     */
+    static String getFrameDescription(CallTree tree, int node, TraceUnits units) {
+        long rootTime = tree.getInclusiveTime(CallTree.ROOT);
+        double percent = rootTime > 0 ? tree.getInclusiveTime(node) * 100.0 / rootTime : 0;
+        return String.format("%s (%s %s, %.2f%%, %d calls)", //$NON-NLS-1$
+                tree.getMethodData(node).getName(), units.valueOf(tree.getInclusiveTime(node)),
+                units.label(), percent, tree.getCalls(node));
+    }
+
+    /**
+     * Writes the flame graph of <var>tree</var> as an SVG document, with the root at the bottom.
+     * The name and times of each frame are in its tooltip.
+     */
+    static void writeSvg(CallTree tree, String title, TraceUnits units, PrintStream out) {
+        final double width = SVG_WIDTH - 2 * SVG_MARGIN;
+
+        // The height depends on the deepest visible frame.
+        final int[] maxDepth = new int[1];
+        layout(tree, CallTree.ROOT, width, SVG_MIN_WIDTH, new FrameVisitor() {
+            public void visitFrame(int node, int depth, double x, double frameWidth) {
+                if (depth > maxDepth[0]) {
+                    maxDepth[0] = depth;
+                }
+            }
+        });
+        final int height = SVG_TITLE_HEIGHT + (maxDepth[0] + 1) * SVG_FRAME_HEIGHT
+                + 2 * SVG_MARGIN;
+
+        out.println("<?xml version=\"1.0\" standalone=\"no\"?>"); //$NON-NLS-1$
+        out.printf("<svg version=\"1.1\" width=\"%1$d\" height=\"%2$d\"" //$NON-NLS-1$
+                + " viewBox=\"0 0 %1$d %2$d\"" //$NON-NLS-1$
+                + " xmlns=\"http://www.w3.org/2000/svg\">%n", //$NON-NLS-1$
+                SVG_WIDTH, height);
+        out.printf("<rect x=\"0\" y=\"0\" width=\"%d\" height=\"%d\"" //$NON-NLS-1$
+                + " fill=\"#f8f8f8\"/>%n", //$NON-NLS-1$
+                SVG_WIDTH, height);
+        out.printf("<text x=\"%d\" y=\"%d\" text-anchor=\"middle\"" //$NON-NLS-1$
+                + " font-family=\"Verdana\" font-size=\"17\">%s</text>%n", //$NON-NLS-1$
+                SVG_WIDTH / 2, SVG_MARGIN + 17, escapeXml(title));
+        out.println("<g font-family=\"Verdana\" font-size=\"12\">"); //$NON-NLS-1$
+
+        final CallTree callTree = tree;
+        final TraceUnits traceUnits = units;
+        final PrintStream svg = out;
+        layout(tree, CallTree.ROOT, width, SVG_MIN_WIDTH, new FrameVisitor() {
+            public void visitFrame(int node, int depth, double x, double frameWidth) {
+                String name = callTree.getMethodData(node).getName();
+                double frameX = SVG_MARGIN + x;
+                int frameY = height - SVG_MARGIN - (depth + 1) * SVG_FRAME_HEIGHT;
+                svg.printf(Locale.US, "<g><title>%s</title>" //$NON-NLS-1$
+                        + "<rect x=\"%.1f\" y=\"%d\" width=\"%.1f\" height=\"%d\"" //$NON-NLS-1$
+                        + " rx=\"2\" fill=\"%s\"/>", //$NON-NLS-1$
+                        escapeXml(getFrameDescription(callTree, node, traceUnits)),
+                        frameX, frameY, frameWidth, SVG_FRAME_HEIGHT - 1, getSvgColor(name));
+                String label = getLabel(name, (int) ((frameWidth - 6) / SVG_CHAR_WIDTH));
+                if (label != null) {
+                    svg.printf(Locale.US, "<text x=\"%.1f\" y=\"%d\">%s</text>", //$NON-NLS-1$
+                            frameX + 3, frameY + SVG_FRAME_HEIGHT - 4, escapeXml(label));
+                }
+                svg.println("</g>"); //$NON-NLS-1$
+            }
+        });
+
+        out.println("</g>"); //$NON-NLS-1$
+        out.println("</svg>"); //$NON-NLS-1$
+        out.flush();
+    }
+
+    /**
+     * Returns <var>name</var> shortened to <var>maxChars</var> characters, or <code>null</code>
+     * if too few characters fit to be readable.
+     */
+    static String getLabel(String name, int maxChars) {
+        if (maxChars < 3) {
+            return null;
+        }
+        if (name.length() <= maxChars) {
+            return name;
+        }
+        return name.substring(0, maxChars - 2) + ".."; //$NON-NLS-1$
+    }
+
+    /**
+     * Returns a warm color derived from the name, so that a method has the same color in all
+     * the graphs.
+     */
+    private static String getSvgColor(String name) {
+        int hash = name.hashCode();
+        int red = 205 + (hash & 0xff) % 50;
+        int green = ((hash >>> 8) & 0xff) % 230;
+        int blue = ((hash >>> 16) & 0xff) % 55;
+        return String.format("rgb(%d,%d,%d)", red, green, blue); //$NON-NLS-1$
+    }
+
+    private static String escapeXml(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0 ; i < s.length() ; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '<':
+                    sb.append("&lt;"); //$NON-NLS-1$
+                    break;
+                case '>':
+                    sb.append("&gt;"); //$NON-NLS-1$
+                    break;
+                case '&':
+                    sb.append("&amp;"); //$NON-NLS-1$
+                    break;
+                case '"':
+                    sb.append("&quot;"); //$NON-NLS-1$
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.MouseAdapter;
+import org.eclipse.swt.events.MouseEvent;
+import org.eclipse.swt.events.MouseMoveListener;
+import org.eclipse.swt.events.PaintEvent;
+import org.eclipse.swt.events.PaintListener;
+import org.eclipse.swt.events.SelectionAdapter;
+import org.eclipse.swt.events.SelectionEvent;
+import org.eclipse.swt.graphics.Color;
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Point;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Canvas;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.FileDialog;
+import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.MessageBox;
+import org.eclipse.swt.widgets.ScrollBar;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Observable;
+import java.util.Observer;
+
+/**
+ * Flame graph of the call paths of a trace, with the root at the top.
+ * <p/>
+ * Clicking a frame zooms on it, and highlights its method in the other views. Clicking one
+ * of the frames above it zooms out.
+ */
+public class FlameGraphView extends Composite implements Observer {
+
+    private SelectionController mSelectionController;
+    private TraceUnits mUnits;
+    private CallTree mTree;
+    private Canvas mCanvas;
+    private Label mInfo;
+
+    /** the node taking the whole width */
+    private int mFocus = CallTree.ROOT;
+    private MethodData mHighlightedMethod;
+    private int mScrollOffsetY;
+
+    private int mFrameHeight;
+    private int mCharWidth;
+    private Color mColorForeground;
+    private Color mColorBackground;
+    private Color mColorFrame;
+
+    public FlameGraphView(Composite parent, TraceReader reader,
+            SelectionController selectionController) {
+        super(parent, SWT.NONE);
+        mSelectionController = selectionController;
+        mSelectionController.addObserver(this);
+        mUnits = reader.getTraceUnits();
+        mTree = reader.getCallTree();
+
+        Display display = getDisplay();
+        mColorForeground = display.getSystemColor(SWT.COLOR_BLACK);
+        mColorBackground = display.getSystemColor(SWT.COLOR_WHITE);
+        mColorFrame = display.getSystemColor(SWT.COLOR_GRAY);
+
+        GridLayout layout = new GridLayout(2, false);
+        layout.marginWidth = 0;
+        layout.marginHeight = 0;
+        setLayout(layout);
+
+        mInfo = new Label(this, SWT.NONE);
+        mInfo.setLayoutData(new GridData(GridData.FILL_HORIZONTAL));
+
+        Button export = new Button(this, SWT.PUSH);
+        export.setText("Export SVG...");
+        export.setEnabled(mTree != null);
+        export.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                exportSvg();
+            }
+        });
+
+        mCanvas = new Canvas(this, SWT.V_SCROLL | SWT.DOUBLE_BUFFERED);
+        GridData gridData = new GridData(GridData.FILL_BOTH);
+        gridData.horizontalSpan = 2;
+        mCanvas.setLayoutData(gridData);
+
+        GC gc = new GC(mCanvas);
+        mFrameHeight = gc.getFontMetrics().getHeight() + 4;
+        mCharWidth = gc.getFontMetrics().getAverageCharWidth();
+        gc.dispose();
+
+        mCanvas.addPaintListener(new PaintListener() {
+            public void paintControl(PaintEvent pe) {
+                draw(pe.gc);
+            }
+        });
+
+        final ScrollBar vBar = mCanvas.getVerticalBar();
+        vBar.addListener(SWT.Selection, new Listener() {
+            public void handleEvent(Event e) {
+                mScrollOffsetY = vBar.getSelection();
+                mCanvas.redraw();
+            }
+        });
+
+        mCanvas.addListener(SWT.Resize, new Listener() {
+            public void handleEvent(Event e) {
+                updateScrollBar();
+                mCanvas.redraw();
+            }
+        });
+
+        mCanvas.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseDown(MouseEvent me) {
+                if (me.button != 1) {
+                    return;
+                }
+                int node = findFrame(me.x, me.y);
+                if (node != CallTree.NO_NODE) {
+                    zoom(node);
+                }
+            }
+        });
+
+        mCanvas.addMouseMoveListener(new MouseMoveListener() {
+            public void mouseMove(MouseEvent me) {
+                int node = findFrame(me.x, me.y);
+                String text = "";
+                if (node != CallTree.NO_NODE) {
+                    text = FlameGraph.getFrameDescription(mTree, node, mUnits);
+                }
+                mInfo.setText(text);
+                mCanvas.setToolTipText(node != CallTree.NO_NODE ? text : null);
+            }
+        });
+    }
+
+    public void update(Observable objservable, Object arg) {
+        // Ignore updates from myself
+        if (arg == "FlameGraphView") //$NON-NLS-1$
+            return;
+        ArrayList<Selection> selections = mSelectionController.getSelections();
+        for (Selection selection : selections) {
+            Selection.Action action = selection.getAction();
+            if (action != Selection.Action.Highlight)
+                continue;
+            String name = selection.getName();
+            if (name == "MethodData") { //$NON-NLS-1$
+                setHighlightedMethod((MethodData) selection.getValue());
+                return;
+            }
+            if (name == "Call") { //$NON-NLS-1$
+                Call call = (Call) selection.getValue();
+                setHighlightedMethod(call.getMethodData());
+                return;
+            }
+        }
+    }
+
+    private void setHighlightedMethod(MethodData md) {
+        if (md != mHighlightedMethod) {
+            mHighlightedMethod = md;
+            mCanvas.redraw();
+        }
+    }
+
+    private void zoom(int node) {
+        mFocus = node;
+        mScrollOffsetY = 0;
+        updateScrollBar();
+        mCanvas.redraw();
+
+        // The root is the top level, and its children are the threads: only the
+        // deeper frames are methods of the trace.
+        if (mTree.getDepth(node) >= 2) {
+            MethodData md = mTree.getMethodData(node);
+            mHighlightedMethod = md;
+            ArrayList<Selection> selections = new ArrayList<Selection>();
+            selections.add(Selection.highlight("MethodData", md)); //$NON-NLS-1$
+            mSelectionController.change(selections, "FlameGraphView"); //$NON-NLS-1$
+        }
+    }
+
+    private void updateScrollBar() {
+        ScrollBar vBar = mCanvas.getVerticalBar();
+        int spaceNeeded = mTree != null ? (mTree.getMaxDepth() + 1) * mFrameHeight : 0;
+        int height = mCanvas.getClientArea().height;
+        vBar.setMaximum(spaceNeeded);
+        vBar.setThumb(Math.max(1, Math.min(height, spaceNeeded)));
+        vBar.setVisible(spaceNeeded > height);
+        if (mScrollOffsetY > spaceNeeded - height) {
+            mScrollOffsetY = Math.max(0, spaceNeeded - height);
+        }
+        vBar.setSelection(mScrollOffsetY);
+    }
+
+    private void draw(final GC gc) {
+        Point dim = mCanvas.getSize();
+        gc.setBackground(mColorBackground);
+        gc.fillRectangle(0, 0, dim.x, dim.y);
+        if (mTree == null) {
+            return;
+        }
+
+        final int top = mScrollOffsetY;
+        final int bottom = mScrollOffsetY + dim.y;
+        gc.setForeground(mColorForeground);
+        FlameGraph.layout(mTree, mFocus, mCanvas.getClientArea().width, 1,
+                new FlameGraph.FrameVisitor() {
+            public void visitFrame(int node, int depth, double x, double width) {
+                int y = depth * mFrameHeight;
+                if (y + mFrameHeight < top || y > bottom) {
+                    return;
+                }
+                y -= top;
+
+                MethodData md = mTree.getMethodData(node);
+                Color color = md == mHighlightedMethod ? md.getColor() : md.getFadedColor();
+                gc.setBackground(color != null ? color : mColorFrame);
+                int x1 = (int) x;
+                int w = Math.max(1, (int) (x + width) - x1 - 1);
+                gc.fillRectangle(x1, y, w, mFrameHeight - 1);
+
+                String label = FlameGraph.getLabel(md.getName(), (w - 4) / mCharWidth);
+                if (label != null) {
+                    gc.drawString(label, x1 + 2, y + 2, true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the node of the frame at (x, y) in the canvas, or {@link CallTree#NO_NODE}.
+     */
+    private int findFrame(final int x, int y) {
+        if (mTree == null) {
+            return CallTree.NO_NODE;
+        }
+
+        final int row = (y + mScrollOffsetY) / mFrameHeight;
+        final int[] found = new int[] { CallTree.NO_NODE };
+        FlameGraph.layout(mTree, mFocus, mCanvas.getClientArea().width, 1,
+                new FlameGraph.FrameVisitor() {
+            public void visitFrame(int node, int depth, double frameX, double width) {
+                if (depth == row && x >= frameX && x < frameX + width) {
+                    found[0] = node;
+                }
+            }
+        });
+        return found[0];
+    }
+
+    private void exportSvg() {
+        FileDialog dialog = new FileDialog(getShell(), SWT.SAVE);
+        dialog.setText("Export Flame Graph");
+        dialog.setFilterExtensions(new String[] { "*.svg" }); //$NON-NLS-1$
+        String path = dialog.open();
+        if (path == null) {
+            return;
+        }
+
+        try {
+            PrintStream out = new PrintStream(new FileOutputStream(path));
+            try {
+                FlameGraph.writeSvg(mTree, getShell().getText(), mUnits, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            MessageBox box = new MessageBox(getShell(), SWT.ICON_ERROR | SWT.OK);
+            box.setText("Export Flame Graph");
+            box.setMessage(String.format("Failed to write %1$s: %2$s", path, e.getMessage()));
+            box.open();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Map with <code>int</code> keys, used for the method and thread tables of a trace.
+ * <p/>
+ * The trace readers look up a method and a thread for every record, so the keys are stored in an
+ * open addressing table instead of being boxed into {@link Integer}s. The values are also kept in
+ * insertion order, which makes the iteration order independent of the ids.
+ * <p/>
+ * <code>null</code> values are not supported.
+ */
+final class IntMap<V> {
+
+    private int[] mKeys;
+    private Object[] mValues;
+    private final ArrayList<V> mValueList = new ArrayList<V>();
+
+    IntMap() {
+        this(64);
+    }
+
+    /**
+     * Creates a map.
+     * @param expectedSize the expected number of entries.
+     */
+    IntMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new int[capacity];
+        mValues = new Object[capacity];
+    }
+
+    /**
+     * Returns the value for <var>key</var>, or <code>null</code>.
+     */
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        int mask = mKeys.length - 1;
+        int index = hash(key) & mask;
+        Object value;
+        while ((value = mValues[index]) != null) {
+            if (mKeys[index] == key) {
+                return (V) value;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Sets the value for <var>key</var>, replacing the previous value if any.
+     */
+    void put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+
+        int mask = mKeys.length - 1;
+        int index = hash(key) & mask;
+        Object previous;
+        while ((previous = mValues[index]) != null) {
+            if (mKeys[index] == key) {
+                mValues[index] = value;
+                mValueList.set(mValueList.indexOf(previous), value);
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+
+        mKeys[index] = key;
+        mValues[index] = value;
+        mValueList.add(value);
+
+        // keep the load factor under 1/2
+        if (mValueList.size() * 2 > mKeys.length) {
+            rehash();
+        }
+    }
+
+    int size() {
+        return mValueList.size();
+    }
+
+    /**
+     * Returns the values, in insertion order.
+     */
+    List<V> values() {
+        return Collections.unmodifiableList(mValueList);
+    }
+
+    private void rehash() {
+        int[] keys = mKeys;
+        Object[] values = mValues;
+        mKeys = new int[keys.length * 2];
+        mValues = new Object[keys.length * 2];
+        int mask = mKeys.length - 1;
+        for (int i = 0 ; i < keys.length ; i++) {
+            if (values[i] != null) {
+                int index = hash(keys[i]) & mask;
+                while (mValues[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                mKeys[index] = keys[i];
+                mValues[index] = values[i];
+            }
+        }
+    }
+
+    /**
+     * Method ids are addresses, aligned on 4 bytes, so the low bits alone are a poor hash.
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -28,6 +28,8 @@ import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.TabFolder;
+import org.eclipse.swt.widgets.TabItem;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -93,8 +95,14 @@ public class MainWindow extends ApplicationWindow {
         // Create the timeline view
         new TimeLineView(sashForm1, mReader, selectionController);
 
-        // Create the profile view
-        new ProfileView(sashForm1, mReader, selectionController);
+        // Create the profile view and the flame graph, in tabs
+        TabFolder tabFolder = new TabFolder(sashForm1, SWT.BOTTOM);
+        TabItem profileTab = new TabItem(tabFolder, SWT.NONE);
+        profileTab.setText("Profile");
+        profileTab.setControl(new ProfileView(tabFolder, mReader, selectionController));
+        TabItem flameGraphTab = new TabItem(tabFolder, SWT.NONE);
+        flameGraphTab.setText("Flame Graph");
+        flameGraphTab.setControl(new FlameGraphView(tabFolder, mReader, selectionController));
         return sashForm1;
     }
 
@@ -160,6 +168,15 @@ public class MainWindow extends ApplicationWindow {
     public static void main(String[] args) {
         TraceReader reader = null;
         boolean regression = false;
+        long expectedLength = -1;
+
+        // The report doesn't need a display, nor the usage server.
+        if (args.length > 0 && args[0].equals("--report")) { //$NON-NLS-1$
+            String[] reportArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, reportArgs, 0, reportArgs.length);
+            TraceReport.main(reportArgs);
+            return;
+        }
 
         // ping the usage server
 
@@ -178,23 +195,37 @@ public class MainWindow extends ApplicationWindow {
             }
             if (arg.equals("-r")) {
                 regression = true;
+            } else if (arg.equals("-w") && argc + 1 < len) {
+                try {
+                    expectedLength = Long.parseLong(args[++argc]);
+                } catch (NumberFormatException e) {
+                    argc = len;
+                    break;
+                }
             } else {
                 break;
             }
             argc++;
         }
         if (argc != len - 1) {
-            System.out.printf("Usage: java %s [-r] trace%n", MainWindow.class.getName());
+            System.out.printf("Usage: java %s [-r] [-w length] trace%n",
+                    MainWindow.class.getName());
             System.out.printf("  -r   regression only%n");
+            System.out.printf("  -w   the trace is still being written, read it as it grows to"
+                    + " length bytes%n");
+            System.out.printf("   or: java %s --report [report options] [base-trace] trace%n",
+                    MainWindow.class.getName());
             return;
         }
 
         String traceName = args[len - 1];
         File file = new File(traceName);
         if (file.exists() && file.isDirectory()) {
-            System.out.printf("Qemu trace files not supported yet.\n");
-            System.exit(1);
-            // reader = new QtraceReader(traceName);
+            if (new File(file, QtraceReader.METHOD_FILE).isFile() == false) {
+                System.err.printf("'%s' is not an emulator trace\n", traceName);
+                System.exit(1);
+            }
+            reader = new QtraceReader(traceName);
         } else {
             // If the filename as given doesn't exist...
             if (!file.exists()) {
@@ -217,7 +248,7 @@ public class MainWindow extends ApplicationWindow {
                 }
             }
 
-            reader = new DmTraceReader(traceName, regression);
+            reader = new DmTraceReader(traceName, regression, false, expectedLength);
         }
         reader.getTraceUnits().setTimeScale(TraceUnits.TimeScale.MilliSeconds);
 
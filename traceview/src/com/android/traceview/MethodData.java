@@ -24,6 +24,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Map.Entry;
 
 public class MethodData {
 
@@ -119,7 +120,8 @@ public class MethodData {
         mElapsedExclusive += time;
     }
 
-    public void addElapsedInclusive(long time, boolean isRecursive, Call parent) {
+    public void addElapsedInclusive(long time, boolean isRecursive,
+            MethodData parentMethod, boolean parentIsRecursive) {
         if (isRecursive == false) {
             mElapsedInclusive += time;
             mNumCalls[0] += 1;
@@ -127,12 +129,11 @@ public class MethodData {
             mNumCalls[1] += 1;
         }
 
-        if (parent == null)
+        if (parentMethod == null)
             return;
 
         // Find the child method in the parent
-        MethodData parentMethod = parent.mMethodData;
-        if (parent.isRecursive()) {
+        if (parentIsRecursive) {
             parentMethod.mRecursiveChildren = updateInclusive(time,
                     parentMethod, this, false,
                     parentMethod.mRecursiveChildren);
@@ -151,15 +152,85 @@ public class MethodData {
         }
     }
 
+    /**
+     * Adds the profile data collected for this method by one thread.
+     */
+    void addStats(MethodStats.Entry stats) {
+        mElapsedExclusive += stats.mElapsedExclusive;
+        mElapsedInclusive += stats.mElapsedInclusive;
+        mTopExclusive += stats.mTopExclusive;
+        mNumCalls[0] += stats.mNumCalls;
+        mNumCalls[1] += stats.mNumRecursiveCalls;
+
+        mParents = addEdges(stats.mParents, true, mParents);
+        mChildren = addEdges(stats.mChildren, false, mChildren);
+        mRecursiveParents = addEdges(stats.mRecursiveParents, true, mRecursiveParents);
+        mRecursiveChildren = addEdges(stats.mRecursiveChildren, false, mRecursiveChildren);
+    }
+
+    /**
+     * Returns the profile data of this method, in the form collected by the threads. This is
+     * used to write it to a {@link TraceCache}, and it is restored with
+     * {@link #addStats(MethodStats.Entry)}.
+     */
+    MethodStats.Entry getStats() {
+        MethodStats.Entry stats = new MethodStats.Entry(this);
+        stats.mElapsedExclusive = mElapsedExclusive;
+        stats.mElapsedInclusive = mElapsedInclusive;
+        stats.mTopExclusive = mTopExclusive;
+        stats.mNumCalls = mNumCalls[0];
+        stats.mNumRecursiveCalls = mNumCalls[1];
+        stats.mParents = getEdges(mParents);
+        stats.mChildren = getEdges(mChildren);
+        stats.mRecursiveParents = getEdges(mRecursiveParents);
+        stats.mRecursiveChildren = getEdges(mRecursiveChildren);
+        return stats;
+    }
+
+    private static HashMap<MethodData, MethodStats.Edge> getEdges(
+            HashMap<Integer, ProfileData> map) {
+        if (map == null)
+            return null;
+
+        HashMap<MethodData, MethodStats.Edge> edges =
+            new HashMap<MethodData, MethodStats.Edge>(map.size() * 2);
+        for (ProfileData profileData : map.values()) {
+            MethodStats.Edge edge = new MethodStats.Edge();
+            edge.mElapsedInclusive = profileData.getElapsedInclusive();
+            edge.mNumCalls = profileData.mNumCalls;
+            edges.put(profileData.getMethodData(), edge);
+        }
+        return edges;
+    }
+
+    private HashMap<Integer, ProfileData> addEdges(HashMap<MethodData, MethodStats.Edge> edges,
+            boolean elementIsParent, HashMap<Integer, ProfileData> map) {
+        if (edges == null)
+            return map;
+
+        for (Entry<MethodData, MethodStats.Edge> entry : edges.entrySet()) {
+            MethodStats.Edge edge = entry.getValue();
+            map = updateInclusive(edge.mElapsedInclusive, edge.mNumCalls, this,
+                    entry.getKey(), elementIsParent, map);
+        }
+        return map;
+    }
+
     private HashMap<Integer, ProfileData> updateInclusive(long time,
             MethodData contextMethod, MethodData elementMethod,
             boolean elementIsParent, HashMap<Integer, ProfileData> map) {
+        return updateInclusive(time, 1, contextMethod, elementMethod, elementIsParent, map);
+    }
+
+    private HashMap<Integer, ProfileData> updateInclusive(long time, int numCalls,
+            MethodData contextMethod, MethodData elementMethod,
+            boolean elementIsParent, HashMap<Integer, ProfileData> map) {
         if (map == null) {
             map = new HashMap<Integer, ProfileData>(4);
         } else {
             ProfileData profileData = map.get(elementMethod.mId);
             if (profileData != null) {
-                profileData.addElapsedInclusive(time);
+                profileData.addElapsedInclusive(time, numCalls);
                 return map;
             }
         }
@@ -167,7 +238,7 @@ public class MethodData {
         ProfileData elementData = new ProfileData(contextMethod,
                 elementMethod, elementIsParent);
         elementData.setElapsedInclusive(time);
-        elementData.setNumCalls(1);
+        elementData.setNumCalls(numCalls);
         map.put(elementMethod.mId, elementData);
         return map;
     }
@@ -304,6 +375,20 @@ public class MethodData {
         return String.format("%d+%d", mNumCalls[0], mNumCalls[1]);
     }
 
+    /**
+     * Returns the number of non-recursive calls to this method.
+     */
+    public int getNumCalls() {
+        return mNumCalls[0];
+    }
+
+    /**
+     * Returns the number of recursive calls to this method.
+     */
+    public int getNumRecursiveCalls() {
+        return mNumCalls[1];
+    }
+
     public int getTotalCalls() {
         return mNumCalls[0] + mNumCalls[1];
     }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+/**
+ * Index of the method names of a trace, used to search the methods of the profile view as the
+ * user types.
+ * <p/>
+ * The names are lower-cased once, and the index maps each trigram (sequence of 3 characters) of
+ * the lower-cased names to the methods containing it. A query of 3 characters or more is only
+ * checked against the methods containing its rarest trigram. Since a query usually extends the
+ * previous one by a character, the matches of the previous query are also reused when possible.
+ * <p/>
+ * A query containing an upper case letter is case sensitive, otherwise case is ignored.
+ */
+final class MethodIndex {
+
+    private final static int[] NO_MATCHES = new int[0];
+
+    private final String[] mNames;
+    private String[] mLowerNames;
+    /** the methods containing each trigram, see {@link #trigram(String, int)} */
+    private IntMap<Postings> mTrigrams;
+
+    private String mLastQuery;
+    private int[] mLastMatches;
+
+    /**
+     * Sorted list of method ids.
+     */
+    private final static class Postings {
+        int[] mIds = new int[4];
+        int mSize;
+
+        void add(int id) {
+            // ids are added in increasing order, once per trigram occurrence.
+            if (mSize > 0 && mIds[mSize - 1] == id) {
+                return;
+            }
+            if (mSize == mIds.length) {
+                int[] ids = new int[mSize * 2];
+                System.arraycopy(mIds, 0, ids, 0, mSize);
+                mIds = ids;
+            }
+            mIds[mSize++] = id;
+        }
+    }
+
+    /**
+     * Creates an index.
+     * @param methods the methods. The ids returned by {@link #find(String)} are indexes in this
+     * array.
+     */
+    MethodIndex(MethodData[] methods) {
+        mNames = new String[methods.length];
+        for (int ii = 0; ii < methods.length; ++ii) {
+            mNames[ii] = methods[ii].getName();
+        }
+    }
+
+    /**
+     * Returns the ids of the methods whose name contains <var>query</var>, in increasing order.
+     */
+    int[] find(String query) {
+        if (mLastQuery != null && query.equals(mLastQuery)) {
+            return mLastMatches;
+        }
+
+        if (mLowerNames == null) {
+            mLowerNames = new String[mNames.length];
+            for (int ii = 0; ii < mNames.length; ++ii) {
+                mLowerNames[ii] = mNames[ii].toLowerCase();
+            }
+        }
+
+        boolean matchCase = hasUpperCase(query);
+        String lowerQuery = query.toLowerCase();
+
+        int[] candidates;
+        int count;
+        if (mLastQuery != null && query.indexOf(mLastQuery) != -1) {
+            // a method containing this query also contains the previous one
+            candidates = mLastMatches;
+            count = candidates.length;
+        } else if (lowerQuery.length() >= 3) {
+            Postings postings = getRarestTrigram(lowerQuery);
+            if (postings == null) {
+                candidates = NO_MATCHES;
+                count = 0;
+            } else {
+                candidates = postings.mIds;
+                count = postings.mSize;
+            }
+        } else {
+            candidates = null;
+            count = mNames.length;
+        }
+
+        String[] names = matchCase ? mNames : mLowerNames;
+        String match = matchCase ? query : lowerQuery;
+        int[] matches = new int[count];
+        int numMatches = 0;
+        for (int ii = 0; ii < count; ++ii) {
+            int id = candidates != null ? candidates[ii] : ii;
+            if (names[id].indexOf(match) != -1) {
+                matches[numMatches++] = id;
+            }
+        }
+
+        if (numMatches != matches.length) {
+            int[] trimmed = new int[numMatches];
+            System.arraycopy(matches, 0, trimmed, 0, numMatches);
+            matches = trimmed;
+        }
+
+        mLastQuery = query;
+        mLastMatches = matches;
+        return matches;
+    }
+
+    /**
+     * Returns the postings of the trigram of <var>lowerQuery</var> contained in the fewest
+     * methods, or <code>null</code> if one of its trigrams is in no method name.
+     */
+    private Postings getRarestTrigram(String lowerQuery) {
+        if (mTrigrams == null) {
+            buildTrigrams();
+        }
+
+        Postings rarest = null;
+        for (int ii = 0; ii + 3 <= lowerQuery.length(); ++ii) {
+            Postings postings = mTrigrams.get(trigram(lowerQuery, ii));
+            if (postings == null) {
+                return null;
+            }
+            if (rarest == null || postings.mSize < rarest.mSize) {
+                rarest = postings;
+            }
+        }
+        return rarest;
+    }
+
+    private void buildTrigrams() {
+        mTrigrams = new IntMap<Postings>(4096);
+        for (int id = 0; id < mLowerNames.length; ++id) {
+            String name = mLowerNames[id];
+            for (int ii = 0; ii + 3 <= name.length(); ++ii) {
+                int key = trigram(name, ii);
+                Postings postings = mTrigrams.get(key);
+                if (postings == null) {
+                    postings = new Postings();
+                    mTrigrams.put(key, postings);
+                }
+                postings.add(id);
+            }
+        }
+    }
+
+    /**
+     * Packs the 3 characters at <var>index</var> in an int. Only the low 10 bits of each
+     * character are kept: the few collisions this causes for non-ASCII names only add candidates,
+     * which are then checked against the query.
+     */
+    private static int trigram(String s, int index) {
+        return (s.charAt(index) & 0x3ff) << 20
+                | (s.charAt(index + 1) & 0x3ff) << 10
+                | (s.charAt(index + 2) & 0x3ff);
+    }
+
+    private static boolean hasUpperCase(String s) {
+        for (int ii = 0; ii < s.length(); ++ii) {
+            if (Character.isUpperCase(s.charAt(ii))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Profile data of the methods, collected for a single thread.
+ * <p/>
+ * The threads of a trace are analyzed in parallel, so the times are first accumulated here, and
+ * added to the shared {@link MethodData} objects with {@link MethodData#addStats(Entry)} once all
+ * the threads are done.
+ * <p/>
+ * This class is not thread-safe. Each thread of the trace has its own instance.
+ */
+final class MethodStats {
+
+    /**
+     * Time spent in a method when called from another method, or in a method called by another
+     * method.
+     */
+    static final class Edge {
+        long mElapsedInclusive;
+        int mNumCalls;
+    }
+
+    /**
+     * Profile data of a single method.
+     */
+    static final class Entry {
+        final MethodData mMethod;
+        long mElapsedExclusive;
+        long mElapsedInclusive;
+        long mTopExclusive;
+        int mNumCalls;
+        int mNumRecursiveCalls;
+
+        /** number of calls to the method currently on the stack of the thread. */
+        int mStackCount;
+
+        HashMap<MethodData, Edge> mParents;
+        HashMap<MethodData, Edge> mChildren;
+
+        // The parents of this method when this method was in a recursive call
+        HashMap<MethodData, Edge> mRecursiveParents;
+
+        // The children of this method when this method was in a recursive call
+        HashMap<MethodData, Edge> mRecursiveChildren;
+
+        Entry(MethodData method) {
+            mMethod = method;
+        }
+
+        void addExclusive(long time, boolean isRecursive) {
+            mElapsedExclusive += time;
+            if (isRecursive == false) {
+                mTopExclusive += time;
+            }
+        }
+
+        /**
+         * Adds the inclusive time of a call to this method.
+         * @param time the duration of the call
+         * @param isRecursive whether the call was recursive
+         * @param parent the entry of the calling method, or <code>null</code>
+         * @param parentIsRecursive whether the call to the calling method was recursive
+         */
+        void addInclusive(long time, boolean isRecursive, Entry parent,
+                boolean parentIsRecursive) {
+            if (isRecursive == false) {
+                mElapsedInclusive += time;
+                mNumCalls += 1;
+            } else {
+                mNumRecursiveCalls += 1;
+            }
+
+            if (parent == null) {
+                return;
+            }
+
+            // Find the child method in the parent
+            if (parentIsRecursive) {
+                parent.mRecursiveChildren = addEdge(parent.mRecursiveChildren, mMethod, time);
+            } else {
+                parent.mChildren = addEdge(parent.mChildren, mMethod, time);
+            }
+
+            // Find the parent method in the child
+            if (isRecursive) {
+                mRecursiveParents = addEdge(mRecursiveParents, parent.mMethod, time);
+            } else {
+                mParents = addEdge(mParents, parent.mMethod, time);
+            }
+        }
+
+        private static HashMap<MethodData, Edge> addEdge(HashMap<MethodData, Edge> map,
+                MethodData method, long time) {
+            Edge edge = null;
+            if (map == null) {
+                map = new HashMap<MethodData, Edge>(4);
+            } else {
+                edge = map.get(method);
+            }
+
+            if (edge == null) {
+                edge = new Edge();
+                map.put(method, edge);
+            }
+
+            edge.mElapsedInclusive += time;
+            edge.mNumCalls += 1;
+            return map;
+        }
+    }
+
+    private final HashMap<MethodData, Entry> mEntries = new HashMap<MethodData, Entry>();
+
+    /**
+     * Returns the entry for a method, creating it if needed.
+     */
+    Entry get(MethodData method) {
+        Entry entry = mEntries.get(method);
+        if (entry == null) {
+            entry = new Entry(method);
+            mEntries.put(method, entry);
+        }
+        return entry;
+    }
+
+    Collection<Entry> getEntries() {
+        return mEntries.values();
+    }
+}
@@ -46,8 +46,12 @@ public class ProfileData {
     }
 
     public void addElapsedInclusive(long elapsedInclusive) {
+        addElapsedInclusive(elapsedInclusive, 1);
+    }
+
+    public void addElapsedInclusive(long elapsedInclusive, int numCalls) {
         mElapsedInclusive += elapsedInclusive;
-        mNumCalls += 1;
+        mNumCalls += numCalls;
     }
 
     public void setElapsedInclusive(long elapsedInclusive) {
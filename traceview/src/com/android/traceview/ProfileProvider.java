@@ -18,7 +18,7 @@ package com.android.traceview;
 
 import java.io.InputStream;
 import java.util.Arrays;
-import java.util.regex.Pattern;
+import java.util.EnumMap;
 
 import org.eclipse.jface.viewers.IColorProvider;
 import org.eclipse.jface.viewers.ITableLabelProvider;
@@ -57,11 +57,23 @@ class ProfileProvider implements ITreeContentProvider {
     private static final int COL_CALLS = 5;
     private static final int COL_TIME_PER_CALL = 6;
     private long mTotalTime;
-    private Pattern mUppercase;
     private int mPrevMatchIndex = -1;
 
+    /** the methods, indexed by rank */
+    private MethodData[] mMethodsByRank;
+    /** the index of each method in mRoots, by rank */
+    private int[] mPositions;
+    private MethodIndex mIndex;
+
     public ProfileProvider(TraceReader reader) {
         mRoots = reader.getMethods();
+        mMethodsByRank = new MethodData[mRoots.length];
+        for (MethodData md : mRoots) {
+            mMethodsByRank[md.getRank()] = md;
+        }
+        mPositions = new int[mRoots.length];
+        updatePositions();
+        mIndex = new MethodIndex(mMethodsByRank);
         mReader = reader;
         mTotalTime = reader.getEndTime();
         Display display = Display.getCurrent();
@@ -71,26 +83,29 @@ class ProfileProvider implements ITreeContentProvider {
         in = getClass().getClassLoader().getResourceAsStream(
                 "icons/sort_down.png");
         mSortDown = new Image(display, in);
-        mUppercase = Pattern.compile("[A-Z]");
+    }
+
+    private void updatePositions() {
+        for (int ii = 0; ii < mRoots.length; ++ii) {
+            mPositions[mRoots[ii].getRank()] = ii;
+        }
     }
 
     private MethodData doMatchName(String name, int startIndex) {
-        // Check if the given "name" has any uppercase letters
-        boolean hasUpper = mUppercase.matcher(name).matches();
-        for (int ii = startIndex; ii < mRoots.length; ++ii) {
-            MethodData md = mRoots[ii];
-            String fullName = md.getName();
-            // If there were no upper case letters in the given name,
-            // then ignore case when matching.
-            if (!hasUpper)
-                fullName = fullName.toLowerCase();
-            if (fullName.indexOf(name) != -1) {
-                mPrevMatchIndex = ii;
-                return md;
+        // Find the first match at or after startIndex in the current sort order.
+        // The matches are by rank, so look at their positions instead of scanning mRoots.
+        int[] matches = mIndex.find(name);
+        int matchIndex = -1;
+        for (int rank : matches) {
+            int index = mPositions[rank];
+            if (index >= startIndex && (matchIndex == -1 || index < matchIndex)) {
+                matchIndex = index;
             }
         }
-        mPrevMatchIndex = -1;
-        return null;
+        mPrevMatchIndex = matchIndex;
+        if (matchIndex == -1)
+            return null;
+        return mRoots[matchIndex];
     }
 
     public MethodData findMatchingName(String name) {
@@ -110,11 +125,9 @@ class ProfileProvider implements ITreeContentProvider {
         int spaceIndex = text.indexOf(' ');
         String numstr = text.substring(0, spaceIndex);
         int rank = Integer.valueOf(numstr);
-        for (MethodData md : mRoots) {
-            if (md.getRank() == rank)
-                return md;
-        }
-        return null;
+        if (rank < 0 || rank >= mMethodsByRank.length)
+            return null;
+        return mMethodsByRank[rank];
     }
 
     public void setTreeViewer(TreeViewer treeViewer) {
@@ -316,6 +329,12 @@ class ProfileProvider implements ITreeContentProvider {
     class ColumnListener extends SelectionAdapter {
         MethodData.Sorter sorter = new MethodData.Sorter();
 
+        // The sort orders already computed, so that sorting again by a column is a copy.
+        EnumMap<MethodData.Sorter.Column, MethodData[]> increasingOrders =
+            new EnumMap<MethodData.Sorter.Column, MethodData[]>(MethodData.Sorter.Column.class);
+        EnumMap<MethodData.Sorter.Column, MethodData[]> decreasingOrders =
+            new EnumMap<MethodData.Sorter.Column, MethodData[]>(MethodData.Sorter.Column.class);
+
         @Override
         public void widgetSelected(SelectionEvent event) {
             TreeColumn column = (TreeColumn) event.widget;
@@ -328,26 +347,19 @@ class ProfileProvider implements ITreeContentProvider {
             }
             if (name == mColumnNames[COL_NAME]) {
                 // Sort names alphabetically
-                sorter.setColumn(MethodData.Sorter.Column.BY_NAME);
-                Arrays.sort(mRoots, sorter);
+                sort(MethodData.Sorter.Column.BY_NAME);
             } else if (name == mColumnNames[COL_EXCLUSIVE]) {
-                sorter.setColumn(MethodData.Sorter.Column.BY_EXCLUSIVE);
-                Arrays.sort(mRoots, sorter);
+                sort(MethodData.Sorter.Column.BY_EXCLUSIVE);
             } else if (name == mColumnNames[COL_EXCLUSIVE_PER]) {
-                sorter.setColumn(MethodData.Sorter.Column.BY_EXCLUSIVE);
-                Arrays.sort(mRoots, sorter);
+                sort(MethodData.Sorter.Column.BY_EXCLUSIVE);
             } else if (name == mColumnNames[COL_INCLUSIVE]) {
-                sorter.setColumn(MethodData.Sorter.Column.BY_INCLUSIVE);
-                Arrays.sort(mRoots, sorter);
+                sort(MethodData.Sorter.Column.BY_INCLUSIVE);
             } else if (name == mColumnNames[COL_INCLUSIVE_PER]) {
-                sorter.setColumn(MethodData.Sorter.Column.BY_INCLUSIVE);
-                Arrays.sort(mRoots, sorter);
+                sort(MethodData.Sorter.Column.BY_INCLUSIVE);
             } else if (name == mColumnNames[COL_CALLS]) {
-                sorter.setColumn(MethodData.Sorter.Column.BY_CALLS);
-                Arrays.sort(mRoots, sorter);
+                sort(MethodData.Sorter.Column.BY_CALLS);
             } else if (name == mColumnNames[COL_TIME_PER_CALL]) {
-                sorter.setColumn(MethodData.Sorter.Column.BY_TIME_PER_CALL);
-                Arrays.sort(mRoots, sorter);
+                sort(MethodData.Sorter.Column.BY_TIME_PER_CALL);
             }
             MethodData.Sorter.Direction direction = sorter.getDirection();
             if (direction == MethodData.Sorter.Direction.INCREASING)
@@ -357,5 +369,22 @@ class ProfileProvider implements ITreeContentProvider {
             tree.setRedraw(true);
             mTreeViewer.refresh();
         }
+
+        private void sort(MethodData.Sorter.Column column) {
+            sorter.setColumn(column);
+            EnumMap<MethodData.Sorter.Column, MethodData[]> orders;
+            if (sorter.getDirection() == MethodData.Sorter.Direction.INCREASING)
+                orders = increasingOrders;
+            else
+                orders = decreasingOrders;
+            MethodData[] order = orders.get(column);
+            if (order == null) {
+                order = mRoots.clone();
+                Arrays.sort(order, sorter);
+                orders.put(column, order);
+            }
+            System.arraycopy(order, 0, mRoots, 0, mRoots.length);
+            updatePositions();
+        }
     }
 }
@@ -279,7 +279,7 @@ public class ProfileView extends Composite implements Observer {
             }
             if (name == "Call") {
                 Call call = (Call) selection.getValue();
-                MethodData md = call.mMethodData;
+                MethodData md = call.getMethodData();
                 highlightMethod(md, true);
                 return;
             }
@@ -16,30 +16,534 @@
 
 package com.android.traceview;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 
-public class QtraceReader extends TraceReader {
-    QtraceReader(String traceName) {
+/**
+ * Reader for the traces of the emulator, which are directories of qtrace files.
+ * <p/>
+ * The calls are read from the qtrace.method file of the directory. Each record is made of the
+ * time elapsed since the previous record, and the differences between its method address and
+ * pid and the ones of the previous record, followed by the call type. A record with no elapsed
+ * time ends the file.
+ * <p/>
+ * The processes and their address spaces are read from the optional qtrace.pid file, which
+ * records the forks, execs, mmaps, process names and symbols of the emulated system. A method
+ * is named after the symbol at its address, or else after the library mapped at its address
+ * in its process when its first call is read. The symbol tables of the libraries are not part
+ * of the trace, so only the library and offset are known.
+ * <p/>
+ * The numbers of both files are encoded like in the emulator qtools (see decoder.cpp): the
+ * number of leading one bits of the first byte is the number of bytes that follow, most
+ * significant first, and the rest of the first byte holds the highest bits of the value.
+ * <p/>
+ * The time of the emulator is global, so unlike a method trace the global time of each record
+ * is known. The time of a process is the global time minus the time it was switched out, which
+ * is from the first record of another process to its own next record.
+ * <p/>
+ * The records are decoded straight from the mapped file, a window at a time, and analyzed like
+ * the ones of a method trace.
+ */
+public class QtraceReader extends DmTraceReader {
+
+    static final String METHOD_FILE = "qtrace.method"; //$NON-NLS-1$
+    static final String PID_FILE = "qtrace.pid"; //$NON-NLS-1$
+
+    // The call types of the records
+    private static final int METHOD_ENTER = 0;
+    private static final int METHOD_EXIT = 1;
+    private static final int METHOD_EXCEPTION = 2;
+    private static final int NATIVE_ENTER = 4;
+    private static final int NATIVE_EXIT = 5;
+    private static final int NATIVE_EXCEPTION = 6;
+
+    // The types of the events of the pid file
+    private static final int PID_END_OF_FILE = 0;
+    private static final int PID_FORK = 1;
+    private static final int PID_CLONE = 2;
+    private static final int PID_SWITCH = 3;
+    private static final int PID_EXEC = 4;
+    private static final int PID_MMAP = 5;
+    private static final int PID_EXIT = 6;
+    private static final int PID_KTHREAD_NAME = 7;
+    private static final int PID_SYMBOL_ADD = 8;
+    private static final int PID_SYMBOL_REMOVE = 9;
+    private static final int PID_MUNMAP = 10;
+    private static final int PID_NO_ACTION = 11;
+    private static final int PID_NAME = 12;
+
+    // A 64-bit time diff, and 32-bit address diff, pid diff and call type, each of them
+    // taking up to 9 bytes.
+    private static final int MAX_RECORD_SIZE = 4 * 9;
+
+    private final String mPidFileName;
+
+    // The values of the last record, which the next one is relative to.
+    private long mTime;
+    private int mAddress;
+    private int mPid;
+
+    // The time of the first record, where the global time starts.
+    private long mStartTime = -1;
+
+    // The running process, or -1 before the first record.
+    private int mRunningPid = -1;
+
+    // The times of the processes, by pid.
+    private IntMap<Process> mProcesses = new IntMap<Process>();
+
+    // The events of the pid file, which are replayed up to the time of each record, and the next
+    // one, or null once they are all replayed.
+    private PidEventReader mPidEvents;
+    private PidEvent mNextPidEvent;
+
+    // The address space of each process, by pid. Clones share the address space of their
+    // parent.
+    private IntMap<ArrayList<Region>> mAddressSpaces = new IntMap<ArrayList<Region>>();
+
+    // The process the pid events apply to.
+    private int mEventPid;
+
+    // The symbols added by the system, by address.
+    private HashMap<Integer, String> mSymbols = new HashMap<Integer, String>();
+
+    /**
+     * The time of a process.
+     */
+    private static final class Process {
+        /** the difference between the global time and the time of the process */
+        long mOffset;
+        /** the global time the process was switched out at, or -1 if it is running */
+        long mSwitchTime = -1;
+    }
+
+    /**
+     * A file mapped in the address space of a process.
+     */
+    private static final class Region {
+        long mStart;
+        long mEnd;
+        long mOffset;
+        String mPath;
+    }
+
+    /**
+     * An event of the pid file. Only the fields of its type are set.
+     */
+    private static final class PidEvent {
+        long mTime;
+        int mType;
+        int mPid;
+        long mStart;
+        long mEnd;
+        long mOffset;
+        /** the path of a mmap, the name of a symbol or process, or the first argument of an exec */
+        String mName;
+    }
+
+    /**
+     * Reads the events of the pid file, in the format of PidReader::ReadPidEvent in the qtools.
+     */
+    private static final class PidEventReader {
+        private final ByteBuffer mBuffer;
+        private long mTime;
+
+        PidEventReader(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        /**
+         * Returns the next event, or <code>null</code> at the end of the file.
+         */
+        PidEvent next() {
+            if (mBuffer.hasRemaining() == false) {
+                return null;
+            }
+
+            PidEvent event = new PidEvent();
+            try {
+                mTime += decode(mBuffer, false);
+                event.mTime = mTime;
+                event.mType = (int) decode(mBuffer, false);
+                switch (event.mType) {
+                    case PID_END_OF_FILE:
+                        return null;
+                    case PID_SWITCH:
+                    case PID_EXIT:
+                        // the exit code is read as a pid, like in the qtools.
+                        event.mPid = (int) decode(mBuffer, false);
+                        break;
+                    case PID_FORK:
+                    case PID_CLONE:
+                        decode(mBuffer, false); // tgid
+                        event.mPid = (int) decode(mBuffer, false);
+                        break;
+                    case PID_MMAP:
+                        event.mStart = decode(mBuffer, false);
+                        event.mEnd = decode(mBuffer, false);
+                        event.mOffset = decode(mBuffer, false);
+                        event.mName = readString(mBuffer);
+                        break;
+                    case PID_MUNMAP:
+                        event.mStart = decode(mBuffer, false);
+                        event.mEnd = decode(mBuffer, false);
+                        break;
+                    case PID_SYMBOL_ADD:
+                        event.mStart = decode(mBuffer, false);
+                        event.mName = readString(mBuffer);
+                        break;
+                    case PID_SYMBOL_REMOVE:
+                        event.mStart = decode(mBuffer, false);
+                        break;
+                    case PID_EXEC:
+                        int argc = (int) decode(mBuffer, false);
+                        for (int i = 0 ; i < argc ; i++) {
+                            String arg = readString(mBuffer);
+                            if (i == 0) {
+                                event.mName = arg;
+                            }
+                        }
+                        break;
+                    case PID_NAME:
+                    case PID_KTHREAD_NAME:
+                        if (event.mType == PID_KTHREAD_NAME) {
+                            decode(mBuffer, false); // tgid
+                        }
+                        event.mPid = (int) decode(mBuffer, false);
+                        event.mName = readString(mBuffer);
+                        break;
+                    case PID_NO_ACTION:
+                        break;
+                    default:
+                        throw new RuntimeException(String.format(
+                                "Unknown pid event type %d at time %d", event.mType, mTime));
+                }
+            } catch (BufferUnderflowException e) {
+                // The emulator stopped in the middle of an event.
+                return null;
+            }
+            return event;
+        }
+    }
+
+    public QtraceReader(String traceName) {
+        this(traceName, false);
+    }
+
+    /**
+     * Creates a reader for an emulator trace.
+     * @param traceName the directory of the trace
+     * @param profileOnly if true, only the profile data of the methods and processes is
+     * computed, see {@link DmTraceReader#DmTraceReader(String, boolean, boolean)}.
+     */
+    public QtraceReader(String traceName, boolean profileOnly) {
+        this(traceName, profileOnly, profileOnly == false);
+    }
+
+    /**
+     * Creates a reader for an emulator trace.
+     * @param callTrees whether to build the call paths returned by {@link #getCallTree()}.
+     * @see #QtraceReader(String, boolean)
+     */
+    public QtraceReader(String traceName, boolean profileOnly, boolean callTrees) {
+        super(new File(traceName, METHOD_FILE).getPath(), profileOnly, callTrees, true);
+        mPidFileName = new File(traceName, PID_FILE).getPath();
+        generateTrees();
     }
 
     @Override
-    public MethodData[] getMethods() {
-        return null;
+    File[] getTraceFiles() {
+        // The names of the processes and methods come from the pid file.
+        File[] files = super.getTraceFiles();
+        return new File[] { files[0], new File(mPidFileName) };
     }
 
     @Override
-    public HashMap<Integer, String> getThreadLabels() {
-        return null;
+    long parseKeys() throws IOException {
+        File pidFile = new File(mPidFileName);
+        if (pidFile.isFile()) {
+            FileInputStream in = new FileInputStream(pidFile);
+            ByteBuffer buffer;
+            try {
+                FileChannel channel = in.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                in.close();
+            }
+
+            // The names of the processes are needed before their first record, so read them
+            // all now. The rest of the events are replayed along with the records.
+            addProcesses(new PidEventReader(buffer.duplicate()));
+            mPidEvents = new PidEventReader(buffer);
+            mNextPidEvent = mPidEvents.next();
+        }
+
+        // The records start at the beginning of the method file.
+        return 0;
+    }
+
+    /**
+     * Adds the processes named in the pid file. Forked and cloned processes have the name of
+     * their parent until they are named or exec another program.
+     */
+    private void addProcesses(PidEventReader events) {
+        IntMap<String> names = new IntMap<String>();
+        ArrayList<Integer> pids = new ArrayList<Integer>();
+        int currentPid = 0;
+        PidEvent event;
+        while ((event = events.next()) != null) {
+            int pid = -1;
+            String name = null;
+            switch (event.mType) {
+                case PID_SWITCH:
+                    currentPid = event.mPid;
+                    break;
+                case PID_FORK:
+                case PID_CLONE:
+                    pid = event.mPid;
+                    name = names.get(currentPid);
+                    break;
+                case PID_EXEC:
+                    pid = currentPid;
+                    name = event.mName;
+                    break;
+                case PID_NAME:
+                case PID_KTHREAD_NAME:
+                    pid = event.mPid;
+                    name = event.mName;
+                    break;
+            }
+            if (name != null) {
+                if (names.get(pid) == null) {
+                    pids.add(pid);
+                }
+                names.put(pid, name);
+            }
+        }
+
+        for (int pid : pids) {
+            addThread(pid, names.get(pid));
+        }
     }
 
     @Override
-    public ArrayList<TimeLineView.Record> getThreadTimeRecords() {
-        return null;
+    void readDataHeader() {
+        // The method file has no header.
     }
 
     @Override
-    public ProfileProvider getProfileProvider() {
-        return null;
+    int getRecordSize() {
+        // Most records only need a byte or two for each value.
+        return 6;
+    }
+
+    @Override
+    boolean readRecord() {
+        ByteBuffer buffer = getDataBuffer(MAX_RECORD_SIZE);
+        if (buffer.hasRemaining() == false) {
+            return false;
+        }
+
+        long timeDiff;
+        int addressDiff;
+        int pidDiff;
+        int callType;
+        try {
+            timeDiff = decode(buffer, false);
+            addressDiff = (int) decode(buffer, true);
+            if (timeDiff == 0) {
+                // The end of the trace.
+                return false;
+            }
+            pidDiff = (int) decode(buffer, true);
+            callType = (int) decode(buffer, false);
+        } catch (BufferUnderflowException e) {
+            // The emulator stopped in the middle of a record.
+            return false;
+        }
+
+        mTime += timeDiff;
+        mAddress += addressDiff;
+        mPid += pidDiff;
+        if (mStartTime == -1) {
+            mStartTime = mTime;
+        }
+        if (mPid != mRunningPid) {
+            switchProcess(mPid);
+        }
+
+        int methodAction;
+        switch (callType) {
+            case METHOD_ENTER:
+            case NATIVE_ENTER:
+                methodAction = 0;
+                break;
+            case METHOD_EXIT:
+            case NATIVE_EXIT:
+                methodAction = 1;
+                break;
+            case METHOD_EXCEPTION:
+            case NATIVE_EXCEPTION:
+                methodAction = 2;
+                break;
+            default:
+                throw new RuntimeException(String.format("Unknown call type %d at time %d",
+                        callType, mTime));
+        }
+
+        // Bring the address spaces up to the time of the record, in case its method is new.
+        replayPidEvents(mTime);
+
+        Process process = mProcesses.get(mPid);
+        setRecord(mPid, getMethodData(mAddress), mTime - process.mOffset, mTime - mStartTime,
+                methodAction);
+        return true;
+    }
+
+    @Override
+    MethodData createMethodData(int address) {
+        String symbol = mSymbols.get(address);
+        if (symbol != null) {
+            return new MethodData(address, symbol);
+        }
+
+        ArrayList<Region> regions = mAddressSpaces.get(mPid);
+        if (regions != null) {
+            long unsignedAddress = address & 0xffffffffL;
+            // The last mapping of an address hides the previous ones.
+            for (int i = regions.size() - 1 ; i >= 0 ; i--) {
+                Region region = regions.get(i);
+                if (unsignedAddress >= region.mStart && unsignedAddress < region.mEnd) {
+                    long offset = unsignedAddress - region.mStart + region.mOffset;
+                    String name = String.format("%1$s+0x%2$x", //$NON-NLS-1$
+                            new File(region.mPath).getName(), offset);
+                    return new MethodData(address, name, null, null, region.mPath, -1);
+                }
+            }
+        }
+
+        return super.createMethodData(address);
+    }
+
+    /**
+     * Applies the events of the pid file up to <var>time</var> to the address spaces of the
+     * processes.
+     */
+    private void replayPidEvents(long time) {
+        while (mNextPidEvent != null && mNextPidEvent.mTime <= time) {
+            PidEvent event = mNextPidEvent;
+            ArrayList<Region> regions = mAddressSpaces.get(mEventPid);
+            switch (event.mType) {
+                case PID_SWITCH:
+                    mEventPid = event.mPid;
+                    break;
+                case PID_FORK:
+                    ArrayList<Region> copy = new ArrayList<Region>();
+                    if (regions != null) {
+                        copy.addAll(regions);
+                    }
+                    mAddressSpaces.put(event.mPid, copy);
+                    break;
+                case PID_CLONE:
+                    if (regions == null) {
+                        regions = new ArrayList<Region>();
+                        mAddressSpaces.put(mEventPid, regions);
+                    }
+                    mAddressSpaces.put(event.mPid, regions);
+                    break;
+                case PID_EXEC:
+                    mAddressSpaces.put(mEventPid, new ArrayList<Region>());
+                    break;
+                case PID_MMAP:
+                    if (regions == null) {
+                        regions = new ArrayList<Region>();
+                        mAddressSpaces.put(mEventPid, regions);
+                    }
+                    Region region = new Region();
+                    region.mStart = event.mStart;
+                    region.mEnd = event.mEnd;
+                    region.mOffset = event.mOffset;
+                    region.mPath = event.mName;
+                    regions.add(region);
+                    break;
+                case PID_MUNMAP:
+                    if (regions != null) {
+                        for (int i = regions.size() - 1 ; i >= 0 ; i--) {
+                            Region r = regions.get(i);
+                            if (r.mStart >= event.mStart && r.mEnd <= event.mEnd) {
+                                regions.remove(i);
+                            }
+                        }
+                    }
+                    break;
+                case PID_SYMBOL_ADD:
+                    mSymbols.put((int) event.mStart, event.mName);
+                    break;
+                case PID_SYMBOL_REMOVE:
+                    mSymbols.remove((int) event.mStart);
+                    break;
+            }
+            mNextPidEvent = mPidEvents.next();
+        }
+    }
+
+    /**
+     * Switches out the running process, and switches in <var>pid</var> at the current time.
+     */
+    private void switchProcess(int pid) {
+        if (mRunningPid != -1) {
+            mProcesses.get(mRunningPid).mSwitchTime = mTime;
+        }
+
+        Process process = mProcesses.get(pid);
+        if (process == null) {
+            // The time of the process starts with its first record.
+            process = new Process();
+            process.mOffset = mTime;
+            mProcesses.put(pid, process);
+        } else if (process.mSwitchTime != -1) {
+            process.mOffset += mTime - process.mSwitchTime;
+            process.mSwitchTime = -1;
+        }
+        mRunningPid = pid;
+    }
+
+    /**
+     * Decodes a number of the qtrace files.
+     * @param signed whether the highest data bit of the first byte is the sign of the value.
+     */
+    private static long decode(ByteBuffer buffer, boolean signed) {
+        int first = buffer.get() & 0xff;
+        int ones = Integer.numberOfLeadingZeros(~first & 0xff) - 24;
+        if (ones > 6) {
+            throw new RuntimeException(String.format("Bad number prefix 0x%x", first));
+        }
+
+        // Up to 5 more bytes, or 8 more bytes for the whole value.
+        int length = ones == 6 ? 8 : ones;
+        int dataBits = ones == 6 ? 0 : 7 - ones;
+        long value = first & ((1 << dataBits) - 1);
+        if (signed && dataBits > 0 && (value & (1 << (dataBits - 1))) != 0) {
+            value -= 1 << dataBits;
+        }
+        for (int i = 0 ; i < length ; i++) {
+            value = (value << 8) | (buffer.get() & 0xff);
+        }
+        return value;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = (int) decode(buffer, false);
+        char[] chars = new char[length];
+        for (int i = 0 ; i < length ; i++) {
+            chars[i] = (char) (buffer.get() & 0xff);
+        }
+        return new String(chars);
     }
 }
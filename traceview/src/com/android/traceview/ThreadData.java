@@ -16,9 +16,6 @@
 
 package com.android.traceview;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-
 class ThreadData implements TimeLineView.Row {
 
     private int mId;
@@ -27,25 +24,63 @@ class ThreadData implements TimeLineView.Row {
     private long mGlobalEndTime = -1;
     private long mLastEventTime;
     private long mCpuTime;
-    private Call mRoot;
-    private Call mCurrent;
-    private Call mLastContextSwitch;
-    private ArrayList<Call> mStack = new ArrayList<Call>();
-    
-    // This is a hash of all the methods that are currently on the stack.
-    private HashMap<MethodData, Integer> mStackMethods = new HashMap<MethodData, Integer>();
-    
+    private int mLastContextSwitch = -1;
+    private long mPendingContextSwitch = -1;
+
+    /** indices of the records of this thread in the {@link CallStore}, until analyzed */
+    private int[] mRecords = new int[16];
+    private int mRecordCount;
+
+    // The profile data of the methods called by this thread.
+    private MethodStats mStats = new MethodStats();
+    private MethodStats.Entry mTopLevel;
+
+    /** index of the current call in the {@link CallStore}, or -1 for the top level */
+    private int mCurrent = -1;
+    private int[] mStack = new int[16];
+    private MethodStats.Entry[] mStackEntries = new MethodStats.Entry[16];
+    /** the nodes of the calls on the stack in the {@link CallTree} */
+    private int[] mStackNodes = new int[16];
+    private int mStackSize;
+
+    // The call paths of this thread, or null if they are not needed.
+    private CallTree mCallTree;
+
+    /** records of the calls on the stack, when the records are handled by {@link #handleRecord} */
+    private CallStore mStackCalls;
+
     // True if no calls have ever been added to this thread
     private boolean mIsEmpty;
 
-    ThreadData(int id, String name, MethodData topLevel) {
+    /**
+     * Creates a thread.
+     * @param callTree whether to build the call paths returned by {@link #getCallTree()}.
+     */
+    ThreadData(int id, String name, MethodData topLevel, boolean callTree) {
         mId = id;
         mName = String.format("[%d] %s", id, name);
-        mRoot = new Call(mName, topLevel);
-        mCurrent = mRoot;
+        mTopLevel = mStats.get(topLevel);
+        if (callTree) {
+            mCallTree = new CallTree(topLevel);
+        }
         mIsEmpty = true;
     }
 
+    /**
+     * Creates a thread read from a {@link TraceCache}. Its records were handled, and its
+     * profile data added to the methods, before the cache was written.
+     * @param name the name returned by {@link #getName()}.
+     * @param callTree the call paths of the thread, or <code>null</code>.
+     */
+    ThreadData(int id, String name, boolean isEmpty, CallTree callTree) {
+        mId = id;
+        mName = name;
+        mIsEmpty = isEmpty;
+        mCallTree = callTree;
+        mRecords = null;
+        mStats = null;
+    }
+
     public boolean isEmpty() {
         return mIsEmpty;
     }
@@ -54,127 +89,242 @@ class ThreadData implements TimeLineView.Row {
         return mName;
     }
 
-    public Call getCalltreeRoot() {
-        return mRoot;
+    /**
+     * Returns the call paths of the thread, or <code>null</code> if they were not built. This is
+     * only complete once the records have been handled.
+     */
+    CallTree getCallTree() {
+        return mCallTree;
+    }
+
+    /**
+     * Adds the index of a record of this thread. The records are handled in the order they
+     * were added by {@link #analyze(CallStore)}.
+     */
+    void addRecord(int index) {
+        if (mRecordCount == mRecords.length) {
+            int[] records = new int[mRecordCount + (mRecordCount >> 1) + 1];
+            System.arraycopy(mRecords, 0, records, 0, mRecordCount);
+            mRecords = records;
+        }
+        mRecords[mRecordCount++] = index;
+    }
+
+    /**
+     * Handles all the records of the thread, whose global start times must have been set.
+     * <p/>
+     * This only modifies the records of this thread and the per-thread profile data, so the
+     * threads can be analyzed in parallel. The profile data is then added to the
+     * {@link MethodData} objects by {@link #addStatsToMethods()}.
+     */
+    void analyze(CallStore calls) {
+        for (int i = 0 ; i < mRecordCount ; i++) {
+            int call = mRecords[i];
+            handleCall(calls, call, calls.getGlobalStartTime(call));
+        }
+        mRecords = null;
+        mRecordCount = 0;
+
+        endTrace(calls);
+    }
+
+    /**
+     * Handles a record as soon as it is read, instead of adding it with {@link #addRecord(int)}.
+     * Only the records of the calls on the stack are kept, and no global times are computed.
+     * {@link #endRecords()} must be called after the last record.
+     */
+    void handleRecord(MethodData method, long threadTime, int methodAction) {
+        if (mStackCalls == null) {
+            mStackCalls = new CallStore(16);
+        }
+
+        int call = mStackCalls.add(mId, method, threadTime, methodAction);
+        handleCall(mStackCalls, call, -1);
+
+        // The records of the stack are the first ones of the store, so this
+        // drops the record that was just handled if it was an exit, along
+        // with the call it exited.
+        mStackCalls.truncate(mStackSize);
+    }
+
+    /**
+     * Ends the calls still on the stack once all the records were handled by
+     * {@link #handleRecord(MethodData, long, int)}.
+     */
+    void endRecords() {
+        if (mStackCalls != null) {
+            endTrace(mStackCalls);
+            mStackCalls = null;
+        }
+    }
+
+    /**
+     * Adds the profile data collected by {@link #analyze(CallStore)} to the methods.
+     * This must not be called for several threads at once.
+     */
+    void addStatsToMethods() {
+        for (MethodStats.Entry entry : mStats.getEntries()) {
+            entry.mMethod.addStats(entry);
+        }
+        mStats = null;
     }
 
-    void handleCall(Call call, long globalTime) {
+    /**
+     * Handles the record <var>call</var> of <var>calls</var>.
+     */
+    private void handleCall(CallStore calls, int call, long globalTime) {
         mIsEmpty = false;
-        long currentTime = call.mThreadStartTime;
+        long currentTime = calls.getThreadStartTime(call);
         if (currentTime < mLastEventTime) {
             System.err
             .printf(
                     "ThreadData: '%1$s' call time (%2$d) is less than previous time (%3$d) for thread '%4$s'\n",
-                    call.getName(), currentTime, mLastEventTime, mName);
+                    calls.getMethodData(call).getProfileName(), currentTime, mLastEventTime,
+                    mName);
             System.exit(1);
         }
         long elapsed = currentTime - mLastEventTime;
         mCpuTime += elapsed;
-        if (call.getMethodAction() == 0) {
+        if (calls.getMethodAction(call) == 0) {
             // This is a method entry.
-            enter(call, elapsed);
+            enter(calls, call, elapsed);
         } else {
             // This is a method exit.
-            exit(call, elapsed, globalTime);
+            exit(calls, call, elapsed, globalTime);
         }
         mLastEventTime = currentTime;
         mGlobalEndTime = globalTime;
     }
 
-    private void enter(Call c, long elapsed) {
-        Call caller = mCurrent;
-        push(c);
-        
+    private void enter(CallStore calls, int c, long elapsed) {
+        int caller = mCurrent;
+        MethodStats.Entry callerEntry = top();
+
         // Check the stack for a matching method to determine if this call
         // is recursive.
-        MethodData md = c.mMethodData;
-        Integer num = mStackMethods.get(md);
-        if (num == null) {
-            num = 0;
-        } else if (num > 0) {
-            c.setRecursive(true);
-        }
-        num += 1;
-        mStackMethods.put(md, num);
+        MethodData method = calls.getMethodData(c);
+        MethodStats.Entry entry = mStats.get(method);
+        if (entry.mStackCount > 0) {
+            calls.setRecursive(c, true);
+        }
+        int node = CallTree.NO_NODE;
+        if (mCallTree != null) {
+            int callerNode = mStackSize == 0 ? CallTree.ROOT : mStackNodes[mStackSize - 1];
+            node = mCallTree.getChild(callerNode, method);
+            mCallTree.addCalls(node, 1);
+            mCallTree.addExclusive(callerNode, elapsed);
+        }
+        push(c, entry, node);
         mCurrent = c;
 
         // Add the elapsed time to the caller's exclusive time
-        caller.addExclusiveTime(elapsed);
+        if (caller == -1) {
+            mTopLevel.addExclusive(elapsed, false);
+        } else {
+            callerEntry.addExclusive(elapsed, calls.isRecursive(caller));
+        }
     }
 
-    private void exit(Call c, long elapsed, long globalTime) {
-        mCurrent.mGlobalEndTime = globalTime;
-        Call top = pop();
-        if (top == null) {
+    private void exit(CallStore calls, int c, long elapsed, long globalTime) {
+        if (mCurrent != -1) {
+            calls.setGlobalEndTime(mCurrent, globalTime);
+        }
+        MethodStats.Entry entry = pop();
+        if (entry == null) {
             return;
         }
 
-        if (mCurrent.mMethodData != c.mMethodData) {
-            String error = "Method exit (" + c.getName()
-                    + ") does not match current method (" + mCurrent.getName()
-                    + ")";
+        if (entry.mMethod != calls.getMethodData(c)) {
+            String error = "Method exit (" + calls.getMethodData(c).getProfileName()
+                    + ") does not match current method ("
+                    + entry.mMethod.getProfileName() + ")";
             throw new RuntimeException(error);
         } else {
-            long duration = c.mThreadStartTime - mCurrent.mThreadStartTime;
-            Call caller = top();
-            mCurrent.addExclusiveTime(elapsed);
-            mCurrent.addInclusiveTime(duration, caller);
-            if (caller == null) {
-                caller = mRoot;
+            long duration = calls.getThreadStartTime(c) - calls.getThreadStartTime(mCurrent);
+            boolean isRecursive = calls.isRecursive(mCurrent);
+            entry.addExclusive(elapsed, isRecursive);
+            if (mCallTree != null) {
+                int node = mStackNodes[mStackSize];
+                mCallTree.addExclusive(node, elapsed);
+                mCallTree.addInclusive(node, duration);
             }
-            mCurrent = caller;
+            mCurrent = addInclusiveTime(calls, entry, duration, isRecursive);
+        }
+    }
+
+    /**
+     * Adds the inclusive time of the call that was just popped from the stack.
+     * @return the index of the calling record, or -1 if the caller is the top level.
+     */
+    private int addInclusiveTime(CallStore calls, MethodStats.Entry entry, long duration,
+            boolean isRecursive) {
+        if (mStackSize == 0) {
+            entry.addInclusive(duration, isRecursive, null, false);
+            return -1;
         }
+
+        int caller = mStack[mStackSize - 1];
+        entry.addInclusive(duration, isRecursive, mStackEntries[mStackSize - 1],
+                calls.isRecursive(caller));
+        return caller;
     }
 
-    public void push(Call c) {
-        mStack.add(c);
+    private void push(int c, MethodStats.Entry entry, int node) {
+        if (mStackSize == mStack.length) {
+            int[] stack = new int[mStackSize * 2];
+            System.arraycopy(mStack, 0, stack, 0, mStackSize);
+            mStack = stack;
+            MethodStats.Entry[] entries = new MethodStats.Entry[mStackSize * 2];
+            System.arraycopy(mStackEntries, 0, entries, 0, mStackSize);
+            mStackEntries = entries;
+            int[] nodes = new int[mStackSize * 2];
+            System.arraycopy(mStackNodes, 0, nodes, 0, mStackSize);
+            mStackNodes = nodes;
+        }
+        mStack[mStackSize] = c;
+        mStackEntries[mStackSize] = entry;
+        mStackNodes[mStackSize] = node;
+        mStackSize++;
+        entry.mStackCount++;
     }
 
-    public Call pop() {
-        ArrayList<Call> stack = mStack;
-        if (stack.size() == 0)
+    /**
+     * Pops the top of the stack and returns the profile data of its method, or
+     * <code>null</code> if the stack is empty.
+     */
+    private MethodStats.Entry pop() {
+        if (mStackSize == 0)
             return null;
-        Call top = stack.get(stack.size() - 1);
-        stack.remove(stack.size() - 1);
-        
-        // Decrement the count on the method in the hash table and remove
-        // the entry when it goes to zero.
-        MethodData md = top.mMethodData;
-        Integer num = mStackMethods.get(md);
-        if (num != null) {
-            num -= 1;
-            if (num <= 0) {
-                mStackMethods.remove(md);
-            } else {
-                mStackMethods.put(md, num);
-            }
-        }
-        return top;
+        mStackSize--;
+        MethodStats.Entry entry = mStackEntries[mStackSize];
+        mStackEntries[mStackSize] = null;
+        entry.mStackCount--;
+        return entry;
     }
 
-    public Call top() {
-        ArrayList<Call> stack = mStack;
-        if (stack.size() == 0)
+    private MethodStats.Entry top() {
+        if (mStackSize == 0)
             return null;
-        return stack.get(stack.size() - 1);
+        return mStackEntries[mStackSize - 1];
     }
 
-    public long endTrace() {
+    private void endTrace(CallStore calls) {
         // If we have calls on the stack when the trace ends, then clean up
         // the stack and compute the inclusive time of the methods by pretending
         // that we are exiting from their methods now.
-        while (mCurrent != mRoot) {
-            long duration = mLastEventTime - mCurrent.mThreadStartTime;
-            pop();
-            Call caller = top();
-            mCurrent.addInclusiveTime(duration, caller);
-            mCurrent.mGlobalEndTime = mGlobalEndTime;
-            if (caller == null) {
-                caller = mRoot;
+        while (mCurrent != -1) {
+            long duration = mLastEventTime - calls.getThreadStartTime(mCurrent);
+            int current = mCurrent;
+            MethodStats.Entry entry = pop();
+            if (mCallTree != null) {
+                mCallTree.addInclusive(mStackNodes[mStackSize], duration);
             }
-            mCurrent = caller;
+            mCurrent = addInclusiveTime(calls, entry, duration, calls.isRecursive(current));
+            calls.setGlobalEndTime(current, mGlobalEndTime);
+        }
+        if (mCallTree != null) {
+            mCallTree.endTree();
         }
-        return mLastEventTime;
     }
 
     @Override
@@ -218,11 +368,33 @@ class ThreadData implements TimeLineView.Row {
         return mGlobalEndTime;
     }
 
-    public void setLastContextSwitch(Call lastContextSwitch) {
+    /**
+     * Sets the index of the last context switch record entered by this thread.
+     */
+    public void setLastContextSwitch(int lastContextSwitch) {
         mLastContextSwitch = lastContextSwitch;
     }
 
-    public Call getLastContextSwitch() {
+    /**
+     * Returns the index of the last context switch record entered by this thread, or -1.
+     */
+    public int getLastContextSwitch() {
         return mLastContextSwitch;
     }
+
+    /**
+     * Sets the thread-local time of the context switch entered by this thread that is not
+     * handled yet, or -1. This is only used with {@link #handleRecord(MethodData, long, int)}.
+     */
+    public void setPendingContextSwitch(long time) {
+        mPendingContextSwitch = time;
+    }
+
+    /**
+     * Returns the thread-local time of the context switch entered by this thread that is not
+     * handled yet, or -1.
+     */
+    public long getPendingContextSwitch() {
+        return mPendingContextSwitch;
+    }
 }
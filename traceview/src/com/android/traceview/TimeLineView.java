@@ -461,7 +461,11 @@ public class TimeLineView extends Composite implements Observer {
         mRows = rv.toArray(new RowData[rv.size()]);
         Arrays.sort(mRows, new Comparator<RowData>() {
             public int compare(RowData rd1, RowData rd2) {
-                return (int) (rd2.mElapsed - rd1.mElapsed);
+                // don't subtract, the difference can overflow an int.
+                if (rd1.mElapsed == rd2.mElapsed) {
+                    return 0;
+                }
+                return rd1.mElapsed < rd2.mElapsed ? 1 : -1;
             }
         });
 
@@ -490,12 +494,26 @@ public class TimeLineView extends Composite implements Observer {
                     long timeDiff = bd1.mStartTime - bd2.mStartTime;
                     if (timeDiff == 0)
                         timeDiff = bd1.mEndTime - bd2.mEndTime;
-                    return (int) timeDiff;
+                    // the times don't always fit in an int
+                    return timeDiff < 0 ? -1 : (timeDiff > 0 ? 1 : 0);
                 }
                 return diff;
             }
         });
 
+        // Build the level of detail index of each row. The segments are
+        // sorted by row, so each row is a contiguous range of mSegments.
+        int rowStart = 0;
+        for (int ii = 1; ii <= mSegments.length; ++ii) {
+            if (ii == mSegments.length
+                    || mSegments[ii].mRowData != mSegments[rowStart].mRowData) {
+                RowData rd = mSegments[rowStart].mRowData;
+                rd.mLevels = new SegmentLevels(mSegments, rowStart, ii);
+                rowStart = ii;
+            }
+        }
+        mSegmentList.clear();
+
         if (false) {
             for (Segment segment : mSegments) {
                 System.out.printf("seg '%s' [%6d, %6d] %s\n",
@@ -1211,9 +1229,25 @@ public class TimeLineView extends Composite implements Observer {
             for (int ii = 0; ii < mNumRows; ++ii)
                 pixels[ii] = new Pixel();
 
-            // Clear the per-block pixel data
-            for (int ii = 0; ii < mSegments.length; ++ii) {
-                mSegments[ii].mBlock.clearWeight();
+            // Pick the level of detail: the segments shorter than a pixel are
+            // merged into entries that are still shorter than a pixel. The
+            // highlighting of a method needs every segment, so it uses the
+            // segments themselves.
+            double rangePerPixel = 1.0 / mScaleInfo.getPixelsPerRange();
+            boolean allSegments = mHighlightMethodData != null;
+
+            // Clear the per-block pixel data of the visible segments
+            for (int row = mStartRow; row <= mEndRow; ++row) {
+                SegmentLevels levels = mRows[row].mLevels;
+                if (levels == null)
+                    continue;
+                int level = allSegments ? 0 : levels.getLevel(rangePerPixel);
+                int count = levels.getCount(level);
+                for (int ii = levels.findFirst(level, minVal); ii < count; ++ii) {
+                    if (levels.getStartTime(level, ii) >= maxVal)
+                        break;
+                    levels.getSegment(level, ii).mBlock.clearWeight();
+                }
             }
 
             mStripList.clear();
@@ -1228,9 +1262,9 @@ public class TimeLineView extends Composite implements Observer {
             if (mHighlightCall != null) {
                 int callPixelStart = -1;
                 int callPixelEnd = -1;
-                callStart = mHighlightCall.mGlobalStartTime;
-                callEnd = mHighlightCall.mGlobalEndTime;
-                callMethod = mHighlightCall.mMethodData;
+                callStart = mHighlightCall.getStartTime();
+                callEnd = mHighlightCall.getEndTime();
+                callMethod = mHighlightCall.getMethodData();
                 if (callStart >= minVal)
                     callPixelStart = mScaleInfo.valueToPixel(callStart);
                 if (callEnd <= maxVal)
@@ -1247,163 +1281,167 @@ public class TimeLineView extends Composite implements Observer {
                 mHighlightInclusive.add(new Range(callPixelStart + LeftMargin,
                         callPixelEnd + LeftMargin, y1, color));
             }
-            for (Segment segment : mSegments) {
-                if (segment.mEndTime <= minVal)
+            for (int row = mStartRow; row <= mEndRow; ++row) {
+                SegmentLevels levels = mRows[row].mLevels;
+                if (levels == null)
                     continue;
-                if (segment.mStartTime >= maxVal)
-                    continue;
-                Block block = segment.mBlock;
-                Color color = block.getColor();
-                if (color == null)
-                    continue;
-
-                double recordStart = Math.max(segment.mStartTime, minVal);
-                double recordEnd = Math.min(segment.mEndTime, maxVal);
-                if (recordStart == recordEnd)
-                    continue;
-                int pixelStart = mScaleInfo.valueToPixel(recordStart);
-                int pixelEnd = mScaleInfo.valueToPixel(recordEnd);
-                int width = pixelEnd - pixelStart;
-
-                RowData rd = segment.mRowData;
-                MethodData md = block.getMethodData();
-
-                // We will add the scroll offset later when we draw the strips
-                int y1 = rd.mRank * rowYSpace + rowYMarginHalf;
-
-                // If we can't display any more rows, then quit
-                if (rd.mRank > mEndRow)
-                    break;
-
-                // System.out.printf("segment %s val: [%.1f, %.1f] frac [%f, %f]
-                // pixel: [%d, %d] pix.start %d weight %.2f %s\n",
-                // block.getName(), recordStart, recordEnd,
-                // scaleInfo.valueToPixelFraction(recordStart),
-                // scaleInfo.valueToPixelFraction(recordEnd),
-                // pixelStart, pixelEnd, pixels[rd.rank].start,
-                // pixels[rd.rank].maxWeight,
-                // pixels[rd.rank].segment != null
-                // ? pixels[rd.rank].segment.block.getName()
-                // : "null");
+                int level = allSegments ? 0 : levels.getLevel(rangePerPixel);
+                int count = levels.getCount(level);
+                for (int ii = levels.findFirst(level, minVal); ii < count; ++ii) {
+                    long segmentStart = levels.getStartTime(level, ii);
+                    long segmentEnd = levels.getEndTime(level, ii);
+                    if (segmentStart >= maxVal)
+                        break;
+                    Segment segment = levels.getSegment(level, ii);
+                    Block block = segment.mBlock;
+                    Color color = block.getColor();
+                    if (color == null)
+                        continue;
+
+                    double recordStart = Math.max(segmentStart, minVal);
+                    double recordEnd = Math.min(segmentEnd, maxVal);
+                    if (recordStart == recordEnd)
+                        continue;
+                    int pixelStart = mScaleInfo.valueToPixel(recordStart);
+                    int pixelEnd = mScaleInfo.valueToPixel(recordEnd);
+                    int width = pixelEnd - pixelStart;
+
+                    RowData rd = segment.mRowData;
+                    MethodData md = block.getMethodData();
+
+                    // We will add the scroll offset later when we draw the strips
+                    int y1 = rd.mRank * rowYSpace + rowYMarginHalf;
 
-                if (mHighlightMethodData != null) {
-                    if (mHighlightMethodData == md) {
-                        if (prevMethodStart != pixelStart) {
-                            prevMethodStart = pixelStart;
-                            int rangeWidth = width;
-                            if (rangeWidth == 0)
-                                rangeWidth = 1;
-                            mHighlightExclusive.add(new Range(pixelStart
-                                    + LeftMargin, rangeWidth, y1, color));
-                            Call call = (Call) block;
-                            callStart = call.mGlobalStartTime;
-                            int callPixelStart = -1;
-                            if (callStart >= minVal)
-                                callPixelStart = mScaleInfo.valueToPixel(callStart);
-                            if (prevCallStart != callPixelStart) {
-                                prevCallStart = callPixelStart;
-                                int callPixelEnd = -1;
-                                callEnd = call.mGlobalEndTime;
-                                if (callEnd <= maxVal)
-                                    callPixelEnd = mScaleInfo.valueToPixel(callEnd);
-                                mHighlightInclusive.add(new Range(
-                                        callPixelStart + LeftMargin,
-                                        callPixelEnd + LeftMargin, y1, color));
+                    // System.out.printf("segment %s val: [%.1f, %.1f] frac [%f, %f]
+                    // pixel: [%d, %d] pix.start %d weight %.2f %s\n",
+                    // block.getName(), recordStart, recordEnd,
+                    // scaleInfo.valueToPixelFraction(recordStart),
+                    // scaleInfo.valueToPixelFraction(recordEnd),
+                    // pixelStart, pixelEnd, pixels[rd.rank].start,
+                    // pixels[rd.rank].maxWeight,
+                    // pixels[rd.rank].segment != null
+                    // ? pixels[rd.rank].segment.block.getName()
+                    // : "null");
+
+                    if (mHighlightMethodData != null) {
+                        if (mHighlightMethodData == md) {
+                            if (prevMethodStart != pixelStart) {
+                                prevMethodStart = pixelStart;
+                                int rangeWidth = width;
+                                if (rangeWidth == 0)
+                                    rangeWidth = 1;
+                                mHighlightExclusive.add(new Range(pixelStart
+                                        + LeftMargin, rangeWidth, y1, color));
+                                Call call = (Call) block;
+                                callStart = call.getStartTime();
+                                int callPixelStart = -1;
+                                if (callStart >= minVal)
+                                    callPixelStart = mScaleInfo.valueToPixel(callStart);
+                                if (prevCallStart != callPixelStart) {
+                                    prevCallStart = callPixelStart;
+                                    int callPixelEnd = -1;
+                                    callEnd = call.getEndTime();
+                                    if (callEnd <= maxVal)
+                                        callPixelEnd = mScaleInfo.valueToPixel(callEnd);
+                                    mHighlightInclusive.add(new Range(
+                                            callPixelStart + LeftMargin,
+                                            callPixelEnd + LeftMargin, y1, color));
+                                }
                             }
+                        } else if (mFadeColors) {
+                            color = md.getFadedColor();
                         }
-                    } else if (mFadeColors) {
-                        color = md.getFadedColor();
-                    }
-                } else if (mHighlightCall != null) {
-                    if (segment.mStartTime >= callStart
-                            && segment.mEndTime <= callEnd && callMethod == md
-                            && callRowData == rd) {
-                        if (prevMethodStart != pixelStart) {
-                            prevMethodStart = pixelStart;
-                            int rangeWidth = width;
-                            if (rangeWidth == 0)
-                                rangeWidth = 1;
-                            mHighlightExclusive.add(new Range(pixelStart
-                                    + LeftMargin, rangeWidth, y1, color));
+                    } else if (mHighlightCall != null) {
+                        if (segmentStart >= callStart
+                                && segmentEnd <= callEnd && callMethod == md
+                                && callRowData == rd) {
+                            if (prevMethodStart != pixelStart) {
+                                prevMethodStart = pixelStart;
+                                int rangeWidth = width;
+                                if (rangeWidth == 0)
+                                    rangeWidth = 1;
+                                mHighlightExclusive.add(new Range(pixelStart
+                                        + LeftMargin, rangeWidth, y1, color));
+                            }
+                        } else if (mFadeColors) {
+                            color = md.getFadedColor();
                         }
-                    } else if (mFadeColors) {
-                        color = md.getFadedColor();
                     }
-                }
 
-                // Cases:
-                // 1. This segment starts on a different pixel than the
-                // previous segment started on. In this case, emit
-                // the pixel strip, if any, and:
-                // A. If the width is 0, then add this segment's
-                // weight to the Pixel.
-                // B. If the width > 0, then emit a strip for this
-                // segment (no partial Pixel data).
-                //
-                // 2. Otherwise (the new segment starts on the same
-                // pixel as the previous segment): add its "weight"
-                // to the current pixel, and:
-                // A. If the new segment has width 1,
-                // then emit the pixel strip and then
-                // add the segment's weight to the pixel.
-                // B. If the new segment has width > 1,
-                // then emit the pixel strip, and emit the rest
-                // of the strip for this segment (no partial Pixel
-                // data).
-
-                Pixel pix = pixels[rd.mRank];
-                if (pix.mStart != pixelStart) {
-                    if (pix.mSegment != null) {
-                        // Emit the pixel strip. This also clears the pixel.
-                        emitPixelStrip(rd, y1, pix);
-                    }
+                    // Cases:
+                    // 1. This segment starts on a different pixel than the
+                    // previous segment started on. In this case, emit
+                    // the pixel strip, if any, and:
+                    // A. If the width is 0, then add this segment's
+                    // weight to the Pixel.
+                    // B. If the width > 0, then emit a strip for this
+                    // segment (no partial Pixel data).
+                    //
+                    // 2. Otherwise (the new segment starts on the same
+                    // pixel as the previous segment): add its "weight"
+                    // to the current pixel, and:
+                    // A. If the new segment has width 1,
+                    // then emit the pixel strip and then
+                    // add the segment's weight to the pixel.
+                    // B. If the new segment has width > 1,
+                    // then emit the pixel strip, and emit the rest
+                    // of the strip for this segment (no partial Pixel
+                    // data).
+
+                    Pixel pix = pixels[rd.mRank];
+                    if (pix.mStart != pixelStart) {
+                        if (pix.mSegment != null) {
+                            // Emit the pixel strip. This also clears the pixel.
+                            emitPixelStrip(rd, y1, pix);
+                        }
 
-                    if (width == 0) {
-                        // Compute the "weight" of this segment for the first
-                        // pixel. For a pixel N, the "weight" of a segment is
-                        // how much of the region [N - 0.5, N + 0.5] is covered
-                        // by the segment.
+                        if (width == 0) {
+                            // Compute the "weight" of this segment for the first
+                            // pixel. For a pixel N, the "weight" of a segment is
+                            // how much of the region [N - 0.5, N + 0.5] is covered
+                            // by the segment.
+                            double weight = computeWeight(recordStart, recordEnd,
+                                    pixelStart);
+                            weight = block.addWeight(pixelStart, rd.mRank, weight);
+                            if (weight > pix.mMaxWeight) {
+                                pix.setFields(pixelStart, weight, segment, color,
+                                        rd);
+                            }
+                        } else {
+                            int x1 = pixelStart + LeftMargin;
+                            Strip strip = new Strip(x1, y1, width, rowHeight, rd,
+                                    segment, color);
+                            mStripList.add(strip);
+                        }
+                    } else {
                         double weight = computeWeight(recordStart, recordEnd,
                                 pixelStart);
                         weight = block.addWeight(pixelStart, rd.mRank, weight);
                         if (weight > pix.mMaxWeight) {
-                            pix.setFields(pixelStart, weight, segment, color,
-                                    rd);
+                            pix.setFields(pixelStart, weight, segment, color, rd);
+                        }
+                        if (width == 1) {
+                            // Emit the pixel strip. This also clears the pixel.
+                            emitPixelStrip(rd, y1, pix);
+
+                            // Compute the weight for the next pixel
+                            pixelStart += 1;
+                            weight = computeWeight(recordStart, recordEnd,
+                                    pixelStart);
+                            weight = block.addWeight(pixelStart, rd.mRank, weight);
+                            pix.setFields(pixelStart, weight, segment, color, rd);
+                        } else if (width > 1) {
+                            // Emit the pixel strip. This also clears the pixel.
+                            emitPixelStrip(rd, y1, pix);
+
+                            // Emit a strip for the rest of the segment.
+                            pixelStart += 1;
+                            width -= 1;
+                            int x1 = pixelStart + LeftMargin;
+                            Strip strip = new Strip(x1, y1, width, rowHeight, rd,
+                                    segment, color);
+                            mStripList.add(strip);
                         }
-                    } else {
-                        int x1 = pixelStart + LeftMargin;
-                        Strip strip = new Strip(x1, y1, width, rowHeight, rd,
-                                segment, color);
-                        mStripList.add(strip);
-                    }
-                } else {
-                    double weight = computeWeight(recordStart, recordEnd,
-                            pixelStart);
-                    weight = block.addWeight(pixelStart, rd.mRank, weight);
-                    if (weight > pix.mMaxWeight) {
-                        pix.setFields(pixelStart, weight, segment, color, rd);
-                    }
-                    if (width == 1) {
-                        // Emit the pixel strip. This also clears the pixel.
-                        emitPixelStrip(rd, y1, pix);
-
-                        // Compute the weight for the next pixel
-                        pixelStart += 1;
-                        weight = computeWeight(recordStart, recordEnd,
-                                pixelStart);
-                        weight = block.addWeight(pixelStart, rd.mRank, weight);
-                        pix.setFields(pixelStart, weight, segment, color, rd);
-                    } else if (width > 1) {
-                        // Emit the pixel strip. This also clears the pixel.
-                        emitPixelStrip(rd, y1, pix);
-
-                        // Emit a strip for the rest of the segment.
-                        pixelStart += 1;
-                        width -= 1;
-                        int x1 = pixelStart + LeftMargin;
-                        Strip strip = new Strip(x1, y1, width, rowHeight, rd,
-                                segment, color);
-                        mStripList.add(strip);
                     }
                 }
             }
@@ -1892,6 +1930,7 @@ public class TimeLineView extends Composite implements Observer {
         private long mElapsed;
         private long mEndTime;
         private ArrayList<Block> mStack;
+        private SegmentLevels mLevels;
     }
 
     private static class Segment {
@@ -1908,6 +1947,186 @@ public class TimeLineView extends Composite implements Observer {
         private long mEndTime;
     }
 
+    /**
+     * The segments of a row, at several levels of detail.
+     * <p/>
+     * The first level holds the segments themselves. In the next levels, consecutive entries
+     * shorter than a bucket of 2^N time units that start in the same bucket are merged into a
+     * single entry, represented by the segment of the method that covers the most time in it.
+     * Longer entries are kept as is. A level is only kept if it has significantly fewer entries
+     * than the previous one.
+     * <p/>
+     * When drawing, the coarsest level whose buckets are narrower than a pixel is used, so the
+     * number of entries visited depends on the number of visible pixels rather than on the
+     * length of the trace.
+     */
+    private static class SegmentLevels {
+        private static final int MAX_SHIFT = 48;
+        private static final int MAX_SCANNED_RUN = 16;
+
+        // For each level, the log2 of the bucket width, the start and end times
+        // of the entries, the segment that represents each entry, and the time
+        // covered by its method.
+        private final int[] mShifts = new int[MAX_SHIFT + 1];
+        private final long[][] mStartTimes = new long[MAX_SHIFT + 1][];
+        private final long[][] mEndTimes = new long[MAX_SHIFT + 1][];
+        private final Segment[][] mSegments = new Segment[MAX_SHIFT + 1][];
+        private final long[][] mWeights = new long[MAX_SHIFT + 1][];
+        private int mLevelCount;
+
+        /**
+         * Creates the levels for segments[start] to segments[end - 1], which must be sorted
+         * by start time and must not overlap.
+         */
+        SegmentLevels(Segment[] segments, int start, int end) {
+            int count = end - start;
+            mStartTimes[0] = new long[count];
+            mEndTimes[0] = new long[count];
+            mSegments[0] = new Segment[count];
+            mWeights[0] = new long[count];
+            for (int ii = 0; ii < count; ++ii) {
+                Segment segment = segments[start + ii];
+                mStartTimes[0][ii] = segment.mStartTime;
+                mEndTimes[0][ii] = segment.mEndTime;
+                mSegments[0][ii] = segment;
+                mWeights[0][ii] = segment.mEndTime - segment.mStartTime;
+            }
+            mLevelCount = 1;
+
+            // The levels are built in these arrays, then copied once complete.
+            long[] startTimes = new long[count];
+            long[] endTimes = new long[count];
+            Segment[] levelSegments = new Segment[count];
+            long[] weights = new long[count];
+            for (int shift = 1; shift <= MAX_SHIFT && getCount(mLevelCount - 1) > 1; ++shift) {
+                buildLevel(shift, startTimes, endTimes, levelSegments, weights);
+            }
+        }
+
+        /**
+         * Returns the level to use when a pixel covers <var>rangePerPixel</var> time units.
+         */
+        int getLevel(double rangePerPixel) {
+            int level = 0;
+            while (level + 1 < mLevelCount && (1L << mShifts[level + 1]) <= rangePerPixel) {
+                level++;
+            }
+            return level;
+        }
+
+        int getCount(int level) {
+            return mStartTimes[level].length;
+        }
+
+        long getStartTime(int level, int index) {
+            return mStartTimes[level][index];
+        }
+
+        long getEndTime(int level, int index) {
+            return mEndTimes[level][index];
+        }
+
+        Segment getSegment(int level, int index) {
+            return mSegments[level][index];
+        }
+
+        /**
+         * Returns the index of the first entry of a level that ends after <var>time</var>.
+         */
+        int findFirst(int level, double time) {
+            long[] endTimes = mEndTimes[level];
+            int low = 0;
+            int high = endTimes.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (endTimes[mid] <= time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Merges the entries of the last level into buckets of 2^shift time units, and keeps
+         * the result as a new level if that merged enough entries.
+         */
+        private void buildLevel(int shift, long[] newStartTimes, long[] newEndTimes,
+                Segment[] newSegments, long[] newWeights) {
+            int last = mLevelCount - 1;
+            long[] startTimes = mStartTimes[last];
+            long[] endTimes = mEndTimes[last];
+            Segment[] segments = mSegments[last];
+            long[] weights = mWeights[last];
+            int count = startTimes.length;
+            long width = 1L << shift;
+            int newCount = 0;
+
+            int ii = 0;
+            while (ii < count) {
+                // Find the run of short entries that start in the same bucket.
+                int runEnd = ii + 1;
+                if (endTimes[ii] - startTimes[ii] < width) {
+                    long bucket = startTimes[ii] >> shift;
+                    while (runEnd < count
+                            && endTimes[runEnd] - startTimes[runEnd] < width
+                            && (startTimes[runEnd] >> shift) == bucket) {
+                        runEnd++;
+                    }
+                }
+
+                // Pick the method that covers the most time in the run. Runs
+                // are usually a few entries long, so a simple scan is enough.
+                // For long runs, just pick the longest entry.
+                int best = ii;
+                long bestWeight = weights[ii];
+                if (runEnd - ii > MAX_SCANNED_RUN) {
+                    for (int jj = ii + 1; jj < runEnd; ++jj) {
+                        if (weights[jj] > bestWeight) {
+                            best = jj;
+                            bestWeight = weights[jj];
+                        }
+                    }
+                } else if (runEnd - ii > 1) {
+                    bestWeight = 0;
+                    for (int jj = ii; jj < runEnd; ++jj) {
+                        MethodData md = segments[jj].mBlock.getMethodData();
+                        long weight = 0;
+                        for (int kk = ii; kk < runEnd; ++kk) {
+                            if (segments[kk].mBlock.getMethodData() == md)
+                                weight += weights[kk];
+                        }
+                        if (weight > bestWeight) {
+                            best = jj;
+                            bestWeight = weight;
+                        }
+                    }
+                }
+
+                newStartTimes[newCount] = startTimes[ii];
+                newEndTimes[newCount] = endTimes[runEnd - 1];
+                newSegments[newCount] = segments[best];
+                newWeights[newCount] = bestWeight;
+                newCount++;
+                ii = runEnd;
+            }
+
+            // Only keep the level if it saves at least a quarter of the entries.
+            if (newCount > count - (count >> 2)) {
+                return;
+            }
+
+            mShifts[mLevelCount] = shift;
+            mStartTimes[mLevelCount] = ArrayHelper.copyOf(newStartTimes, newCount);
+            mEndTimes[mLevelCount] = ArrayHelper.copyOf(newEndTimes, newCount);
+            mWeights[mLevelCount] = ArrayHelper.copyOf(newWeights, newCount);
+            mSegments[mLevelCount] = new Segment[newCount];
+            System.arraycopy(newSegments, 0, mSegments[mLevelCount], 0, newCount);
+            mLevelCount++;
+        }
+    }
+
     private static class Strip {
         Strip(int x, int y, int width, int height, RowData rowData,
                 Segment segment, Color color) {
@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Analyzed trace, saved next to the trace file so that reopening the trace does not parse and
+ * analyze it again.
+ * <p/>
+ * The cache contains the methods with their profile data, the threads with their call paths,
+ * and the records of the timeline. It is only valid for the trace files with the lengths and
+ * last modification times recorded in it. The tables of numbers are written as consecutive
+ * arrays, so that they are read from the mapped file with bulk copies.
+ * <p/>
+ * The cache is named after the first trace file, with {@link #EXTENSION} appended.
+ */
+final class TraceCache {
+
+    static final String EXTENSION = ".cache"; //$NON-NLS-1$
+
+    /** traces smaller than this are quick enough to parse that they are not cached. */
+    static final long MIN_TRACE_LENGTH = 4 * 1024 * 1024;
+
+    private static final int MAGIC = 0x54564341; // "TVCA"
+    private static final int FORMAT_VERSION = 2;
+
+    // Kinds of the methods in the cache
+    private static final byte METHOD = 0;
+    private static final byte TOP_LEVEL = 1;
+    private static final byte CONTEXT_SWITCH = 2;
+
+    final int mVersionNumber;
+    final long mGlobalEndTime;
+    final IntMap<MethodData> mMethodMap;
+    final IntMap<ThreadData> mThreadMap;
+    /** the records, or <code>null</code> if they are not in the cache or not needed */
+    final CallStore mCalls;
+
+    TraceCache(int versionNumber, long globalEndTime, IntMap<MethodData> methodMap,
+            IntMap<ThreadData> threadMap, CallStore calls) {
+        mVersionNumber = versionNumber;
+        mGlobalEndTime = globalEndTime;
+        mMethodMap = methodMap;
+        mThreadMap = threadMap;
+        mCalls = calls;
+    }
+
+    static File getCacheFile(String traceFileName) {
+        return new File(traceFileName + EXTENSION);
+    }
+
+    /**
+     * Reads the cache of a trace.
+     * @param traceFiles the files the trace is read from, see
+     * {@link DmTraceReader#getTraceFiles()}.
+     * @param topLevel the top level method of the reader.
+     * @param contextSwitch the context switch method of the reader.
+     * @param needCalls whether the records are needed.
+     * @param needCallTrees whether the call paths of the threads are needed.
+     * @return the cache, or <code>null</code> if there is no valid cache for the file with the
+     * needed data.
+     */
+    static TraceCache read(File[] traceFiles, MethodData topLevel, MethodData contextSwitch,
+            boolean needCalls, boolean needCallTrees) {
+        File cacheFile = getCacheFile(traceFiles[0].getPath());
+        if (cacheFile.isFile() == false) {
+            return null;
+        }
+
+        try {
+            FileInputStream in = new FileInputStream(cacheFile);
+            ByteBuffer buffer;
+            try {
+                FileChannel channel = in.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                in.close();
+            }
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+                    || buffer.getInt() != traceFiles.length) {
+                return null;
+            }
+            for (File traceFile : traceFiles) {
+                if (buffer.getLong() != traceFile.length()
+                        || buffer.getLong() != traceFile.lastModified()) {
+                    return null;
+                }
+            }
+            int versionNumber = buffer.getInt();
+            long globalEndTime = buffer.getLong();
+            boolean hasCallTrees = buffer.get() != 0;
+            boolean hasCalls = buffer.get() != 0;
+            if ((needCallTrees && hasCallTrees == false) || (needCalls && hasCalls == false)) {
+                return null;
+            }
+
+            // The methods, with the context switch which is not in the method map.
+            int methodCount = buffer.getInt();
+            MethodData[] methods = new MethodData[methodCount];
+            IntMap<MethodData> methodMap = new IntMap<MethodData>(methodCount);
+            for (int i = 0 ; i < methodCount ; i++) {
+                byte kind = buffer.get();
+                int id = buffer.getInt();
+                String className = getString(buffer);
+                String methodName = getString(buffer);
+                String signature = getString(buffer);
+                String pathname = getString(buffer);
+                int lineNumber = buffer.getInt();
+                if (kind == TOP_LEVEL) {
+                    methods[i] = topLevel;
+                } else if (kind == CONTEXT_SWITCH) {
+                    methods[i] = contextSwitch;
+                } else {
+                    methods[i] = new MethodData(id, className, methodName, signature,
+                            pathname, lineNumber);
+                }
+                if (kind != CONTEXT_SWITCH) {
+                    methodMap.put(id, methods[i]);
+                }
+            }
+
+            // The top level and the context switch belong to the reader, so the stats are
+            // only added to the methods once the whole cache is read.
+            MethodStats.Entry[] methodStats = new MethodStats.Entry[methodCount];
+            for (int i = 0 ; i < methodCount ; i++) {
+                MethodStats.Entry stats = new MethodStats.Entry(methods[i]);
+                stats.mElapsedExclusive = buffer.getLong();
+                stats.mElapsedInclusive = buffer.getLong();
+                stats.mTopExclusive = buffer.getLong();
+                stats.mNumCalls = buffer.getInt();
+                stats.mNumRecursiveCalls = buffer.getInt();
+                stats.mParents = getEdges(buffer, methods);
+                stats.mChildren = getEdges(buffer, methods);
+                stats.mRecursiveParents = getEdges(buffer, methods);
+                stats.mRecursiveChildren = getEdges(buffer, methods);
+                methodStats[i] = stats;
+            }
+
+            int threadCount = buffer.getInt();
+            IntMap<ThreadData> threadMap = new IntMap<ThreadData>(threadCount);
+            for (int i = 0 ; i < threadCount ; i++) {
+                int id = buffer.getInt();
+                String name = getString(buffer);
+                boolean isEmpty = buffer.get() != 0;
+                long cpuTime = buffer.getLong();
+                long threadStartTime = buffer.getLong();
+                long threadEndTime = buffer.getLong();
+                long lastEventTime = buffer.getLong();
+
+                CallTree callTree = null;
+                if (needCallTrees) {
+                    callTree = getCallTree(buffer, methods, topLevel);
+                } else if (hasCallTrees) {
+                    skipCallTree(buffer);
+                }
+
+                ThreadData threadData = new ThreadData(id, name, isEmpty, callTree);
+                threadData.setCpuTime(cpuTime);
+                threadData.setGlobalStartTime(threadStartTime);
+                threadData.setGlobalEndTime(threadEndTime);
+                threadData.setLastEventTime(lastEventTime);
+                threadMap.put(id, threadData);
+            }
+
+            CallStore calls = null;
+            if (needCalls) {
+                int count = buffer.getInt();
+                int[] methodIndexes = getInts(buffer, count);
+                MethodData[] callMethods = new MethodData[count];
+                for (int i = 0 ; i < count ; i++) {
+                    callMethods[i] = methods[methodIndexes[i]];
+                }
+                methodIndexes = null;
+                calls = new CallStore(getInts(buffer, count), callMethods,
+                        getLongs(buffer, count), getLongs(buffer, count), getLongs(buffer, count),
+                        getBytes(buffer, count));
+                if (buffer.getInt() != MAGIC) {
+                    return null;
+                }
+            }
+
+            for (int i = 0 ; i < methodCount ; i++) {
+                methods[i].addStats(methodStats[i]);
+            }
+            return new TraceCache(versionNumber, globalEndTime, methodMap, threadMap, calls);
+        } catch (IOException e) {
+            // Parse the trace instead.
+            return null;
+        } catch (RuntimeException e) {
+            // The cache is truncated or corrupted: buffer underflow, bad index or count...
+            return null;
+        }
+    }
+
+    /**
+     * Writes the cache of a trace. Errors are ignored, since the trace can always be parsed
+     * again.
+     * @param traceFiles the files the trace is read from, see
+     * {@link DmTraceReader#getTraceFiles()}.
+     * @param contextSwitch the context switch method of the reader, which is not in the method
+     * map.
+     * @param callTrees whether the threads have call paths.
+     */
+    void write(File[] traceFiles, MethodData contextSwitch, boolean callTrees) {
+        File cacheFile = getCacheFile(traceFiles[0].getPath());
+        File tempFile = new File(cacheFile.getPath() + ".tmp"); //$NON-NLS-1$
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempFile), 65536));
+            try {
+                writeTo(out, traceFiles, contextSwitch, callTrees);
+            } finally {
+                out.close();
+            }
+
+            // Make sure that a cache is never read while it's being written.
+            cacheFile.delete();
+            if (tempFile.renameTo(cacheFile) == false) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+        }
+    }
+
+    private void writeTo(DataOutputStream out, File[] traceFiles, MethodData contextSwitch,
+            boolean callTrees) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(traceFiles.length);
+        for (File traceFile : traceFiles) {
+            out.writeLong(traceFile.length());
+            out.writeLong(traceFile.lastModified());
+        }
+        out.writeInt(mVersionNumber);
+        out.writeLong(mGlobalEndTime);
+        out.writeByte(callTrees ? 1 : 0);
+        out.writeByte(mCalls != null ? 1 : 0);
+
+        // The index of each method in the cache, by id.
+        IntMap<Integer> methodIndexes = new IntMap<Integer>(mMethodMap.size() + 1);
+        MethodData[] methods = new MethodData[mMethodMap.size() + 1];
+        int methodCount = 0;
+        for (MethodData md : mMethodMap.values()) {
+            methodIndexes.put(md.getId(), methodCount);
+            methods[methodCount++] = md;
+        }
+        methodIndexes.put(contextSwitch.getId(), methodCount);
+        methods[methodCount++] = contextSwitch;
+
+        out.writeInt(methodCount);
+        for (MethodData md : methods) {
+            byte kind = METHOD;
+            if (md == contextSwitch) {
+                kind = CONTEXT_SWITCH;
+            } else if (md.getId() == 0) {
+                kind = TOP_LEVEL;
+            }
+            out.writeByte(kind);
+            out.writeInt(md.getId());
+            writeString(out, md.getClassName());
+            writeString(out, md.getMethodName());
+            writeString(out, md.getSignature());
+            writeString(out, md.getPathname());
+            out.writeInt(md.getLineNumber());
+        }
+
+        for (MethodData md : methods) {
+            MethodStats.Entry stats = md.getStats();
+            out.writeLong(stats.mElapsedExclusive);
+            out.writeLong(stats.mElapsedInclusive);
+            out.writeLong(stats.mTopExclusive);
+            out.writeInt(stats.mNumCalls);
+            out.writeInt(stats.mNumRecursiveCalls);
+            writeEdges(out, stats.mParents, methodIndexes);
+            writeEdges(out, stats.mChildren, methodIndexes);
+            writeEdges(out, stats.mRecursiveParents, methodIndexes);
+            writeEdges(out, stats.mRecursiveChildren, methodIndexes);
+        }
+
+        out.writeInt(mThreadMap.size());
+        for (ThreadData threadData : mThreadMap.values()) {
+            out.writeInt(threadData.getId());
+            writeString(out, threadData.getName());
+            out.writeByte(threadData.isEmpty() ? 1 : 0);
+            out.writeLong(threadData.getCpuTime());
+            out.writeLong(threadData.getGlobalStartTime());
+            out.writeLong(threadData.getGlobalEndTime());
+            out.writeLong(threadData.getLastEventTime());
+            if (callTrees) {
+                writeCallTree(out, threadData.getCallTree(), methodIndexes);
+            }
+        }
+
+        if (mCalls != null) {
+            int count = mCalls.size();
+            out.writeInt(count);
+            for (int i = 0 ; i < count ; i++) {
+                out.writeInt(methodIndexes.get(mCalls.getMethodData(i).getId()));
+            }
+            for (int i = 0 ; i < count ; i++) {
+                out.writeInt(mCalls.getThreadId(i));
+            }
+            for (int i = 0 ; i < count ; i++) {
+                out.writeLong(mCalls.getThreadStartTime(i));
+            }
+            for (int i = 0 ; i < count ; i++) {
+                out.writeLong(mCalls.getGlobalStartTime(i));
+            }
+            for (int i = 0 ; i < count ; i++) {
+                out.writeLong(mCalls.getGlobalEndTime(i));
+            }
+            for (int i = 0 ; i < count ; i++) {
+                out.writeByte(mCalls.getFlags(i));
+            }
+            out.writeInt(MAGIC);
+        }
+    }
+
+    private static void writeEdges(DataOutputStream out,
+            HashMap<MethodData, MethodStats.Edge> edges, IntMap<Integer> methodIndexes)
+            throws IOException {
+        if (edges == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(edges.size());
+        for (Map.Entry<MethodData, MethodStats.Edge> entry : edges.entrySet()) {
+            out.writeInt(methodIndexes.get(entry.getKey().getId()));
+            out.writeLong(entry.getValue().mElapsedInclusive);
+            out.writeInt(entry.getValue().mNumCalls);
+        }
+    }
+
+    private static HashMap<MethodData, MethodStats.Edge> getEdges(ByteBuffer buffer,
+            MethodData[] methods) {
+        int count = buffer.getInt();
+        if (count == -1) {
+            return null;
+        }
+
+        HashMap<MethodData, MethodStats.Edge> edges =
+            new HashMap<MethodData, MethodStats.Edge>(count * 2);
+        for (int i = 0 ; i < count ; i++) {
+            MethodData md = methods[buffer.getInt()];
+            MethodStats.Edge edge = new MethodStats.Edge();
+            edge.mElapsedInclusive = buffer.getLong();
+            edge.mNumCalls = buffer.getInt();
+            edges.put(md, edge);
+        }
+        return edges;
+    }
+
+    /**
+     * Writes the nodes of a call tree in order. The parent of a node is always before it, so
+     * they are added back in the same order by {@link #getCallTree}.
+     */
+    private static void writeCallTree(DataOutputStream out, CallTree callTree,
+            IntMap<Integer> methodIndexes) throws IOException {
+        int size = callTree.size();
+        out.writeInt(size);
+        for (int node = 0 ; node < size ; node++) {
+            out.writeInt(methodIndexes.get(callTree.getMethodData(node).getId()));
+        }
+        for (int node = 0 ; node < size ; node++) {
+            out.writeInt(callTree.getParent(node));
+        }
+        for (int node = 0 ; node < size ; node++) {
+            out.writeLong(callTree.getInclusiveTime(node));
+        }
+        for (int node = 0 ; node < size ; node++) {
+            out.writeLong(callTree.getExclusiveTime(node));
+        }
+        for (int node = 0 ; node < size ; node++) {
+            out.writeInt(callTree.getCalls(node));
+        }
+    }
+
+    private static CallTree getCallTree(ByteBuffer buffer, MethodData[] methods,
+            MethodData topLevel) throws IOException {
+        int size = buffer.getInt();
+        int[] methodIndexes = getInts(buffer, size);
+        int[] parents = getInts(buffer, size);
+        long[] inclusiveTimes = getLongs(buffer, size);
+        long[] exclusiveTimes = getLongs(buffer, size);
+        int[] calls = getInts(buffer, size);
+
+        CallTree callTree = new CallTree(topLevel);
+        for (int node = 0 ; node < size ; node++) {
+            if (node != CallTree.ROOT
+                    && callTree.getChild(parents[node], methods[methodIndexes[node]]) != node) {
+                throw new IOException("Invalid call tree");
+            }
+            callTree.addInclusive(node, inclusiveTimes[node]);
+            callTree.addExclusive(node, exclusiveTimes[node]);
+            callTree.addCalls(node, calls[node]);
+        }
+        callTree.endTree();
+        return callTree;
+    }
+
+    private static void skipCallTree(ByteBuffer buffer) {
+        int size = buffer.getInt();
+        // method index, parent, inclusive and exclusive times, and calls of each node.
+        buffer.position(buffer.position() + size * (4 + 4 + 8 + 8 + 4));
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(s.length());
+            out.writeChars(s);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        char[] chars = new char[length];
+        buffer.asCharBuffer().get(chars);
+        buffer.position(buffer.position() + length * 2);
+        return new String(chars);
+    }
+
+    private static int[] getInts(ByteBuffer buffer, int count) {
+        int[] array = new int[count];
+        buffer.asIntBuffer().get(array);
+        buffer.position(buffer.position() + count * 4);
+        return array;
+    }
+
+    private static long[] getLongs(ByteBuffer buffer, int count) {
+        long[] array = new long[count];
+        buffer.asLongBuffer().get(array);
+        buffer.position(buffer.position() + count * 8);
+        return array;
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer, int count) {
+        byte[] array = new byte[count];
+        buffer.get(array);
+        return array;
+    }
+}
@@ -49,6 +49,10 @@ public abstract class TraceReader {
         return 0;
     }
 
+    public CallTree getCallTree() {
+        return null;
+    }
+
     public ProfileProvider getProfileProvider() {
         return null;
     }
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.traceview;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Prints the profile of a trace as CSV or JSON, without the UI, or the difference between the
+ * profiles of two traces.
+ * <p/>
+ * The report contains the top methods, sorted by inclusive time, exclusive time or number of
+ * calls, and the cpu time of each thread. The traces are read with a profile-only
+ * {@link DmTraceReader}, so the memory used does not depend on the length of the traces.
+ * <p/>
+ * The times are in the units of the trace, usually microseconds.
+ * <p/>
+ * The report can also be the flame graph of the call paths of a trace, as SVG. Its memory use
+ * then depends on the number of distinct call paths of the trace.
+ */
+public class TraceReport {
+
+    enum Format {
+        CSV, JSON, SVG
+    }
+
+    enum SortKey {
+        INCLUSIVE, EXCLUSIVE, CALLS
+    }
+
+    private final PrintStream mOut;
+    private final Format mFormat;
+    private final SortKey mSortKey;
+    private final int mCount;
+
+    TraceReport(PrintStream out, Format format, SortKey sortKey, int count) {
+        mOut = out;
+        mFormat = format;
+        mSortKey = sortKey;
+        mCount = count;
+    }
+
+    /**
+     * Prints the profile of a trace.
+     */
+    void report(String traceName, TraceReader reader) {
+        if (mFormat == Format.SVG) {
+            FlameGraph.writeSvg(reader.getCallTree(), traceName, reader.getTraceUnits(), mOut);
+            return;
+        }
+
+        MethodData[] methods = reader.getMethods().clone();
+        Arrays.sort(methods, new Comparator<MethodData>() {
+            public int compare(MethodData md1, MethodData md2) {
+                int result = compareValues(getValue(md2), getValue(md1));
+                if (result == 0) {
+                    result = md1.getName().compareTo(md2.getName());
+                }
+                return result;
+            }
+        });
+
+        Table methodTable = new Table("name", "inclusive", "exclusive", "calls",
+                "recursiveCalls");
+        for (int i = 0 ; i < methods.length && i < mCount ; i++) {
+            MethodData md = methods[i];
+            methodTable.addRow(md.getName(), md.getElapsedInclusive(),
+                    md.getElapsedExclusive(), md.getNumCalls(), md.getNumRecursiveCalls());
+        }
+
+        Table threadTable = new Table("id", "name", "cpuTime");
+        for (ThreadData td : reader.getThreads()) {
+            if (td.isEmpty() == false) {
+                threadTable.addRow(td.getId(), td.getName(), td.getCpuTime());
+            }
+        }
+
+        write(new String[] { "trace" }, new String[] { traceName }, //$NON-NLS-1$
+                methodTable, threadTable);
+    }
+
+    /**
+     * Prints the difference between the profiles of two traces. The methods are matched by
+     * name, and the threads by id and name.
+     * <p/>
+     * The methods are sorted by the absolute value of the difference.
+     */
+    void diff(String baseName, TraceReader base, String traceName, TraceReader reader) {
+        HashMap<String, MethodData> baseMethods = new HashMap<String, MethodData>();
+        for (MethodData md : base.getMethods()) {
+            baseMethods.put(md.getName(), md);
+        }
+        HashMap<String, MethodData> methods = new HashMap<String, MethodData>();
+        for (MethodData md : reader.getMethods()) {
+            methods.put(md.getName(), md);
+        }
+
+        HashSet<String> names = new HashSet<String>(baseMethods.keySet());
+        names.addAll(methods.keySet());
+        ArrayList<MethodDiff> diffs = new ArrayList<MethodDiff>(names.size());
+        for (String name : names) {
+            diffs.add(new MethodDiff(name, baseMethods.get(name), methods.get(name)));
+        }
+        MethodDiff[] sortedDiffs = diffs.toArray(new MethodDiff[diffs.size()]);
+        Arrays.sort(sortedDiffs, new Comparator<MethodDiff>() {
+            public int compare(MethodDiff diff1, MethodDiff diff2) {
+                int result = compareValues(diff2.getAbsoluteDelta(), diff1.getAbsoluteDelta());
+                if (result == 0) {
+                    result = diff1.mName.compareTo(diff2.mName);
+                }
+                return result;
+            }
+        });
+
+        // The columns are in the order of SortKey.
+        Table methodTable = new Table("name",
+                "baseInclusive", "inclusive", "inclusiveDelta",
+                "baseExclusive", "exclusive", "exclusiveDelta",
+                "baseCalls", "calls", "callsDelta");
+        for (int i = 0 ; i < sortedDiffs.length && i < mCount ; i++) {
+            MethodDiff diff = sortedDiffs[i];
+            long[] row = new long[9];
+            for (SortKey key : SortKey.values()) {
+                int index = key.ordinal() * 3;
+                row[index] = diff.mBase != null ? getValue(diff.mBase, key) : 0;
+                row[index + 1] = diff.mMethod != null ? getValue(diff.mMethod, key) : 0;
+                row[index + 2] = row[index + 1] - row[index];
+            }
+            methodTable.addRow(diff.mName, row[0], row[1], row[2], row[3], row[4], row[5],
+                    row[6], row[7], row[8]);
+        }
+
+        HashMap<String, ThreadData> baseThreads = new HashMap<String, ThreadData>();
+        for (ThreadData td : base.getThreads()) {
+            if (td.isEmpty() == false) {
+                baseThreads.put(td.getName(), td);
+            }
+        }
+        Table threadTable = new Table("name", "baseCpuTime", "cpuTime", "cpuTimeDelta");
+        for (ThreadData td : reader.getThreads()) {
+            if (td.isEmpty() == false) {
+                ThreadData baseThread = baseThreads.remove(td.getName());
+                long baseTime = baseThread != null ? baseThread.getCpuTime() : 0;
+                threadTable.addRow(td.getName(), baseTime, td.getCpuTime(),
+                        td.getCpuTime() - baseTime);
+            }
+        }
+        for (ThreadData td : base.getThreads()) {
+            // The threads that are only in the base trace.
+            if (baseThreads.containsKey(td.getName())) {
+                threadTable.addRow(td.getName(), td.getCpuTime(), 0L, -td.getCpuTime());
+            }
+        }
+
+        write(new String[] { "base", "trace" }, //$NON-NLS-1$ //$NON-NLS-2$
+                new String[] { baseName, traceName }, methodTable, threadTable);
+    }
+
+    private long getValue(MethodData md) {
+        return getValue(md, mSortKey);
+    }
+
+    private static long getValue(MethodData md, SortKey key) {
+        switch (key) {
+            case EXCLUSIVE:
+                return md.getElapsedExclusive();
+            case CALLS:
+                return md.getNumCalls();
+            default:
+                return md.getElapsedInclusive();
+        }
+    }
+
+    private static int compareValues(long value1, long value2) {
+        return value1 < value2 ? -1 : (value1 > value2 ? 1 : 0);
+    }
+
+    /**
+     * Difference between the profiles of a method in two traces.
+     */
+    private class MethodDiff {
+        final String mName;
+        /** the method in the base trace, or <code>null</code> */
+        final MethodData mBase;
+        /** the method in the other trace, or <code>null</code> */
+        final MethodData mMethod;
+
+        MethodDiff(String name, MethodData base, MethodData method) {
+            mName = name;
+            mBase = base;
+            mMethod = method;
+        }
+
+        long getAbsoluteDelta() {
+            long baseValue = mBase != null ? getValue(mBase) : 0;
+            long value = mMethod != null ? getValue(mMethod) : 0;
+            return Math.abs(value - baseValue);
+        }
+    }
+
+    /**
+     * A table of the report. The values are strings or numbers.
+     */
+    private static class Table {
+        final String[] mColumns;
+        final ArrayList<Object[]> mRows = new ArrayList<Object[]>();
+
+        Table(String... columns) {
+            mColumns = columns;
+        }
+
+        void addRow(Object... values) {
+            mRows.add(values);
+        }
+    }
+
+    /**
+     * Writes the tables of the report, which are "methods" and "threads".
+     * <p/>
+     * In JSON, the report is an object with the given properties and the tables as arrays of
+     * objects. In CSV, the properties are omitted and the tables are separated by an empty line.
+     */
+    private void write(String[] names, String[] values, Table methods, Table threads) {
+        if (mFormat == Format.CSV) {
+            writeCsv(methods);
+            mOut.println();
+            writeCsv(threads);
+        } else {
+            mOut.println("{"); //$NON-NLS-1$
+            for (int i = 0 ; i < names.length ; i++) {
+                mOut.printf("  %1$s: %2$s,%n", quoteJson(names[i]), //$NON-NLS-1$
+                        quoteJson(values[i]));
+            }
+            mOut.printf("  %1$s: %2$s,%n", quoteJson("units"), //$NON-NLS-1$ //$NON-NLS-2$
+                    quoteJson("usec")); //$NON-NLS-1$
+            writeJson("methods", methods); //$NON-NLS-1$
+            mOut.println(","); //$NON-NLS-1$
+            writeJson("threads", threads); //$NON-NLS-1$
+            mOut.println();
+            mOut.println("}"); //$NON-NLS-1$
+        }
+        mOut.flush();
+    }
+
+    private void writeCsv(Table table) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0 ; i < table.mColumns.length ; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(table.mColumns[i]);
+        }
+        mOut.println(sb);
+
+        for (Object[] row : table.mRows) {
+            sb.setLength(0);
+            for (int i = 0 ; i < row.length ; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                if (row[i] instanceof String) {
+                    sb.append(quoteCsv((String) row[i]));
+                } else {
+                    sb.append(row[i]);
+                }
+            }
+            mOut.println(sb);
+        }
+    }
+
+    private void writeJson(String name, Table table) {
+        mOut.printf("  %1$s: [", quoteJson(name)); //$NON-NLS-1$
+        StringBuilder sb = new StringBuilder();
+        for (int r = 0 ; r < table.mRows.size() ; r++) {
+            Object[] row = table.mRows.get(r);
+            sb.setLength(0);
+            sb.append(r > 0 ? ",\n    {" : "\n    {"); //$NON-NLS-1$ //$NON-NLS-2$
+            for (int i = 0 ; i < row.length ; i++) {
+                if (i > 0) {
+                    sb.append(", "); //$NON-NLS-1$
+                }
+                sb.append(quoteJson(table.mColumns[i])).append(": "); //$NON-NLS-1$
+                if (row[i] instanceof String) {
+                    sb.append(quoteJson((String) row[i]));
+                } else {
+                    sb.append(row[i]);
+                }
+            }
+            sb.append('}');
+            mOut.print(sb);
+        }
+        mOut.print(table.mRows.size() > 0 ? "\n  ]" : "]"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    static String quoteCsv(String value) {
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1
+                && value.indexOf('\n') == -1) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"'; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    static String quoteJson(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0 ; i < value.length() ; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\""); //$NON-NLS-1$
+                    break;
+                case '\\':
+                    sb.append("\\\\"); //$NON-NLS-1$
+                    break;
+                case '\n':
+                    sb.append("\\n"); //$NON-NLS-1$
+                    break;
+                case '\t':
+                    sb.append("\\t"); //$NON-NLS-1$
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c)); //$NON-NLS-1$
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+    private static void printUsage() {
+        System.out.printf("Usage: java %s [-f csv|json|svg] [-s inclusive|exclusive|calls]"
+                + " [-n count] [base-trace] trace%n", TraceReport.class.getName());
+        System.out.printf("  -f   output format, csv by default. svg is the flame graph of the"
+                + " trace%n");
+        System.out.printf("  -s   sort the methods by inclusive time (default), exclusive time"
+                + " or calls%n");
+        System.out.printf("  -n   number of methods to print, 20 by default%n");
+        System.out.printf("With two traces, prints the difference of the second one from the"
+                + " first one.%n");
+        System.out.printf("A trace can also be the directory of an emulator trace.%n");
+    }
+
+    public static void main(String[] args) {
+        Format format = Format.CSV;
+        SortKey sortKey = SortKey.INCLUSIVE;
+        int count = 20;
+
+        // Process command line arguments
+        int argc = 0;
+        int len = args.length;
+        try {
+            while (argc < len) {
+                String arg = args[argc];
+                if (arg.length() == 0 || arg.charAt(0) != '-') {
+                    break;
+                }
+                if (argc + 1 == len) {
+                    printUsage();
+                    System.exit(1);
+                }
+                String value = args[++argc];
+                if (arg.equals("-f")) { //$NON-NLS-1$
+                    format = Format.valueOf(value.toUpperCase());
+                } else if (arg.equals("-s")) { //$NON-NLS-1$
+                    sortKey = SortKey.valueOf(value.toUpperCase());
+                } else if (arg.equals("-n")) { //$NON-NLS-1$
+                    count = Integer.parseInt(value);
+                } else {
+                    printUsage();
+                    System.exit(1);
+                }
+                argc++;
+            }
+        } catch (IllegalArgumentException e) {
+            // Also covers NumberFormatException
+            printUsage();
+            System.exit(1);
+        }
+        if (len - argc != 1 && (len - argc != 2 || format == Format.SVG)) {
+            printUsage();
+            System.exit(1);
+        }
+
+        for (int i = argc ; i < len ; i++) {
+            if (new File(args[i]).isFile() == false
+                    && new File(args[i], QtraceReader.METHOD_FILE).isFile() == false) {
+                System.err.printf("trace file '%s' not found\n", args[i]);
+                System.exit(1);
+            }
+        }
+
+        TraceReport report = new TraceReport(System.out, format, sortKey, count);
+        if (len - argc == 1) {
+            String traceName = args[argc];
+            report.report(traceName, openTrace(traceName, format == Format.SVG));
+        } else {
+            String baseName = args[argc];
+            String traceName = args[argc + 1];
+            DmTraceReader base = openTrace(baseName, false);
+            report.diff(baseName, base, traceName, openTrace(traceName, false));
+        }
+    }
+
+    /**
+     * Reads the profile data of a method trace, or of an emulator trace directory.
+     * @param callTrees whether to build the call paths of the trace.
+     */
+    private static DmTraceReader openTrace(String traceName, boolean callTrees) {
+        if (new File(traceName).isDirectory()) {
+            return new QtraceReader(traceName, true, callTrees);
+        }
+        return new DmTraceReader(traceName, false, true, callTrees, -1);
+    }
+}